@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("maven-publish")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.navapbc.piqi"
@@ -19,8 +20,10 @@ dependencies {
     implementation("jakarta.validation:jakarta.validation-api:3.0.2")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.15.2")
     implementation("joda-time:joda-time:2.2")
+    compileOnly("io.micrometer:micrometer-core:1.12.5")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation("io.micrometer:micrometer-core:1.12.5")
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
@@ -28,6 +31,37 @@ tasks.test {
     useJUnitPlatform()
 }
 
+sourceSets {
+    named("jmh") {
+        resources.srcDir("src/test/resources")
+    }
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    includeTests.set(true)
+    benchmarkMode.set(listOf("thrpt", "avgt"))
+    timeUnit.set("ms")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results-$version.json"))
+    if (project.hasProperty("jmhIncludes")) {
+        includes.set(listOf(project.property("jmhIncludes").toString()))
+    }
+}
+
+tasks.register<JavaExec>("generateSyntheticFhir") {
+    description = "Generates synthetic FHIR R4 data for scale testing, e.g. -Pargs=\"--patients=1000 --format=ndjson\""
+    classpath = sourceSets.test.get().runtimeClasspath
+    mainClass.set("com.navapbc.piqi.map.fhir.synthetic.SyntheticR4Generator")
+    if (project.hasProperty("args")) {
+        args(project.property("args").toString().split(" "))
+    }
+}
+
 tasks.register<Jar>("sourcesJar") {
     archiveClassifier.set("sources")
     from(sourceSets.main.get().allSource)
@@ -0,0 +1,47 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bundles for the benchmarks, built from {@code synthea.fhir.json}.
+ */
+final class BenchmarkBundles {
+
+    static final FhirContext FHIR_CONTEXT = PiqiR4Engine.getDefault().getFhirContext();
+
+    // Every id in the synthea bundle starts with this, so replacing it gives each copy its own ids and references.
+    private static final String SYNTHEA_ID_PREFIX = "01d6ee97-ee40-4430-";
+
+    private BenchmarkBundles() {
+    }
+
+    static String syntheaJson() {
+        try (InputStream inputStream =
+                     BenchmarkBundles.class.getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns a bundle holding {@code scale} copies of the synthea bundle's entries, each copy with distinct ids.
+     */
+    static Bundle scaledBundle(int scale) {
+        String json = syntheaJson();
+        IParser parser = FHIR_CONTEXT.newJsonParser();
+        Bundle bundle = parser.parseResource(Bundle.class, json);
+        for (int copy = 1; copy < scale; copy++) {
+            String copyJson = json.replace(SYNTHEA_ID_PREFIX, String.format("%08x-ee40-4430-", copy));
+            bundle.getEntry().addAll(parser.parseResource(Bundle.class, copyJson).getEntry());
+        }
+        return bundle;
+    }
+}
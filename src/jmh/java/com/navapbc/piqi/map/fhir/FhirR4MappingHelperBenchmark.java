@@ -0,0 +1,57 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class FhirR4MappingHelperBenchmark {
+
+    private Observation observation;
+    private DiagnosticReport diagnosticReport;
+
+    @Setup
+    public void setUp() {
+        Bundle bundle = BenchmarkBundles.scaledBundle(1);
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (observation == null && entry.getResource() instanceof Observation lab
+                    && FhirR4MappingHelper.isLab(lab)) {
+                observation = lab;
+            }
+            if (diagnosticReport == null && entry.getResource() instanceof DiagnosticReport report) {
+                diagnosticReport = report;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean isLabObservation() {
+        return FhirR4MappingHelper.isLab(observation);
+    }
+
+    @Benchmark
+    public boolean isLabDiagnosticReport() {
+        return FhirR4MappingHelper.isLab(diagnosticReport);
+    }
+
+    @Benchmark
+    public PiqiCodeableConcept mapCodeableConcept() {
+        return FhirR4MappingHelper.mapCodeableConcept(observation.getCode());
+    }
+
+    @Benchmark
+    public PiqiSimpleAttribute simpleAttributeFromDateAsDate() {
+        return FhirR4MappingHelper.simpleAttributeFromDateAsDate(diagnosticReport.getIssuedElement());
+    }
+
+    @Benchmark
+    public PiqiSimpleAttribute simpleAttributeFromDateAsDateTime() {
+        return FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(diagnosticReport.getIssuedElement());
+    }
+}
@@ -0,0 +1,29 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiDemographics;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class PiqiDemographicsR4MapperBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    private final PiqiDemographicsR4Mapper mapper = new PiqiDemographicsR4Mapper();
+    private Bundle bundle;
+
+    @Setup
+    public void setUp() {
+        bundle = BenchmarkBundles.scaledBundle(scale);
+    }
+
+    @Benchmark
+    public PiqiDemographics mapDemographics() {
+        return mapper.mapDemographics(bundle);
+    }
+}
@@ -0,0 +1,44 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.map.fhir.incremental.PiqiIncrementalR4Mapper;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Compares mapping an unchanged bundle again incrementally with mapping it in full.  The synthea resources have no
+ * {@code meta.versionId} or {@code meta.lastUpdated}, so every fingerprint is a content hash.
+ */
+@State(Scope.Benchmark)
+public class PiqiIncrementalR4MapperBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    private final PiqiLabResultsR4Mapper mapper = new PiqiLabResultsR4Mapper();
+    private PiqiIncrementalR4Mapper incrementalMapper;
+    private Bundle bundle;
+
+    @Setup
+    public void setUp() {
+        bundle = BenchmarkBundles.scaledBundle(scale);
+        incrementalMapper = new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault());
+        incrementalMapper.mapLabResults(bundle);
+    }
+
+    @Benchmark
+    public List<PiqiLabResult> mapLabResultsInFull() {
+        return mapper.mapLabResults(bundle);
+    }
+
+    @Benchmark
+    public List<PiqiLabResult> mapLabResultsIncrementally() {
+        return incrementalMapper.mapLabResults(bundle);
+    }
+}
@@ -0,0 +1,54 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@State(Scope.Benchmark)
+public class PiqiLabResultsR4MapperBenchmark {
+
+    private static final String CBC_REPORT_ID = "urn:uuid:01d6ee97-ee40-4430-68d1-c5c938abfdad";
+
+    @Param({"1", "10", "100"})
+    public int scale;
+
+    private final PiqiLabResultsR4Mapper mapper = new PiqiLabResultsR4Mapper();
+    private Bundle bundle;
+    private DiagnosticReport diagnosticReport;
+    private Map<String, Observation> observations;
+
+    @Setup
+    public void setUp() {
+        bundle = BenchmarkBundles.scaledBundle(scale);
+        observations = new HashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Observation observation) {
+                observations.put(observation.getIdElement().getIdPart(), observation);
+            }
+            if (entry.getResource() instanceof DiagnosticReport report
+                    && CBC_REPORT_ID.equals(report.getIdElement().getIdPart())) {
+                diagnosticReport = report;
+            }
+        }
+    }
+
+    @Benchmark
+    public List<PiqiLabResult> mapLabResultsFromBundle() {
+        return mapper.mapLabResults(bundle);
+    }
+
+    @Benchmark
+    public List<PiqiLabResult> mapLabResultsFromReport() {
+        return mapper.mapLabResults(diagnosticReport, observations);
+    }
+}
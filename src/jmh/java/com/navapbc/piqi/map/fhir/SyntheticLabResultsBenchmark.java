@@ -0,0 +1,38 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.map.fhir.synthetic.SyntheticR4Generator;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Lab result mapping of generated bundles of 10k to 1M resources.
+ */
+@State(Scope.Benchmark)
+public class SyntheticLabResultsBenchmark {
+
+    @Param({"40", "400", "4000"})
+    public int patients;
+
+    private final PiqiLabResultsR4Mapper mapper = new PiqiLabResultsR4Mapper();
+    private Bundle bundle;
+
+    @Setup
+    public void setUp() {
+        SyntheticR4Generator generator = new SyntheticR4Generator(BenchmarkBundles.FHIR_CONTEXT);
+        generator.setPatients(patients);
+        generator.setSpecimens(true);
+        bundle = generator.generateBundle();
+    }
+
+    @Benchmark
+    public List<PiqiLabResult> mapLabResultsFromBundle() {
+        return mapper.mapLabResults(bundle);
+    }
+}
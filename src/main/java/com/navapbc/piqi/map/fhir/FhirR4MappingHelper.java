@@ -5,13 +5,21 @@ import com.navapbc.piqi.model.PiqiCoding;
 import com.navapbc.piqi.model.PiqiSimpleAttribute;
 import org.hl7.fhir.r4.model.*;
 
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 
 public class FhirR4MappingHelper {
 
+    // DateTimeFormatter is immutable and thread-safe, unlike SimpleDateFormat, so one instance serves every call.
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("uuuu-MM-dd");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss");
+
     public static boolean isCategoryMatch(List<CodeableConcept> categories, String text) {
         boolean isMatch = false;
         for (CodeableConcept codeableConcept : categories) {
@@ -47,6 +55,10 @@ public class FhirR4MappingHelper {
     public static PiqiCodeableConcept mapCodeableConcept(CodeableConcept fhirConcept) {
         PiqiCodeableConcept piqiConcept = new PiqiCodeableConcept();
         piqiConcept.setText(new PiqiSimpleAttribute(fhirConcept.getText()));
+        if (!fhirConcept.hasCoding()) {
+            // getCoding() would create the list, a write to a concept that parallel mapping tasks may share.
+            return piqiConcept;
+        }
         for (Coding fhirCoding : fhirConcept.getCoding()) {
             PiqiCoding piqiCodings = new PiqiCoding();
             piqiCodings.setCode(new PiqiSimpleAttribute(fhirCoding.getCode()));
@@ -57,22 +69,143 @@ public class FhirR4MappingHelper {
         return piqiConcept;
     }
 
-    public static PiqiSimpleAttribute simpleAttributeFromDateAsDate(Date date) {
+    /**
+     * Maps the concept through the cache, which returns a shared instance for concepts that have been mapped before.
+     * Without a cache a new concept is mapped, as by {@link #mapCodeableConcept(CodeableConcept)}.
+     */
+    public static PiqiCodeableConcept mapCodeableConcept(CodeableConcept fhirConcept, PiqiCodingCache codingCache) {
+        return codingCache == null ? mapCodeableConcept(fhirConcept) : codingCache.codeableConcept(fhirConcept);
+    }
+
+    /**
+     * Builds a concept with the text and a single coding straight from their values, without building a FHIR
+     * {@link CodeableConcept} to map.  With a cache the coding is the shared instance, but the concept and its text
+     * are always new: the text may be a measured value, as in the unit concept of a lab result, and caching it would
+     * add an entry per measurement and evict the codings that repeat.
+     */
+    public static PiqiCodeableConcept mapCodeableConcept(String text, String system, String code, String display,
+                                                         PiqiCodingCache codingCache) {
+        PiqiCodeableConcept piqiConcept = new PiqiCodeableConcept();
+        piqiConcept.setText(new PiqiSimpleAttribute(text));
+        piqiConcept.getCodings().add(mapCoding(system, code, display, codingCache));
+        return piqiConcept;
+    }
+
+    /**
+     * Maps the concept with its codings translated by the translator, through the cache.  Without a translator the
+     * concept is mapped as by {@link #mapCodeableConcept(CodeableConcept, PiqiCodingCache)}.
+     */
+    public static PiqiCodeableConcept mapCodeableConcept(CodeableConcept fhirConcept, PiqiCodingCache codingCache,
+                                                         PiqiTerminologyTranslator translator) {
+        if (translator == null || !fhirConcept.hasCoding()) {
+            return mapCodeableConcept(fhirConcept, codingCache);
+        }
+        PiqiCodeableConcept piqiConcept = new PiqiCodeableConcept();
+        piqiConcept.setText(codingCache == null ? new PiqiSimpleAttribute(fhirConcept.getText())
+                : codingCache.attribute(fhirConcept.getText()));
+        for (Coding fhirCoding : fhirConcept.getCoding()) {
+            piqiConcept.getCodings().add(translator.translate(fhirCoding.getSystem(), fhirCoding.getCode(),
+                    fhirCoding.getDisplay(), codingCache));
+        }
+        return piqiConcept;
+    }
+
+    /**
+     * Builds a concept with the text and a single coding, translated by the translator when it has a translation.
+     */
+    public static PiqiCodeableConcept mapCodeableConcept(String text, String system, String code, String display,
+                                                         PiqiCodingCache codingCache,
+                                                         PiqiTerminologyTranslator translator) {
+        PiqiTerminologyTranslator.Translation translation = translator == null ? null : translator.lookup(system, code);
+        if (translation == null) {
+            return mapCodeableConcept(text, system, code, display, codingCache);
+        }
+        return mapCodeableConcept(text, translation.system(), translation.code(),
+                translation.display() != null ? translation.display() : display, codingCache);
+    }
+
+    public static PiqiCoding mapCoding(String system, String code, String display, PiqiCodingCache codingCache) {
+        if (codingCache != null) {
+            return codingCache.coding(system, code, display);
+        }
+        PiqiCoding piqiCoding = new PiqiCoding();
+        piqiCoding.setCode(new PiqiSimpleAttribute(code));
+        piqiCoding.setDisplay(new PiqiSimpleAttribute(display));
+        piqiCoding.setSystem(new PiqiSimpleAttribute(system));
+        return piqiCoding;
+    }
+
+    /**
+     * Formats the date as {@code yyyy-MM-dd} in the time zone of the element, which is the zone the value was
+     * recorded in.  Values recorded without a zone are read back in the zone HAPI parsed them in, so the date is
+     * always the one written in the source data, whatever the zone of the JVM.
+     */
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDate(BaseDateTimeType dateTime) {
+        PiqiSimpleAttribute simpleAttribute = new PiqiSimpleAttribute();
+        if (dateTime != null && dateTime.getValue() != null) {
+            simpleAttribute.setValue(DATE_FORMATTER.format(toLocalDateTime(dateTime)));
+        }
+        return simpleAttribute;
+    }
+
+    /**
+     * Formats the date as {@code yyyy-MM-dd HH:mm:ss} in the time zone of the element.
+     *
+     * @see #simpleAttributeFromDateAsDate(BaseDateTimeType)
+     */
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDateTime(BaseDateTimeType dateTime) {
+        PiqiSimpleAttribute simpleAttribute = new PiqiSimpleAttribute();
+        if (dateTime != null && dateTime.getValue() != null) {
+            simpleAttribute.setValue(DATE_TIME_FORMATTER.format(toLocalDateTime(dateTime)));
+        }
+        return simpleAttribute;
+    }
+
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDate(Date date, ZoneId zoneId) {
         PiqiSimpleAttribute simpleAttribute = new PiqiSimpleAttribute();
         if (date != null) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-            simpleAttribute.setValue(sdf.format(date));
+            simpleAttribute.setValue(DATE_FORMATTER.format(LocalDateTime.ofInstant(date.toInstant(), zoneId)));
         }
         return simpleAttribute;
     }
 
-    public static PiqiSimpleAttribute simpleAttributeFromDateAsDateTime(Date date) {
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDateTime(Date date, ZoneId zoneId) {
         PiqiSimpleAttribute simpleAttribute = new PiqiSimpleAttribute();
         if (date != null) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            simpleAttribute.setValue(sdf.format(date));
+            simpleAttribute.setValue(DATE_TIME_FORMATTER.format(LocalDateTime.ofInstant(date.toInstant(), zoneId)));
         }
         return simpleAttribute;
     }
 
+    /**
+     * Formats the date in the zone of the JVM.
+     *
+     * @deprecated a {@link Date} has lost the zone it was recorded in, use
+     * {@link #simpleAttributeFromDateAsDate(BaseDateTimeType)} or {@link #simpleAttributeFromDateAsDate(Date, ZoneId)}.
+     */
+    @Deprecated
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDate(Date date) {
+        return simpleAttributeFromDateAsDate(date, ZoneId.systemDefault());
+    }
+
+    /**
+     * Formats the date and time in the zone of the JVM.
+     *
+     * @deprecated a {@link Date} has lost the zone it was recorded in, use
+     * {@link #simpleAttributeFromDateAsDateTime(BaseDateTimeType)} or
+     * {@link #simpleAttributeFromDateAsDateTime(Date, ZoneId)}.
+     */
+    @Deprecated
+    public static PiqiSimpleAttribute simpleAttributeFromDateAsDateTime(Date date) {
+        return simpleAttributeFromDateAsDateTime(date, ZoneId.systemDefault());
+    }
+
+    private static LocalDateTime toLocalDateTime(BaseDateTimeType dateTime) {
+        // HAPI reads values without a zone, such as dates, in the zone of the JVM.
+        TimeZone timeZone = dateTime.getTimeZone();
+        ZoneId zoneId = dateTime.isTimeZoneZulu() ? ZoneOffset.UTC
+                : timeZone != null ? timeZone.toZoneId() : ZoneId.systemDefault();
+        return LocalDateTime.ofInstant(dateTime.getValue().toInstant(), zoneId);
+    }
+
 }
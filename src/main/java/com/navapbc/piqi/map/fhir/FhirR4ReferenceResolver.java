@@ -0,0 +1,213 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.map.fhir.jfr.PiqiMappingEvent;
+import com.navapbc.piqi.map.fhir.jfr.ReferenceResolutionEvent;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the references between the resources of one bundle, or of one partition of a bulk export.
+ * <p>
+ * The resolver indexes each resource under its bundle {@code fullUrl}, its id and its relative {@code Type/id} form,
+ * and the contained resources of each resource under their local {@code #id}.  A reference that HAPI has already
+ * resolved is answered from {@link Reference#getResource()}; any other reference is looked up once and the answer,
+ * found or not, is remembered, so following the same reference from many observations costs a single map access.
+ * This avoids running HAPI's reference resolution over a whole bundle before mapping it.
+ * <p>
+ * Resources are added on one thread; once built the resolver may be read by several threads at once.  A resolver
+ * that is kept up to date, as the resources of a stream arrive and expire, may also have resources added and removed
+ * after it has resolved references, as long as no other thread resolves meanwhile.  A resolver without resources
+ * still answers references that HAPI has resolved and references to contained resources.
+ */
+public class FhirR4ReferenceResolver {
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+
+    private final Map<String, Resource> resourcesByKey = new HashMap<>();
+    private final Map<Resource, Map<String, Resource>> containedByResource = new IdentityHashMap<>();
+    // Remembered answers, split so that the references that did not resolve can be forgotten on their own.
+    private final ConcurrentMap<String, Resource> resolved = new ConcurrentHashMap<>();
+    private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+    private String bundleId;
+
+    public static FhirR4ReferenceResolver forBundle(Bundle bundle) {
+        FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+        resolver.setBundleId(PiqiMappingEvent.bundleId(bundle));
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            resolver.add(entry);
+        }
+        return resolver;
+    }
+
+    public static FhirR4ReferenceResolver forResources(Iterable<? extends Resource> resources) {
+        FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+        for (Resource resource : resources) {
+            resolver.add(resource);
+        }
+        return resolver;
+    }
+
+    /**
+     * The id of the bundle the resources come from, which the mapping events of the bundle are tagged with.
+     */
+    public String getBundleId() {
+        return bundleId;
+    }
+
+    public void setBundleId(String bundleId) {
+        this.bundleId = bundleId;
+    }
+
+    public void add(Bundle.BundleEntryComponent entry) {
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            return;
+        }
+        if (entry.hasFullUrl()) {
+            putKey(entry.getFullUrl(), resource);
+        }
+        add(resource);
+    }
+
+    public void add(Resource resource) {
+        if (resource.hasIdElement()) {
+            IIdType idType = resource.getIdElement();
+            putKey(idType.getValue(), resource);
+            if (idType.hasIdPart()) {
+                String idPart = idType.getIdPart();
+                if (idPart.startsWith(URN_UUID_PREFIX)) {
+                    // Resources read one at a time (e.g. from NDJSON) are referenced as Type/uuid.
+                    idPart = idPart.substring(URN_UUID_PREFIX.length());
+                }
+                putKey(resource.fhirType() + "/" + idPart, resource);
+            }
+        }
+        if (resource instanceof DomainResource domainResource && domainResource.hasContained()) {
+            Map<String, Resource> contained = new HashMap<>();
+            for (Resource containedResource : domainResource.getContained()) {
+                if (containedResource.hasIdElement()) {
+                    String id = containedResource.getIdElement().getIdPart();
+                    contained.put(id.startsWith("#") ? id : "#" + id, containedResource);
+                }
+            }
+            containedByResource.put(resource, contained);
+        }
+        // A reference that did not resolve before may resolve to this resource; the ones that did are unchanged.
+        if (!unresolved.isEmpty()) {
+            unresolved.clear();
+        }
+    }
+
+    /**
+     * Removes the resources, so that references to them no longer resolve.  Only the remembered answers that found
+     * one of them are forgotten, the references that did not resolve still do not.
+     */
+    public void removeAll(Collection<? extends Resource> resources) {
+        if (resources.isEmpty()) {
+            return;
+        }
+        Set<Resource> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        removed.addAll(resources);
+        resourcesByKey.values().removeIf(removed::contains);
+        resolved.values().removeIf(removed::contains);
+        for (Resource resource : resources) {
+            containedByResource.remove(resource);
+        }
+    }
+
+    /**
+     * Returns the target of the reference if it is of the given type, or null if the reference does not resolve.
+     *
+     * @param reference the reference, may be null
+     * @param type      the expected type of the target
+     * @param source    the resource holding the reference, used to resolve references to contained resources
+     */
+    public <T extends Resource> T resolve(Reference reference, Class<T> type, Resource source) {
+        if (reference == null) {
+            return null;
+        }
+        Resource target = null;
+        if (reference.getResource() instanceof Resource resource) {
+            target = resource;
+        } else if (reference.hasReference()) {
+            String value = reference.getReference();
+            if (value.startsWith("#")) {
+                target = resolveContained(value, source);
+            } else {
+                target = resolved.get(value);
+                if (target == null && !unresolved.contains(value)) {
+                    target = lookup(value);
+                    if (target != null) {
+                        resolved.put(value, target);
+                    } else {
+                        unresolved.add(value);
+                    }
+                }
+            }
+        }
+        return type.isInstance(target) ? type.cast(target) : null;
+    }
+
+    private Resource resolveContained(String value, Resource source) {
+        if (source == null) {
+            return null;
+        }
+        Map<String, Resource> contained = containedByResource.get(source);
+        if (contained != null) {
+            return contained.get(value);
+        }
+        // The source was not added to this resolver, look through its contained resources.
+        if (source instanceof DomainResource domainResource && domainResource.hasContained()) {
+            for (Resource containedResource : domainResource.getContained()) {
+                if (!containedResource.hasIdElement()) {
+                    continue;
+                }
+                String id = containedResource.getIdElement().getIdPart();
+                if (value.equals(id) || value.substring(1).equals(id)) {
+                    return containedResource;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Resource lookup(String value) {
+        ReferenceResolutionEvent event = new ReferenceResolutionEvent();
+        event.begin();
+        Resource resource = resourcesByKey.get(value);
+        if (resource == null) {
+            IdType idType = new IdType(value);
+            if (idType.hasResourceType() && idType.hasIdPart()) {
+                // Absolute or versioned references, e.g. http://example.org/fhir/Specimen/1/_history/2.
+                resource = resourcesByKey.get(idType.getResourceType() + "/" + idType.getIdPart());
+            }
+        }
+        if (event.shouldCommit()) {
+            event.bundleId = bundleId;
+            event.reference = value;
+            event.resolved = resource != null;
+            event.indexedCount = resourcesByKey.size();
+            event.commit();
+        }
+        return resource;
+    }
+
+    private void putKey(String key, Resource resource) {
+        if (key != null && !key.isEmpty()) {
+            resourcesByKey.putIfAbsent(key, resource);
+        }
+    }
+}
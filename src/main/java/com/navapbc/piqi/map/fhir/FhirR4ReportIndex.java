@@ -0,0 +1,183 @@
+package com.navapbc.piqi.map.fhir;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reverse index from Observation to the DiagnosticReport(s) that list it in {@code DiagnosticReport.result}.
+ * <p>
+ * The index is built in a single pass over the reports, so looking up the owning report of an Observation is a
+ * constant time operation instead of a scan over every report's results.  Result references are indexed under
+ * every form an Observation may be known by: the {@code urn:uuid:} or absolute fullUrl, the relative
+ * {@code Observation/123} form and the bare id part.  References that HAPI has already resolved are indexed by
+ * the id of the target resource.  {@code urn:uuid:} references are also indexed by the bare uuid, which is the id
+ * a resource carries when it is read outside of its bundle.
+ */
+public class FhirR4ReportIndex {
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+
+    private final Map<String, List<DiagnosticReport>> reportsByObservationKey = new HashMap<>();
+
+    public static FhirR4ReportIndex of(Bundle bundle) {
+        FhirR4ReportIndex index = new FhirR4ReportIndex();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof DiagnosticReport diagnosticReport) {
+                index.add(diagnosticReport);
+            }
+        }
+        return index;
+    }
+
+    public static FhirR4ReportIndex of(Iterable<DiagnosticReport> diagnosticReports) {
+        FhirR4ReportIndex index = new FhirR4ReportIndex();
+        for (DiagnosticReport diagnosticReport : diagnosticReports) {
+            index.add(diagnosticReport);
+        }
+        return index;
+    }
+
+    public void add(DiagnosticReport diagnosticReport) {
+        if (!diagnosticReport.hasResult()) {
+            return;
+        }
+        for (Reference result : diagnosticReport.getResult()) {
+            if (result.getResource() instanceof Observation fhirObservation) {
+                if (fhirObservation.hasIdElement()) {
+                    addKeys(fhirObservation.getIdElement(), diagnosticReport);
+                }
+            } else if (result.hasReferenceElement()) {
+                addKeys(result.getReferenceElement(), diagnosticReport);
+            }
+        }
+    }
+
+    /**
+     * Returns the first DiagnosticReport that lists the observation as a result, or null if there is none.
+     */
+    public DiagnosticReport getDiagnosticReport(Observation observation) {
+        List<DiagnosticReport> diagnosticReports = getDiagnosticReports(observation);
+        return diagnosticReports.isEmpty() ? null : diagnosticReports.get(0);
+    }
+
+    /**
+     * Returns every DiagnosticReport that lists the observation as a result, in the order they were indexed.
+     */
+    public List<DiagnosticReport> getDiagnosticReports(Observation observation) {
+        if (observation == null || !observation.hasIdElement()) {
+            return Collections.emptyList();
+        }
+        IIdType idType = observation.getIdElement();
+        List<DiagnosticReport> diagnosticReports = reportsByObservationKey.get(idType.getValue());
+        if (diagnosticReports == null && idType.hasIdPart()) {
+            if (idType.hasResourceType()) {
+                diagnosticReports = reportsByObservationKey.get(idType.toUnqualifiedVersionless().getValue());
+            }
+            if (diagnosticReports == null) {
+                diagnosticReports = reportsByObservationKey.get(idType.getIdPart());
+            }
+            if (diagnosticReports == null && idType.getIdPart().startsWith(URN_UUID_PREFIX)) {
+                diagnosticReports = reportsByObservationKey.get(idType.getIdPart().substring(URN_UUID_PREFIX.length()));
+            }
+        }
+        return diagnosticReports == null ? Collections.emptyList() : diagnosticReports;
+    }
+
+    /**
+     * Returns the report {@link #getDiagnosticReport(Observation)} would return from an index of the reports, by a
+     * single scan over them that stops at the first report listing the observation under its full id.  This saves
+     * building an index for one lookup; to look up many observations against the same reports, build the index once.
+     */
+    public static DiagnosticReport findDiagnosticReport(Observation observation,
+                                                        Iterable<DiagnosticReport> diagnosticReports) {
+        if (observation == null || !observation.hasIdElement()) {
+            return null;
+        }
+        // The index tries these keys in order, so a match on an earlier key wins over any match on a later one.
+        List<String> observationKeys = keysOf(observation.getIdElement());
+        DiagnosticReport found = null;
+        int foundRank = observationKeys.size();
+        for (DiagnosticReport diagnosticReport : diagnosticReports) {
+            if (!diagnosticReport.hasResult()) {
+                continue;
+            }
+            for (Reference result : diagnosticReport.getResult()) {
+                IIdType idType = null;
+                if (result.getResource() instanceof Observation fhirObservation) {
+                    idType = fhirObservation.hasIdElement() ? fhirObservation.getIdElement() : null;
+                } else if (result.hasReferenceElement()) {
+                    idType = result.getReferenceElement();
+                }
+                if (idType == null) {
+                    continue;
+                }
+                for (String key : keysOf(idType)) {
+                    int rank = observationKeys.indexOf(key);
+                    if (rank >= 0 && rank < foundRank) {
+                        if (rank == 0) {
+                            return diagnosticReport;
+                        }
+                        found = diagnosticReport;
+                        foundRank = rank;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    public boolean isEmpty() {
+        return reportsByObservationKey.isEmpty();
+    }
+
+    /**
+     * Returns the keys a result reference to an Observation, or the id of an Observation, is indexed and looked up
+     * under, in the order {@link #getDiagnosticReports(Observation)} tries them.  Indexes that hold reports
+     * elsewhere, such as on disk, use the same keys to answer the same way this index does.
+     */
+    public static List<String> keysOf(IIdType idType) {
+        List<String> keys = new ArrayList<>(4);
+        addKey(keys, idType.getValue());
+        if (idType.hasIdPart()) {
+            if (idType.hasResourceType()) {
+                addKey(keys, idType.toUnqualifiedVersionless().getValue());
+            }
+            addKey(keys, idType.getIdPart());
+            // Resources read one at a time (e.g. from NDJSON) carry the bare uuid as their id.
+            if (idType.getIdPart().startsWith(URN_UUID_PREFIX)) {
+                addKey(keys, idType.getIdPart().substring(URN_UUID_PREFIX.length()));
+            }
+        }
+        return keys;
+    }
+
+    private static void addKey(List<String> keys, String key) {
+        if (key != null && !key.isEmpty()) {
+            keys.add(key);
+        }
+    }
+
+    private void addKeys(IIdType idType, DiagnosticReport diagnosticReport) {
+        for (String key : keysOf(idType)) {
+            addKey(key, diagnosticReport);
+        }
+    }
+
+    private void addKey(String key, DiagnosticReport diagnosticReport) {
+        List<DiagnosticReport> diagnosticReports =
+                reportsByObservationKey.computeIfAbsent(key, k -> new ArrayList<>(1));
+        // A report is indexed under several keys, but should only be listed once per key.
+        if (diagnosticReports.isEmpty() || diagnosticReports.get(diagnosticReports.size() - 1) != diagnosticReport) {
+            diagnosticReports.add(diagnosticReport);
+        }
+    }
+}
@@ -12,4 +12,20 @@ public class PiqiBaseMapper {
         return false;
     }
 
+    /**
+     * The FHIR version this mapper reads, used by {@link PiqiMapperRegistry} to index the mapper.  Mappers that
+     * return null are only found by scanning {@link #isFhirVersion(FhirVersionEnum)}.
+     */
+    public FhirVersionEnum getFhirVersion() {
+        return null;
+    }
+
+    /**
+     * The PIQI class this mapper produces, used by {@link PiqiMapperRegistry} to index the mapper.  Mappers that
+     * return null are only found by scanning {@link #isMappingClassFor(Class)}.
+     */
+    public Class<?> getMappingClass() {
+        return null;
+    }
+
 }
@@ -7,21 +7,137 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PiqiBaseR4Mapper extends PiqiBaseMapper {
 
+    private static final Logger log = LoggerFactory.getLogger(PiqiBaseR4Mapper.class);
+
+    // Volatile so that mapping threads see a collaborator set after the mapper was published.
+    private volatile PiqiCodingCache codingCache;
+    private volatile PiqiTerminologyTranslator terminologyTranslator;
+    private volatile PiqiMappingMetrics metrics = PiqiMappingMetrics.NOOP;
+    private volatile boolean shared;
+
     @Override
     public boolean isFhirVersion(FhirVersionEnum fhirVersion) {
         return fhirVersion == FhirVersionEnum.R4;
     }
 
+    @Override
+    public FhirVersionEnum getFhirVersion() {
+        return FhirVersionEnum.R4;
+    }
+
+    public PiqiCodingCache getCodingCache() {
+        return codingCache;
+    }
+
+    /**
+     * Sets the cache that canonicalizes the codeable concepts this mapper produces, or null (the default) to map a
+     * new concept for every occurrence.  A cache may be shared by several mappers.
+     * <p>
+     * With a cache, the concepts, codings and attributes of mapped results are shared instances: the same object is
+     * referenced by every result, and every mapper, that mapped the same terminology.  They throw
+     * {@link UnsupportedOperationException} when modified in place, since a change would show in all of those
+     * results; copy a value before changing it.
+     *
+     * @throws IllegalStateException if the mapper belongs to the {@link PiqiMapperRegistry#getDefault() default
+     *                               registry}
+     */
+    public void setCodingCache(PiqiCodingCache codingCache) {
+        checkConfigurable();
+        this.codingCache = codingCache;
+    }
+
+    public PiqiTerminologyTranslator getTerminologyTranslator() {
+        return terminologyTranslator;
+    }
+
+    /**
+     * Sets the translator that replaces local codes with canonical ones as this mapper maps them, or null (the
+     * default) to map codes as they are.  A translator may be shared by several mappers.
+     *
+     * @throws IllegalStateException if the mapper belongs to the {@link PiqiMapperRegistry#getDefault() default
+     *                               registry}
+     */
+    public void setTerminologyTranslator(PiqiTerminologyTranslator terminologyTranslator) {
+        checkConfigurable();
+        this.terminologyTranslator = terminologyTranslator;
+    }
+
+    public PiqiMappingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where this mapper records its metrics, or null to record none (the default).
+     *
+     * @throws IllegalStateException if the mapper belongs to the {@link PiqiMapperRegistry#getDefault() default
+     *                               registry}
+     */
+    public void setMetrics(PiqiMappingMetrics metrics) {
+        checkConfigurable();
+        this.metrics = metrics == null ? PiqiMappingMetrics.NOOP : metrics;
+    }
+
+    /**
+     * Marks the mapper as one of the default registry, which the whole process shares, so that it can no longer be
+     * configured.
+     */
+    void setShared() {
+        this.shared = true;
+    }
+
+    private void checkConfigurable() {
+        if (shared) {
+            throw new IllegalStateException("Mapper=[" + getClass().getName() + "] belongs to the default registry "
+                    + "and is shared by the whole process, configure a mapper of a registry of your own instead");
+        }
+    }
+
+    /**
+     * The resource types this mapper reads from a bundle.  {@link PiqiR4BundleMapper} only offers entries of these
+     * types to the mapper's {@link PiqiR4EntryCollector}.
+     */
+    public Set<ResourceType> getResourceTypes() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * The codes of the Observation categories this mapper reads, or an empty set (the default) if it reads every
+     * Observation it is offered.  {@link PiqiR4BundleParser} does not build Observations that no mapper reads.
+     */
+    public Set<String> getObservationCategories() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Creates the collector that maps one bundle as part of a single pass over its entries.
+     * <p>
+     * The default collector gathers the entries it is offered, those of {@link #getResourceTypes()}, into a bundle
+     * of their own, and maps that bundle with {@link #mapDemographics(Bundle)} or {@link #mapLabResults(Bundle)},
+     * whichever PIQI class this mapper is for.  Mappers override this to map the entries as they arrive.
+     */
+    public PiqiR4EntryCollector newEntryCollector() {
+        return new BufferingEntryCollector();
+    }
+
     public PiqiDemographics mapDemographics(Bundle bundle) {
         return null;
     }
 
+    public PiqiDemographics mapDemographics(Patient patient) {
+        return null;
+    }
+
     public List<PiqiLabResult> mapLabResults(DiagnosticReport diagnosticReport, Map<String, Observation> observations) {
         return null;
     }
@@ -30,7 +146,63 @@ public class PiqiBaseR4Mapper extends PiqiBaseMapper {
         return null;
     }
 
+    /**
+     * Maps an observation against the report that lists it as a result, which may be null.
+     */
+    public PiqiLabResult mapLabResult(Observation observation, DiagnosticReport diagnosticReport) {
+        return null;
+    }
+
+    /**
+     * Maps an observation against the report that lists it as a result, which may be null, following references to
+     * other resources through the resolver.
+     */
+    public PiqiLabResult mapLabResult(Observation observation, DiagnosticReport diagnosticReport,
+                                      FhirR4ReferenceResolver resolver) {
+        return null;
+    }
+
     public List<PiqiLabResult> mapLabResults(Bundle bundle) {
         return null;
     }
+
+    private boolean isMapperOf(Class<?> piqiClass) {
+        return getMappingClass() == piqiClass || isMappingClassFor(piqiClass);
+    }
+
+    /**
+     * Buffers the entries of one bundle and maps them through the mapper's bundle methods once they are all in.
+     */
+    private class BufferingEntryCollector implements PiqiR4EntryCollector {
+
+        private final Bundle buffered = new Bundle();
+
+        @Override
+        public void begin(Bundle bundle) {
+            // The mapping events of the bundle are tagged with its id.
+            if (bundle.hasIdElement()) {
+                buffered.setIdElement(bundle.getIdElement().copy());
+            }
+            if (bundle.hasType()) {
+                buffered.setType(bundle.getType());
+            }
+        }
+
+        @Override
+        public void accept(Bundle.BundleEntryComponent entry) {
+            buffered.addEntry(entry);
+        }
+
+        @Override
+        public void finish(PiqiBundleMappingResult result) {
+            if (isMapperOf(PiqiDemographics.class)) {
+                result.put(PiqiDemographics.class, mapDemographics(buffered));
+            } else if (isMapperOf(PiqiLabResult.class)) {
+                result.put(PiqiLabResult.class, mapLabResults(buffered));
+            } else {
+                log.warn("Mapper=[{}] is for neither demographics nor lab results, override newEntryCollector() "
+                        + "to map its entries.", PiqiBaseR4Mapper.this.getClass().getName());
+            }
+        }
+    }
 }
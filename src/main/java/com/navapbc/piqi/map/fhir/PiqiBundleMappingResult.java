@@ -0,0 +1,41 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything mapped from one bundle, keyed by PIQI class.  Domains that produce a single object per bundle (such as
+ * {@link PiqiDemographics}) store that object, domains that produce many (such as {@link PiqiLabResult}) store a
+ * list.  A domain that was not mapped is absent, and its accessor returns null.
+ */
+public class PiqiBundleMappingResult {
+
+    private final Map<Class<?>, Object> results = new LinkedHashMap<>();
+
+    public PiqiDemographics getDemographics() {
+        return (PiqiDemographics) results.get(PiqiDemographics.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<PiqiLabResult> getLabResults() {
+        return (List<PiqiLabResult>) results.get(PiqiLabResult.class);
+    }
+
+    public Object get(Class<?> piqiClass) {
+        return results.get(piqiClass);
+    }
+
+    public void put(Class<?> piqiClass, Object result) {
+        results.put(piqiClass, result);
+    }
+
+    public Set<Class<?>> getPiqiClasses() {
+        return Collections.unmodifiableSet(results.keySet());
+    }
+}
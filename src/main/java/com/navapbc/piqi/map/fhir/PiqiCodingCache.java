@@ -0,0 +1,241 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of canonical PIQI terminology values.
+ * <p>
+ * Mapped output is dominated by a few thousand distinct codes, units and system URIs repeated across millions of
+ * results.  With a cache set on a mapper (see {@link PiqiBaseR4Mapper#setCodingCache(PiqiCodingCache)}) identical
+ * codeable concepts, codings and attribute values map to one shared instance instead of a new object graph per
+ * occurrence, which keeps the retained heap proportional to the vocabulary rather than to the number of results.
+ * <p>
+ * Instances handed out by the cache are shared between results, so they cannot be modified: their setters, and the
+ * list of codings of a concept, throw {@link UnsupportedOperationException}.  A caller that needs to modify a mapped
+ * value has to copy it first.  The cache is split into independently locked segments,
+ * each a least recently used map, so it may be shared by mappers running on many threads.  Entries beyond the
+ * maximum size are evicted, an evicted value stays valid for the results that already reference it.
+ */
+public final class PiqiCodingCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 65_536;
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int maximumSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PiqiCodingCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public PiqiCodingCache(int maximumSize) {
+        if (maximumSize < SEGMENTS) {
+            throw new IllegalArgumentException("maximumSize must be at least " + SEGMENTS + ", was " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maximumSize / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns the shared attribute holding the value.
+     */
+    public PiqiSimpleAttribute attribute(String value) {
+        return lookup(new AttributeKey(value), () -> new UnmodifiableAttribute(value));
+    }
+
+    /**
+     * Returns the shared coding for the (system, code, display) triple.
+     */
+    public PiqiCoding coding(String system, String code, String display) {
+        return lookup(new CodingKey(system, code, display),
+                () -> new UnmodifiableCoding(attribute(system), attribute(code), attribute(display)));
+    }
+
+    /**
+     * Returns the shared mapping of the FHIR concept, which is equal to
+     * {@link FhirR4MappingHelper#mapCodeableConcept(CodeableConcept)}.
+     */
+    public PiqiCodeableConcept codeableConcept(CodeableConcept fhirConcept) {
+        List<CodingKey> codingKeys;
+        if (fhirConcept.hasCoding()) {
+            codingKeys = new ArrayList<>(fhirConcept.getCoding().size());
+            for (Coding fhirCoding : fhirConcept.getCoding()) {
+                codingKeys.add(new CodingKey(fhirCoding.getSystem(), fhirCoding.getCode(), fhirCoding.getDisplay()));
+            }
+        } else {
+            codingKeys = List.of();
+        }
+        return lookup(new ConceptKey(fhirConcept.getText(), codingKeys), () -> {
+            List<PiqiCoding> codings = new ArrayList<>(codingKeys.size());
+            for (CodingKey codingKey : codingKeys) {
+                codings.add(coding(codingKey.system(), codingKey.code(), codingKey.display()));
+            }
+            return new UnmodifiableConcept(attribute(fhirConcept.getText()), codings);
+        });
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T lookup(Object key, Supplier<T> factory) {
+        Segment segment = segments[spread(key.hashCode()) & (SEGMENTS - 1)];
+        Object value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return (T) value;
+        }
+        misses.increment();
+        // Built outside the lock: a concept builds its codings, which may live in another segment.
+        T created = factory.get();
+        synchronized (segment) {
+            Object existing = segment.putIfAbsent(key, created);
+            return existing != null ? (T) existing : created;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static UnsupportedOperationException unmodifiable() {
+        return new UnsupportedOperationException("Values from a PiqiCodingCache are shared, copy one to modify it");
+    }
+
+    private record AttributeKey(String value) {
+    }
+
+    private record CodingKey(String system, String code, String display) {
+    }
+
+    private record ConceptKey(String text, List<CodingKey> codings) {
+    }
+
+    private static final class UnmodifiableAttribute extends PiqiSimpleAttribute {
+
+        private UnmodifiableAttribute(String value) {
+            super(value);
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw unmodifiable();
+        }
+    }
+
+    private static final class UnmodifiableCoding extends PiqiCoding {
+
+        private UnmodifiableCoding(PiqiSimpleAttribute system, PiqiSimpleAttribute code, PiqiSimpleAttribute display) {
+            super.setSystem(system);
+            super.setCode(code);
+            super.setDisplay(display);
+        }
+
+        @Override
+        public void setSystem(PiqiSimpleAttribute system) {
+            throw unmodifiable();
+        }
+
+        @Override
+        public void setCode(PiqiSimpleAttribute code) {
+            throw unmodifiable();
+        }
+
+        @Override
+        public void setDisplay(PiqiSimpleAttribute display) {
+            throw unmodifiable();
+        }
+    }
+
+    private static final class UnmodifiableConcept extends PiqiCodeableConcept {
+
+        private final List<PiqiCoding> codings;
+
+        private UnmodifiableConcept(PiqiSimpleAttribute text, List<PiqiCoding> codings) {
+            super.setText(text);
+            this.codings = Collections.unmodifiableList(codings);
+        }
+
+        @Override
+        public void setText(PiqiSimpleAttribute text) {
+            throw unmodifiable();
+        }
+
+        @Override
+        public List<PiqiCoding> getCodings() {
+            return codings;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<Object, Object> {
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -1,159 +1,122 @@
 package com.navapbc.piqi.map.fhir;
 
-import com.navapbc.piqi.model.PiqiCodeableConcept;
-import com.navapbc.piqi.model.PiqiCoding;
+import ca.uhn.fhir.context.FhirContext;
+import com.navapbc.piqi.map.fhir.jfr.MapDemographicsEvent;
+import com.navapbc.piqi.map.fhir.jfr.PiqiMappingEvent;
+import com.navapbc.piqi.map.fhir.plan.FhirR4ValueAdapter;
+import com.navapbc.piqi.map.fhir.plan.PiqiCompiledPlan;
+import com.navapbc.piqi.map.fhir.plan.PiqiDemographicsPlan;
 import com.navapbc.piqi.model.PiqiDemographics;
-import com.navapbc.piqi.model.PiqiSimpleAttribute;
-import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Maps the first Patient of a bundle to {@link PiqiDemographics} with the R4 compilation of
+ * {@link PiqiDemographicsPlan}.
+ */
 public class PiqiDemographicsR4Mapper extends PiqiBaseR4Mapper {
 
-    private static final String BIRTH_SEX_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-birthsex";
-    private static final String ETHNICITY_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
-    private static final String RACE_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+    private static final Set<ResourceType> RESOURCE_TYPES = Collections.unmodifiableSet(EnumSet.of(ResourceType.Patient));
+
+    @Override
+    public Set<ResourceType> getResourceTypes() {
+        return RESOURCE_TYPES;
+    }
+
+    @Override
+    public PiqiR4EntryCollector newEntryCollector() {
+        return new DemographicsCollector();
+    }
 
     @Override
     public PiqiDemographics mapDemographics(Bundle bundle) {
-        PiqiDemographics demographics = null;
-        Patient patient = null;
+        DemographicsCollector collector = new DemographicsCollector();
+        collector.begin(bundle);
         for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            if (entry.getResource() instanceof Patient) {
-                patient = (Patient) entry.getResource();
+            collector.accept(entry);
+            if (collector.patient != null) {
                 break;
             }
         }
-        if (patient != null) {
-            demographics = new PiqiDemographics();
-            demographics.setBirthDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(patient.getBirthDate()));
-            mapBirthSex(demographics, patient);
-            mapDeathAttributes(demographics, patient);
-            mapEthnicity(demographics, patient);
-            mapGender(demographics, patient);
-            if (patient.hasCommunication()) {
-                for (Patient.PatientCommunicationComponent communicationComponent: patient.getCommunication()) {
-                    demographics.setPrimaryLanguage(FhirR4MappingHelper.mapCodeableConcept(communicationComponent.getLanguage()));
-                    if (communicationComponent.hasPreferred() && communicationComponent.getPreferred()) {
-                        break;
-                    }
-                }
-            }
-            demographics.setMaritalStatus(FhirR4MappingHelper.mapCodeableConcept(patient.getMaritalStatus()));
-            mapRace(demographics, patient);
-        }
-        return demographics;
+        return mapDemographics(collector.patient, collector.bundleId);
     }
 
-    private void mapBirthSex(PiqiDemographics demographics, Patient patient) {
-        if (patient.hasExtension(BIRTH_SEX_SYSTEM)) {
-            Extension extension = patient.getExtensionByUrl(BIRTH_SEX_SYSTEM);
-            if (extension != null && extension.hasValue() && !extension.getValue().isEmpty()) {
-                if (extension.getValue() instanceof CodeType codeType) {
-                    PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
-                    codeableConcept.setText(new PiqiSimpleAttribute(codeType.getDisplay()));
-                    PiqiCoding coding = new PiqiCoding();
-                    if (codeType.getSystem() != null) {
-                        coding.setSystem(new PiqiSimpleAttribute(codeType.getSystem()));
-                    } else {
-                        coding.setSystem(new PiqiSimpleAttribute(BIRTH_SEX_SYSTEM));
-                    }
-                    coding.setDisplay(new PiqiSimpleAttribute(codeType.getDisplay()));
-                    coding.setCode(new PiqiSimpleAttribute(codeType.getCode()));
-                    codeableConcept.getCodings().add(coding);
-                    demographics.setBirthSex(codeableConcept);
-                }
-            }
-        }
+    @Override
+    public PiqiDemographics mapDemographics(Patient patient) {
+        return mapDemographics(patient, null);
     }
 
-    private void mapDeathAttributes(PiqiDemographics demographics, Patient patient) {
-        CodeableConcept codeableConcept = new CodeableConcept();
-        if (patient.hasDeceased()) {
-            if (patient.hasDeceasedBooleanType()) {
-                codeableConcept.setText(patient.getDeceasedBooleanType().getValue().equals(Boolean.TRUE) ? "Yes" : "No");
-                Coding coding = new Coding();
-                coding.setSystem("http://terminology.hl7.org/CodeSystem/v2-0136");
-                coding.setCode(patient.getDeceasedBooleanType().getValue().equals(Boolean.TRUE) ? "Y" : "N");
-                coding.setDisplay(patient.getDeceasedBooleanType().getValue().equals(Boolean.TRUE) ? "Yes" : "No");
-                codeableConcept.addCoding(coding);
-                demographics.setDeceased(FhirR4MappingHelper.mapCodeableConcept(codeableConcept));
+    private PiqiDemographics mapDemographics(Patient patient, String bundleId) {
+        PiqiDemographics demographics = null;
+        if (patient != null) {
+            MapDemographicsEvent event = new MapDemographicsEvent();
+            event.begin();
+            PiqiMappingMetrics metrics = getMetrics();
+            long started = metrics.isEnabled() ? System.nanoTime() : 0L;
+            demographics = CompiledPlan.PLAN.map(patient,
+                    new FhirR4ValueAdapter(getCodingCache(), getTerminologyTranslator()));
+            if (metrics.isEnabled()) {
+                metrics.recordMappingTime(PiqiDemographics.class, System.nanoTime() - started);
             }
-            if (patient.hasDeceasedDateTimeType()) {
-                demographics.setDeathDate(new PiqiSimpleAttribute(patient.getDeceasedDateTimeType().toString()));
+            if (event.shouldCommit()) {
+                event.bundleId = bundleId;
+                event.resourceId = patient.hasIdElement() ? patient.getIdElement().getIdPart() : null;
+                event.extensionCount = patient.hasExtension() ? patient.getExtension().size() : 0;
+                event.commit();
             }
-        } else {
-            codeableConcept.setText("No");
-            Coding coding = new Coding();
-            coding.setSystem("http://terminology.hl7.org/CodeSystem/v2-0136");
-            coding.setCode("N");
-            coding.setDisplay("No");
-            codeableConcept.addCoding(coding);
-            demographics.setDeceased(FhirR4MappingHelper.mapCodeableConcept(codeableConcept));
         }
+        return demographics;
     }
 
-    private void mapEthnicity(PiqiDemographics demographics, Patient patient) {
-        if (patient.hasExtension(ETHNICITY_SYSTEM)) {
-            Extension extension = patient.getExtensionByUrl(ETHNICITY_SYSTEM);
-            if (extension.hasExtension()) {
-                PiqiCodeableConcept ethnicityCodeableConcept = new PiqiCodeableConcept();
-                if (extension.hasExtension()) {
-                    mapExtension(ethnicityCodeableConcept, extension);
-                    demographics.setEthnicity(ethnicityCodeableConcept);
-                }
-            }
-        }
+    @Override
+    public boolean isMappingClassFor(Class<?> clazz) {
+        return clazz.equals(PiqiDemographics.class);
     }
 
-    private void mapExtension(PiqiCodeableConcept codeableConcept, Extension extension) {
-        for (Extension extensionValue : extension.getExtension()) {
-            if  (extensionValue.hasUrl() && extensionValue.getUrl().equals("text")) {
-                codeableConcept.setText(new PiqiSimpleAttribute(extensionValue.getValue().toString()));
-            } else if (extensionValue.hasUrl() && extensionValue.getUrl().equals("ombCategory") && extensionValue.hasValue()) {
-                if (extensionValue.getValue() instanceof Coding coding) {
-                    PiqiCoding ethnicityCoding = new PiqiCoding();
-                    ethnicityCoding.setCode(new PiqiSimpleAttribute(coding.getCode()));
-                    ethnicityCoding.setSystem(new PiqiSimpleAttribute(coding.getSystem()));
-                    ethnicityCoding.setDisplay(new PiqiSimpleAttribute(coding.getDisplay()));
-                    codeableConcept.getCodings().add(ethnicityCoding);
-                }
-            }
-        }
+    @Override
+    public Class<?> getMappingClass() {
+        return PiqiDemographics.class;
     }
 
-    private void mapGender(PiqiDemographics demographics, Patient patient) {
-        if (patient.hasGender()) {
-            PiqiCoding coding = new PiqiCoding();
-            coding.setSystem(new PiqiSimpleAttribute(patient.getGender().getSystem()));
-            coding.setCode(new PiqiSimpleAttribute(patient.getGender().toCode()));
-            coding.setDisplay(new PiqiSimpleAttribute(patient.getGender().getDisplay()));
-            PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
-            codeableConcept.getCodings().add(coding);
-            codeableConcept.setText(new PiqiSimpleAttribute(patient.getGender().getDefinition()));
-            demographics.setGenderIdentity(codeableConcept);
-        }
+    /**
+     * Holds the plan compiled against HAPI's cached R4 context, which the default engine also uses, on first use so
+     * that creating a mapper does not load the context or the mapper registry.
+     */
+    private static final class CompiledPlan {
+
+        private static final PiqiCompiledPlan<PiqiDemographics> PLAN =
+                PiqiDemographicsPlan.PLAN.compile(FhirContext.forR4Cached());
     }
 
-    private void mapRace(PiqiDemographics demographics, Patient patient) {
-        if (patient.hasExtension(RACE_SYSTEM)) {
-            Extension extension = patient.getExtensionByUrl(RACE_SYSTEM);
-//                if (extension != null && extension.hasValue() && !extension.getValue().isEmpty()) {
-//                    log.info("Found 'us-core-race' extension=[{}]", extension);
-//                    if (extension.getValue() instanceof CodeableConcept) {
-//                        demographics.setRaceCategory(mapCodeableConcept((CodeableConcept) extension.getValue()));
-//                    }
-//                }
-            if (extension != null && extension.hasExtension()) {
-                PiqiCodeableConcept raceCodeableConcept = new PiqiCodeableConcept();
-                if (extension.hasExtension()) {
-                    mapExtension(raceCodeableConcept, extension);
-                    demographics.setRace(raceCodeableConcept);
-                }
+    /**
+     * Keeps the first Patient in the bundle, which is the subject of the demographics.
+     */
+    private class DemographicsCollector implements PiqiR4EntryCollector {
+
+        private Patient patient;
+        private String bundleId;
+
+        @Override
+        public void begin(Bundle bundle) {
+            bundleId = PiqiMappingEvent.bundleId(bundle);
+        }
+
+        @Override
+        public void accept(Bundle.BundleEntryComponent entry) {
+            if (patient == null && entry.getResource() instanceof Patient bundlePatient) {
+                patient = bundlePatient;
+                getMetrics().recordResource(bundlePatient.fhirType());
             }
         }
-    }
 
-    @Override
-    public boolean isMappingClassFor(Class<?> clazz) {
-        return clazz.equals(PiqiDemographics.class);
+        @Override
+        public void finish(PiqiBundleMappingResult result) {
+            result.put(PiqiDemographics.class, mapDemographics(patient, bundleId));
+        }
     }
 }
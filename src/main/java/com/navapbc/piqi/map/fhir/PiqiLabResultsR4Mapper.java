@@ -1,5 +1,9 @@
 package com.navapbc.piqi.map.fhir;
 
+import com.navapbc.piqi.map.fhir.jfr.BundleIndexingEvent;
+import com.navapbc.piqi.map.fhir.jfr.MapDiagnosticReportEvent;
+import com.navapbc.piqi.map.fhir.jfr.MapObservationEvent;
+import com.navapbc.piqi.map.fhir.jfr.PiqiMappingEvent;
 import com.navapbc.piqi.model.*;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
@@ -8,56 +12,140 @@ import org.slf4j.LoggerFactory;
 
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
 
     private static final Logger log = LoggerFactory.getLogger(PiqiLabResultsR4Mapper.class);
 
+    // Fork-join tasks map groups of observations until a range holds no more than this many.
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private static final Set<ResourceType> RESOURCE_TYPES = Collections.unmodifiableSet(EnumSet.of(
+            ResourceType.Observation, ResourceType.DiagnosticReport, ResourceType.Specimen, ResourceType.Encounter,
+            ResourceType.ServiceRequest));
+
+    // Only Observations that FhirR4MappingHelper.isLab accepts are mapped.
+    private static final Set<String> OBSERVATION_CATEGORIES = Set.of("laboratory");
+
     @Override
     public boolean isMappingClassFor(Class<?> clazz) {
         return clazz.equals(PiqiLabResult.class);
     }
 
+    @Override
+    public Class<?> getMappingClass() {
+        return PiqiLabResult.class;
+    }
+
+    @Override
+    public Set<ResourceType> getResourceTypes() {
+        return RESOURCE_TYPES;
+    }
+
+    @Override
+    public Set<String> getObservationCategories() {
+        return OBSERVATION_CATEGORIES;
+    }
+
+    @Override
+    public PiqiR4EntryCollector newEntryCollector() {
+        return new LabResultsCollector();
+    }
+
     @Override
     public List<PiqiLabResult> mapLabResults(Bundle bundle) {
-        List<PiqiLabResult> piqiLabResults = new ArrayList<>();
-        Map<String, Observation> observations = new HashMap<>();
-        Map<String, DiagnosticReport> diagnosticReports = new HashMap<>();
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            if (entry.getResource() instanceof Observation observation) {
-                observations.put(observation.getIdElement().getIdPart(), observation);
-            }
-            if (entry.getResource() instanceof DiagnosticReport diagnosticReport) {
-                diagnosticReports.put(diagnosticReport.getIdElement().getIdPart(), diagnosticReport);
+        return collect(bundle).mapLabResults();
+    }
+
+    /**
+     * Maps the lab results of a bundle in parallel on the pool.  The bundle is indexed on the calling thread, then
+     * the lab observations are grouped by their owning DiagnosticReport and the groups are split across fork-join
+     * tasks, so that a report is only ever read by one task.  Results are in the same order as
+     * {@link #mapLabResults(Bundle)}.
+     * <p>
+     * Specimens, ServiceRequests and Encounters may be referenced from several groups, and so are read by
+     * several tasks at once.  The mapper only reads them through getters guarded by {@code has*} checks, since HAPI's
+     * getters create missing elements, so no task writes to a resource another task reads.  The bundle must not be
+     * modified while it is being mapped.
+     */
+    public List<PiqiLabResult> mapLabResults(Bundle bundle, ForkJoinPool pool) {
+        LabResultsCollector collector = collect(bundle);
+        List<Observation> labObservations = new ArrayList<>();
+        for (Observation observation : collector.observations.values()) {
+            if (FhirR4MappingHelper.isLab(observation)) {
+                labObservations.add(observation);
             }
         }
-        if (!observations.isEmpty()) {
-            PiqiLabResult  piqiLabResult = null;
-            for (Observation observation : observations.values()) {
-                if (FhirR4MappingHelper.isLab(observation)) {
-                    piqiLabResult = mapLabResult(observation, diagnosticReports);
-                    if (piqiLabResult != null) {
-                        piqiLabResults.add(piqiLabResult);
-                    }
+        DiagnosticReport[] diagnosticReports = new DiagnosticReport[labObservations.size()];
+        Map<DiagnosticReport, List<Integer>> groupsByReport = new IdentityHashMap<>();
+        List<List<Integer>> groups = new ArrayList<>();
+        for (int i = 0; i < labObservations.size(); i++) {
+            DiagnosticReport diagnosticReport = collector.reportIndex.getDiagnosticReport(labObservations.get(i));
+            diagnosticReports[i] = diagnosticReport;
+            List<Integer> group = diagnosticReport == null ? null : groupsByReport.get(diagnosticReport);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.add(group);
+                if (diagnosticReport != null) {
+                    groupsByReport.put(diagnosticReport, group);
                 }
             }
+            group.add(i);
+        }
+        PiqiLabResult[] mapped = new PiqiLabResult[labObservations.size()];
+        pool.invoke(new MapGroupsTask(groups, 0, groups.size(), labObservations, diagnosticReports, collector.resolver,
+                mapped));
+        List<PiqiLabResult> piqiLabResults = new ArrayList<>(mapped.length);
+        for (PiqiLabResult piqiLabResult : mapped) {
+            if (piqiLabResult != null) {
+                piqiLabResults.add(piqiLabResult);
+            }
         }
+        collector.record(piqiLabResults);
         return piqiLabResults;
     }
 
+    /**
+     * Maps an observation against the first of the reports that lists it, found by a scan over the reports.  To map
+     * many observations against the same reports, build a {@link FhirR4ReportIndex} once and use
+     * {@link #mapLabResult(Observation, FhirR4ReportIndex)}, or map the whole bundle.
+     */
     @Override
     public PiqiLabResult mapLabResult(Observation observation, Map<String, DiagnosticReport> diagnosticReports) {
-        PiqiLabResult piqiLabResult = new PiqiLabResult();
+        return mapLabResult(observation,
+                FhirR4ReportIndex.findDiagnosticReport(observation, diagnosticReports.values()));
+    }
 
-        mapObservation(observation, piqiLabResult);
+    /**
+     * Maps an observation against the first report of the index that lists it.
+     */
+    public PiqiLabResult mapLabResult(Observation observation, FhirR4ReportIndex reportIndex) {
+        return mapLabResult(observation, reportIndex.getDiagnosticReport(observation));
+    }
+
+    @Override
+    public PiqiLabResult mapLabResult(Observation observation, DiagnosticReport diagnosticReport) {
+        return mapLabResult(observation, diagnosticReport, new FhirR4ReferenceResolver());
+    }
+
+    @Override
+    public PiqiLabResult mapLabResult(Observation observation, DiagnosticReport diagnosticReport,
+                                      FhirR4ReferenceResolver resolver) {
+        PiqiLabResult piqiLabResult = new PiqiLabResult();
 
-        DiagnosticReport diagnosticReport = getDiagnosticReport(observation, diagnosticReports);
+        mapObservation(observation, piqiLabResult, resolver);
 
         if (diagnosticReport != null) {
-            mapDiagnosticReport(diagnosticReport, piqiLabResult);
+            mapDiagnosticReport(diagnosticReport, piqiLabResult, resolver);
         }
 
         return piqiLabResult;
@@ -69,6 +157,7 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
         if (!FhirR4MappingHelper.isLab(diagnosticReport)) {
             return piqiLabResults;
         }
+        FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
         // Iterate through each result in the FHIR DiagnosticReport
         for (Reference reference : diagnosticReport.getResult()) {
             Observation fhirObservation = null;
@@ -82,17 +171,38 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
             }
             if (fhirObservation != null && FhirR4MappingHelper.isLab(fhirObservation)) {
                 PiqiLabResult piqiLabResult = new PiqiLabResult();
-                mapObservation(fhirObservation, piqiLabResult);
-                mapDiagnosticReport(diagnosticReport, piqiLabResult);
+                mapObservation(fhirObservation, piqiLabResult, resolver);
+                mapDiagnosticReport(diagnosticReport, piqiLabResult, resolver);
                 piqiLabResults.add(piqiLabResult);
             }
         }
         return piqiLabResults;
     }
 
-    private void mapObservation(@NotNull Observation observation, @NotNull PiqiLabResult piqiLabResult) {
+    private LabResultsCollector collect(Bundle bundle) {
+        LabResultsCollector collector = new LabResultsCollector();
+        collector.begin(bundle);
+        BundleIndexingEvent event = new BundleIndexingEvent();
+        event.begin();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            collector.accept(entry);
+        }
+        if (event.shouldCommit()) {
+            event.bundleId = collector.resolver.getBundleId();
+            event.resourceCount = bundle.getEntry().size();
+            event.observationCount = collector.observations.size();
+            event.diagnosticReportCount = collector.reportCount;
+            event.commit();
+        }
+        return collector;
+    }
+
+    private void mapObservation(@NotNull Observation observation, @NotNull PiqiLabResult piqiLabResult,
+                                @NotNull FhirR4ReferenceResolver resolver) {
+        MapObservationEvent event = new MapObservationEvent();
+        event.begin();
         if (observation.getCode() != null) {
-            piqiLabResult.setTest(FhirR4MappingHelper.mapCodeableConcept(observation.getCode()));
+            piqiLabResult.setTest(FhirR4MappingHelper.mapCodeableConcept(observation.getCode(), getCodingCache(), getTerminologyTranslator()));
         }
 
         if (observation.getValue() != null) {
@@ -100,15 +210,11 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
                 if (piqiLabResult.getResultValue() == null) {
                     piqiLabResult.setResultValue(new PiqiObservationValue());
                 }
-                piqiLabResult.getResultValue().setNumber(new PiqiSimpleAttribute(observation.getValueQuantity().getValue().toPlainString()));
-                CodeableConcept codeableConcept = new CodeableConcept();
-                codeableConcept.setText(observation.getValueQuantity().getValue().toPlainString());
-                Coding coding = new Coding();
-                coding.setCode(observation.getValueQuantity().getCode());
-                coding.setSystem(observation.getValueQuantity().getSystem());
-                coding.setDisplay(observation.getValueQuantity().getDisplay());
-                codeableConcept.addCoding(coding);
-                piqiLabResult.setResultUnit(FhirR4MappingHelper.mapCodeableConcept(codeableConcept));
+                Quantity quantity = observation.getValueQuantity();
+                String number = quantity.hasValue() ? quantity.getValue().toPlainString() : null;
+                piqiLabResult.getResultValue().setNumber(new PiqiSimpleAttribute(number));
+                piqiLabResult.setResultUnit(FhirR4MappingHelper.mapCodeableConcept(number, quantity.getSystem(),
+                        quantity.getCode(), quantity.getDisplay(), getCodingCache(), getTerminologyTranslator()));
             } else if (observation.hasValueCodeableConcept()) {
                 if (piqiLabResult.getResultValue() == null) {
                     piqiLabResult.setResultValue(new PiqiObservationValue());
@@ -122,7 +228,8 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
                 piqiLabResult.getResultValue().setText(new PiqiSimpleAttribute(observation.getValueStringType().getValue()));
             } else {
                 // ... map other result types
-                log.warn("fhir type not mapped = [{}}", observation.getValue().fhirType());
+                log.warn("fhir type not mapped = [{}]", observation.getValue().fhirType());
+                getMetrics().recordUnmappedValue(observation.getValue().fhirType());
             }
         }
 
@@ -130,59 +237,60 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
         if (observation.getInterpretation() != null) {
             List<CodeableConcept> interepretations = observation.getInterpretation();
             if (!interepretations.isEmpty()) {
-                piqiLabResult.setInterpretation(FhirR4MappingHelper.mapCodeableConcept(observation.getInterpretation().get(0)));
+                piqiLabResult.setInterpretation(FhirR4MappingHelper.mapCodeableConcept(observation.getInterpretation().get(0), getCodingCache(), getTerminologyTranslator()));
             }
         }
 
         if (observation.hasReferenceRange()) {
             Observation.ObservationReferenceRangeComponent  referenceRange = observation.getReferenceRangeFirstRep();
             PiqiRangeValue piqiRangeValue = new PiqiRangeValue();
-            piqiRangeValue.setHighValue(new PiqiSimpleAttribute(referenceRange.getHigh().toString()));
-            piqiRangeValue.setLowValue(new PiqiSimpleAttribute(referenceRange.getLow().toString()));
+            if (referenceRange.hasHigh() && referenceRange.getHigh().hasValue()) {
+                piqiRangeValue.setHighValue(new PiqiSimpleAttribute(referenceRange.getHigh().getValue().toPlainString()));
+            }
+            if (referenceRange.hasLow() && referenceRange.getLow().hasValue()) {
+                piqiRangeValue.setLowValue(new PiqiSimpleAttribute(referenceRange.getLow().getValue().toPlainString()));
+            }
             piqiRangeValue.setText(new PiqiSimpleAttribute(referenceRange.getText()));
             piqiLabResult.setReferenceRange(piqiRangeValue);
         }
 
-        if (observation.hasSpecimen()) {
-            Specimen specimen = (Specimen) observation.getSpecimen().getResource();
-            CodeableConcept specimenCodeableConcept = new CodeableConcept();
-            specimenCodeableConcept.setText(specimen.getText().toString());
-            Coding coding = new Coding();
-            coding.setCode(specimenCodeableConcept.getCodingFirstRep().getCode());
-            coding.setDisplay(specimenCodeableConcept.getCodingFirstRep().getDisplay());
-            coding.setSystem(specimenCodeableConcept.getCodingFirstRep().getSystem());
-            specimenCodeableConcept.addCoding(coding);
-            piqiLabResult.setSpecimenType(FhirR4MappingHelper.mapCodeableConcept(specimenCodeableConcept));
+        Specimen specimen = observation.hasSpecimen()
+                ? resolver.resolve(observation.getSpecimen(), Specimen.class, observation) : null;
+        if (specimen != null) {
+            if (specimen.hasType()) {
+                piqiLabResult.setSpecimenType(FhirR4MappingHelper.mapCodeableConcept(specimen.getType(), getCodingCache(), getTerminologyTranslator()));
+            }
+        } else if (observation.hasSpecimen()) {
+            getMetrics().recordUnresolvedReference("Specimen");
         }
 
         if (observation.hasPerformer()) {
             for(Reference performer : observation.getPerformer()) {
-                log.debug("Performer: " + performer.getDisplay());
+                log.debug("Performer: [{}]", performer.getDisplay());
 //                        if (performer instanceof) {
 //
 //                        }
             }
         }
 
-        if (observation.hasEncounter()) {
-            Encounter encounter = (Encounter) observation.getEncounter().getResource();
-            if (encounter.hasLocation()) {
-                List<Encounter.EncounterLocationComponent> locations = encounter.getLocation();
-                for (Encounter.EncounterLocationComponent location : locations) {
-                    if (location.hasLocation()) {
-                        Location theLocation = location.getLocationTarget();
-                        Location aLocation = (Location) location.getLocation().getResource();
-//                                if (location.hasPhysicalType()) {
-//                                    piqiLabResult.setPerformedSite(mapCodeableConcept(location.getPhysicalType()));
-//                                    break;
-//                                } else if (aLocation.hasPhysicalType()) {
-//                                    piqiLabResult.setPerformedSite(mapCodeableConcept(aLocation.getPhysicalType()));
-//                                    break;
-//                                }
-                    }
-                }
-            }
+        Encounter encounter = observation.hasEncounter()
+                ? resolver.resolve(observation.getEncounter(), Encounter.class, observation) : null;
+        if (encounter == null && observation.hasEncounter()) {
+            getMetrics().recordUnresolvedReference("Encounter");
         }
+        // TODO The performed site could come from the Locations of the encounter.  Until it is mapped they are not
+        // resolved, so a Location that is not in the bundle, or in the partition of a bulk export, is not counted as
+        // an unresolved reference.
+//        for (Encounter.EncounterLocationComponent location : encounter.getLocation()) {
+//            Location aLocation = resolver.resolve(location.getLocation(), Location.class, encounter);
+//            if (location.hasPhysicalType()) {
+//                piqiLabResult.setPerformedSite(mapCodeableConcept(location.getPhysicalType()));
+//                break;
+//            } else if (aLocation.hasPhysicalType()) {
+//                piqiLabResult.setPerformedSite(mapCodeableConcept(aLocation.getPhysicalType()));
+//                break;
+//            }
+//        }
 
         // basedOn is ServiceRequest (order)?
         if (observation.hasBasedOn()) {
@@ -190,25 +298,34 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
             //log.debug("observation basedOn.size=[{}]", basedOn.size());
         }
 
-        if (observation.hasComponent()) {
+        if (observation.hasComponent() && log.isDebugEnabled()) {
             log.debug("***** Observation ID: [{}] has component.", observation.getIdElement().getIdPart());
             // TODO What should we do with individual components?  Is each one a result?
 //            for (Observation.ObservationComponentComponent component : observation.getComponent()) {
 //
 //            }
         }
+
+        if (event.shouldCommit()) {
+            event.bundleId = resolver.getBundleId();
+            event.resourceId = observation.hasIdElement() ? observation.getIdElement().getIdPart() : null;
+            event.componentCount = observation.hasComponent() ? observation.getComponent().size() : 0;
+            event.commit();
+        }
     }
 
-    private void mapDiagnosticReport(@NotNull DiagnosticReport diagnosticReport, @NotNull PiqiLabResult piqiLabResult) {
+    private void mapDiagnosticReport(@NotNull DiagnosticReport diagnosticReport, @NotNull PiqiLabResult piqiLabResult,
+                                     @NotNull FhirR4ReferenceResolver resolver) {
+        MapDiagnosticReportEvent event = new MapDiagnosticReportEvent();
+        event.begin();
         // Map status and date/time from DiagnosticReport
         piqiLabResult.setResultStatus(mapStatus(diagnosticReport.getStatus()));
-        if (diagnosticReport.getIssued() != null) {
-            //piqiLabResult.setPerformedDateTime(diagnosticReport.getIssued().toString("yyyyMMddHHmmss");
-            piqiLabResult.setPerformedDateTime(FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(diagnosticReport.getIssued()));
+        if (diagnosticReport.hasIssued()) {
+            piqiLabResult.setPerformedDateTime(FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(diagnosticReport.getIssuedElement()));
         }
         if (diagnosticReport.hasPerformer()) {
             for(Reference performer : diagnosticReport.getPerformer()) {
-                log.debug("Performer: " + performer.getDisplay());
+                log.debug("Performer: [{}]", performer.getDisplay());
                 if (performer.hasReference() && !performer.getReference().isEmpty()) {
                     //Organization?identifier=https://github.com/synthetichealth/synthea|980d9bfa-a344-3bff-8c02-232dd0e8fd34
                     //mapPerformerToCodeableConcept(performer);
@@ -228,65 +345,44 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
             //log.debug("diagnosticreport basedOn.size=[{}]", basedOn.size());
             for (Reference basedOnReference : basedOn) {
                 //log.debug("basedOnReference==[{}]", basedOnReference.getResource().fhirType());
-                if (basedOnReference.getResource().fhirType().equals(ResourceType.ServiceRequest.toString())) {
-                    ServiceRequest serviceRequest = (ServiceRequest) basedOnReference.getResource();
+                ServiceRequest serviceRequest = resolver.resolve(basedOnReference, ServiceRequest.class, diagnosticReport);
+                if (serviceRequest != null) {
                     //log.debug("serviceRequest=[{}]", serviceRequest.toString());
                     if (serviceRequest.hasOrderDetail()) {
-                        piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(serviceRequest.getOrderDetailFirstRep()));
+                        piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(serviceRequest.getOrderDetailFirstRep(), getCodingCache(), getTerminologyTranslator()));
                     } else if (serviceRequest.hasCode()) {
-                        piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(serviceRequest.getCode()));
+                        piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(serviceRequest.getCode(), getCodingCache(), getTerminologyTranslator()));
                     }
                     if (serviceRequest.hasAuthoredOn()) {
-                        piqiLabResult.setOrderDate(new PiqiSimpleAttribute(serviceRequest.getAuthoredOn().toString()));
+                        piqiLabResult.setOrderDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(serviceRequest.getAuthoredOnElement()));
                     } else {
                         //TODO What's the default?
                     }
+                } else if (basedOnReference.getResource() == null) {
+                    getMetrics().recordUnresolvedReference("ServiceRequest");
                 }
                 break;
             }
         } else {
-            piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(diagnosticReport.getCode()));
-            piqiLabResult.setOrderDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(diagnosticReport.getIssued()));
+            piqiLabResult.setOrder(FhirR4MappingHelper.mapCodeableConcept(diagnosticReport.getCode(), getCodingCache(), getTerminologyTranslator()));
+            piqiLabResult.setOrderDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                    diagnosticReport.hasIssued() ? diagnosticReport.getIssuedElement() : null));
         }
-    }
 
-    private DiagnosticReport getDiagnosticReport(Observation observation, Map<String, DiagnosticReport> diagnosticReports) {
-        DiagnosticReport diagnosticReport = null;
-        for(DiagnosticReport dr : diagnosticReports.values()) {
-            if (dr.hasResult()) {
-                for (Reference result : dr.getResult()) {
-                    if (result.getResource() instanceof Observation fhirObservation) {
-                        if (fhirObservation.hasId() && fhirObservation.getId().equals(observation.getId())) {
-                            diagnosticReport = dr;
-                            break;
-                        }
-                    } else if (result.hasReferenceElement()) {
-                        IIdType iIdType = result.getReferenceElement();
-                        if (iIdType.hasIdPart() && iIdType.getIdPart().equals(observation.getId())) {
-                            diagnosticReport = dr;
-                            break;
-                        }
-                    }
-                }
-                if (diagnosticReport != null) {
-                    break;
-                }
-            }
+        if (event.shouldCommit()) {
+            event.bundleId = resolver.getBundleId();
+            event.resourceId = diagnosticReport.hasIdElement() ? diagnosticReport.getIdElement().getIdPart() : null;
+            event.resultCount = diagnosticReport.hasResult() ? diagnosticReport.getResult().size() : 0;
+            event.commit();
         }
-        return diagnosticReport;
     }
 
     private PiqiCodeableConcept mapStatus(DiagnosticReport.DiagnosticReportStatus diagnosticReportStatus) {
-        PiqiCodeableConcept piqiCodeableConcept = new PiqiCodeableConcept();
-        if (diagnosticReportStatus != null) {
-            piqiCodeableConcept.setText(new PiqiSimpleAttribute(diagnosticReportStatus.toString()));
-            PiqiCoding piqiCoding = new PiqiCoding();
-            piqiCoding.setCode(new PiqiSimpleAttribute(diagnosticReportStatus.toCode()));
-            piqiCoding.setDisplay(new PiqiSimpleAttribute(diagnosticReportStatus.getDisplay()));
-            piqiCoding.setSystem(new PiqiSimpleAttribute(diagnosticReportStatus.getSystem()));
-            piqiCodeableConcept.getCodings().add(piqiCoding);
+        if (diagnosticReportStatus == null) {
+            return new PiqiCodeableConcept();
         }
-        return piqiCodeableConcept;
+        return FhirR4MappingHelper.mapCodeableConcept(diagnosticReportStatus.toString(), diagnosticReportStatus.getSystem(),
+                diagnosticReportStatus.toCode(), diagnosticReportStatus.getDisplay(), getCodingCache(), getTerminologyTranslator());
     }
 
     private PiqiCodeableConcept mapPerformerToCodeableConcept(Reference performer) {
@@ -318,4 +414,117 @@ public class PiqiLabResultsR4Mapper extends PiqiBaseR4Mapper {
         log.debug("piqiCodeableConcept=[{}]", piqiCodeableConcept);
         return piqiCodeableConcept;
     }
+
+    /**
+     * Collects the observations of a bundle, indexes its reports by result and its resources for reference
+     * resolution, then maps every lab observation against its owning report.
+     */
+    private class LabResultsCollector implements PiqiR4EntryCollector {
+
+        private final Map<String, Observation> observations = new LinkedHashMap<>();
+        private final FhirR4ReportIndex reportIndex = new FhirR4ReportIndex();
+        private final FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+        private final PiqiMappingMetrics metrics = getMetrics();
+        private final long started = metrics.isEnabled() ? System.nanoTime() : 0L;
+        private int reportCount;
+
+        @Override
+        public void begin(Bundle bundle) {
+            resolver.setBundleId(PiqiMappingEvent.bundleId(bundle));
+        }
+
+        @Override
+        public void accept(Bundle.BundleEntryComponent entry) {
+            // Only the types the mapper reads, as offered by the bundle mapper, so the demographics mapper alone
+            // counts the Patient.
+            if (entry.hasResource() && RESOURCE_TYPES.contains(entry.getResource().getResourceType())) {
+                metrics.recordResource(entry.getResource().fhirType());
+            }
+            resolver.add(entry);
+            if (entry.getResource() instanceof Observation observation) {
+                observations.put(observation.getIdElement().getIdPart(), observation);
+            }
+            if (entry.getResource() instanceof DiagnosticReport diagnosticReport) {
+                reportCount++;
+                reportIndex.add(diagnosticReport);
+            }
+        }
+
+        @Override
+        public void finish(PiqiBundleMappingResult result) {
+            result.put(PiqiLabResult.class, mapLabResults());
+        }
+
+        private List<PiqiLabResult> mapLabResults() {
+            List<PiqiLabResult> piqiLabResults = new ArrayList<>();
+            if (!observations.isEmpty()) {
+                PiqiLabResult  piqiLabResult = null;
+                for (Observation observation : observations.values()) {
+                    if (FhirR4MappingHelper.isLab(observation)) {
+                        piqiLabResult = mapLabResult(observation, reportIndex.getDiagnosticReport(observation), resolver);
+                        if (piqiLabResult != null) {
+                            piqiLabResults.add(piqiLabResult);
+                        }
+                    }
+                }
+            }
+            record(piqiLabResults);
+            return piqiLabResults;
+        }
+
+        /**
+         * Records the results and the time since the collector was created, when the bundle started to be read.
+         */
+        private void record(List<PiqiLabResult> piqiLabResults) {
+            if (metrics.isEnabled()) {
+                metrics.recordMappingTime(PiqiLabResult.class, System.nanoTime() - started);
+                metrics.recordLabResults(piqiLabResults.size());
+            }
+        }
+    }
+
+    /**
+     * Maps a range of observation groups, splitting it in half while it holds more than
+     * {@link #PARALLEL_THRESHOLD} observations.  Each result is written to the slot of its observation.
+     */
+    private class MapGroupsTask extends RecursiveAction {
+
+        private final List<List<Integer>> groups;
+        private final int from;
+        private final int to;
+        private final List<Observation> observations;
+        private final DiagnosticReport[] diagnosticReports;
+        private final FhirR4ReferenceResolver resolver;
+        private final PiqiLabResult[] mapped;
+
+        MapGroupsTask(List<List<Integer>> groups, int from, int to, List<Observation> observations,
+                      DiagnosticReport[] diagnosticReports, FhirR4ReferenceResolver resolver, PiqiLabResult[] mapped) {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+            this.observations = observations;
+            this.diagnosticReports = diagnosticReports;
+            this.resolver = resolver;
+            this.mapped = mapped;
+        }
+
+        @Override
+        protected void compute() {
+            int size = 0;
+            for (int i = from; i < to && size <= PARALLEL_THRESHOLD; i++) {
+                size += groups.get(i).size();
+            }
+            if (to - from > 1 && size > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MapGroupsTask(groups, from, middle, observations, diagnosticReports, resolver, mapped),
+                        new MapGroupsTask(groups, middle, to, observations, diagnosticReports, resolver, mapped));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                for (int index : groups.get(i)) {
+                    mapped[index] = mapLabResult(observations.get(index), diagnosticReports[index], resolver);
+                }
+            }
+        }
+    }
 }
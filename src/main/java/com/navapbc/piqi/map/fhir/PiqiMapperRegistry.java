@@ -0,0 +1,158 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of PIQI mappers indexed by FHIR version and PIQI class.
+ * <p>
+ * Mappers are discovered once through {@link ServiceLoader} (see
+ * {@code META-INF/services/com.navapbc.piqi.map.fhir.PiqiBaseMapper}) or supplied explicitly, and indexed by
+ * {@link PiqiBaseMapper#getFhirVersion()} and {@link PiqiBaseMapper#getMappingClass()}.  Lookups are a map access
+ * rather than a scan over every mapper.  Mappers that do not expose their version or class are still supported:
+ * they are scanned with {@link PiqiBaseMapper#isFhirVersion(FhirVersionEnum)} and
+ * {@link PiqiBaseMapper#isMappingClassFor(Class)} the first time a key is requested and the answer is remembered.
+ * <p>
+ * A registry is immutable once built and may be shared across threads, as may the mappers it hands back once they
+ * are configured.  The mappers of the {@link #getDefault() default registry} are shared by the whole process, so their
+ * coding cache, terminology translator and metrics cannot be set; load a registry of your own with
+ * {@link #load(ClassLoader)} or {@link #of(Collection)} to configure its mappers.
+ */
+public final class PiqiMapperRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiMapperRegistry.class);
+
+    private final List<PiqiBaseMapper> mappers;
+    private final Map<FhirVersionEnum, Map<Class<?>, PiqiBaseMapper>> mappersByVersion;
+    private final List<PiqiBaseMapper> unindexedMappers;
+    private final ConcurrentMap<MapperKey, Optional<PiqiBaseMapper>> scannedMappers = new ConcurrentHashMap<>();
+
+    private PiqiMapperRegistry(Collection<? extends PiqiBaseMapper> mappers) {
+        List<PiqiBaseMapper> allMappers = new ArrayList<>();
+        List<PiqiBaseMapper> unindexed = new ArrayList<>();
+        Map<FhirVersionEnum, Map<Class<?>, PiqiBaseMapper>> byVersion = new EnumMap<>(FhirVersionEnum.class);
+        for (PiqiBaseMapper mapper : mappers) {
+            allMappers.add(mapper);
+            FhirVersionEnum fhirVersion = mapper.getFhirVersion();
+            Class<?> mappingClass = mapper.getMappingClass();
+            if (fhirVersion == null || mappingClass == null) {
+                unindexed.add(mapper);
+                continue;
+            }
+            PiqiBaseMapper existing = byVersion.computeIfAbsent(fhirVersion, v -> new HashMap<>())
+                    .putIfAbsent(mappingClass, mapper);
+            if (existing != null) {
+                log.warn("Ignoring mapper=[{}], mapper=[{}] is already registered for fhirVersion=[{}] class=[{}]",
+                        mapper.getClass().getName(), existing.getClass().getName(), fhirVersion,
+                        mappingClass.getName());
+            }
+        }
+        byVersion.replaceAll((version, byClass) -> Collections.unmodifiableMap(byClass));
+        this.mappers = Collections.unmodifiableList(allMappers);
+        this.mappersByVersion = Collections.unmodifiableMap(byVersion);
+        this.unindexedMappers = Collections.unmodifiableList(unindexed);
+    }
+
+    /**
+     * Returns the registry of mappers discovered on the class path of this library.  Its R4 mappers are shared by
+     * every caller in the process and throw {@link IllegalStateException} when configured.
+     */
+    public static PiqiMapperRegistry getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Discovers mappers with {@link ServiceLoader} using the given class loader.
+     */
+    public static PiqiMapperRegistry load(ClassLoader classLoader) {
+        List<PiqiBaseMapper> mappers = new ArrayList<>();
+        for (PiqiBaseMapper mapper : ServiceLoader.load(PiqiBaseMapper.class, classLoader)) {
+            log.debug("Found mapper=[{}]", mapper.getClass().getName());
+            mappers.add(mapper);
+        }
+        return new PiqiMapperRegistry(mappers);
+    }
+
+    public static PiqiMapperRegistry of(Collection<? extends PiqiBaseMapper> mappers) {
+        return new PiqiMapperRegistry(mappers);
+    }
+
+    /**
+     * Returns the mapper for the FHIR version and PIQI class, or null if none is registered.
+     */
+    public PiqiBaseMapper getMapper(FhirVersionEnum fhirVersion, Class<?> piqiClass) {
+        if (fhirVersion == null || piqiClass == null) {
+            return null;
+        }
+        Map<Class<?>, PiqiBaseMapper> byClass = mappersByVersion.get(fhirVersion);
+        PiqiBaseMapper mapper = byClass == null ? null : byClass.get(piqiClass);
+        if (mapper == null && !unindexedMappers.isEmpty()) {
+            mapper = scannedMappers.computeIfAbsent(new MapperKey(fhirVersion, piqiClass), this::scan).orElse(null);
+        }
+        return mapper;
+    }
+
+    /**
+     * Returns the mapper for the FHIR version and PIQI class cast to the expected mapper type, or null if none is
+     * registered.
+     *
+     * @throws ClassCastException if the registered mapper is not a {@code mapperType}
+     */
+    public <T extends PiqiBaseMapper> T getMapper(FhirVersionEnum fhirVersion, Class<?> piqiClass,
+                                                  Class<T> mapperType) {
+        return mapperType.cast(getMapper(fhirVersion, piqiClass));
+    }
+
+    public List<PiqiBaseMapper> getMappers() {
+        return mappers;
+    }
+
+    public List<PiqiBaseMapper> getMappers(FhirVersionEnum fhirVersion) {
+        List<PiqiBaseMapper> versionMappers = new ArrayList<>();
+        for (PiqiBaseMapper mapper : mappers) {
+            if (mapper.isFhirVersion(fhirVersion)) {
+                versionMappers.add(mapper);
+            }
+        }
+        return versionMappers;
+    }
+
+    private Optional<PiqiBaseMapper> scan(MapperKey key) {
+        for (PiqiBaseMapper mapper : unindexedMappers) {
+            if (mapper.isFhirVersion(key.fhirVersion()) && mapper.isMappingClassFor(key.piqiClass())) {
+                return Optional.of(mapper);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private record MapperKey(FhirVersionEnum fhirVersion, Class<?> piqiClass) {
+    }
+
+    private static final class DefaultHolder {
+        private static final PiqiMapperRegistry INSTANCE = newDefault();
+
+        private static PiqiMapperRegistry newDefault() {
+            PiqiMapperRegistry registry = load(PiqiMapperRegistry.class.getClassLoader());
+            for (PiqiBaseMapper mapper : registry.getMappers()) {
+                if (mapper instanceof PiqiBaseR4Mapper r4Mapper) {
+                    r4Mapper.setShared();
+                }
+            }
+            return registry;
+        }
+    }
+}
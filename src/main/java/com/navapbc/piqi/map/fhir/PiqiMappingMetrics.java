@@ -0,0 +1,75 @@
+package com.navapbc.piqi.map.fhir;
+
+/**
+ * Receives measurements from the mapping pipeline.
+ * <p>
+ * Set an implementation on the mappers with {@link PiqiBaseR4Mapper#setMetrics(PiqiMappingMetrics)} to export them,
+ * e.g. {@link com.navapbc.piqi.map.fhir.metrics.MicrometerMappingMetrics}.  Without one the mappers use
+ * {@link #NOOP}, which records nothing and reports itself as disabled so that the mappers skip reading the clock.
+ * Implementations are called from every thread that maps and must be thread-safe.  The resource and value types
+ * passed in are FHIR type names, so the set of distinct values is small and bounded.
+ */
+public interface PiqiMappingMetrics {
+
+    /**
+     * Metrics that record nothing.
+     */
+    PiqiMappingMetrics NOOP = new PiqiMappingMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void recordMappingTime(Class<?> mappingClass, long elapsedNanos) {
+        }
+
+        @Override
+        public void recordResource(String resourceType) {
+        }
+
+        @Override
+        public void recordLabResults(int count) {
+        }
+
+        @Override
+        public void recordUnmappedValue(String valueType) {
+        }
+
+        @Override
+        public void recordUnresolvedReference(String targetType) {
+        }
+    };
+
+    /**
+     * Whether measurements are recorded.  Mappers only time their work when this is true.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Records the time taken to map one unit of work, a bundle, patient or bulk partition, to the PIQI class.
+     */
+    void recordMappingTime(Class<?> mappingClass, long elapsedNanos);
+
+    /**
+     * Records a resource read by a mapper.
+     */
+    void recordResource(String resourceType);
+
+    /**
+     * Records lab results emitted by a mapper.
+     */
+    void recordLabResults(int count);
+
+    /**
+     * Records an observation value of a type the lab mapper does not map, e.g. {@code Ratio}.
+     */
+    void recordUnmappedValue(String valueType);
+
+    /**
+     * Records a reference to a resource of the type that could not be resolved within its bundle or partition.
+     */
+    void recordUnresolvedReference(String targetType);
+}
@@ -0,0 +1,111 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.navapbc.piqi.map.fhir.jfr.BundleIndexingEvent;
+import com.navapbc.piqi.map.fhir.jfr.PiqiMappingEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps a bundle to every registered PIQI domain in a single pass over its entries.
+ * <p>
+ * Each entry is dispatched to the {@link PiqiR4EntryCollector} of every mapper that declared interest in its
+ * resource type, so adding a domain does not add another walk over the bundle.  Once every entry has been offered,
+ * each collector maps what it gathered into the combined {@link PiqiBundleMappingResult}.
+ * <p>
+ * Instances are immutable and may be shared across threads.
+ */
+public class PiqiR4BundleMapper {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiR4BundleMapper.class);
+
+    private static final int[] NO_MAPPERS = new int[0];
+
+    private final List<PiqiBaseR4Mapper> mappers;
+    private final Map<ResourceType, int[]> mapperIndexesByType = new EnumMap<>(ResourceType.class);
+
+    public PiqiR4BundleMapper(Collection<? extends PiqiBaseR4Mapper> mappers) {
+        List<PiqiBaseR4Mapper> dispatchable = new ArrayList<>();
+        for (PiqiBaseR4Mapper mapper : mappers) {
+            if (mapper.getResourceTypes().isEmpty()) {
+                log.warn("Mapper=[{}] declares no resource types and will not be used.", mapper.getClass().getName());
+                continue;
+            }
+            int mapperIndex = dispatchable.size();
+            dispatchable.add(mapper);
+            for (ResourceType resourceType : mapper.getResourceTypes()) {
+                int[] indexes = mapperIndexesByType.getOrDefault(resourceType, NO_MAPPERS);
+                indexes = Arrays.copyOf(indexes, indexes.length + 1);
+                indexes[indexes.length - 1] = mapperIndex;
+                mapperIndexesByType.put(resourceType, indexes);
+            }
+        }
+        this.mappers = Collections.unmodifiableList(dispatchable);
+    }
+
+    /**
+     * Creates a bundle mapper over every R4 mapper in the registry.
+     */
+    public static PiqiR4BundleMapper of(PiqiMapperRegistry registry) {
+        List<PiqiBaseR4Mapper> r4Mappers = new ArrayList<>();
+        for (PiqiBaseMapper mapper : registry.getMappers(FhirVersionEnum.R4)) {
+            if (mapper instanceof PiqiBaseR4Mapper r4Mapper) {
+                r4Mappers.add(r4Mapper);
+            }
+        }
+        return new PiqiR4BundleMapper(r4Mappers);
+    }
+
+    public PiqiBundleMappingResult map(Bundle bundle) {
+        PiqiR4EntryCollector[] collectors = new PiqiR4EntryCollector[mappers.size()];
+        for (int i = 0; i < collectors.length; i++) {
+            collectors[i] = mappers.get(i).newEntryCollector();
+            collectors[i].begin(bundle);
+        }
+        BundleIndexingEvent event = new BundleIndexingEvent();
+        event.begin();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) {
+                continue;
+            }
+            ResourceType resourceType = resource.getResourceType();
+            event.resourceCount++;
+            if (resourceType == ResourceType.Observation) {
+                event.observationCount++;
+            } else if (resourceType == ResourceType.DiagnosticReport) {
+                event.diagnosticReportCount++;
+            }
+            int[] indexes = mapperIndexesByType.get(resourceType);
+            if (indexes != null) {
+                for (int index : indexes) {
+                    collectors[index].accept(entry);
+                }
+            }
+        }
+        if (event.shouldCommit()) {
+            event.bundleId = PiqiMappingEvent.bundleId(bundle);
+            event.commit();
+        }
+        PiqiBundleMappingResult result = new PiqiBundleMappingResult();
+        for (PiqiR4EntryCollector collector : collectors) {
+            collector.finish(result);
+        }
+        return result;
+    }
+
+    public List<PiqiBaseR4Mapper> getMappers() {
+        return mappers;
+    }
+}
@@ -0,0 +1,297 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses a FHIR R4 JSON bundle into HAPI resources, building only the entries the selected mappers read.
+ * <p>
+ * The bundle is first read with a Jackson streaming parser.  Entries whose resource type none of the mappers declare
+ * in {@link PiqiBaseR4Mapper#getResourceTypes()} are skipped without being buffered, and Observations are skipped
+ * unless a mapper reads their category (see {@link PiqiBaseR4Mapper#getObservationCategories()}).  The entries that
+ * remain are parsed by HAPI as one bundle, so references between them resolve as they would in the full bundle.
+ * Claims, ExplanationOfBenefits and the other resources the mappers never read are most of a Synthea bundle, and
+ * they cost a tokenizer pass instead of a full HAPI object graph.
+ * <p>
+ * The parsed bundle is the input of {@link PiqiR4BundleMapper#map(Bundle)} or of the selected mappers, not a copy
+ * of the source: anything else that reads it sees only the retained entries.  Instances are immutable and may be
+ * shared across threads.
+ */
+public class PiqiR4BundleParser {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiR4BundleParser.class);
+
+    private final FhirContext fhirContext;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Set<String> resourceTypes;
+    // Null when every Observation is read.
+    private final Set<String> observationCategories;
+
+    /**
+     * Creates a parser that keeps the resources read by any of the mappers.
+     */
+    public PiqiR4BundleParser(FhirContext fhirContext, Collection<? extends PiqiBaseR4Mapper> mappers) {
+        this.fhirContext = fhirContext;
+        Set<String> types = new HashSet<>();
+        Set<String> categories = new HashSet<>();
+        boolean everyObservation = false;
+        for (PiqiBaseR4Mapper mapper : mappers) {
+            for (ResourceType resourceType : mapper.getResourceTypes()) {
+                types.add(resourceType.name());
+            }
+            if (mapper.getResourceTypes().contains(ResourceType.Observation)) {
+                if (mapper.getObservationCategories().isEmpty()) {
+                    everyObservation = true;
+                }
+                categories.addAll(mapper.getObservationCategories());
+            }
+        }
+        this.resourceTypes = Collections.unmodifiableSet(types);
+        this.observationCategories = everyObservation ? null : Collections.unmodifiableSet(categories);
+    }
+
+    /**
+     * Creates a parser that keeps the resources read by the R4 mappers of the PIQI classes in the registry.
+     *
+     * @throws IllegalArgumentException if the registry has no R4 mapper for one of the classes
+     */
+    public static PiqiR4BundleParser of(FhirContext fhirContext, PiqiMapperRegistry registry,
+                                        Collection<Class<?>> piqiClasses) {
+        List<PiqiBaseR4Mapper> mappers = new ArrayList<>();
+        for (Class<?> piqiClass : piqiClasses) {
+            PiqiBaseMapper mapper = registry.getMapper(FhirVersionEnum.R4, piqiClass);
+            if (!(mapper instanceof PiqiBaseR4Mapper r4Mapper)) {
+                throw new IllegalArgumentException("No R4 mapper is registered for class=[" + piqiClass.getName() + "]");
+            }
+            mappers.add(r4Mapper);
+        }
+        return new PiqiR4BundleParser(fhirContext, mappers);
+    }
+
+    /**
+     * Creates a parser that keeps the resources read by the mappers of the bundle mapper.
+     */
+    public static PiqiR4BundleParser of(FhirContext fhirContext, PiqiR4BundleMapper bundleMapper) {
+        return new PiqiR4BundleParser(fhirContext, bundleMapper.getMappers());
+    }
+
+    /**
+     * Parses the bundle read from the stream, which is not closed.
+     *
+     * @throws UncheckedIOException if the stream cannot be read or is not a JSON object
+     */
+    public Bundle parse(InputStream inputStream) {
+        try (JsonParser parser = jsonFactory.createParser(inputStream)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return parse(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses the bundle read from the reader, which is not closed.
+     *
+     * @throws UncheckedIOException if the reader cannot be read or is not a JSON object
+     */
+    public Bundle parse(Reader reader) {
+        try (JsonParser parser = jsonFactory.createParser(reader)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return parse(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Set<String> getResourceTypes() {
+        return resourceTypes;
+    }
+
+    private Bundle parse(JsonParser parser) throws IOException {
+        ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+        int retained = 0;
+        int skipped = 0;
+        try (JsonGenerator generator = jsonFactory.createGenerator(filtered)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object but found " + parser.currentToken());
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                    generator.writeArrayFieldStart(field);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        if (copyEntry(parser, generator)) {
+                            retained++;
+                        } else {
+                            skipped++;
+                        }
+                    }
+                    generator.writeEndArray();
+                } else {
+                    generator.writeFieldName(field);
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeEndObject();
+        }
+        log.debug("Parsing bundle retained=[{}] skipped=[{}] entries, filtered size=[{}] bytes", retained, skipped,
+                filtered.size());
+        return fhirContext.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(filtered.toByteArray()));
+    }
+
+    /**
+     * Copies the entry to the generator if its resource is read by a mapper, skipping it otherwise.  The entry is
+     * buffered until its resource has been seen, as fullUrl usually comes before it.
+     */
+    private boolean copyEntry(JsonParser parser, JsonGenerator generator) throws IOException {
+        TokenBuffer entry = new TokenBuffer(parser);
+        entry.writeStartObject();
+        boolean retain = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (!retain) {
+                parser.skipChildren();
+            } else if ("resource".equals(field) && token == JsonToken.START_OBJECT) {
+                retain = copyResource(parser, entry);
+            } else {
+                entry.writeFieldName(field);
+                entry.copyCurrentStructure(parser);
+            }
+        }
+        entry.writeEndObject();
+        if (retain) {
+            try (JsonParser entryParser = entry.asParser()) {
+                entryParser.nextToken();
+                generator.copyCurrentStructure(entryParser);
+            }
+        }
+        return retain;
+    }
+
+    private boolean copyResource(JsonParser parser, TokenBuffer entry) throws IOException {
+        if (parser.nextToken() == JsonToken.FIELD_NAME && "resourceType".equals(parser.currentName())) {
+            parser.nextToken();
+            String resourceType = parser.getText();
+            if (!resourceTypes.contains(resourceType)) {
+                skipFields(parser);
+                return false;
+            }
+            // Only Observations, whose category may come late, are buffered before being kept.
+            boolean filtered = observationCategories != null && "Observation".equals(resourceType);
+            TokenBuffer resource = filtered ? new TokenBuffer(parser) : entry;
+            if (!filtered) {
+                entry.writeFieldName("resource");
+            }
+            resource.writeStartObject();
+            resource.writeStringField("resourceType", resourceType);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                resource.writeFieldName(parser.currentName());
+                parser.nextToken();
+                resource.copyCurrentStructure(parser);
+            }
+            resource.writeEndObject();
+            return !filtered || copyIfRead(resourceType, resource, entry);
+        }
+        // resourceType is not the first element, buffer the resource to find it.
+        TokenBuffer resource = new TokenBuffer(parser);
+        resource.writeStartObject();
+        String resourceType = null;
+        while (parser.currentToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("resourceType".equals(field) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                resourceType = parser.getText();
+            }
+            resource.writeFieldName(field);
+            resource.copyCurrentStructure(parser);
+            parser.nextToken();
+        }
+        resource.writeEndObject();
+        return resourceType != null && resourceTypes.contains(resourceType)
+                && copyIfRead(resourceType, resource, entry);
+    }
+
+    private boolean copyIfRead(String resourceType, TokenBuffer resource, TokenBuffer entry) throws IOException {
+        if (observationCategories != null && "Observation".equals(resourceType)
+                && !hasCategory(resource, observationCategories)) {
+            return false;
+        }
+        entry.writeFieldName("resource");
+        try (JsonParser resourceParser = resource.asParser()) {
+            resourceParser.nextToken();
+            entry.copyCurrentStructure(resourceParser);
+        }
+        return true;
+    }
+
+    /**
+     * Whether a coding of the resource's {@code category} has one of the codes, as
+     * {@link FhirR4MappingHelper#isCategoryMatch(List, String)} checks it.
+     */
+    private static boolean hasCategory(TokenBuffer resource, Set<String> codes) throws IOException {
+        try (JsonParser parser = resource.asParser()) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("category".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String conceptField = parser.currentName();
+                            JsonToken conceptToken = parser.nextToken();
+                            if ("coding".equals(conceptField) && conceptToken == JsonToken.START_ARRAY) {
+                                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                        String codingField = parser.currentName();
+                                        parser.nextToken();
+                                        if ("code".equals(codingField) && codes.contains(parser.getText())) {
+                                            return true;
+                                        }
+                                        parser.skipChildren();
+                                    }
+                                }
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                    return false;
+                }
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    private static void skipFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+}
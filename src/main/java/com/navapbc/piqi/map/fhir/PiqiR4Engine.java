@@ -0,0 +1,232 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Entry point that owns the R4 {@link FhirContext}, a pool of JSON parsers and the bundle mapper of a registry.
+ * <p>
+ * Creating a {@code FhirContext} and scanning the model on first use take seconds and a lot of metaspace, so an
+ * application should have one per FHIR version.  Unless given one, the engine uses HAPI's shared
+ * {@link FhirContext#forR4Cached() cached R4 context}, which the demographics mapper also compiles its plan against.
+ * It loads the context lazily, the first time it is needed, and {@link #warmUp()} loads the definitions of the
+ * resources the mappers read ahead of the first request, e.g. when an autoscaled worker starts.  The default engine warms up when it is created if the system property
+ * {@value #WARM_UP_PROPERTY} is {@code true}.
+ * <p>
+ * HAPI parsers are not thread-safe, so the engine lends them out one thread at a time and keeps up to
+ * {@link #getMaxIdleParsers()} of them for reuse.  Pooled parsers keep HAPI's default configuration; a caller that
+ * needs another one should create its own parser from {@link #getFhirContext()}.
+ * <p>
+ * Instances are thread-safe and meant to be shared.
+ */
+public final class PiqiR4Engine {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiR4Engine.class);
+
+    public static final String WARM_UP_PROPERTY = "piqi.engine.warmUp";
+
+    private static final int DEFAULT_MAX_IDLE_PARSERS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final PiqiMapperRegistry registry;
+    private final PiqiR4BundleMapper bundleMapper;
+    private final Object lock = new Object();
+    private volatile FhirContext fhirContext;
+    private volatile PiqiR4BundleParser bundleParser;
+    private final Queue<IParser> idleParsers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleParserCount = new AtomicInteger();
+    private volatile int maxIdleParsers = DEFAULT_MAX_IDLE_PARSERS;
+
+    /**
+     * Creates an engine over the R4 mappers of the registry, which uses the cached R4 context when first needed.
+     */
+    public PiqiR4Engine(PiqiMapperRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Creates an engine over the R4 mappers of the registry that uses an existing R4 context.
+     */
+    public PiqiR4Engine(PiqiMapperRegistry registry, FhirContext fhirContext) {
+        this.registry = registry;
+        this.bundleMapper = PiqiR4BundleMapper.of(registry);
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * Returns the engine over the default registry, whose mappers cannot be configured.  To map with a coding cache,
+     * terminology translator or metrics, create an engine over a registry of your own.
+     */
+    public static PiqiR4Engine getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    public FhirContext getFhirContext() {
+        FhirContext context = fhirContext;
+        if (context == null) {
+            synchronized (lock) {
+                context = fhirContext;
+                if (context == null) {
+                    long started = System.nanoTime();
+                    context = FhirContext.forR4Cached();
+                    fhirContext = context;
+                    log.debug("Loaded FHIR R4 context in [{}] ms", (System.nanoTime() - started) / 1_000_000);
+                }
+            }
+        }
+        return context;
+    }
+
+    public PiqiMapperRegistry getRegistry() {
+        return registry;
+    }
+
+    public PiqiR4BundleMapper getBundleMapper() {
+        return bundleMapper;
+    }
+
+    /**
+     * Returns the parser that only builds the bundle entries the mappers of this engine read.
+     */
+    public PiqiR4BundleParser getBundleParser() {
+        PiqiR4BundleParser parser = bundleParser;
+        if (parser == null) {
+            synchronized (lock) {
+                parser = bundleParser;
+                if (parser == null) {
+                    parser = PiqiR4BundleParser.of(getFhirContext(), bundleMapper);
+                    bundleParser = parser;
+                }
+            }
+        }
+        return parser;
+    }
+
+    /**
+     * The resource types the mappers of this engine read, and Bundle.
+     */
+    public Set<ResourceType> getWarmUpResourceTypes() {
+        Set<ResourceType> resourceTypes = EnumSet.of(ResourceType.Bundle);
+        for (PiqiBaseR4Mapper mapper : bundleMapper.getMappers()) {
+            resourceTypes.addAll(mapper.getResourceTypes());
+        }
+        return resourceTypes;
+    }
+
+    /**
+     * Creates the context, if needed, and loads the definitions of {@link #getWarmUpResourceTypes()}.
+     */
+    public PiqiR4Engine warmUp() {
+        return warmUp(getWarmUpResourceTypes());
+    }
+
+    /**
+     * Creates the context, if needed, loads the definitions of the resource types and fills the parser pool with
+     * one parser that has read a bundle.
+     */
+    public PiqiR4Engine warmUp(Collection<ResourceType> resourceTypes) {
+        long started = System.nanoTime();
+        FhirContext context = getFhirContext();
+        for (ResourceType resourceType : resourceTypes) {
+            context.getResourceDefinition(resourceType.name());
+        }
+        withParser(parser -> parser.parseResource(Bundle.class, "{\"resourceType\":\"Bundle\"}"));
+        log.info("Warmed up FHIR R4 context for resourceTypes=[{}] in [{}] ms", resourceTypes,
+                (System.nanoTime() - started) / 1_000_000);
+        return this;
+    }
+
+    /**
+     * Lends a JSON parser to the function, which must not keep it or share it with another thread.
+     */
+    public <T> T withParser(Function<IParser, T> function) {
+        IParser parser = borrowParser();
+        try {
+            return function.apply(parser);
+        } finally {
+            releaseParser(parser);
+        }
+    }
+
+    /**
+     * Takes a JSON parser from the pool, or creates one.  Give it back with {@link #releaseParser(IParser)} once
+     * done, and do not change its configuration.
+     */
+    public IParser borrowParser() {
+        IParser parser = idleParsers.poll();
+        if (parser != null) {
+            idleParserCount.decrementAndGet();
+            return parser;
+        }
+        return getFhirContext().newJsonParser();
+    }
+
+    /**
+     * Returns a parser taken with {@link #borrowParser()} to the pool, which drops it if the pool is full.
+     */
+    public void releaseParser(IParser parser) {
+        if (parser != null && idleParserCount.incrementAndGet() <= maxIdleParsers) {
+            idleParsers.offer(parser);
+        } else if (parser != null) {
+            idleParserCount.decrementAndGet();
+        }
+    }
+
+    public int getMaxIdleParsers() {
+        return maxIdleParsers;
+    }
+
+    /**
+     * Sets how many parsers the pool keeps for reuse, by default twice the number of processors.
+     */
+    public void setMaxIdleParsers(int maxIdleParsers) {
+        if (maxIdleParsers < 0) {
+            throw new IllegalArgumentException("maxIdleParsers must not be negative but was " + maxIdleParsers);
+        }
+        this.maxIdleParsers = maxIdleParsers;
+    }
+
+    /**
+     * Parses the whole bundle with a pooled parser.  The stream is not closed.
+     */
+    public Bundle parseBundle(InputStream inputStream) {
+        return withParser(parser -> parser.parseResource(Bundle.class, inputStream));
+    }
+
+    public Bundle parseBundle(Reader reader) {
+        return withParser(parser -> parser.parseResource(Bundle.class, reader));
+    }
+
+    /**
+     * Maps a JSON bundle to every PIQI class of the registry, building only the entries the mappers read.  The
+     * stream is not closed.
+     */
+    public PiqiBundleMappingResult map(InputStream inputStream) {
+        return bundleMapper.map(getBundleParser().parse(inputStream));
+    }
+
+    private static final class DefaultHolder {
+        private static final PiqiR4Engine INSTANCE = newDefault();
+
+        private static PiqiR4Engine newDefault() {
+            PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.getDefault());
+            if (Boolean.getBoolean(WARM_UP_PROPERTY)) {
+                engine.warmUp();
+            }
+            return engine;
+        }
+    }
+}
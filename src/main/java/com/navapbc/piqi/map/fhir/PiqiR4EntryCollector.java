@@ -0,0 +1,30 @@
+package com.navapbc.piqi.map.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Receives the bundle entries a {@link PiqiBaseR4Mapper} is interested in during a single pass over a bundle, and
+ * adds what it mapped to the combined result once the pass is complete.
+ * <p>
+ * A collector holds the state of one bundle and is used by one thread; mappers create a new one per bundle with
+ * {@link PiqiBaseR4Mapper#newEntryCollector()}.
+ */
+public interface PiqiR4EntryCollector {
+
+    /**
+     * Called once with the bundle being mapped, before any of its entries are offered.
+     */
+    default void begin(Bundle bundle) {
+    }
+
+    /**
+     * Called, in bundle order, for every entry whose resource type is one of the mapper's
+     * {@link PiqiBaseR4Mapper#getResourceTypes()}.
+     */
+    void accept(Bundle.BundleEntryComponent entry);
+
+    /**
+     * Called once after every entry has been offered, to map what was collected into the result.
+     */
+    void finish(PiqiBundleMappingResult result);
+}
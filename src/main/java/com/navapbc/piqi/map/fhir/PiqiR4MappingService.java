@@ -0,0 +1,257 @@
+package com.navapbc.piqi.map.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps bundles asynchronously, one request per thread, for services that receive a bundle per request.
+ * <p>
+ * Each request runs on its own virtual thread when the JVM supports them (JDK 21 and later); on older JVMs it runs
+ * on a daemon platform thread from a cached pool.  At most {@link #getMaxConcurrency()} requests map at once, the
+ * others wait for a permit.  A request that has not completed within the timeout completes with a
+ * {@link TimeoutException}: if it has not started it never will, and if it is mapping its thread is interrupted, its
+ * result discarded and its permit handed to the next request, so a slow outlier does not hold up the requests behind
+ * it for longer than the timeout.  Parsing and mapping do not stop on interrupt, so such a thread keeps running until
+ * it finishes; {@link #getOverrunningRequests()} counts them, and while there are any, more than
+ * {@code maxConcurrency} threads map at once.
+ * <p>
+ * Bundles are mapped by the {@link PiqiR4Engine}, raw JSON payloads with its filtering parser.  Instances are
+ * thread-safe; close the service to release its threads.
+ */
+public class PiqiR4MappingService implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiR4MappingService.class);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    private final PiqiR4Engine engine;
+    private final int maxConcurrency;
+    private final Duration timeout;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final AtomicInteger overrunningRequests = new AtomicInteger();
+
+    /**
+     * Creates a service over the default engine with the default concurrency and no timeout.
+     */
+    public PiqiR4MappingService() {
+        this(PiqiR4Engine.getDefault(), DEFAULT_MAX_CONCURRENCY, null);
+    }
+
+    /**
+     * Creates a service that maps at most {@code maxConcurrency} requests at once and times requests out after the
+     * timeout, measured from submission, or never if it is null.
+     */
+    public PiqiR4MappingService(PiqiR4Engine engine, int maxConcurrency, Duration timeout) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1 but was " + maxConcurrency);
+        }
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("timeout must be positive but was " + timeout);
+        }
+        this.engine = engine;
+        this.maxConcurrency = maxConcurrency;
+        this.timeout = timeout;
+        this.permits = new Semaphore(maxConcurrency);
+        ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+        this.virtualThreads = virtualThreadExecutor != null;
+        this.executor = virtualThreads ? virtualThreadExecutor : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "piqi-mapping");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Maps the bundle to every PIQI class of the engine's registry.
+     */
+    public CompletableFuture<PiqiBundleMappingResult> map(Bundle bundle) {
+        return submit(() -> engine.getBundleMapper().map(bundle));
+    }
+
+    /**
+     * Parses and maps a JSON bundle.
+     */
+    public CompletableFuture<PiqiBundleMappingResult> map(byte[] bundleJson) {
+        return submit(() -> engine.map(new ByteArrayInputStream(bundleJson)));
+    }
+
+    /**
+     * Maps each JSON bundle as its own request.  The futures are in the order of the payloads.
+     */
+    public List<CompletableFuture<PiqiBundleMappingResult>> mapAll(Collection<byte[]> bundleJsons) {
+        List<CompletableFuture<PiqiBundleMappingResult>> futures = new ArrayList<>(bundleJsons.size());
+        for (byte[] bundleJson : bundleJsons) {
+            futures.add(map(bundleJson));
+        }
+        return futures;
+    }
+
+    /**
+     * Returns a publisher that, for each subscriber, maps each JSON bundle as its own request and publishes the
+     * outcomes in the order they complete, then completes.  A request that fails is published as an outcome with a
+     * failure rather than ending the stream.  Outcomes are buffered up to {@link Flow#defaultBufferSize()} per
+     * subscriber; beyond that the threads publishing them wait for the subscriber to request more.  Outcomes are
+     * published from the service's threads, never from a mapping thread holding a permit or from the JDK's shared
+     * timeout thread, so a slow subscriber holds up only its own stream.
+     */
+    public Flow.Publisher<MappingOutcome> publish(List<byte[]> bundleJsons) {
+        return subscriber -> {
+            SubmissionPublisher<MappingOutcome> publisher = new SubmissionPublisher<>(executor,
+                    Flow.defaultBufferSize());
+            publisher.subscribe(subscriber);
+            if (bundleJsons.isEmpty()) {
+                publisher.close();
+                return;
+            }
+            AtomicInteger remaining = new AtomicInteger(bundleJsons.size());
+            for (int i = 0; i < bundleJsons.size(); i++) {
+                int index = i;
+                map(bundleJsons.get(i)).whenCompleteAsync((result, failure) -> {
+                    publisher.submit(new MappingOutcome(index, result, unwrap(failure)));
+                    if (remaining.decrementAndGet() == 0) {
+                        publisher.close();
+                    }
+                }, executor);
+            }
+        };
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * The requests that timed out while mapping and whose threads have not finished yet.  Their permits were handed
+     * back at the timeout, so this many threads may be mapping on top of {@link #getMaxConcurrency()}.
+     */
+    public int getOverrunningRequests() {
+        return overrunningRequests.get();
+    }
+
+    /**
+     * Whether requests run on virtual threads, which needs JDK 21 or later.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Stops accepting requests.  Requests already submitted still complete.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private CompletableFuture<PiqiBundleMappingResult> submit(Callable<PiqiBundleMappingResult> mapping) {
+        CompletableFuture<PiqiBundleMappingResult> result = new CompletableFuture<>();
+        // Set while this request holds a permit; whoever clears it, the mapping thread or the timeout, releases it.
+        AtomicBoolean permitHeld = new AtomicBoolean();
+        Future<?> task = executor.submit(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+                return;
+            }
+            permitHeld.set(true);
+            PiqiBundleMappingResult piqiResult = null;
+            Throwable failure = null;
+            try {
+                if (!result.isDone()) {
+                    piqiResult = mapping.call();
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                if (permitHeld.compareAndSet(true, false)) {
+                    permits.release();
+                } else {
+                    overrunningRequests.decrementAndGet();
+                }
+            }
+            // Completed after the permit is released, so callbacks that run here do not hold up the queue.
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(piqiResult);
+            }
+        });
+        if (timeout != null) {
+            result.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        result.whenComplete((piqiResult, failure) -> {
+            if (failure instanceof TimeoutException || failure instanceof CancellationException) {
+                task.cancel(true);
+                overrunningRequests.incrementAndGet();
+                if (permitHeld.compareAndSet(true, false)) {
+                    permits.release();
+                } else {
+                    overrunningRequests.decrementAndGet();
+                }
+            }
+        });
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Returns {@code Executors.newVirtualThreadPerTaskExecutor()} when the JVM has it, or null.  It is looked up
+     * reflectively so that this library still runs on JDK 17.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads are not available, mapping on platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * The outcome of one request of {@link #publish(List)}: the index of its payload and either its result or
+     * the failure that ended it.
+     */
+    public record MappingOutcome(int index, PiqiBundleMappingResult result, Throwable failure) {
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+    }
+}
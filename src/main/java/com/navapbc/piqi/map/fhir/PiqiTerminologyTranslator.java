@@ -0,0 +1,376 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiCoding;
+import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Translates local codes to canonical ones, e.g. local lab test codes to LOINC and unit spellings to UCUM, while the
+ * mappers map, from ConceptMaps and CSV files on local disk.
+ * <p>
+ * Set on a mapper (see {@link PiqiBaseR4Mapper#setTerminologyTranslator(PiqiTerminologyTranslator)}), every coding
+ * the mapper maps through {@link FhirR4MappingHelper} whose (system, code) has a translation is replaced by the
+ * target coding.  The display of the target is used when it has one, otherwise the source display is kept.  Codings
+ * without a translation are mapped unchanged.
+ * <p>
+ * Translations are held in sorted arrays, with the target systems and codes that repeat stored once, so that a
+ * terminology of hundreds of thousands of codes stays compact.  A bounded cache in front of the arrays answers the
+ * codes that recur in every bundle with a single hash lookup.  Like {@link PiqiCodingCache} it is split into
+ * independently locked segments, each a least recently used map, so mappers on many threads rarely contend for it.
+ * Load the translations before the mappers use them; lookups are thread-safe and a load while mapping clears the
+ * cache.
+ */
+public final class PiqiTerminologyTranslator {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiTerminologyTranslator.class);
+
+    public static final int DEFAULT_CACHE_SIZE = 16_384;
+
+    private static final int SEGMENTS = 16;
+    private static final String CSV_HEADER = "source_system";
+    private static final Translation NONE = new Translation(null, null, null);
+
+    private final int cacheSize;
+    private final Segment[] segments;
+    private final Map<String, Translation> pending = new LinkedHashMap<>();
+    private volatile Index index = new Index(new String[0], new Translation[0]);
+    private volatile boolean dirty;
+    private final LongAdder translated = new LongAdder();
+    private final LongAdder untranslated = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public PiqiTerminologyTranslator() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    public PiqiTerminologyTranslator(int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("cacheSize must be at least 1 but was " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        // A power of two, so that a key picks its segment with a mask, and no more segments than entries.
+        int segmentCount = Integer.highestOneBit(Math.min(SEGMENTS, cacheSize));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(cacheSize / segmentCount);
+        }
+    }
+
+    /**
+     * Adds the translation of a source code, replacing any earlier one.  A null source system matches codings
+     * without a system.
+     */
+    public synchronized void add(String sourceSystem, String sourceCode, String targetSystem, String targetCode,
+                                 String targetDisplay) {
+        if (sourceCode == null || targetCode == null) {
+            throw new IllegalArgumentException("A translation needs a source and a target code");
+        }
+        pending.put(key(sourceSystem, sourceCode), new Translation(targetSystem, targetCode, targetDisplay));
+        dirty = true;
+    }
+
+    /**
+     * Adds the translations of every group of the ConceptMap.  Elements whose first target is unmatched or disjoint
+     * have no translation.
+     */
+    public synchronized void loadConceptMap(ConceptMap conceptMap) {
+        int count = 0;
+        for (ConceptMap.ConceptMapGroupComponent group : conceptMap.getGroup()) {
+            String sourceSystem = group.hasSource() ? group.getSource() : null;
+            String targetSystem = group.hasTarget() ? group.getTarget() : null;
+            for (ConceptMap.SourceElementComponent element : group.getElement()) {
+                if (!element.hasCode() || !element.hasTarget()) {
+                    continue;
+                }
+                ConceptMap.TargetElementComponent target = element.getTargetFirstRep();
+                Enumerations.ConceptMapEquivalence equivalence = target.getEquivalence();
+                if (!target.hasCode() || equivalence == Enumerations.ConceptMapEquivalence.UNMATCHED
+                        || equivalence == Enumerations.ConceptMapEquivalence.DISJOINT) {
+                    continue;
+                }
+                add(sourceSystem, element.getCode(), targetSystem, target.getCode(),
+                        target.hasDisplay() ? target.getDisplay() : null);
+                count++;
+            }
+        }
+        log.debug("Loaded [{}] translations from ConceptMap url=[{}]", count, conceptMap.getUrl());
+    }
+
+    /**
+     * Parses a JSON ConceptMap with a parser of the engine and adds its translations.
+     */
+    public void loadConceptMap(Path path, PiqiR4Engine engine) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            loadConceptMap(engine.withParser(parser -> parser.parseResource(ConceptMap.class, reader)));
+        }
+    }
+
+    /**
+     * Adds the translations of a CSV file with the columns {@code source_system,source_code,target_system,
+     * target_code,target_display}.  The display is optional, an empty source system matches codings without a
+     * system, values may be quoted, and a header line and lines starting with {@code #} are skipped.
+     */
+    public void loadCsv(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            loadCsv(reader);
+        }
+    }
+
+    public synchronized void loadCsv(BufferedReader reader) throws IOException {
+        int count = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#") || (lineNumber == 1 && line.startsWith(CSV_HEADER))) {
+                continue;
+            }
+            List<String> values = parseCsvLine(line);
+            if (values.size() < 4) {
+                throw new IOException("Expected at least 4 columns on line " + lineNumber + " but found "
+                        + values.size());
+            }
+            add(emptyToNull(values.get(0)), values.get(1), emptyToNull(values.get(2)), values.get(3),
+                    values.size() > 4 ? emptyToNull(values.get(4)) : null);
+            count++;
+        }
+        log.debug("Loaded [{}] translations from CSV", count);
+    }
+
+    /**
+     * Returns the translation of the code, or null if it has none.
+     */
+    public Translation lookup(String system, String code) {
+        if (code == null) {
+            return null;
+        }
+        // Merges added translations, and clears the cache, before the cache is read.
+        Index current = getIndex();
+        SourceKey sourceKey = new SourceKey(system, code);
+        Segment segment = segments[spread(sourceKey.hashCode()) & (segments.length - 1)];
+        Translation translation;
+        synchronized (segment) {
+            translation = segment.get(sourceKey);
+        }
+        if (translation != null) {
+            cacheHits.increment();
+        } else {
+            cacheMisses.increment();
+            translation = current.find(key(system, code));
+            synchronized (segment) {
+                // A load may have replaced the index, and cleared this segment, since it was read: the translation
+                // found in the old index must not be cached over the cleared entry.
+                if (index == current) {
+                    segment.put(sourceKey, translation == null ? NONE : translation);
+                }
+            }
+        }
+        if (translation == null || translation == NONE) {
+            untranslated.increment();
+            return null;
+        }
+        translated.increment();
+        return translation;
+    }
+
+    /**
+     * Maps the coding, translated if it has a translation.  With a cache the shared coding is returned.
+     */
+    public PiqiCoding translate(String system, String code, String display, PiqiCodingCache codingCache) {
+        Translation translation = lookup(system, code);
+        if (translation == null) {
+            return FhirR4MappingHelper.mapCoding(system, code, display, codingCache);
+        }
+        return FhirR4MappingHelper.mapCoding(translation.system(), translation.code(),
+                translation.display() != null ? translation.display() : display, codingCache);
+    }
+
+    /**
+     * The number of translations loaded.
+     */
+    public int size() {
+        return getIndex().keys.length;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * The number of codings that were translated.
+     */
+    public long getTranslatedCount() {
+        return translated.sum();
+    }
+
+    /**
+     * The number of codings that had no translation.
+     */
+    public long getUntranslatedCount() {
+        return untranslated.sum();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMissCount() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Returns the index, first merging translations added since it was built.
+     */
+    private Index getIndex() {
+        if (dirty) {
+            synchronized (this) {
+                if (dirty) {
+                    // The index is replaced before the segments are cleared, so that a lookup of the old index
+                    // that reaches a segment after it was cleared sees the new index and does not cache its result.
+                    index = index.merge(pending);
+                    pending.clear();
+                    for (Segment segment : segments) {
+                        synchronized (segment) {
+                            segment.clear();
+                        }
+                    }
+                    dirty = false;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static String key(String system, String code) {
+        return (system == null ? "" : system) + '|' + code;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Splits a CSV line on commas outside double quotes; a doubled quote inside quotes is a quote.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values;
+    }
+
+    /**
+     * The target of a translation.
+     */
+    public record Translation(String system, String code, String display) {
+    }
+
+    private record SourceKey(String system, String code) {
+    }
+
+    private static final class Segment extends LinkedHashMap<SourceKey, Translation> {
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SourceKey, Translation> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Translations sorted by source key, searched by bisection.
+     */
+    private static final class Index {
+
+        private final String[] keys;
+        private final Translation[] translations;
+
+        private Index(String[] keys, Translation[] translations) {
+            this.keys = keys;
+            this.translations = translations;
+        }
+
+        private Translation find(String key) {
+            int position = Arrays.binarySearch(keys, key);
+            return position < 0 ? null : translations[position];
+        }
+
+        /**
+         * Builds the index of these translations and the added ones, which replace translations of the same key.
+         */
+        private Index merge(Map<String, Translation> added) {
+            Map<String, Translation> all = new HashMap<>(keys.length + added.size());
+            Map<String, String> strings = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                all.put(keys[i], translations[i]);
+                intern(strings, translations[i].system());
+                intern(strings, translations[i].code());
+                intern(strings, translations[i].display());
+            }
+            for (Map.Entry<String, Translation> entry : added.entrySet()) {
+                Translation translation = entry.getValue();
+                all.put(entry.getKey(), new Translation(intern(strings, translation.system()),
+                        intern(strings, translation.code()), intern(strings, translation.display())));
+            }
+            String[] mergedKeys = all.keySet().toArray(new String[0]);
+            Arrays.sort(mergedKeys);
+            Translation[] mergedTranslations = new Translation[mergedKeys.length];
+            for (int i = 0; i < mergedKeys.length; i++) {
+                mergedTranslations[i] = all.get(mergedKeys[i]);
+            }
+            return new Index(mergedKeys, mergedTranslations);
+        }
+
+        private static String intern(Map<String, String> strings, String value) {
+            return value == null ? null : strings.computeIfAbsent(value, v -> v);
+        }
+    }
+}
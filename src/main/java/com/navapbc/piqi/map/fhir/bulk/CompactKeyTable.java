@@ -0,0 +1,113 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An open addressing map from string keys to non-negative ints that keeps the keys as UTF-8 bytes in one growing
+ * array, so that the millions of {@code Type/id} keys of a large partition cost their bytes and a few ints each
+ * rather than a String, a byte array and a map entry each.  The first value put for a key is kept.  Instances are
+ * not thread-safe.
+ */
+final class CompactKeyTable {
+
+    static final int ABSENT = -1;
+
+    private byte[] keyBytes = new byte[4096];
+    private int keyBytesUsed;
+    private int[] keyStarts = new int[64];
+    private int[] hashes = new int[64];
+    private int[] values = new int[64];
+    private int size;
+    // Entry index + 1 of each slot, 0 for an empty slot.
+    private int[] slots = new int[128];
+
+    /**
+     * Returns the value of the key, or {@link #ABSENT}.
+     */
+    int get(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == hash && keyEquals(entry, bytes)) {
+                return values[entry];
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Puts the value unless the key already has one.
+     *
+     * @return the value the key already had, or {@link #ABSENT} if the value was put
+     */
+    int putIfAbsent(String key, int value) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == hash && keyEquals(entry, bytes)) {
+                return values[entry];
+            }
+        }
+        if (size == values.length) {
+            keyStarts = Arrays.copyOf(keyStarts, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        if (keyBytes.length - keyBytesUsed < bytes.length) {
+            long capacity = Math.max((long) keyBytes.length * 2, (long) keyBytesUsed + bytes.length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Keys exceed the 2 GB limit of a key table");
+            }
+            keyBytes = Arrays.copyOf(keyBytes, (int) capacity);
+        }
+        System.arraycopy(bytes, 0, keyBytes, keyBytesUsed, bytes.length);
+        keyStarts[size] = keyBytesUsed;
+        keyBytesUsed += bytes.length;
+        hashes[size] = hash;
+        values[size] = value;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return ABSENT;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private boolean keyEquals(int entry, byte[] bytes) {
+        int start = keyStarts[entry];
+        int end = entry + 1 < size ? keyStarts[entry + 1] : keyBytesUsed;
+        return Arrays.equals(keyBytes, start, end, bytes, 0, bytes.length);
+    }
+
+    private void rehash() {
+        int[] rehashed = new int[slots.length * 2];
+        int mask = rehashed.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hashes[entry] & mask;
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = entry + 1;
+        }
+        slots = rehashed;
+    }
+
+    private static int hash(byte[] bytes) {
+        int hash = 1;
+        for (byte b : bytes) {
+            hash = 31 * hash + b;
+        }
+        // Spread the bits, linear probing needs the low bits to differ.
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,95 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * The few top level fields of a FHIR JSON resource needed to route it, read with a streaming parser so that the
+ * resource itself is never built.
+ *
+ * @param resourceType     the {@code resourceType} of the resource
+ * @param id               the {@code id} of the resource
+ * @param subjectReference the {@code subject.reference} of the resource, or null if it has none
+ */
+record FhirJsonResourceHeader(String resourceType, String id, String subjectReference) {
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+    private static final String PATIENT_PREFIX = "Patient/";
+    private static final String HISTORY_SEGMENT = "/_history/";
+
+    static FhirJsonResourceHeader read(JsonFactory jsonFactory, String json) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a FHIR JSON resource but found [" + parser.currentToken() + "]");
+            }
+            String resourceType = null;
+            String id = null;
+            String subjectReference = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("resourceType".equals(fieldName)) {
+                    resourceType = parser.getValueAsString();
+                } else if ("id".equals(fieldName)) {
+                    id = parser.getValueAsString();
+                } else if ("subject".equals(fieldName) && token == JsonToken.START_OBJECT) {
+                    subjectReference = readReference(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new FhirJsonResourceHeader(resourceType, id, subjectReference);
+        }
+    }
+
+    /**
+     * The id of the patient the resource belongs to: the id of a Patient, or the patient referenced by
+     * {@code subject}.  Returns null when the resource has no patient.
+     */
+    String patientKey() {
+        if ("Patient".equals(resourceType)) {
+            return id;
+        }
+        return patientKey(subjectReference);
+    }
+
+    /**
+     * Normalizes a reference to a patient to the patient's id, so that {@code urn:uuid:123}, {@code Patient/123},
+     * {@code http://server/fhir/Patient/123/_history/2} and {@code 123} all have the same key.
+     */
+    static String patientKey(String reference) {
+        if (reference == null || reference.isEmpty()) {
+            return null;
+        }
+        String key = reference;
+        if (key.startsWith(URN_UUID_PREFIX)) {
+            return key.substring(URN_UUID_PREFIX.length());
+        }
+        int historyIndex = key.indexOf(HISTORY_SEGMENT);
+        if (historyIndex >= 0) {
+            key = key.substring(0, historyIndex);
+        }
+        int patientIndex = key.lastIndexOf(PATIENT_PREFIX);
+        if (patientIndex >= 0) {
+            key = key.substring(patientIndex + PATIENT_PREFIX.length());
+        }
+        return key;
+    }
+
+    private static String readReference(JsonParser parser) throws IOException {
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("reference".equals(fieldName)) {
+                reference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+}
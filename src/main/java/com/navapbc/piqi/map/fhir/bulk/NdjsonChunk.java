@@ -0,0 +1,106 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A line aligned byte range of an NDJSON file, read through a memory mapping of just that range.
+ *
+ * @param file  the NDJSON file
+ * @param start the offset of the first byte of the chunk, always the start of a line
+ * @param end   the offset just past the last byte of the chunk, always the end of a line or of the file
+ */
+record NdjsonChunk(Path file, long start, long end) {
+
+    private static final int SCAN_WINDOW = 64 * 1024;
+
+    interface LineConsumer {
+        void accept(String line) throws IOException;
+    }
+
+    long length() {
+        return end - start;
+    }
+
+    /**
+     * Splits a file into chunks of about {@code targetChunkSize} bytes, each extended to the end of the line it
+     * would otherwise cut.
+     */
+    static List<NdjsonChunk> split(Path file, long targetChunkSize) throws IOException {
+        List<NdjsonChunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(start + targetChunkSize, size);
+                if (end < size) {
+                    end = nextLineStart(channel, end, size);
+                }
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Line of file=[" + file + "] starting at offset=[" + start
+                            + "] is too long to map.");
+                }
+                chunks.add(new NdjsonChunk(file, start, end));
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Calls the consumer with every non blank line of the chunk, in order.
+     */
+    void forEachLine(LineConsumer consumer) throws IOException {
+        if (length() == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length());
+            int limit = buffer.limit();
+            byte[] line = new byte[1024];
+            int lineStart = 0;
+            for (int i = 0; i <= limit; i++) {
+                if (i == limit || buffer.get(i) == '\n') {
+                    int lineEnd = i;
+                    if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                        lineEnd--;
+                    }
+                    int lineLength = lineEnd - lineStart;
+                    if (lineLength > 0) {
+                        if (lineLength > line.length) {
+                            line = new byte[Math.max(lineLength, line.length * 2)];
+                        }
+                        buffer.get(lineStart, line, 0, lineLength);
+                        String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                        if (!text.isBlank()) {
+                            consumer.accept(text);
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        // The byte before position may already end a line.
+        long scanFrom = position - 1;
+        while (scanFrom < size) {
+            long windowSize = Math.min(SCAN_WINDOW, size - scanFrom);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, scanFrom, windowSize);
+            for (int i = 0; i < windowSize; i++) {
+                if (window.get(i) == '\n') {
+                    return scanFrom + i + 1;
+                }
+            }
+            scanFrom += windowSize;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,60 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading one NDJSON file during a {@link PiqiBulkR4Mapper} run.  The elapsed time runs from the
+ * moment the first chunk of the file started to the moment its last chunk finished, so chunks of other files read
+ * in parallel are included.
+ */
+public class PiqiBulkFileStats {
+
+    private final Path file;
+    private final long bytesRead;
+    private final long resourcesRead;
+    private final long elapsedNanos;
+
+    public PiqiBulkFileStats(Path file, long bytesRead, long resourcesRead, long elapsedNanos) {
+        this.file = file;
+        this.bytesRead = bytesRead;
+        this.resourcesRead = resourcesRead;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getResourcesRead() {
+        return resourcesRead;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(bytesRead);
+    }
+
+    public double getResourcesPerSecond() {
+        return perSecond(resourcesRead);
+    }
+
+    private double perSecond(long count) {
+        return elapsedNanos == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PiqiBulkFileStats{file=%s, bytesRead=%d, resourcesRead=%d, elapsedMillis=%d, "
+                        + "megabytesPerSecond=%.1f, resourcesPerSecond=%.0f}", file, bytesRead, resourcesRead,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getBytesPerSecond() / (1024 * 1024),
+                getResourcesPerSecond());
+    }
+}
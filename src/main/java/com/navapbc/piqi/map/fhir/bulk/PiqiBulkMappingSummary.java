@@ -0,0 +1,116 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counts of what a {@link PiqiBulkR4Mapper} run read and produced.
+ */
+public class PiqiBulkMappingSummary {
+
+    private long resourcesRead;
+    private long resourcesSkipped;
+    private long resourcesInOtherShards;
+    private long demographicsMapped;
+    private long labResultsMapped;
+    private int partitionsMapped;
+    private int partitionsSpilled;
+    private final List<PiqiBulkFileStats> fileStats = new ArrayList<>();
+
+    public long getResourcesRead() {
+        return resourcesRead;
+    }
+
+    public long getResourcesSkipped() {
+        return resourcesSkipped;
+    }
+
+    /**
+     * The resources read that belong to another {@link PiqiBulkR4Mapper#setShard(int, int) shard}.
+     */
+    public long getResourcesInOtherShards() {
+        return resourcesInOtherShards;
+    }
+
+    public long getDemographicsMapped() {
+        return demographicsMapped;
+    }
+
+    public long getLabResultsMapped() {
+        return labResultsMapped;
+    }
+
+    public int getPartitionsMapped() {
+        return partitionsMapped;
+    }
+
+    /**
+     * The partitions larger than the {@link PiqiBulkR4Mapper#setSpillThreshold(long) spill threshold}, which were
+     * mapped from their files rather than parsed onto the heap.
+     */
+    public int getPartitionsSpilled() {
+        return partitionsSpilled;
+    }
+
+    /**
+     * Read throughput of each input file, in the order the files were given.
+     */
+    public List<PiqiBulkFileStats> getFileStats() {
+        return Collections.unmodifiableList(fileStats);
+    }
+
+    void addResourcesRead(long count) {
+        resourcesRead += count;
+    }
+
+    void addResourcesSkipped(long count) {
+        resourcesSkipped += count;
+    }
+
+    void addResourcesInOtherShards(long count) {
+        resourcesInOtherShards += count;
+    }
+
+    void addDemographicsMapped(long count) {
+        demographicsMapped += count;
+    }
+
+    void addLabResultsMapped(long count) {
+        labResultsMapped += count;
+    }
+
+    void addPartitionsMapped(int count) {
+        partitionsMapped += count;
+    }
+
+    void addPartitionsSpilled(int count) {
+        partitionsSpilled += count;
+    }
+
+    void addFileStats(PiqiBulkFileStats stats) {
+        fileStats.add(stats);
+    }
+
+    /**
+     * Adds the counts and file stats of another run, such as another shard of the same export.
+     */
+    void add(PiqiBulkMappingSummary other) {
+        resourcesRead += other.resourcesRead;
+        resourcesSkipped += other.resourcesSkipped;
+        resourcesInOtherShards += other.resourcesInOtherShards;
+        demographicsMapped += other.demographicsMapped;
+        labResultsMapped += other.labResultsMapped;
+        partitionsMapped += other.partitionsMapped;
+        partitionsSpilled += other.partitionsSpilled;
+        fileStats.addAll(other.fileStats);
+    }
+
+    @Override
+    public String toString() {
+        return "PiqiBulkMappingSummary{resourcesRead=" + resourcesRead + ", resourcesSkipped=" + resourcesSkipped
+                + ", resourcesInOtherShards=" + resourcesInOtherShards + ", demographicsMapped=" + demographicsMapped
+                + ", labResultsMapped=" + labResultsMapped + ", partitionsMapped=" + partitionsMapped
+                + ", partitionsSpilled=" + partitionsSpilled + "}";
+    }
+}
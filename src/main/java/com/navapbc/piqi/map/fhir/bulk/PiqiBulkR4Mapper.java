@@ -0,0 +1,677 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.FhirR4ReferenceResolver;
+import com.navapbc.piqi.map.fhir.FhirR4ReportIndex;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiMappingMetrics;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Maps FHIR Bulk Data {@code $export} NDJSON files to PIQI without ever holding a whole export in memory.
+ * <p>
+ * Files are memory mapped and split into line aligned chunks of about {@link #setChunkSize(long) chunkSize} bytes,
+ * read one resource per line.  Patients do not need to be joined to anything, so each one is parsed and mapped to
+ * {@link PiqiDemographics} as soon as it is read.  Lab results need an Observation joined to its DiagnosticReport,
+ * which are in different files in no particular order, so the mapping runs in two phases:
+ * <ol>
+ *     <li>Each lab related line is routed, without being parsed into a HAPI resource, to one of
+ *     {@link #setPartitionCount(int) N} partition files in the work directory by a hash of its patient.</li>
+ *     <li>Each partition is then parsed, indexed and mapped on its own, and its results are handed to the
+ *     {@link PiqiBulkResultSink}.</li>
+ * </ol>
+ * Since every resource of a patient lands in the same partition, the join never crosses partitions and each
+ * partition being mapped holds about {@code 1/N} of the lab data, no matter how large the files are.
+ * <p>
+ * A partition larger than the {@link #setSpillThreshold(long) spillThreshold}, e.g. of one patient with a very long
+ * history, is not parsed onto the heap.  Its resources stay in the memory mapped partition file, only their offsets
+ * and the keys of the joins are held in memory, and each resource is parsed again when a lab result needs it.
+ * <p>
+ * With a {@link #setParallelism(int) parallelism} above one, the chunks of the first phase and the partitions of the
+ * second are spread over a pool of worker threads, which then hold up to {@code parallelism} partitions at a time.
+ * The sink is always called from the thread calling {@link #map(Collection, PiqiBulkResultSink)}, so it does not
+ * need to be thread-safe.  Results are delivered in input order when {@link #setOrderedOutput(boolean)
+ * orderedOutput} is set, and as soon as a chunk or partition completes otherwise.
+ * <p>
+ * To spread an export over several processes or nodes, give each one the same files and its own
+ * {@link #setShard(int, int) shard}.  A shard keeps only the resources of the patients that hash to it, by the same
+ * patient key the partitions use, so its results never need anything another shard read, and
+ * {@link PiqiBulkShards} merges the outputs of the shards.
+ * <p>
+ * A resource without a {@code subject} has no patient to route it by.  A DiagnosticReport, Specimen, Encounter or
+ * ServiceRequest without one may be referenced by the lab results of any patient, so it is kept by every shard and
+ * written to every partition, which costs a parse per partition.  An Observation without one is mapped exactly once,
+ * so it is routed by its own type and id instead, and subject-less Observations spread over the shards and
+ * partitions like patients do rather than all landing in the first.  One of them is only joined to a
+ * DiagnosticReport that has no subject either.
+ * <p>
+ * An instance may be reused for several exports but is not safe for concurrent use.
+ */
+public class PiqiBulkR4Mapper {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiBulkR4Mapper.class);
+
+    // The mappers do not resolve Locations, so they are skipped rather than partitioned.
+    private static final Set<String> PARTITIONED_TYPES =
+            Set.of("Observation", "DiagnosticReport", "Specimen", "Encounter", "ServiceRequest");
+
+    // The partitioned types other than Observation, which are written to every partition when they have no subject.
+    private static final Set<String> BROADCAST_TYPES =
+            Set.of("DiagnosticReport", "Specimen", "Encounter", "ServiceRequest");
+
+    public static final long DEFAULT_SPILL_THRESHOLD = 128L * 1024 * 1024;
+
+    private final FhirContext fhirContext;
+    private final PiqiLabResultsR4Mapper labResultsMapper;
+    private final PiqiDemographicsR4Mapper demographicsMapper;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private int partitionCount = 64;
+    private Path workDirectory;
+    private int parallelism = 1;
+    private long chunkSize = 16 * 1024 * 1024;
+    private boolean orderedOutput = true;
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private PiqiMappingMetrics metrics = PiqiMappingMetrics.NOOP;
+
+    public PiqiBulkR4Mapper(FhirContext fhirContext) {
+        this(fhirContext, new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper());
+    }
+
+    public PiqiBulkR4Mapper(FhirContext fhirContext, PiqiLabResultsR4Mapper labResultsMapper,
+                            PiqiDemographicsR4Mapper demographicsMapper) {
+        this.fhirContext = fhirContext;
+        this.labResultsMapper = labResultsMapper;
+        this.demographicsMapper = demographicsMapper;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Sets the number of patient partitions the lab data is split into.  The heap needed to map an export is about
+     * the size of its lab data divided by this number, times the parallelism.
+     */
+    public void setPartitionCount(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount must be at least 1 but was " + partitionCount);
+        }
+        this.partitionCount = partitionCount;
+    }
+
+    public Path getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Sets the directory the partition files are written to, the default temporary directory if null.
+     */
+    public void setWorkDirectory(Path workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of worker threads.  One, the default, maps on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the approximate number of bytes of an NDJSON file read by one task.
+     */
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < 1 || chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + Integer.MAX_VALUE
+                    + " but was " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isOrderedOutput() {
+        return orderedOutput;
+    }
+
+    /**
+     * Sets whether results are delivered in input order (the default), or as soon as they are ready.
+     */
+    public void setOrderedOutput(boolean orderedOutput) {
+        this.orderedOutput = orderedOutput;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the shard of the export this mapper maps: only resources whose patient hashes to {@code shardIndex} out
+     * of {@code shardCount} are mapped, and the others are counted as
+     * {@link PiqiBulkMappingSummary#getResourcesInOtherShards() in other shards}.  Resources without a patient belong
+     * to shard 0.  The default, shard 0 of 1, maps everything.
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("shardIndex must be between 0 and shardCount - 1 but was " + shardIndex
+                    + " of " + shardCount);
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Sets the size in bytes of a partition file above which the partition is mapped from the file rather than
+     * parsed onto the heap.  Such a partition holds only the offset and the keys of each resource in memory, but
+     * parses each resource again when it is mapped, and each report and referenced resource again when it is no longer
+     * among the most recently used.  Zero spills every partition, {@link Long#MAX_VALUE} none.
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        if (spillThreshold < 0) {
+            throw new IllegalArgumentException("spillThreshold must not be negative but was " + spillThreshold);
+        }
+        this.spillThreshold = spillThreshold;
+    }
+
+    public PiqiMappingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where the resources read, the lab results emitted and the time to map each partition are recorded, or
+     * null to record none (the default).  Measurements made while mapping a single resource, such as unresolved
+     * references, are recorded by the mappers, set the metrics on them too.
+     */
+    public void setMetrics(PiqiMappingMetrics metrics) {
+        this.metrics = metrics == null ? PiqiMappingMetrics.NOOP : metrics;
+    }
+
+    /**
+     * Maps every Patient, Observation and DiagnosticReport in the NDJSON files, which may hold any mix of resource
+     * types, handing results to the sink as they are produced.
+     */
+    public PiqiBulkMappingSummary map(Collection<Path> ndjsonFiles, PiqiBulkResultSink sink) throws IOException {
+        PiqiBulkMappingSummary summary = new PiqiBulkMappingSummary();
+        Path partitionDirectory = workDirectory == null
+                ? Files.createTempDirectory("piqi-bulk")
+                : Files.createTempDirectory(workDirectory, "piqi-bulk");
+        ExecutorService executor = parallelism > 1 ? newExecutor() : null;
+        Throwable failure = null;
+        try {
+            PartitionWriters writers = new PartitionWriters(partitionDirectory, partitionCount);
+            try (writers) {
+                List<Callable<TaskResult>> chunkTasks = new ArrayList<>();
+                List<FileProgress> progress = new ArrayList<>();
+                for (Path ndjsonFile : ndjsonFiles) {
+                    FileProgress fileProgress = new FileProgress(ndjsonFile);
+                    progress.add(fileProgress);
+                    for (NdjsonChunk chunk : NdjsonChunk.split(ndjsonFile, chunkSize)) {
+                        chunkTasks.add(() -> routeChunk(chunk, writers, fileProgress));
+                    }
+                }
+                run(chunkTasks, executor, sink, summary);
+                for (FileProgress fileProgress : progress) {
+                    summary.addFileStats(fileProgress.toStats());
+                }
+            }
+            List<Callable<TaskResult>> partitionTasks = new ArrayList<>();
+            for (Path partition : writers.getPartitions()) {
+                if (partition != null) {
+                    partitionTasks.add(() -> mapPartition(partition));
+                }
+            }
+            run(partitionTasks, executor, sink, summary);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            deletePartitions(partitionDirectory, failure);
+        }
+        log.debug("Mapped bulk export summary=[{}]", summary);
+        for (PiqiBulkFileStats fileStats : summary.getFileStats()) {
+            log.debug("Read {}", fileStats);
+        }
+        return summary;
+    }
+
+    private TaskResult routeChunk(NdjsonChunk chunk, PartitionWriters writers, FileProgress progress)
+            throws IOException {
+        long started = System.nanoTime();
+        TaskResult result = new TaskResult();
+        IParser parser = fhirContext.newJsonParser();
+        StringBuilder[] partitionLines = new StringBuilder[partitionCount];
+        chunk.forEachLine(line -> {
+            result.resourcesRead++;
+            FhirJsonResourceHeader header = FhirJsonResourceHeader.read(jsonFactory, line);
+            String routingKey = routingKey(header, line);
+            if (shardCount > 1 && routingKey != null && shardOf(routingKey, shardCount) != shardIndex) {
+                result.resourcesInOtherShards++;
+                return;
+            }
+            metrics.recordResource(header.resourceType());
+            if ("Patient".equals(header.resourceType())) {
+                Patient patient = parser.parseResource(Patient.class, line);
+                result.add(header.patientKey(), demographicsMapper.mapDemographics(patient));
+            } else if (!PARTITIONED_TYPES.contains(header.resourceType())) {
+                result.resourcesSkipped++;
+            } else if (routingKey == null) {
+                for (int partition = 0; partition < partitionCount; partition++) {
+                    append(partitionLines, partition, line);
+                }
+            } else {
+                append(partitionLines, partitionOf(routingKey, partitionCount, shardCount), line);
+            }
+        });
+        for (int partition = 0; partition < partitionLines.length; partition++) {
+            if (partitionLines[partition] != null) {
+                writers.write(partition, partitionLines[partition]);
+            }
+        }
+        progress.record(chunk.length(), result.resourcesRead, started, System.nanoTime());
+        return result;
+    }
+
+    private static void append(StringBuilder[] partitionLines, int partition, String line) {
+        if (partitionLines[partition] == null) {
+            partitionLines[partition] = new StringBuilder();
+        }
+        partitionLines[partition].append(line).append('\n');
+    }
+
+    private TaskResult mapPartition(Path partition) throws IOException {
+        long started = metrics.isEnabled() ? System.nanoTime() : 0L;
+        TaskResult result = new TaskResult();
+        result.partitionsMapped = 1;
+        IParser parser = fhirContext.newJsonParser();
+        if (Files.size(partition) > spillThreshold) {
+            mapSpilledPartition(SpilledPartitionIndex.open(partition, parser, jsonFactory), result);
+            result.partitionsSpilled = 1;
+            Files.delete(partition);
+            recordPartition(started, result);
+            return result;
+        }
+        Map<String, Observation> observations = new LinkedHashMap<>();
+        FhirR4ReportIndex reportIndex = new FhirR4ReportIndex();
+        FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+        try (BufferedReader reader = Files.newBufferedReader(partition, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                IBaseResource resource = parser.parseResource(line);
+                if (resource instanceof Resource r4Resource) {
+                    resolver.add(r4Resource);
+                }
+                if (resource instanceof Observation observation) {
+                    observations.put(observation.getIdElement().getIdPart(), observation);
+                } else if (resource instanceof DiagnosticReport diagnosticReport) {
+                    reportIndex.add(diagnosticReport);
+                }
+            }
+        }
+        for (Observation observation : observations.values()) {
+            if (FhirR4MappingHelper.isLab(observation)) {
+                mapLabResult(observation, reportIndex.getDiagnosticReport(observation), resolver, result);
+            }
+        }
+        Files.delete(partition);
+        recordPartition(started, result);
+        return result;
+    }
+
+    /**
+     * Maps the lab observations of a partition too large for the heap, parsing each one from the file in turn.
+     */
+    private void mapSpilledPartition(SpilledPartitionIndex index, TaskResult result) throws IOException {
+        log.debug("Mapping partition of [{}] resources from disk", index.getResourceCount());
+        for (int position = 0; position < index.getObservationCount(); position++) {
+            Observation observation = index.getObservation(position);
+            if (FhirR4MappingHelper.isLab(observation)) {
+                mapLabResult(observation, index.getDiagnosticReport(observation), index.getResolver(), result);
+            }
+        }
+    }
+
+    private void mapLabResult(Observation observation, DiagnosticReport diagnosticReport,
+                              FhirR4ReferenceResolver resolver, TaskResult result) {
+        PiqiLabResult piqiLabResult = labResultsMapper.mapLabResult(observation, diagnosticReport, resolver);
+        if (piqiLabResult != null) {
+            String patientKey = observation.hasSubject()
+                    ? FhirJsonResourceHeader.patientKey(observation.getSubject().getReference()) : null;
+            result.add(patientKey, piqiLabResult);
+        }
+    }
+
+    private void recordPartition(long started, TaskResult result) {
+        if (metrics.isEnabled()) {
+            metrics.recordMappingTime(PiqiLabResult.class, System.nanoTime() - started);
+            metrics.recordLabResults(result.results.size());
+        }
+    }
+
+    /**
+     * Runs the tasks, on the calling thread without an executor, and delivers their results to the sink from the
+     * calling thread.  At most twice the parallelism of tasks are in flight, which bounds the results buffered.
+     */
+    private void run(List<Callable<TaskResult>> tasks, ExecutorService executor, PiqiBulkResultSink sink,
+                     PiqiBulkMappingSummary summary) throws IOException {
+        if (executor == null) {
+            for (Callable<TaskResult> task : tasks) {
+                deliver(call(task), sink, summary);
+            }
+            return;
+        }
+        int window = parallelism * 2;
+        if (orderedOutput) {
+            Deque<Future<TaskResult>> inFlight = new ArrayDeque<>();
+            for (Callable<TaskResult> task : tasks) {
+                inFlight.add(executor.submit(task));
+                if (inFlight.size() >= window) {
+                    deliver(await(inFlight.poll()), sink, summary);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                deliver(await(inFlight.poll()), sink, summary);
+            }
+        } else {
+            CompletionService<TaskResult> completionService = new ExecutorCompletionService<>(executor);
+            int inFlight = 0;
+            for (Callable<TaskResult> task : tasks) {
+                completionService.submit(task);
+                inFlight++;
+                if (inFlight >= window) {
+                    deliver(await(take(completionService)), sink, summary);
+                    inFlight--;
+                }
+            }
+            for (; inFlight > 0; inFlight--) {
+                deliver(await(take(completionService)), sink, summary);
+            }
+        }
+    }
+
+    private static void deliver(TaskResult result, PiqiBulkResultSink sink, PiqiBulkMappingSummary summary) {
+        summary.addResourcesRead(result.resourcesRead);
+        summary.addResourcesSkipped(result.resourcesSkipped);
+        summary.addResourcesInOtherShards(result.resourcesInOtherShards);
+        summary.addPartitionsMapped(result.partitionsMapped);
+        summary.addPartitionsSpilled(result.partitionsSpilled);
+        for (int i = 0; i < result.results.size(); i++) {
+            Object mapped = result.results.get(i);
+            if (mapped instanceof PiqiDemographics demographics) {
+                sink.acceptDemographics(result.patientKeys.get(i), demographics);
+                summary.addDemographicsMapped(1);
+            } else if (mapped instanceof PiqiLabResult labResult) {
+                sink.acceptLabResult(result.patientKeys.get(i), labResult);
+                summary.addLabResultsMapped(1);
+            }
+        }
+    }
+
+    private static TaskResult call(Callable<TaskResult> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Future<TaskResult> take(CompletionService<TaskResult> completionService) throws IOException {
+        try {
+            return completionService.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk mapping tasks.");
+        }
+    }
+
+    private static TaskResult await(Future<TaskResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk mapping tasks.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            } else if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "piqi-bulk-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The key a resource is routed to its shard and partition by: the patient key, or for a resource without a
+     * patient its own type and id, or the line itself when it has no id either.  Null for a resource without a
+     * subject that is written to every partition of every shard.
+     */
+    static String routingKey(FhirJsonResourceHeader header, String line) {
+        String patientKey = header.patientKey();
+        if (patientKey != null) {
+            return patientKey;
+        } else if (BROADCAST_TYPES.contains(header.resourceType())) {
+            return null;
+        }
+        return header.id() == null ? line : header.resourceType() + "/" + header.id();
+    }
+
+    /**
+     * The shard of a patient key.  String hash codes are specified by the language, so the shard and partition of a
+     * patient are stable across JVMs, runs and nodes.
+     */
+    static int shardOf(String patientKey, int shardCount) {
+        return (int) (hash(patientKey) % shardCount);
+    }
+
+    /**
+     * The partition of a patient key within its shard.  The partition is taken from the hash divided by the shard
+     * count, bits the shard does not depend on, so the patients of every shard spread over all the partitions.
+     */
+    static int partitionOf(String patientKey, int partitionCount, int shardCount) {
+        return (int) (hash(patientKey) / shardCount % partitionCount);
+    }
+
+    private static long hash(String patientKey) {
+        int hash = patientKey.hashCode() * 0x9E3779B9;
+        return Integer.toUnsignedLong(hash ^ (hash >>> 16));
+    }
+
+    /**
+     * Deletes the partition files without hiding why mapping failed: a failure to delete them is added to that
+     * failure as a suppressed exception, or only logged when mapping succeeded, as every result has been delivered.
+     */
+    private static void deletePartitions(Path partitionDirectory, Throwable failure) {
+        try {
+            deleteRecursively(partitionDirectory);
+        } catch (IOException | UncheckedIOException e) {
+            if (failure != null) {
+                failure.addSuppressed(e);
+            } else {
+                log.warn("Could not delete the partition files in [{}]", partitionDirectory, e);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * What one chunk or partition produced, held until it is delivered to the sink.
+     */
+    private static class TaskResult {
+
+        private final List<String> patientKeys = new ArrayList<>();
+        private final List<Object> results = new ArrayList<>();
+        private long resourcesRead;
+        private long resourcesSkipped;
+        private long resourcesInOtherShards;
+        private int partitionsMapped;
+        private int partitionsSpilled;
+
+        void add(String patientKey, Object result) {
+            patientKeys.add(patientKey);
+            results.add(result);
+        }
+    }
+
+    /**
+     * Read progress of one file, updated by every task reading one of its chunks.
+     */
+    private static class FileProgress {
+
+        private final Path file;
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder resourcesRead = new LongAdder();
+        private final AtomicLong firstStarted = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong lastFinished = new AtomicLong(Long.MIN_VALUE);
+
+        FileProgress(Path file) {
+            this.file = file;
+        }
+
+        void record(long bytes, long resources, long started, long finished) {
+            bytesRead.add(bytes);
+            resourcesRead.add(resources);
+            firstStarted.accumulateAndGet(started, Math::min);
+            lastFinished.accumulateAndGet(finished, Math::max);
+        }
+
+        PiqiBulkFileStats toStats() {
+            long elapsed = lastFinished.get() == Long.MIN_VALUE ? 0 : lastFinished.get() - firstStarted.get();
+            return new PiqiBulkFileStats(file, bytesRead.sum(), resourcesRead.sum(), elapsed);
+        }
+    }
+
+    /**
+     * Partition files, opened on first write and appended to by any number of tasks.
+     */
+    private static class PartitionWriters implements AutoCloseable {
+
+        private final Path directory;
+        private final Path[] partitions;
+        private final BufferedWriter[] writers;
+
+        PartitionWriters(Path directory, int partitionCount) {
+            this.directory = directory;
+            this.partitions = new Path[partitionCount];
+            this.writers = new BufferedWriter[partitionCount];
+        }
+
+        void write(int partition, CharSequence lines) throws IOException {
+            synchronized (writers) {
+                BufferedWriter writer = writers[partition];
+                if (writer == null) {
+                    partitions[partition] = directory.resolve("partition-" + partition + ".ndjson");
+                    writer = Files.newBufferedWriter(partitions[partition], StandardCharsets.UTF_8);
+                    writers[partition] = writer;
+                }
+                writer.append(lines);
+            }
+        }
+
+        Path[] getPartitions() {
+            return partitions;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (BufferedWriter writer : writers) {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+
+/**
+ * Receives PIQI results from {@link PiqiBulkR4Mapper} as soon as they are mapped.  Results are delivered
+ * incrementally and are not retained by the mapper.
+ */
+public interface PiqiBulkResultSink {
+
+    /**
+     * @param patientKey   the id of the patient
+     * @param demographics the demographics mapped from the patient
+     */
+    void acceptDemographics(String patientKey, PiqiDemographics demographics);
+
+    /**
+     * @param patientKey the id of the patient the observation is about, or null if it has no subject
+     * @param labResult  the lab result mapped from the observation and its report
+     */
+    void acceptLabResult(String patientKey, PiqiLabResult labResult);
+}
@@ -0,0 +1,109 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Merges what the shards of a bulk export produced.
+ * <p>
+ * Every resource of a patient is mapped by the same {@link PiqiBulkR4Mapper#setShard(int, int) shard}, so the
+ * outputs of the shards hold disjoint sets of patients and merging them is a concatenation: nothing has to be joined
+ * or deduplicated.
+ */
+public final class PiqiBulkShards {
+
+    private PiqiBulkShards() {
+    }
+
+    /**
+     * Concatenates the NDJSON outputs of the shards, in the order given, into the output file.
+     */
+    public static void merge(List<Path> shardOutputs, Path output) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(output)) {
+            for (Path shardOutput : shardOutputs) {
+                try (InputStream inputStream = Files.newInputStream(shardOutput)) {
+                    inputStream.transferTo(outputStream);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds up the summaries of the shards.  Every shard reads every file, so the resources read are counted once per
+     * shard, and those a shard left to the others are counted as {@link
+     * PiqiBulkMappingSummary#getResourcesInOtherShards() in other shards}.
+     */
+    public static PiqiBulkMappingSummary mergeSummaries(Collection<PiqiBulkMappingSummary> summaries) {
+        PiqiBulkMappingSummary merged = new PiqiBulkMappingSummary();
+        for (PiqiBulkMappingSummary summary : summaries) {
+            merged.add(summary);
+        }
+        return merged;
+    }
+
+    /**
+     * Writes the summary as properties, for a shard running in another process to hand its summary back.
+     */
+    static void writeSummary(PiqiBulkMappingSummary summary, Path path) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("resourcesRead", Long.toString(summary.getResourcesRead()));
+        properties.setProperty("resourcesSkipped", Long.toString(summary.getResourcesSkipped()));
+        properties.setProperty("resourcesInOtherShards", Long.toString(summary.getResourcesInOtherShards()));
+        properties.setProperty("demographicsMapped", Long.toString(summary.getDemographicsMapped()));
+        properties.setProperty("labResultsMapped", Long.toString(summary.getLabResultsMapped()));
+        properties.setProperty("partitionsMapped", Integer.toString(summary.getPartitionsMapped()));
+        properties.setProperty("partitionsSpilled", Integer.toString(summary.getPartitionsSpilled()));
+        List<PiqiBulkFileStats> fileStats = summary.getFileStats();
+        properties.setProperty("fileStats", Integer.toString(fileStats.size()));
+        for (int i = 0; i < fileStats.size(); i++) {
+            PiqiBulkFileStats stats = fileStats.get(i);
+            properties.setProperty("fileStats." + i + ".file", stats.getFile().toString());
+            properties.setProperty("fileStats." + i + ".bytesRead", Long.toString(stats.getBytesRead()));
+            properties.setProperty("fileStats." + i + ".resourcesRead", Long.toString(stats.getResourcesRead()));
+            properties.setProperty("fileStats." + i + ".elapsedNanos", Long.toString(stats.getElapsedNanos()));
+        }
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            properties.store(writer, "PIQI bulk mapping summary");
+        }
+    }
+
+    static PiqiBulkMappingSummary readSummary(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        PiqiBulkMappingSummary summary = new PiqiBulkMappingSummary();
+        summary.addResourcesRead(longProperty(properties, "resourcesRead"));
+        summary.addResourcesSkipped(longProperty(properties, "resourcesSkipped"));
+        summary.addResourcesInOtherShards(longProperty(properties, "resourcesInOtherShards"));
+        summary.addDemographicsMapped(longProperty(properties, "demographicsMapped"));
+        summary.addLabResultsMapped(longProperty(properties, "labResultsMapped"));
+        summary.addPartitionsMapped((int) longProperty(properties, "partitionsMapped"));
+        summary.addPartitionsSpilled((int) longProperty(properties, "partitionsSpilled"));
+        int fileStatsCount = (int) longProperty(properties, "fileStats");
+        for (int i = 0; i < fileStatsCount; i++) {
+            summary.addFileStats(new PiqiBulkFileStats(Path.of(properties.getProperty("fileStats." + i + ".file")),
+                    longProperty(properties, "fileStats." + i + ".bytesRead"),
+                    longProperty(properties, "fileStats." + i + ".resourcesRead"),
+                    longProperty(properties, "fileStats." + i + ".elapsedNanos")));
+        }
+        return summary;
+    }
+
+    private static long longProperty(Properties properties, String key) throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IOException("Summary is missing " + key);
+        }
+        return Long.parseLong(value);
+    }
+}
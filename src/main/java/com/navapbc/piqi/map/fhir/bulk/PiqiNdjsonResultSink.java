@@ -0,0 +1,74 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes bulk results as NDJSON, one result per line: {@code {"patientKey":"...","demographics":{...}}} or
+ * {@code {"patientKey":"...","labResult":{...}}}.  Lines of the shards of an export can be concatenated, see
+ * {@link PiqiBulkShards#merge(java.util.List, Path)}.
+ */
+public class PiqiNdjsonResultSink implements PiqiBulkResultSink, Closeable {
+
+    private final Writer writer;
+    private final JsonGenerator generator;
+
+    /**
+     * Creates a sink that writes to the file, replacing it.
+     */
+    public PiqiNdjsonResultSink(Path path, ObjectMapper objectMapper) throws IOException {
+        this(Files.newBufferedWriter(path, StandardCharsets.UTF_8), objectMapper);
+    }
+
+    /**
+     * Creates a sink that writes to the writer, which is closed with the sink.
+     */
+    public PiqiNdjsonResultSink(Writer writer, ObjectMapper objectMapper) throws IOException {
+        this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer);
+        this.generator = objectMapper.getFactory().createGenerator(this.writer);
+        this.generator.setCodec(objectMapper);
+        this.generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    public void acceptDemographics(String patientKey, PiqiDemographics demographics) {
+        write(patientKey, "demographics", demographics);
+    }
+
+    @Override
+    public void acceptLabResult(String patientKey, PiqiLabResult labResult) {
+        write(patientKey, "labResult", labResult);
+    }
+
+    private void write(String patientKey, String fieldName, Object result) {
+        try {
+            generator.writeStartObject();
+            generator.writeStringField("patientKey", patientKey);
+            generator.writeFieldName(fieldName);
+            generator.writeObject(result);
+            generator.writeEndObject();
+            generator.flush();
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (writer) {
+            generator.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maps a bulk export with several worker processes, one per {@link PiqiBulkR4Mapper#setShard(int, int) shard}, and
+ * merges what they produced.
+ * <p>
+ * {@link #run(Collection, Path, Path)} starts each shard in its own JVM on this machine, with the class path of this
+ * one, and waits for all of them.  Each writes {@code shard-<i>.ndjson}, in the format of
+ * {@link PiqiNdjsonResultSink}, its summary and its log to the output directory.  To spread an export over nodes
+ * instead, run {@link #main(String[])} on each node with its own shard against the shared files, then merge the
+ * outputs with {@link PiqiBulkShards}.
+ */
+public class PiqiShardedBulkRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiShardedBulkRunner.class);
+
+    private static final String USAGE = "Usage: PiqiShardedBulkRunner --shard=<index>/<count> --output=<directory> "
+            + "[--partitions=<count>] [--parallelism=<threads>] <ndjson file>...";
+
+    private int shardCount = 2;
+    private int partitionCount = 64;
+    private int parallelism = 1;
+    private List<String> jvmOptions = List.of();
+    private String javaCommand = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private String classPath = System.getProperty("java.class.path");
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the number of worker processes, each mapping one shard.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1 but was " + shardCount);
+        }
+        this.shardCount = shardCount;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Sets the number of partitions each shard splits its lab data into, see
+     * {@link PiqiBulkR4Mapper#setPartitionCount(int)}.
+     */
+    public void setPartitionCount(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("partitionCount must be at least 1 but was " + partitionCount);
+        }
+        this.partitionCount = partitionCount;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads of each shard, see {@link PiqiBulkR4Mapper#setParallelism(int)}.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public List<String> getJvmOptions() {
+        return jvmOptions;
+    }
+
+    /**
+     * Sets the options the worker JVMs are started with, e.g. {@code -Xmx2g}.
+     */
+    public void setJvmOptions(List<String> jvmOptions) {
+        this.jvmOptions = List.copyOf(jvmOptions);
+    }
+
+    public String getJavaCommand() {
+        return javaCommand;
+    }
+
+    /**
+     * Sets the java executable the workers are started with, by default the one running this JVM.
+     */
+    public void setJavaCommand(String javaCommand) {
+        this.javaCommand = javaCommand;
+    }
+
+    public String getClassPath() {
+        return classPath;
+    }
+
+    /**
+     * Sets the class path of the workers, by default the class path of this JVM.
+     */
+    public void setClassPath(String classPath) {
+        this.classPath = classPath;
+    }
+
+    /**
+     * Maps the files with one worker process per shard, then merges their NDJSON outputs into {@code mergedOutput}.
+     * The files must be readable by every worker.
+     *
+     * @return the summaries of the shards added up
+     * @throws IOException if a worker could not be started or did not exit normally; its log is in the output
+     *                     directory
+     */
+    public PiqiBulkMappingSummary run(Collection<Path> ndjsonFiles, Path outputDirectory, Path mergedOutput)
+            throws IOException {
+        Files.createDirectories(outputDirectory);
+        long started = System.nanoTime();
+        List<Process> processes = new ArrayList<>(shardCount);
+        try {
+            for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                ProcessBuilder processBuilder = new ProcessBuilder(command(shardIndex, ndjsonFiles, outputDirectory));
+                processBuilder.redirectErrorStream(true);
+                processBuilder.redirectOutput(outputDirectory.resolve(shardName(shardIndex) + ".log").toFile());
+                processes.add(processBuilder.start());
+            }
+            List<String> failures = new ArrayList<>();
+            for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+                int exitValue = processes.get(shardIndex).waitFor();
+                if (exitValue != 0) {
+                    failures.add("shard " + shardIndex + " exited with " + exitValue + ", see "
+                            + outputDirectory.resolve(shardName(shardIndex) + ".log"));
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new IOException("Bulk mapping failed: " + String.join("; ", failures));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk mapping shards.");
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+
+        List<Path> shardOutputs = new ArrayList<>(shardCount);
+        List<PiqiBulkMappingSummary> summaries = new ArrayList<>(shardCount);
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            shardOutputs.add(outputDirectory.resolve(shardName(shardIndex) + ".ndjson"));
+            summaries.add(PiqiBulkShards.readSummary(outputDirectory.resolve(shardName(shardIndex) + ".properties")));
+        }
+        PiqiBulkShards.merge(shardOutputs, mergedOutput);
+        PiqiBulkMappingSummary summary = PiqiBulkShards.mergeSummaries(summaries);
+        log.info("Mapped bulk export in [{}] shards in [{}] ms summary=[{}]", shardCount,
+                (System.nanoTime() - started) / 1_000_000, summary);
+        return summary;
+    }
+
+    private List<String> command(int shardIndex, Collection<Path> ndjsonFiles, Path outputDirectory) {
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(PiqiShardedBulkRunner.class.getName());
+        command.add("--shard=" + shardIndex + "/" + shardCount);
+        command.add("--output=" + outputDirectory.toAbsolutePath());
+        command.add("--partitions=" + partitionCount);
+        command.add("--parallelism=" + parallelism);
+        for (Path ndjsonFile : ndjsonFiles) {
+            command.add(ndjsonFile.toAbsolutePath().toString());
+        }
+        return command;
+    }
+
+    static String shardName(int shardIndex) {
+        return "shard-" + shardIndex;
+    }
+
+    /**
+     * Maps one shard of the files, writing {@code shard-<index>.ndjson} and {@code shard-<index>.properties}, its
+     * summary, to the output directory.
+     */
+    public static void main(String[] args) throws IOException {
+        int shardIndex = -1;
+        int shardCount = -1;
+        Path outputDirectory = null;
+        PiqiBulkR4Mapper bulkMapper = new PiqiBulkR4Mapper(PiqiR4Engine.getDefault().getFhirContext());
+        List<Path> ndjsonFiles = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--shard=")) {
+                String[] shard = arg.substring("--shard=".length()).split("/");
+                if (shard.length != 2) {
+                    throw new IllegalArgumentException(USAGE);
+                }
+                shardIndex = Integer.parseInt(shard[0]);
+                shardCount = Integer.parseInt(shard[1]);
+            } else if (arg.startsWith("--output=")) {
+                outputDirectory = Path.of(arg.substring("--output=".length()));
+            } else if (arg.startsWith("--partitions=")) {
+                bulkMapper.setPartitionCount(Integer.parseInt(arg.substring("--partitions=".length())));
+            } else if (arg.startsWith("--parallelism=")) {
+                bulkMapper.setParallelism(Integer.parseInt(arg.substring("--parallelism=".length())));
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException(USAGE);
+            } else {
+                ndjsonFiles.add(Path.of(arg));
+            }
+        }
+        if (shardCount < 1 || outputDirectory == null || ndjsonFiles.isEmpty()) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        bulkMapper.setShard(shardIndex, shardCount);
+        Files.createDirectories(outputDirectory);
+        PiqiBulkMappingSummary summary;
+        try (PiqiNdjsonResultSink sink = new PiqiNdjsonResultSink(
+                outputDirectory.resolve(shardName(shardIndex) + ".ndjson"), new ObjectMapper())) {
+            summary = bulkMapper.map(ndjsonFiles, sink);
+        }
+        PiqiBulkShards.writeSummary(summary, outputDirectory.resolve(shardName(shardIndex) + ".properties"));
+        log.info("Mapped shard [{}] of [{}] summary=[{}]", shardIndex, shardCount, summary);
+    }
+}
@@ -0,0 +1,331 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.navapbc.piqi.map.fhir.FhirR4ReferenceResolver;
+import com.navapbc.piqi.map.fhir.FhirR4ReportIndex;
+import com.navapbc.piqi.map.fhir.jfr.ReferenceResolutionEvent;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes a partition file too large to parse onto the heap by the byte offset of each of its resources, and parses
+ * the resources again from the memory mapped file as they are needed.
+ * <p>
+ * Only the offset and length of each line, and compact tables of the keys the joins look resources up by, are held
+ * in memory: the {@code Type/id} keys references are resolved by, the result keys of each DiagnosticReport, and the
+ * Observations in the order they are mapped.  The keys are the ones {@link FhirR4ReferenceResolver} and
+ * {@link FhirR4ReportIndex} use and the first resource of a key wins, as it does there, so the lab results are the
+ * same as those of a partition parsed onto the heap.  The most recently loaded reports and referenced resources are
+ * kept, since the observations of a report usually follow one another.  Instances are not thread-safe.
+ */
+final class SpilledPartitionIndex {
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int LOADED_CACHE_SIZE = 1024;
+
+    private final IParser parser;
+    private final JsonFactory jsonFactory;
+    private final ByteBuffer[] segments;
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int entryCount;
+    private final CompactKeyTable resourceKeys = new CompactKeyTable();
+    private final CompactKeyTable reportKeys = new CompactKeyTable();
+    private final CompactKeyTable observationSlots = new CompactKeyTable();
+    private int[] observationEntries = new int[256];
+    private int observationCount;
+    private int observationWithoutIdSlot = -1;
+    private final Map<Integer, Resource> loaded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Resource> eldest) {
+            return size() > LOADED_CACHE_SIZE;
+        }
+    };
+    private final Resolver resolver = new Resolver();
+
+    private SpilledPartitionIndex(ByteBuffer[] segments, IParser parser, JsonFactory jsonFactory) {
+        this.segments = segments;
+        this.parser = parser;
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Maps the NDJSON partition file into memory and indexes each of its lines.
+     */
+    static SpilledPartitionIndex open(Path partition, IParser parser, JsonFactory jsonFactory) throws IOException {
+        ByteBuffer[] segments;
+        long size;
+        try (FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)) {
+            size = channel.size();
+            segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SEGMENT_SIZE, size - position));
+            }
+        }
+        SpilledPartitionIndex index = new SpilledPartitionIndex(segments, parser, jsonFactory);
+        long lineStart = 0;
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = segments[i];
+            long segmentStart = i * SEGMENT_SIZE;
+            for (int position = 0, limit = segment.limit(); position < limit; position++) {
+                if (segment.get(position) == '\n') {
+                    index.addLine(lineStart, segmentStart + position);
+                    lineStart = segmentStart + position + 1;
+                }
+            }
+        }
+        if (lineStart < size) {
+            index.addLine(lineStart, size);
+        }
+        return index;
+    }
+
+    /**
+     * The number of Observations to map, each Observation id counted once.
+     */
+    int getObservationCount() {
+        return observationCount;
+    }
+
+    /**
+     * Parses the observation at the position.  When several lines have the same Observation id, the observation is
+     * the last of them at the position of the first, as in a {@link LinkedHashMap} keyed by id.
+     */
+    Observation getObservation(int position) throws IOException {
+        return (Observation) parse(observationEntries[position]);
+    }
+
+    /**
+     * Returns the first DiagnosticReport listing the observation as a result, as
+     * {@link FhirR4ReportIndex#getDiagnosticReport(Observation)} would, or null if there is none.
+     */
+    DiagnosticReport getDiagnosticReport(Observation observation) throws IOException {
+        if (observation == null || !observation.hasIdElement()) {
+            return null;
+        }
+        for (String key : FhirR4ReportIndex.keysOf(observation.getIdElement())) {
+            int entry = reportKeys.get(key);
+            if (entry != CompactKeyTable.ABSENT) {
+                return (DiagnosticReport) load(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A resolver answering references by loading their targets from the partition.
+     */
+    FhirR4ReferenceResolver getResolver() {
+        return resolver;
+    }
+
+    int getResourceCount() {
+        return entryCount;
+    }
+
+    private void addLine(long start, long end) throws IOException {
+        if (end > start && byteAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Resource at offset " + start + " exceeds the 2 GB limit of a line");
+        }
+        if (entryCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, entryCount * 2);
+            lengths = Arrays.copyOf(lengths, entryCount * 2);
+        }
+        int entry = entryCount++;
+        offsets[entry] = start;
+        lengths[entry] = (int) (end - start);
+
+        Header header = readHeader(read(entry));
+        if (header.resourceType == null) {
+            return;
+        }
+        if (header.id != null) {
+            String idPart = header.id.startsWith(URN_UUID_PREFIX)
+                    ? header.id.substring(URN_UUID_PREFIX.length()) : header.id;
+            resourceKeys.putIfAbsent(header.resourceType + "/" + idPart, entry);
+        }
+        if ("Observation".equals(header.resourceType)) {
+            addObservation(header.id, entry);
+        } else if ("DiagnosticReport".equals(header.resourceType)) {
+            for (String result : header.results) {
+                for (String key : FhirR4ReportIndex.keysOf(new IdType(result))) {
+                    reportKeys.putIfAbsent(key, entry);
+                }
+            }
+        }
+    }
+
+    private void addObservation(String id, int entry) {
+        int slot = id == null ? observationWithoutIdSlot : observationSlots.putIfAbsent(id, observationCount);
+        if (slot >= 0) {
+            observationEntries[slot] = entry;
+            return;
+        }
+        if (id == null) {
+            observationWithoutIdSlot = observationCount;
+        }
+        if (observationCount == observationEntries.length) {
+            observationEntries = Arrays.copyOf(observationEntries, observationCount * 2);
+        }
+        observationEntries[observationCount++] = entry;
+    }
+
+    private Resource load(int entry) throws IOException {
+        Resource resource = loaded.get(entry);
+        if (resource == null) {
+            resource = parse(entry);
+            loaded.put(entry, resource);
+        }
+        return resource;
+    }
+
+    private Resource parse(int entry) throws IOException {
+        IBaseResource resource = parser.parseResource(new String(read(entry), StandardCharsets.UTF_8));
+        if (!(resource instanceof Resource r4Resource)) {
+            throw new IOException("Expected an R4 resource at offset " + offsets[entry]);
+        }
+        return r4Resource;
+    }
+
+    private byte[] read(int entry) {
+        byte[] bytes = new byte[lengths[entry]];
+        long position = offsets[entry];
+        int copied = 0;
+        while (copied < bytes.length) {
+            ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            int segmentPosition = (int) (position % SEGMENT_SIZE);
+            int length = Math.min(bytes.length - copied, segment.limit() - segmentPosition);
+            segment.get(segmentPosition, bytes, copied, length);
+            copied += length;
+            position += length;
+        }
+        return bytes;
+    }
+
+    private byte byteAt(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+    }
+
+    private Header readHeader(byte[] json) throws IOException {
+        try (JsonParser jsonParser = jsonFactory.createParser(json)) {
+            if (jsonParser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a FHIR JSON resource but found [" + jsonParser.currentToken() + "]");
+            }
+            Header header = new Header();
+            while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = jsonParser.getCurrentName();
+                JsonToken token = jsonParser.nextToken();
+                if ("resourceType".equals(fieldName)) {
+                    header.resourceType = jsonParser.getValueAsString();
+                } else if ("id".equals(fieldName)) {
+                    header.id = jsonParser.getValueAsString();
+                } else if ("result".equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+                        readReference(jsonParser, header.results);
+                    }
+                } else {
+                    jsonParser.skipChildren();
+                }
+            }
+            return header;
+        }
+    }
+
+    private static void readReference(JsonParser jsonParser, List<String> references) throws IOException {
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = jsonParser.getCurrentName();
+            jsonParser.nextToken();
+            if ("reference".equals(fieldName)) {
+                String reference = jsonParser.getValueAsString();
+                if (reference != null && !reference.isEmpty()) {
+                    references.add(reference);
+                }
+            } else {
+                jsonParser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * The top level fields of a line the index is built from.
+     */
+    private static final class Header {
+
+        private String resourceType;
+        private String id;
+        private final List<String> results = new ArrayList<>();
+    }
+
+    /**
+     * Resolves references to the resources of the partition by their keys, loading each target when it is needed.
+     * References HAPI resolved and references to contained resources are answered as the base resolver answers
+     * them.
+     */
+    private final class Resolver extends FhirR4ReferenceResolver {
+
+        @Override
+        public <T extends Resource> T resolve(Reference reference, Class<T> type, Resource source) {
+            if (reference == null || reference.getResource() instanceof Resource || !reference.hasReference()
+                    || reference.getReference().startsWith("#")) {
+                return super.resolve(reference, type, source);
+            }
+            Resource target;
+            try {
+                target = lookup(reference.getReference());
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not load " + reference.getReference() + " from the partition",
+                        e);
+            }
+            return type.isInstance(target) ? type.cast(target) : null;
+        }
+
+        private Resource lookup(String value) throws IOException {
+            ReferenceResolutionEvent event = new ReferenceResolutionEvent();
+            event.begin();
+            int entry = resourceKeys.get(value);
+            if (entry == CompactKeyTable.ABSENT) {
+                IdType idType = new IdType(value);
+                if (idType.hasResourceType() && idType.hasIdPart()) {
+                    // Absolute or versioned references, e.g. http://example.org/fhir/Specimen/1/_history/2.
+                    entry = resourceKeys.get(idType.getResourceType() + "/" + idType.getIdPart());
+                }
+            }
+            Resource resource = entry == CompactKeyTable.ABSENT ? null : load(entry);
+            if (event.shouldCommit()) {
+                event.reference = value;
+                event.resolved = resource != null;
+                event.indexedCount = resourceKeys.size();
+                event.commit();
+            }
+            return resource;
+        }
+    }
+}
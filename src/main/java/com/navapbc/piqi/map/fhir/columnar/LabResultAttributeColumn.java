@@ -0,0 +1,23 @@
+package com.navapbc.piqi.map.fhir.columnar;
+
+/**
+ * The simple attribute fields of a {@code PiqiLabResult} in the columnar format, each stored as one column with a
+ * value per row.  The result value and reference range are flattened into their attributes.
+ */
+public enum LabResultAttributeColumn {
+    ORDER_DATE,
+    PERFORMED_DATE_TIME,
+    RESULT_VALUE_NUMBER,
+    RESULT_VALUE_TEXT,
+    REFERENCE_RANGE_LOW,
+    REFERENCE_RANGE_HIGH,
+    REFERENCE_RANGE_TEXT;
+
+    int columnIndex() {
+        return LabResultConceptColumn.values().length * LabResultConceptColumn.COLUMNS_PER_CONCEPT + ordinal();
+    }
+
+    static int columnCount() {
+        return LabResultConceptColumn.values().length * LabResultConceptColumn.COLUMNS_PER_CONCEPT + values().length;
+    }
+}
@@ -0,0 +1,28 @@
+package com.navapbc.piqi.map.fhir.columnar;
+
+/**
+ * The codeable concept fields of a {@code PiqiLabResult} in the columnar format.  Each is stored as five columns: the
+ * text of the concept per row, the offset of its first coding per row, and the system, code and display of every
+ * coding.
+ */
+public enum LabResultConceptColumn {
+    TEST,
+    RESULT_UNIT,
+    RESULT_STATUS,
+    INTERPRETATION,
+    SPECIMEN_TYPE,
+    ORDER,
+    PERFORMED_SITE,
+    PERFORMING_SITE;
+
+    static final int COLUMNS_PER_CONCEPT = 5;
+    static final int TEXT = 0;
+    static final int CODING_OFFSETS = 1;
+    static final int SYSTEM = 2;
+    static final int CODE = 3;
+    static final int DISPLAY = 4;
+
+    int columnIndex(int part) {
+        return ordinal() * COLUMNS_PER_CONCEPT + part;
+    }
+}
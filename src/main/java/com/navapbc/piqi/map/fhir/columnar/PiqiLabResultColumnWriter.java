@@ -0,0 +1,303 @@
+package com.navapbc.piqi.map.fhir.columnar;
+
+import com.navapbc.piqi.map.fhir.jfr.SerializationEvent;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiLabResult;
+import com.navapbc.piqi.model.PiqiObservationValue;
+import com.navapbc.piqi.model.PiqiRangeValue;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.navapbc.piqi.map.fhir.columnar.PiqiLabResultColumns.ABSENT;
+import static com.navapbc.piqi.map.fhir.columnar.PiqiLabResultColumns.NULL;
+import static com.navapbc.piqi.map.fhir.columnar.PiqiLabResultColumns.NULL_VALUE;
+
+/**
+ * Collects lab results column by column and writes them in the format read by {@link PiqiLabResultColumns}.
+ * <p>
+ * Every string is written once, to the dictionary of the file, and the columns hold its index, so the codes, systems
+ * and units that repeat across millions of results cost four bytes each.  The writer holds the columns of the results
+ * added since it was created or {@link #clear() cleared} in memory, not the results.  Instances are not thread-safe.
+ */
+public class PiqiLabResultColumnWriter {
+
+    static final String FORMAT = "piqi-columnar";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final IntList[] columns = new IntList[LabResultAttributeColumn.columnCount()];
+    private int rowCount;
+
+    public PiqiLabResultColumnWriter() {
+        clear();
+    }
+
+    public void add(PiqiLabResult piqiLabResult) {
+        addConcept(LabResultConceptColumn.TEST, piqiLabResult.getTest());
+        addConcept(LabResultConceptColumn.RESULT_UNIT, piqiLabResult.getResultUnit());
+        addConcept(LabResultConceptColumn.RESULT_STATUS, piqiLabResult.getResultStatus());
+        addConcept(LabResultConceptColumn.INTERPRETATION, piqiLabResult.getInterpretation());
+        addConcept(LabResultConceptColumn.SPECIMEN_TYPE, piqiLabResult.getSpecimenType());
+        addConcept(LabResultConceptColumn.ORDER, piqiLabResult.getOrder());
+        addConcept(LabResultConceptColumn.PERFORMED_SITE, piqiLabResult.getPerformedSite());
+        addConcept(LabResultConceptColumn.PERFORMING_SITE, piqiLabResult.getPerformingSite());
+        addAttribute(LabResultAttributeColumn.ORDER_DATE, piqiLabResult, piqiLabResult.getOrderDate());
+        addAttribute(LabResultAttributeColumn.PERFORMED_DATE_TIME, piqiLabResult,
+                piqiLabResult.getPerformedDateTime());
+        PiqiObservationValue resultValue = piqiLabResult.getResultValue();
+        addAttribute(LabResultAttributeColumn.RESULT_VALUE_NUMBER, resultValue,
+                resultValue == null ? null : resultValue.getNumber());
+        addAttribute(LabResultAttributeColumn.RESULT_VALUE_TEXT, resultValue,
+                resultValue == null ? null : resultValue.getText());
+        PiqiRangeValue referenceRange = piqiLabResult.getReferenceRange();
+        addAttribute(LabResultAttributeColumn.REFERENCE_RANGE_LOW, referenceRange,
+                referenceRange == null ? null : referenceRange.getLowValue());
+        addAttribute(LabResultAttributeColumn.REFERENCE_RANGE_HIGH, referenceRange,
+                referenceRange == null ? null : referenceRange.getHighValue());
+        addAttribute(LabResultAttributeColumn.REFERENCE_RANGE_TEXT, referenceRange,
+                referenceRange == null ? null : referenceRange.getText());
+        rowCount++;
+    }
+
+    public void addAll(Collection<PiqiLabResult> piqiLabResults) {
+        for (PiqiLabResult piqiLabResult : piqiLabResults) {
+            add(piqiLabResult);
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * The number of distinct strings added so far.
+     */
+    public int getDictionarySize() {
+        return strings.size();
+    }
+
+    /**
+     * Drops the results added so far, to write another batch.
+     */
+    public void clear() {
+        dictionary.clear();
+        strings.clear();
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new IntList();
+        }
+        for (LabResultConceptColumn column : LabResultConceptColumn.values()) {
+            columns[column.columnIndex(LabResultConceptColumn.CODING_OFFSETS)].add(0);
+        }
+        rowCount = 0;
+    }
+
+    /**
+     * Writes the results added so far to the file, replacing it.
+     *
+     * @return the number of bytes written
+     */
+    public long write(Path path) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(path)) {
+            return writeTo(outputStream);
+        }
+    }
+
+    /**
+     * Writes the results added so far to the stream, which is not closed.
+     *
+     * @return the number of bytes written
+     */
+    public long writeTo(OutputStream outputStream) throws IOException {
+        SerializationEvent event = new SerializationEvent();
+        event.begin();
+        byte[][] encoded = new byte[strings.size()][];
+        // Sizes are summed in long, so that a dictionary past 2 GB is caught by the check below instead of wrapping.
+        long blobLength = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            blobLength += encoded[i].length;
+        }
+        long columnStart = columnStart(columns.length, encoded.length, blobLength);
+        long end = columnStart;
+        for (IntList column : columns) {
+            end += (long) column.size * 4;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Columns of " + rowCount + " results exceed the 2 GB limit of a file, write "
+                    + "smaller batches");
+        }
+
+        Output output = new Output(outputStream);
+        output.putInt(PiqiLabResultColumns.MAGIC);
+        output.putInt(PiqiLabResultColumns.VERSION);
+        output.putInt(rowCount);
+        output.putInt(columns.length);
+        output.putInt(encoded.length);
+        // Every offset is below end, which fits in an int.
+        int offset = (int) columnStart;
+        for (IntList column : columns) {
+            output.putInt(offset);
+            output.putInt(column.size);
+            offset += column.size * 4;
+        }
+        int stringOffset = 0;
+        output.putInt(0);
+        for (byte[] bytes : encoded) {
+            stringOffset += bytes.length;
+            output.putInt(stringOffset);
+        }
+        for (byte[] bytes : encoded) {
+            output.putBytes(bytes);
+        }
+        output.pad(columnStart);
+        for (IntList column : columns) {
+            for (int i = 0; i < column.size; i++) {
+                output.putInt(column.values[i]);
+            }
+        }
+        output.flush();
+        if (event.shouldCommit()) {
+            event.format = FORMAT;
+            event.resultCount = rowCount;
+            event.bytes = output.count;
+            event.commit();
+        }
+        return output.count;
+    }
+
+    private void addConcept(LabResultConceptColumn column, PiqiCodeableConcept concept) {
+        IntList codingOffsets = columns[column.columnIndex(LabResultConceptColumn.CODING_OFFSETS)];
+        IntList systems = columns[column.columnIndex(LabResultConceptColumn.SYSTEM)];
+        if (concept == null) {
+            columns[column.columnIndex(LabResultConceptColumn.TEXT)].add(ABSENT);
+            codingOffsets.add(systems.size);
+            return;
+        }
+        columns[column.columnIndex(LabResultConceptColumn.TEXT)].add(reference(concept.getText()));
+        if (concept.getCodings() != null) {
+            for (PiqiCoding coding : concept.getCodings()) {
+                systems.add(reference(coding.getSystem()));
+                columns[column.columnIndex(LabResultConceptColumn.CODE)].add(reference(coding.getCode()));
+                columns[column.columnIndex(LabResultConceptColumn.DISPLAY)].add(reference(coding.getDisplay()));
+            }
+        }
+        codingOffsets.add(systems.size);
+    }
+
+    private void addAttribute(LabResultAttributeColumn column, Object parent, PiqiSimpleAttribute attribute) {
+        columns[column.columnIndex()].add(parent == null ? ABSENT : reference(attribute));
+    }
+
+    private int reference(PiqiSimpleAttribute attribute) {
+        if (attribute == null) {
+            return NULL;
+        }
+        String value = attribute.getValue();
+        if (value == null) {
+            return NULL_VALUE;
+        }
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = strings.size();
+            dictionary.put(value, index);
+            strings.add(value);
+        }
+        return index;
+    }
+
+    /**
+     * The offset of the first column: past the header, the column table and the dictionary, aligned to 4 bytes.
+     */
+    static long columnStart(int columnCount, int stringCount, long blobLength) {
+        long dictionaryStart = PiqiLabResultColumns.HEADER_BYTES + columnCount * 8L;
+        return align(dictionaryStart + (stringCount + 1L) * 4 + blobLength);
+    }
+
+    private static long align(long offset) {
+        return (offset + 3) & ~3L;
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Writes little-endian values to the stream through a buffer and counts the bytes.
+     */
+    private static final class Output {
+
+        private final OutputStream outputStream;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long count;
+
+        Output(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                drain();
+            }
+            buffer.putInt(value);
+            count += 4;
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int written = 0;
+            while (written < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - written);
+                buffer.put(bytes, written, length);
+                written += length;
+            }
+            count += bytes.length;
+        }
+
+        void pad(long offset) throws IOException {
+            while (count < offset) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) 0);
+                count++;
+            }
+        }
+
+        void flush() throws IOException {
+            drain();
+            outputStream.flush();
+        }
+
+        private void drain() throws IOException {
+            outputStream.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
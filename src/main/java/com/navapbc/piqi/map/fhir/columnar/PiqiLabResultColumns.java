@@ -0,0 +1,267 @@
+package com.navapbc.piqi.map.fhir.columnar;
+
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiLabResult;
+import com.navapbc.piqi.model.PiqiObservationValue;
+import com.navapbc.piqi.model.PiqiRangeValue;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a batch of lab results written by {@link PiqiLabResultColumnWriter}, straight from the bytes of the file.
+ * <p>
+ * A file is a header, a directory of columns, a dictionary of UTF-8 strings and the columns, all little-endian:
+ * <pre>
+ * int magic ("PIQC"), int version, int rowCount, int columnCount, int dictionarySize
+ * columnCount x (int byteOffset, int length)
+ * int[dictionarySize + 1] string end offsets, starting with 0, then the UTF-8 bytes of the strings
+ * padding to 4 bytes, then each column as int[length]
+ * </pre>
+ * Columns hold the index of a string in the dictionary, or {@link #NULL}, {@link #NULL_VALUE} or {@link #ABSENT}.
+ * The {@link LabResultConceptColumn codeable concepts} have a text column with a value per row, a column with the
+ * offset of the first coding of each row and one more entry for the end, and system, code and display columns with a
+ * value per coding.  The {@link LabResultAttributeColumn attributes} have a value per row.
+ * <p>
+ * Scans read the columns in place and compare dictionary indexes, e.g. with {@link #indexOf(String)}, without building
+ * a {@link PiqiLabResult}.  {@link #map(Path)} maps the file into memory, so that only the columns a scan reads are
+ * paged in.  Instances are thread-safe.
+ */
+public class PiqiLabResultColumns {
+
+    /**
+     * The attribute is null.
+     */
+    public static final int NULL = -1;
+
+    /**
+     * The attribute is present but has no value.
+     */
+    public static final int NULL_VALUE = -2;
+
+    /**
+     * The object holding the attribute, e.g. the codeable concept or the result value, is null.
+     */
+    public static final int ABSENT = -3;
+
+    static final int MAGIC = 0x43514950;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 20;
+
+    private final ByteBuffer buffer;
+    private final int rowCount;
+    private final int dictionarySize;
+    private final int blobStart;
+    private final IntBuffer stringEnds;
+    private final IntBuffer[] columns;
+    private final String[] strings;
+    private volatile Map<String, Integer> stringIndexes;
+
+    private PiqiLabResultColumns(ByteBuffer buffer) {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (this.buffer.limit() < HEADER_BYTES || this.buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a PIQI columnar lab result file");
+        }
+        int version = this.buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported PIQI columnar version " + version);
+        }
+        this.rowCount = this.buffer.getInt(8);
+        int columnCount = this.buffer.getInt(12);
+        if (columnCount != LabResultAttributeColumn.columnCount()) {
+            throw new IllegalArgumentException("Expected " + LabResultAttributeColumn.columnCount()
+                    + " columns but the file has " + columnCount);
+        }
+        this.dictionarySize = this.buffer.getInt(16);
+        int dictionaryStart = HEADER_BYTES + columnCount * 8;
+        this.stringEnds = intBuffer(dictionaryStart, dictionarySize + 1);
+        this.blobStart = dictionaryStart + (dictionarySize + 1) * 4;
+        this.columns = new IntBuffer[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            int entry = HEADER_BYTES + i * 8;
+            columns[i] = intBuffer(this.buffer.getInt(entry), this.buffer.getInt(entry + 4));
+        }
+        this.strings = new String[dictionarySize];
+    }
+
+    /**
+     * Maps the file into memory read-only.  The mapping stays valid until the instance is garbage collected.
+     */
+    public static PiqiLabResultColumns map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new PiqiLabResultColumns(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads the results from the remaining bytes of the buffer, which must not change while they are read.
+     */
+    public static PiqiLabResultColumns wrap(ByteBuffer buffer) {
+        return new PiqiLabResultColumns(buffer);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    /**
+     * Returns the string at the index of the dictionary.
+     */
+    public String getString(int index) {
+        String string = strings[index];
+        if (string == null) {
+            int start = stringEnds.get(index);
+            int end = stringEnds.get(index + 1);
+            byte[] bytes = new byte[end - start];
+            buffer.get(blobStart + start, bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    /**
+     * Returns the index of the string in the dictionary, or {@link #NULL} if no result has it.  A scan can compare a
+     * column with the index rather than decode every value.
+     */
+    public int indexOf(String string) {
+        Map<String, Integer> indexes = stringIndexes;
+        if (indexes == null) {
+            indexes = new HashMap<>(dictionarySize * 2);
+            for (int i = 0; i < dictionarySize; i++) {
+                indexes.put(getString(i), i);
+            }
+            stringIndexes = indexes;
+        }
+        return indexes.getOrDefault(string, NULL);
+    }
+
+    /**
+     * Returns the dictionary index of the text of the concept of the row.
+     */
+    public int getText(LabResultConceptColumn column, int row) {
+        return columns[column.columnIndex(LabResultConceptColumn.TEXT)].get(row);
+    }
+
+    public int getCodingCount(LabResultConceptColumn column, int row) {
+        IntBuffer codingOffsets = columns[column.columnIndex(LabResultConceptColumn.CODING_OFFSETS)];
+        return codingOffsets.get(row + 1) - codingOffsets.get(row);
+    }
+
+    /**
+     * Returns the dictionary index of the system of a coding of the concept of the row.
+     */
+    public int getSystem(LabResultConceptColumn column, int row, int coding) {
+        return getCodingPart(column, LabResultConceptColumn.SYSTEM, row, coding);
+    }
+
+    public int getCode(LabResultConceptColumn column, int row, int coding) {
+        return getCodingPart(column, LabResultConceptColumn.CODE, row, coding);
+    }
+
+    public int getDisplay(LabResultConceptColumn column, int row, int coding) {
+        return getCodingPart(column, LabResultConceptColumn.DISPLAY, row, coding);
+    }
+
+    /**
+     * Returns the dictionary index of the attribute of the row.
+     */
+    public int getAttribute(LabResultAttributeColumn column, int row) {
+        return columns[column.columnIndex()].get(row);
+    }
+
+    /**
+     * Builds the lab result of the row.
+     */
+    public PiqiLabResult getLabResult(int row) {
+        PiqiLabResult piqiLabResult = new PiqiLabResult();
+        piqiLabResult.setTest(toConcept(LabResultConceptColumn.TEST, row));
+        piqiLabResult.setResultUnit(toConcept(LabResultConceptColumn.RESULT_UNIT, row));
+        piqiLabResult.setResultStatus(toConcept(LabResultConceptColumn.RESULT_STATUS, row));
+        piqiLabResult.setInterpretation(toConcept(LabResultConceptColumn.INTERPRETATION, row));
+        piqiLabResult.setSpecimenType(toConcept(LabResultConceptColumn.SPECIMEN_TYPE, row));
+        piqiLabResult.setOrder(toConcept(LabResultConceptColumn.ORDER, row));
+        piqiLabResult.setPerformedSite(toConcept(LabResultConceptColumn.PERFORMED_SITE, row));
+        piqiLabResult.setPerformingSite(toConcept(LabResultConceptColumn.PERFORMING_SITE, row));
+        piqiLabResult.setOrderDate(toAttribute(getAttribute(LabResultAttributeColumn.ORDER_DATE, row)));
+        piqiLabResult.setPerformedDateTime(toAttribute(
+                getAttribute(LabResultAttributeColumn.PERFORMED_DATE_TIME, row)));
+        int number = getAttribute(LabResultAttributeColumn.RESULT_VALUE_NUMBER, row);
+        if (number != ABSENT) {
+            PiqiObservationValue resultValue = new PiqiObservationValue();
+            resultValue.setNumber(toAttribute(number));
+            resultValue.setText(toAttribute(getAttribute(LabResultAttributeColumn.RESULT_VALUE_TEXT, row)));
+            piqiLabResult.setResultValue(resultValue);
+        }
+        int low = getAttribute(LabResultAttributeColumn.REFERENCE_RANGE_LOW, row);
+        if (low != ABSENT) {
+            PiqiRangeValue referenceRange = new PiqiRangeValue();
+            referenceRange.setLowValue(toAttribute(low));
+            referenceRange.setHighValue(toAttribute(getAttribute(LabResultAttributeColumn.REFERENCE_RANGE_HIGH, row)));
+            referenceRange.setText(toAttribute(getAttribute(LabResultAttributeColumn.REFERENCE_RANGE_TEXT, row)));
+            piqiLabResult.setReferenceRange(referenceRange);
+        }
+        return piqiLabResult;
+    }
+
+    /**
+     * Builds the lab results of every row.
+     */
+    public List<PiqiLabResult> getLabResults() {
+        List<PiqiLabResult> piqiLabResults = new ArrayList<>(rowCount);
+        for (int row = 0; row < rowCount; row++) {
+            piqiLabResults.add(getLabResult(row));
+        }
+        return piqiLabResults;
+    }
+
+    private int getCodingPart(LabResultConceptColumn column, int part, int row, int coding) {
+        int start = columns[column.columnIndex(LabResultConceptColumn.CODING_OFFSETS)].get(row);
+        return columns[column.columnIndex(part)].get(start + coding);
+    }
+
+    private PiqiCodeableConcept toConcept(LabResultConceptColumn column, int row) {
+        int text = getText(column, row);
+        if (text == ABSENT) {
+            return null;
+        }
+        PiqiCodeableConcept concept = new PiqiCodeableConcept();
+        concept.setText(toAttribute(text));
+        int codingCount = getCodingCount(column, row);
+        for (int i = 0; i < codingCount; i++) {
+            PiqiCoding coding = new PiqiCoding();
+            coding.setSystem(toAttribute(getSystem(column, row, i)));
+            coding.setCode(toAttribute(getCode(column, row, i)));
+            coding.setDisplay(toAttribute(getDisplay(column, row, i)));
+            concept.getCodings().add(coding);
+        }
+        return concept;
+    }
+
+    private PiqiSimpleAttribute toAttribute(int index) {
+        if (index == NULL || index == ABSENT) {
+            return null;
+        }
+        return new PiqiSimpleAttribute(index == NULL_VALUE ? null : getString(index));
+    }
+
+    private IntBuffer intBuffer(int byteOffset, int length) {
+        return buffer.slice(byteOffset, length * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+}
@@ -0,0 +1,88 @@
+package com.navapbc.piqi.map.fhir.flow;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes a list of items to a single subscriber, only as many as it has requested, then completes.
+ * <p>
+ * A local source for tests and for replaying captured feeds through a pipeline such as
+ * {@link PiqiLabResultProcessor}.  Items are delivered on the thread that requests them.
+ */
+public class InMemoryPublisher<T> implements Flow.Publisher<T> {
+
+    private final List<T> items;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public InMemoryPublisher(List<T> items) {
+        this.items = List.copyOf(items);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("InMemoryPublisher supports a single subscriber."));
+            return;
+        }
+        subscriber.onSubscribe(new ListSubscription<>(subscriber, items.iterator()));
+    }
+
+    private static final class ListSubscription<T> implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Iterator<T> iterator;
+        private final AtomicLong demand = new AtomicLong();
+        // Counts requests not yet drained, so that a request made from onNext does not recurse.
+        private final AtomicInteger drains = new AtomicInteger();
+        private volatile boolean done;
+
+        ListSubscription(Flow.Subscriber<? super T> subscriber, Iterator<T> iterator) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " items, must be positive."));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            if (drains.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!done && demand.get() > 0 && iterator.hasNext()) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(iterator.next());
+                }
+                if (!done && !iterator.hasNext()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            } while (drains.decrementAndGet() != 0);
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+    }
+}
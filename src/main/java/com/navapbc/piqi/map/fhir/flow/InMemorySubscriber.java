@@ -0,0 +1,91 @@
+package com.navapbc.piqi.map.fhir.flow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Collects the items of a publisher in memory, requesting them in batches so that the publisher never has more
+ * than one batch outstanding.
+ * <p>
+ * A local sink for tests and for draining a pipeline such as {@link PiqiLabResultProcessor}.
+ */
+public class InMemorySubscriber<T> implements Flow.Subscriber<T> {
+
+    private final int batchSize;
+    private final List<T> items = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Throwable error;
+    private Flow.Subscription subscription;
+    private int receivedInBatch;
+
+    public InMemorySubscriber() {
+        this(Flow.defaultBufferSize());
+    }
+
+    public InMemorySubscriber(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1 but was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+        items.add(item);
+        if (++receivedInBatch == batchSize) {
+            receivedInBatch = 0;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+        done.countDown();
+    }
+
+    /**
+     * Waits for the publisher to complete and returns the items received.
+     *
+     * @throws TimeoutException if the publisher did not complete in time
+     * @throws IllegalStateException if the publisher failed, with its error as the cause
+     */
+    public List<T> await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("The publisher did not complete within " + timeout + " " + unit);
+        }
+        if (error != null) {
+            throw new IllegalStateException("The publisher failed.", error);
+        }
+        return getItems();
+    }
+
+    /**
+     * The items received so far.
+     */
+    public List<T> getItems() {
+        synchronized (items) {
+            return new ArrayList<>(items);
+        }
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+}
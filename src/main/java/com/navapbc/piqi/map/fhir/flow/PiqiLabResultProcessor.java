@@ -0,0 +1,341 @@
+package com.navapbc.piqi.map.fhir.flow;
+
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.FhirR4ReferenceResolver;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Maps a continuous stream of lab resources to {@link PiqiLabResult}s.
+ * <p>
+ * Lab Observations are held until a DiagnosticReport that lists them as a result arrives, and are then mapped against
+ * it.  An Observation that arrives after its report is mapped at once.  An Observation whose report has not arrived
+ * within the window is mapped without a report, as {@link PiqiLabResultsR4Mapper#mapLabResults(Bundle)} maps lab
+ * Observations that no report lists.  Reports, and the Specimens, ServiceRequests and Encounters the
+ * mapper follows references to, are kept for the window as well.  Bundles are read entry by entry, and other
+ * Observations and resource types are ignored.
+ * <p>
+ * Every buffer is bounded.  At most {@code maxPending} resources of each kind are held; beyond that the oldest one
+ * is given up early, as if its window had passed.  Results are buffered up to {@code maxBufferCapacity} per
+ * subscriber.  A resource is requested from upstream only once the previous one has been handled, and handling
+ * waits while a subscriber's buffer is full, so a slow subscriber slows the source down instead of filling the heap.
+ * <p>
+ * Windows are checked on every resource and by a background sweep, so held Observations are emitted even when the
+ * source is idle.  When the source completes every held Observation is emitted and the processor completes.
+ */
+public class PiqiLabResultProcessor extends SubmissionPublisher<PiqiLabResult>
+        implements Flow.Processor<Resource, PiqiLabResult> {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiLabResultProcessor.class);
+
+    public static final Duration DEFAULT_WINDOW = Duration.ofMinutes(5);
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+    private static final long MIN_SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "piqi-lab-result-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PiqiLabResultsR4Mapper mapper;
+    private final long windowNanos;
+    private final int maxPending;
+    private final LongSupplier ticker;
+    private final boolean sweep;
+    private final Object lock = new Object();
+
+    // Held in arrival order, so the oldest are at the head.
+    private final LinkedHashMap<String, Held<Observation>> observations = new LinkedHashMap<>();
+    private final Deque<Held<DiagnosticReport>> reports = new ArrayDeque<>();
+    private final Map<String, DiagnosticReport> reportsByResultKey = new HashMap<>();
+    private final LinkedHashMap<String, Held<Resource>> supportingResources = new LinkedHashMap<>();
+    // Resolves against the supporting resources held now; resources are added and removed as they arrive and expire.
+    private FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+
+    private Flow.Subscription subscription;
+    private ScheduledFuture<?> sweepTask;
+
+    /**
+     * Creates a processor with the default window and bounds, publishing on the common pool.
+     */
+    public PiqiLabResultProcessor(PiqiLabResultsR4Mapper mapper) {
+        this(mapper, DEFAULT_WINDOW, DEFAULT_MAX_PENDING, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * Creates a processor.
+     *
+     * @param mapper            maps each Observation against its report
+     * @param window            how long an Observation waits for its report, and a report or supporting resource for
+     *                          the Observations that reference it
+     * @param maxPending        how many resources of each kind are held at most
+     * @param executor          delivers results to subscribers
+     * @param maxBufferCapacity how many results are buffered per subscriber
+     */
+    public PiqiLabResultProcessor(PiqiLabResultsR4Mapper mapper, Duration window, int maxPending, Executor executor,
+                                  int maxBufferCapacity) {
+        this(mapper, window, maxPending, executor, maxBufferCapacity, System::nanoTime, true);
+    }
+
+    PiqiLabResultProcessor(PiqiLabResultsR4Mapper mapper, Duration window, int maxPending, Executor executor,
+                           int maxBufferCapacity, LongSupplier ticker, boolean sweep) {
+        super(executor, maxBufferCapacity);
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("window must be positive but was " + window);
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be at least 1 but was " + maxPending);
+        }
+        this.mapper = mapper;
+        this.windowNanos = window.toNanos();
+        this.maxPending = maxPending;
+        this.ticker = ticker;
+        this.sweep = sweep;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        if (sweep) {
+            long period = Math.max(windowNanos / 4, MIN_SWEEP_NANOS);
+            sweepTask = SWEEPER.scheduleAtFixedRate(() -> getExecutor().execute(this::expire), period, period,
+                    TimeUnit.NANOSECONDS);
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(Resource resource) {
+        List<PiqiLabResult> results = new ArrayList<>();
+        synchronized (lock) {
+            long now = ticker.getAsLong();
+            if (resource instanceof Bundle bundle) {
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    if (entry.getResource() != null) {
+                        accept(entry.getResource(), now, results);
+                    }
+                }
+            } else {
+                accept(resource, now, results);
+            }
+            expire(now, results);
+        }
+        publish(results);
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        cancelSweep();
+        closeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        cancelSweep();
+        List<PiqiLabResult> results = new ArrayList<>();
+        synchronized (lock) {
+            for (Held<Observation> held : observations.values()) {
+                results.add(map(held.resource(), null));
+            }
+            observations.clear();
+            reports.clear();
+            reportsByResultKey.clear();
+            supportingResources.clear();
+            resolver = new FhirR4ReferenceResolver();
+        }
+        publish(results);
+        close();
+    }
+
+    /**
+     * Emits the Observations whose window has passed and forgets the reports and supporting resources whose window
+     * has passed.  This runs on every resource and on the background sweep.
+     */
+    public void expire() {
+        List<PiqiLabResult> results = new ArrayList<>();
+        synchronized (lock) {
+            expire(ticker.getAsLong(), results);
+        }
+        publish(results);
+    }
+
+    /**
+     * The number of Observations waiting for their report.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return observations.size();
+        }
+    }
+
+    private void accept(Resource resource, long now, List<PiqiLabResult> results) {
+        if (resource instanceof Observation observation) {
+            if (FhirR4MappingHelper.isLab(observation)) {
+                acceptObservation(observation, now, results);
+            }
+        } else if (resource instanceof DiagnosticReport diagnosticReport) {
+            acceptReport(diagnosticReport, now, results);
+        } else if (mapper.getResourceTypes().contains(resource.getResourceType())) {
+            Held<Resource> replaced = supportingResources.put(resource.fhirType() + "/" + key(resource.getIdElement()),
+                    new Held<>(resource, now));
+            if (replaced != null) {
+                resolver.removeAll(List.of(replaced.resource()));
+            }
+            resolver.add(resource);
+            if (supportingResources.size() > maxPending) {
+                Iterator<Held<Resource>> eldest = supportingResources.values().iterator();
+                Held<Resource> held = eldest.next();
+                eldest.remove();
+                resolver.removeAll(List.of(held.resource()));
+            }
+        }
+    }
+
+    private void acceptObservation(Observation observation, long now, List<PiqiLabResult> results) {
+        String key = key(observation.getIdElement());
+        DiagnosticReport diagnosticReport = key == null ? null : reportsByResultKey.get(key);
+        if (diagnosticReport != null || key == null) {
+            results.add(map(observation, diagnosticReport));
+            return;
+        }
+        observations.put(key, new Held<>(observation, now));
+        if (observations.size() > maxPending) {
+            Iterator<Held<Observation>> eldest = observations.values().iterator();
+            Held<Observation> held = eldest.next();
+            eldest.remove();
+            log.debug("Emitting Observation=[{}] without a report, more than [{}] are pending",
+                    held.resource().getIdElement().getIdPart(), maxPending);
+            results.add(map(held.resource(), null));
+        }
+    }
+
+    private void acceptReport(DiagnosticReport diagnosticReport, long now, List<PiqiLabResult> results) {
+        for (Reference result : diagnosticReport.getResult()) {
+            String key = key(result);
+            if (key == null) {
+                continue;
+            }
+            Held<Observation> held = observations.remove(key);
+            if (held != null) {
+                results.add(map(held.resource(), diagnosticReport));
+            }
+            // Observations belong to the first report that lists them.
+            reportsByResultKey.putIfAbsent(key, diagnosticReport);
+        }
+        reports.addLast(new Held<>(diagnosticReport, now));
+        if (reports.size() > maxPending) {
+            forget(reports.removeFirst().resource());
+        }
+    }
+
+    private void expire(long now, List<PiqiLabResult> results) {
+        Iterator<Held<Observation>> observationIterator = observations.values().iterator();
+        while (observationIterator.hasNext()) {
+            Held<Observation> held = observationIterator.next();
+            if (now - held.arrived() < windowNanos) {
+                break;
+            }
+            observationIterator.remove();
+            results.add(map(held.resource(), null));
+        }
+        while (!reports.isEmpty() && now - reports.peekFirst().arrived() >= windowNanos) {
+            forget(reports.removeFirst().resource());
+        }
+        List<Resource> expired = new ArrayList<>();
+        Iterator<Held<Resource>> supportingIterator = supportingResources.values().iterator();
+        while (supportingIterator.hasNext()) {
+            Held<Resource> held = supportingIterator.next();
+            if (now - held.arrived() < windowNanos) {
+                break;
+            }
+            supportingIterator.remove();
+            expired.add(held.resource());
+        }
+        resolver.removeAll(expired);
+    }
+
+    private void forget(DiagnosticReport diagnosticReport) {
+        for (Reference result : diagnosticReport.getResult()) {
+            String key = key(result);
+            if (key != null) {
+                reportsByResultKey.remove(key, diagnosticReport);
+            }
+        }
+    }
+
+    private PiqiLabResult map(Observation observation, DiagnosticReport diagnosticReport) {
+        return mapper.mapLabResult(observation, diagnosticReport, resolver);
+    }
+
+    private void publish(List<PiqiLabResult> results) {
+        for (PiqiLabResult result : results) {
+            if (isClosed()) {
+                return;
+            }
+            submit(result);
+        }
+    }
+
+    private void cancelSweep() {
+        if (sweepTask != null) {
+            sweepTask.cancel(false);
+        }
+    }
+
+    /**
+     * The bare id, without {@code urn:uuid:}, which is the one form an Observation and the references to it share
+     * whether they come from bundles or one at a time.
+     */
+    private static String key(Reference reference) {
+        if (reference.getResource() instanceof Resource resource) {
+            return key(resource.getIdElement());
+        }
+        return reference.hasReference() ? key(new IdType(reference.getReference())) : null;
+    }
+
+    private static String key(IdType idType) {
+        if (idType == null || !idType.hasIdPart()) {
+            return null;
+        }
+        String idPart = idType.getIdPart();
+        return idPart.startsWith(URN_UUID_PREFIX) ? idPart.substring(URN_UUID_PREFIX.length()) : idPart;
+    }
+
+    private record Held<T extends Resource>(T resource, long arrived) {
+    }
+}
@@ -0,0 +1,158 @@
+package com.navapbc.piqi.map.fhir.incremental;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes a fingerprint of a resource that changes whenever what the mappers read of it does.
+ * <p>
+ * When the resource carries {@code meta.versionId} the fingerprint is its versioned id, and failing that its id and
+ * {@code meta.lastUpdated}; both are free to compute and are what a FHIR server changes on every update.  Otherwise
+ * the fingerprint is its id and the first 128 bits of a SHA-256 digest of the elements the mappers read, walked with
+ * HAPI's runtime accessors rather than encoded as JSON.  Resources of other types are digested whole.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class FhirR4Fingerprinter {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_BYTES = 16;
+
+    /**
+     * The elements of each resource type that the lab results and demographics mappers read.  An element a mapper
+     * starts reading must be added here, or a change to it alone would not remap the results.
+     */
+    private static final Map<String, List<String>> MAPPED_ELEMENTS = Map.of(
+            "Observation", List.of("category", "code", "value[x]", "interpretation", "referenceRange", "specimen",
+                    "encounter"),
+            "DiagnosticReport", List.of("category", "status", "code", "issued", "performer", "basedOn"),
+            "Specimen", List.of("type"),
+            "ServiceRequest", List.of("code", "orderDetail", "authoredOn"),
+            "Patient", List.of("birthDate", "extension", "deceased[x]", "gender", "communication", "maritalStatus"));
+
+    private final PiqiR4Engine engine;
+    private final ConcurrentMap<String, List<BaseRuntimeChildDefinition>> digestedChildren =
+            new ConcurrentHashMap<>();
+
+    public FhirR4Fingerprinter(PiqiR4Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the fingerprint of the resource, or {@code -} for null.
+     */
+    public String fingerprint(Resource resource) {
+        if (resource == null) {
+            return "-";
+        }
+        String id = resource.fhirType() + "/" + (resource.hasIdElement() ? resource.getIdElement().getIdPart() : "");
+        if (resource.hasMeta()) {
+            if (resource.getMeta().hasVersionId()) {
+                return id + "/_history/" + resource.getMeta().getVersionId();
+            }
+            if (resource.getMeta().hasLastUpdated()) {
+                return id + "@" + resource.getMeta().getLastUpdated().getTime();
+            }
+        }
+        return id + "#" + contentHash(resource);
+    }
+
+    private String contentHash(Resource resource) {
+        MessageDigest digest = newDigest();
+        for (BaseRuntimeChildDefinition child : digestedChildren.computeIfAbsent(resource.fhirType(),
+                this::childrenToDigest)) {
+            digestChild(child, resource, digest);
+        }
+        byte[] hash = digest.digest();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, DIGEST_BYTES));
+    }
+
+    private List<BaseRuntimeChildDefinition> childrenToDigest(String resourceType) {
+        FhirContext fhirContext = engine.getFhirContext();
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resourceType);
+        List<String> names = MAPPED_ELEMENTS.get(resourceType);
+        if (names == null) {
+            return List.copyOf(definition.getChildren());
+        }
+        return names.stream().map(name -> {
+            BaseRuntimeChildDefinition child = definition.getChildByName(name);
+            if (child == null) {
+                throw new IllegalStateException("No element [" + name + "] in " + resourceType);
+            }
+            return child;
+        }).toList();
+    }
+
+    /**
+     * Digests the name, count and values of a child that has values, so that moving a value between elements or
+     * splitting one changes the digest.
+     */
+    private void digestChild(BaseRuntimeChildDefinition child, IBase parent, MessageDigest digest) {
+        List<IBase> values = child.getAccessor().getValues(parent);
+        if (values.isEmpty()) {
+            return;
+        }
+        digestString(child.getElementName(), digest);
+        digestInt(values.size(), digest);
+        for (IBase value : values) {
+            // The type distinguishes the choices of a [x] element.
+            digestString(value.fhirType(), digest);
+            if (value instanceof IPrimitiveType<?> primitive) {
+                digestString(primitive.getValueAsString(), digest);
+                continue;
+            }
+            BaseRuntimeElementDefinition<?> definition = child.getChildElementDefinitionByDatatype(value.getClass());
+            if (definition == null) {
+                definition = engine.getFhirContext().getElementDefinition(value.getClass());
+            }
+            if (definition instanceof BaseRuntimeElementCompositeDefinition<?> composite) {
+                for (BaseRuntimeChildDefinition grandChild : composite.getChildren()) {
+                    digestChild(grandChild, value, digest);
+                }
+            }
+        }
+    }
+
+    private static void digestString(String value, MessageDigest digest) {
+        if (value == null) {
+            digestInt(-1, digest);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digestInt(bytes.length, digest);
+        digest.update(bytes);
+    }
+
+    private static void digestInt(int value, MessageDigest digest) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
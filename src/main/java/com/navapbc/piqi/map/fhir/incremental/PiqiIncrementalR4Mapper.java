@@ -0,0 +1,216 @@
+package com.navapbc.piqi.map.fhir.incremental;
+
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.FhirR4ReferenceResolver;
+import com.navapbc.piqi.map.fhir.FhirR4ReportIndex;
+import com.navapbc.piqi.map.fhir.PiqiBundleMappingResult;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Specimen;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps bundles that are sent again and again with few changes, such as the nightly export of a patient record,
+ * reusing what was mapped for the resources that did not change.
+ * <p>
+ * Each lab result is cached under the {@link FhirR4Fingerprinter fingerprints} of everything it is mapped from: the
+ * Observation, its owning DiagnosticReport, the Specimen of the Observation and the ServiceRequest the report is based
+ * on.  Demographics are cached under the fingerprint of the Patient.  When a bundle is mapped again only the results
+ * whose fingerprints changed are mapped; a changed report remaps all of its results and nothing else.  Results are in
+ * the same order, and equal to, those of {@link PiqiLabResultsR4Mapper} and {@link PiqiDemographicsR4Mapper}.
+ * <p>
+ * The cache keeps the {@link #getMaximumSize()} most recently used results.  Cached results are shared between the
+ * bundles they are returned for, so callers must not modify them.  Instances are thread-safe.
+ */
+public class PiqiIncrementalR4Mapper {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiIncrementalR4Mapper.class);
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 100_000;
+
+    private final PiqiLabResultsR4Mapper labMapper;
+    private final PiqiDemographicsR4Mapper demographicsMapper;
+    private final FhirR4Fingerprinter fingerprinter;
+    private final int maximumSize;
+    private final Map<String, Object> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a mapper over the default mappers that caches {@value #DEFAULT_MAXIMUM_SIZE} results.
+     */
+    public PiqiIncrementalR4Mapper(PiqiR4Engine engine) {
+        this(engine, new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper(), DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Creates a mapper that caches up to {@code maximumSize} results of the mappers.  The engine encodes the
+     * resources that have neither a version nor a last updated time, to hash the elements the mappers read.
+     */
+    public PiqiIncrementalR4Mapper(PiqiR4Engine engine, PiqiLabResultsR4Mapper labMapper,
+                                   PiqiDemographicsR4Mapper demographicsMapper, int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1 but was " + maximumSize);
+        }
+        this.labMapper = labMapper;
+        this.demographicsMapper = demographicsMapper;
+        this.fingerprinter = new FhirR4Fingerprinter(engine);
+        this.maximumSize = maximumSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > PiqiIncrementalR4Mapper.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Maps the demographics and lab results of the bundle, reusing the cached results of unchanged resources.
+     */
+    public PiqiBundleMappingResult map(Bundle bundle) {
+        long hitsBefore = hitCount.get();
+        long missesBefore = missCount.get();
+        PiqiBundleMappingResult result = new PiqiBundleMappingResult();
+        result.put(PiqiDemographics.class, mapDemographics(bundle));
+        result.put(PiqiLabResult.class, mapLabResults(bundle));
+        log.debug("Mapped bundle with hits=[{}] misses=[{}]", hitCount.get() - hitsBefore,
+                missCount.get() - missesBefore);
+        return result;
+    }
+
+    /**
+     * Maps the first Patient of the bundle, or returns null if it has none.
+     */
+    public PiqiDemographics mapDemographics(Bundle bundle) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Patient patient) {
+                String key = "demographics|" + fingerprinter.fingerprint(patient);
+                PiqiDemographics demographics = (PiqiDemographics) get(key);
+                if (demographics == null) {
+                    demographics = demographicsMapper.mapDemographics(patient);
+                    put(key, demographics);
+                }
+                return demographics;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps every lab Observation of the bundle against its owning report, the same way
+     * {@link PiqiLabResultsR4Mapper#mapLabResults(Bundle)} does.
+     */
+    public List<PiqiLabResult> mapLabResults(Bundle bundle) {
+        Map<String, Observation> observations = new LinkedHashMap<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Observation observation) {
+                observations.put(observation.getIdElement().getIdPart(), observation);
+            }
+        }
+        List<PiqiLabResult> piqiLabResults = new ArrayList<>();
+        if (observations.isEmpty()) {
+            return piqiLabResults;
+        }
+        FhirR4ReportIndex reportIndex = FhirR4ReportIndex.of(bundle);
+        FhirR4ReferenceResolver resolver = FhirR4ReferenceResolver.forBundle(bundle);
+        // Reports and Specimens are shared by many Observations, so each is fingerprinted once per bundle.
+        Map<DiagnosticReport, String> reportKeys = new IdentityHashMap<>();
+        Map<Specimen, String> specimenKeys = new IdentityHashMap<>();
+        for (Observation observation : observations.values()) {
+            if (!FhirR4MappingHelper.isLab(observation)) {
+                continue;
+            }
+            DiagnosticReport diagnosticReport = reportIndex.getDiagnosticReport(observation);
+            String reportKey = diagnosticReport == null ? "-"
+                    : reportKeys.computeIfAbsent(diagnosticReport, report -> reportKey(report, resolver));
+            Specimen specimen = observation.hasSpecimen()
+                    ? resolver.resolve(observation.getSpecimen(), Specimen.class, observation) : null;
+            String specimenKey = specimen == null ? fingerprinter.fingerprint(null)
+                    : specimenKeys.computeIfAbsent(specimen, fingerprinter::fingerprint);
+            String key = "lab|" + fingerprinter.fingerprint(observation) + "|" + reportKey + "|" + specimenKey;
+            PiqiLabResult piqiLabResult = (PiqiLabResult) get(key);
+            if (piqiLabResult == null) {
+                piqiLabResult = labMapper.mapLabResult(observation, diagnosticReport, resolver);
+                if (piqiLabResult != null) {
+                    put(key, piqiLabResult);
+                }
+            }
+            if (piqiLabResult != null) {
+                piqiLabResults.add(piqiLabResult);
+            }
+        }
+        return piqiLabResults;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * The number of results that were taken from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * The number of results that had to be mapped.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * The fingerprint of the report and of the ServiceRequest it is based on, which is the only other resource its
+     * part of a lab result is mapped from.
+     */
+    private String reportKey(DiagnosticReport diagnosticReport, FhirR4ReferenceResolver resolver) {
+        ServiceRequest serviceRequest = diagnosticReport.hasBasedOn()
+                ? resolver.resolve(diagnosticReport.getBasedOnFirstRep(), ServiceRequest.class, diagnosticReport)
+                : null;
+        return fingerprinter.fingerprint(diagnosticReport) + "|" + fingerprinter.fingerprint(serviceRequest);
+    }
+
+    private Object get(String key) {
+        Object value;
+        synchronized (cache) {
+            value = cache.get(key);
+        }
+        (value != null ? hitCount : missCount).incrementAndGet();
+        return value;
+    }
+
+    private void put(String key, Object value) {
+        synchronized (cache) {
+            cache.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The pass over a bundle's entries that collects and indexes them before they are mapped.
+ */
+@Name("com.navapbc.piqi.BundleIndexing")
+@Label("Bundle Indexing")
+@Description("Pass over the entries of a bundle that indexes them for mapping")
+public final class BundleIndexingEvent extends PiqiMappingEvent {
+
+    @Label("Resources")
+    public int resourceCount;
+
+    @Label("Observations")
+    public int observationCount;
+
+    @Label("Diagnostic Reports")
+    public int diagnosticReportCount;
+}
@@ -0,0 +1,18 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Mapping of a Patient to demographics.
+ */
+@Name("com.navapbc.piqi.MapDemographics")
+@Label("Map Demographics")
+public final class MapDemographicsEvent extends PiqiMappingEvent {
+
+    @Label("Patient Id")
+    public String resourceId;
+
+    @Label("Extensions")
+    public int extensionCount;
+}
@@ -0,0 +1,18 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Mapping of the DiagnosticReport that owns an Observation into the observation's lab result.
+ */
+@Name("com.navapbc.piqi.MapDiagnosticReport")
+@Label("Map Diagnostic Report")
+public final class MapDiagnosticReportEvent extends PiqiMappingEvent {
+
+    @Label("Diagnostic Report Id")
+    public String resourceId;
+
+    @Label("Results")
+    public int resultCount;
+}
@@ -0,0 +1,18 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Mapping of one Observation to a lab result.
+ */
+@Name("com.navapbc.piqi.MapObservation")
+@Label("Map Observation")
+public final class MapObservationEvent extends PiqiMappingEvent {
+
+    @Label("Observation Id")
+    public String resourceId;
+
+    @Label("Components")
+    public int componentCount;
+}
@@ -0,0 +1,41 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Base of the JDK Flight Recorder events emitted by the mapping pipeline.
+ * <p>
+ * The events are disabled unless a recording enables them, e.g. with
+ * {@code -XX:StartFlightRecording:settings=profile} or {@code jcmd <pid> JFR.start}, and then cost a few nanoseconds
+ * each.  Every event is timed and carries the id of the bundle being mapped, so a recording from a live node shows
+ * which stages of which bundles the mapping time went to.  Stack traces are not recorded, the stage is known.
+ */
+@Category({"PIQI", "Mapping"})
+@StackTrace(false)
+public abstract class PiqiMappingEvent extends Event {
+
+    @Label("Bundle Id")
+    @Description("Id of the bundle, or its identifier if it has no id")
+    public String bundleId;
+
+    /**
+     * Returns the id the events identify the bundle by: its id, or the value of its identifier when it has none.
+     */
+    public static String bundleId(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        if (bundle.hasIdElement() && bundle.getIdElement().hasIdPart()) {
+            return bundle.getIdElement().getIdPart();
+        }
+        if (bundle.hasIdentifier() && bundle.getIdentifier().hasValue()) {
+            return bundle.getIdentifier().getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,24 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lookup of a reference that was not already resolved.  Later uses of the same reference within the bundle are
+ * answered from the resolver's cache and are not recorded.
+ */
+@Name("com.navapbc.piqi.ReferenceResolution")
+@Label("Reference Resolution")
+public final class ReferenceResolutionEvent extends PiqiMappingEvent {
+
+    @Label("Reference")
+    public String reference;
+
+    @Label("Resolved")
+    public boolean resolved;
+
+    @Label("Indexed Resources")
+    @Description("Number of keys the resolver indexes the bundle's resources under")
+    public int indexedCount;
+}
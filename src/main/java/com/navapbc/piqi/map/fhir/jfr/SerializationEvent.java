@@ -0,0 +1,23 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Serialization of mapped results to an output format.
+ */
+@Name("com.navapbc.piqi.Serialization")
+@Label("Serialization")
+public final class SerializationEvent extends PiqiMappingEvent {
+
+    @Label("Format")
+    public String format;
+
+    @Label("Results")
+    public int resultCount;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytes;
+}
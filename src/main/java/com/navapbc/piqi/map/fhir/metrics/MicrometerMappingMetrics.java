@@ -0,0 +1,94 @@
+package com.navapbc.piqi.map.fhir.metrics;
+
+import com.navapbc.piqi.map.fhir.PiqiMappingMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports mapping metrics to a Micrometer {@link MeterRegistry}.
+ * <p>
+ * Micrometer is an optional dependency of this library: add {@code io.micrometer:micrometer-core} to the application
+ * to use this class.  The meters are
+ * <ul>
+ *     <li>{@code piqi.mapping.duration}, a timer with a percentile histogram, tagged with the PIQI {@code class}</li>
+ *     <li>{@code piqi.mapping.resources}, a counter tagged with the resource {@code type}</li>
+ *     <li>{@code piqi.mapping.lab.results}, a counter</li>
+ *     <li>{@code piqi.mapping.unmapped.values}, a counter tagged with the value {@code type}</li>
+ *     <li>{@code piqi.mapping.unresolved.references}, a counter tagged with the target {@code type}</li>
+ * </ul>
+ * Meters are registered the first time a tag value is seen and then reused, so recording is a map lookup.
+ */
+public class MicrometerMappingMetrics implements PiqiMappingMetrics {
+
+    public static final String DURATION = "piqi.mapping.duration";
+    public static final String RESOURCES = "piqi.mapping.resources";
+    public static final String LAB_RESULTS = "piqi.mapping.lab.results";
+    public static final String UNMAPPED_VALUES = "piqi.mapping.unmapped.values";
+    public static final String UNRESOLVED_REFERENCES = "piqi.mapping.unresolved.references";
+
+    private final MeterRegistry registry;
+    private final Counter labResults;
+    private final ConcurrentMap<Class<?>, Timer> durations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> resources = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> unmappedValues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> unresolvedReferences = new ConcurrentHashMap<>();
+
+    public MicrometerMappingMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.labResults = Counter.builder(LAB_RESULTS)
+                .description("Lab results emitted by the mappers")
+                .register(registry);
+    }
+
+    @Override
+    public void recordMappingTime(Class<?> mappingClass, long elapsedNanos) {
+        Timer timer = durations.get(mappingClass);
+        if (timer == null) {
+            timer = durations.computeIfAbsent(mappingClass, key -> Timer.builder(DURATION)
+                    .description("Time to map a bundle, patient or bulk partition")
+                    .tag("class", key.getSimpleName())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        timer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordResource(String resourceType) {
+        counter(resources, RESOURCES, "Resources read by the mappers", resourceType).increment();
+    }
+
+    @Override
+    public void recordLabResults(int count) {
+        labResults.increment(count);
+    }
+
+    @Override
+    public void recordUnmappedValue(String valueType) {
+        counter(unmappedValues, UNMAPPED_VALUES, "Observation values of a type that is not mapped", valueType)
+                .increment();
+    }
+
+    @Override
+    public void recordUnresolvedReference(String targetType) {
+        counter(unresolvedReferences, UNRESOLVED_REFERENCES, "References that did not resolve", targetType)
+                .increment();
+    }
+
+    private Counter counter(ConcurrentMap<String, Counter> counters, String name, String description, String type) {
+        String key = type == null ? "unknown" : type;
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> Counter.builder(name)
+                    .description(description)
+                    .tag("type", k)
+                    .register(registry));
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,89 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.PiqiCodingCache;
+import com.navapbc.piqi.map.fhir.PiqiTerminologyTranslator;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumeration;
+import org.hl7.fhir.r4.model.Enumerations;
+
+/**
+ * Converts R4 values through {@link FhirR4MappingHelper}, with the coding cache and terminology translator of the
+ * mapper, so that a plan maps R4 resources exactly as the hand written R4 mappers did.
+ */
+public final class FhirR4ValueAdapter implements PiqiValueAdapter {
+
+    private final PiqiCodingCache codingCache;
+    private final PiqiTerminologyTranslator terminologyTranslator;
+
+    /**
+     * @param codingCache           the cache of the mapper, may be null
+     * @param terminologyTranslator the translator of the mapper, may be null
+     */
+    public FhirR4ValueAdapter(PiqiCodingCache codingCache, PiqiTerminologyTranslator terminologyTranslator) {
+        this.codingCache = codingCache;
+        this.terminologyTranslator = terminologyTranslator;
+    }
+
+    @Override
+    public PiqiCodeableConcept codeableConcept(IBase codeableConcept) {
+        // HAPI's getters create an empty concept for a missing one, and the R4 mappers map it.
+        return FhirR4MappingHelper.mapCodeableConcept(codeableConcept instanceof CodeableConcept fhirConcept
+                ? fhirConcept : new CodeableConcept(), codingCache, terminologyTranslator);
+    }
+
+    @Override
+    public PiqiCodeableConcept codeableConcept(String text, String system, String code, String display) {
+        return FhirR4MappingHelper.mapCodeableConcept(text, system, code, display, codingCache,
+                terminologyTranslator);
+    }
+
+    @Override
+    public PiqiCodeableConcept enumeration(IBase enumeration) {
+        if (!(enumeration instanceof Enumeration<?> fhirEnumeration) || fhirEnumeration.getValue() == null) {
+            return null;
+        }
+        if (fhirEnumeration.getValue() instanceof Enumerations.AdministrativeGender gender) {
+            return codeableConcept(gender.getDefinition(), gender.getSystem(), gender.toCode(), gender.getDisplay());
+        }
+        return codeableConcept(null, fhirEnumeration.getSystem(), fhirEnumeration.getValueAsString(), null);
+    }
+
+    @Override
+    public PiqiSimpleAttribute date(IBase dateTime) {
+        return FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                dateTime instanceof BaseDateTimeType baseDateTime ? baseDateTime : null);
+    }
+
+    @Override
+    public PiqiCoding coding(IBase coding) {
+        if (!(coding instanceof Coding fhirCoding)) {
+            return null;
+        }
+        return terminologyTranslator == null
+                ? FhirR4MappingHelper.mapCoding(fhirCoding.getSystem(), fhirCoding.getCode(), fhirCoding.getDisplay(),
+                        codingCache)
+                : terminologyTranslator.translate(fhirCoding.getSystem(), fhirCoding.getCode(),
+                        fhirCoding.getDisplay(), codingCache);
+    }
+
+    @Override
+    public Code code(IBase value) {
+        if (!(value instanceof CodeType codeType)) {
+            return null;
+        }
+        return new Code(codeType.getSystem(), codeType.getCode(), codeType.getDisplay());
+    }
+
+    @Override
+    public String text(IBase value) {
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import org.hl7.fhir.instance.model.api.IBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A path of element names, such as {@code communication.language}, resolved against the model of one FHIR version
+ * to the accessors HAPI's own parsers and encoders read elements with.  Reading a path is a few field reads, without
+ * looking elements up by name and without HAPI's getters creating the elements that are missing.
+ * <p>
+ * Choice elements are named as in the specification, e.g. {@code deceased[x]}, and end a path.  Instances are
+ * immutable apart from the accessors of children, which are resolved on first use, and thread-safe.
+ */
+public final class PiqiCompiledPath {
+
+    private final String path;
+    private final BaseRuntimeChildDefinition.IAccessor[] accessors;
+    private final BaseRuntimeElementCompositeDefinition<?> definition;
+    private final ConcurrentMap<String, BaseRuntimeChildDefinition.IAccessor> childAccessors =
+            new ConcurrentHashMap<>();
+
+    private PiqiCompiledPath(String path, BaseRuntimeChildDefinition.IAccessor[] accessors,
+                             BaseRuntimeElementCompositeDefinition<?> definition) {
+        this.path = path;
+        this.accessors = accessors;
+        this.definition = definition;
+    }
+
+    /**
+     * Resolves the path against the definition of a resource or data type.
+     *
+     * @throws IllegalArgumentException if an element of the path does not exist in the definition
+     */
+    static PiqiCompiledPath compile(BaseRuntimeElementCompositeDefinition<?> root, String path) {
+        String[] names = path.split("\\.");
+        BaseRuntimeChildDefinition.IAccessor[] accessors = new BaseRuntimeChildDefinition.IAccessor[names.length];
+        BaseRuntimeElementDefinition<?> definition = root;
+        for (int i = 0; i < names.length; i++) {
+            if (!(definition instanceof BaseRuntimeElementCompositeDefinition<?> composite)) {
+                throw new IllegalArgumentException("Element [" + names[i - 1] + "] of path [" + path + "] of "
+                        + root.getName() + " has no children");
+            }
+            BaseRuntimeChildDefinition child = composite.getChildByName(names[i]);
+            if (child == null) {
+                throw new IllegalArgumentException("Unknown element [" + names[i] + "] in path [" + path + "] of "
+                        + root.getName());
+            }
+            accessors[i] = child.getAccessor();
+            // Null for a choice element, whose type is only known from its value.
+            definition = child.getChildByName(names[i]);
+        }
+        return new PiqiCompiledPath(path, accessors,
+                definition instanceof BaseRuntimeElementCompositeDefinition<?> composite ? composite : null);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the values at the path from the root, in document order.  The list must not be modified.
+     */
+    public List<IBase> values(IBase root) {
+        List<IBase> values = accessors[0].getValues(root);
+        for (int i = 1; i < accessors.length && !values.isEmpty(); i++) {
+            if (values.size() == 1) {
+                values = accessors[i].getValues(values.get(0));
+            } else {
+                List<IBase> next = new ArrayList<>();
+                for (IBase value : values) {
+                    next.addAll(accessors[i].getValues(value));
+                }
+                values = next;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the values of the named child of a value at the path.  The list must not be modified.
+     *
+     * @throws IllegalArgumentException if the values at the path have no such child
+     */
+    public List<IBase> children(IBase value, String name) {
+        BaseRuntimeChildDefinition.IAccessor accessor = childAccessors.get(name);
+        if (accessor == null) {
+            BaseRuntimeChildDefinition child = definition == null ? null : definition.getChildByName(name);
+            if (child == null) {
+                throw new IllegalArgumentException("Unknown element [" + name + "] of path [" + path + "]");
+            }
+            accessor = child.getAccessor();
+            childAccessors.put(name, accessor);
+        }
+        return accessor.getValues(value);
+    }
+
+    /**
+     * Returns the first value of the named child of a value at the path, or null if it has none.
+     */
+    public IBase child(IBase value, String name) {
+        List<IBase> children = children(value, name);
+        return children.isEmpty() ? null : children.get(0);
+    }
+}
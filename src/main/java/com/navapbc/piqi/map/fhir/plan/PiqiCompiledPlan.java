@@ -0,0 +1,108 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A {@link PiqiMappingPlan} resolved against the model of one FHIR version.  Instances are immutable and
+ * thread-safe, compile a plan once per version and share the result.
+ *
+ * @param <T> the PIQI class
+ */
+public final class PiqiCompiledPlan<T> {
+
+    private final String resourceType;
+    private final FhirVersionEnum fhirVersion;
+    private final Supplier<T> factory;
+    private final CompiledMapping<T>[] mappings;
+    private final Map<String, Integer> extensionSlots;
+    private final PiqiCompiledPath extensionPath;
+
+    @SuppressWarnings("unchecked")
+    PiqiCompiledPlan(String resourceType, FhirVersionEnum fhirVersion, Supplier<T> factory,
+                     List<CompiledMapping<T>> mappings, Map<String, Integer> extensionSlots,
+                     PiqiCompiledPath extensionPath) {
+        this.resourceType = resourceType;
+        this.fhirVersion = fhirVersion;
+        this.factory = factory;
+        this.mappings = mappings.toArray(new CompiledMapping[0]);
+        this.extensionSlots = Map.copyOf(extensionSlots);
+        this.extensionPath = extensionPath;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public FhirVersionEnum getFhirVersion() {
+        return fhirVersion;
+    }
+
+    /**
+     * Maps the resource, or returns null for a null resource.
+     *
+     * @param adapter converts values of the plan's FHIR version
+     * @throws IllegalArgumentException if the resource is not of the plan's resource type
+     */
+    public T map(IBaseResource resource, PiqiValueAdapter adapter) {
+        if (resource == null) {
+            return null;
+        }
+        if (!resourceType.equals(resource.fhirType())) {
+            throw new IllegalArgumentException("Plan maps " + resourceType + " but was given " + resource.fhirType());
+        }
+        IBase[] extensions = scanExtensions(resource);
+        T target = factory.get();
+        for (CompiledMapping<T> mapping : mappings) {
+            List<IBase> values;
+            if (mapping.extensionSlot() < 0) {
+                values = mapping.path().values(resource);
+            } else {
+                IBase extension = extensions[mapping.extensionSlot()];
+                values = extension == null ? Collections.emptyList() : Collections.singletonList(extension);
+            }
+            mapping.binding().apply(target, values, mapping.path(), adapter);
+        }
+        return target;
+    }
+
+    /**
+     * Finds the first extension of each url the plan reads in one pass over the extensions of the resource.
+     */
+    private IBase[] scanExtensions(IBaseResource resource) {
+        IBase[] extensions = new IBase[extensionSlots.size()];
+        if (extensions.length == 0) {
+            return extensions;
+        }
+        // Read through the compiled path, as HAPI's getExtension() would create the list of a resource without one.
+        for (IBase value : extensionPath.values(resource)) {
+            if (!(value instanceof IBaseExtension<?, ?> extension)) {
+                continue;
+            }
+            Integer slot = extension.getUrl() == null ? null : extensionSlots.get(extension.getUrl());
+            if (slot != null && extensions[slot] == null) {
+                extensions[slot] = extension;
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * Reads the values of one field mapping and sets the PIQI attribute.
+     */
+    @FunctionalInterface
+    interface Binding<T> {
+
+        void apply(T target, List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter);
+    }
+
+    record CompiledMapping<T>(PiqiCompiledPath path, int extensionSlot, Binding<T> binding) {
+    }
+}
@@ -0,0 +1,147 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.List;
+
+import static com.navapbc.piqi.map.fhir.plan.PiqiMappingPlan.first;
+import static com.navapbc.piqi.map.fhir.plan.PiqiMappingPlan.firstNonEmpty;
+
+/**
+ * The mapping of a Patient to {@link PiqiDemographics}.  It names no R4 classes, but only R4, the one model this
+ * library depends on, has an adapter and is tested.
+ */
+public final class PiqiDemographicsPlan {
+
+    public static final String BIRTH_SEX_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-birthsex";
+    public static final String ETHNICITY_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+    public static final String RACE_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+
+    private static final String YES_NO_SYSTEM = "http://terminology.hl7.org/CodeSystem/v2-0136";
+
+    public static final PiqiMappingPlan<PiqiDemographics> PLAN =
+            new PiqiMappingPlan<PiqiDemographics>("Patient", PiqiDemographics::new)
+                    .element("birthDate", (values, path, adapter) -> adapter.date(firstNonEmpty(values)),
+                            PiqiDemographics::setBirthDate)
+                    .extension(BIRTH_SEX_URL, PiqiDemographicsPlan::birthSex, PiqiDemographics::setBirthSex)
+                    .element("deceased[x]", PiqiDemographicsPlan::deceased, PiqiDemographics::setDeceased)
+                    .element("deceased[x]", PiqiDemographicsPlan::deathDate, PiqiDemographics::setDeathDate)
+                    .extension(ETHNICITY_URL, PiqiDemographicsPlan::categories, PiqiDemographics::setEthnicity)
+                    .element("gender", (values, path, adapter) -> adapter.enumeration(firstNonEmpty(values)),
+                            PiqiDemographics::setGenderIdentity)
+                    .element("communication", PiqiDemographicsPlan::primaryLanguage,
+                            PiqiDemographics::setPrimaryLanguage)
+                    .element("maritalStatus", (values, path, adapter) -> adapter.codeableConcept(first(values)),
+                            PiqiDemographics::setMaritalStatus)
+                    .extension(RACE_URL, PiqiDemographicsPlan::categories, PiqiDemographics::setRace);
+
+    private PiqiDemographicsPlan() {
+    }
+
+    private static PiqiCodeableConcept birthSex(List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter) {
+        IBase value = extensionValue(first(values));
+        PiqiValueAdapter.Code code = value == null ? null : adapter.code(value);
+        if (code == null) {
+            return null;
+        }
+        PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
+        codeableConcept.setText(new PiqiSimpleAttribute(code.display()));
+        PiqiCoding coding = new PiqiCoding();
+        coding.setSystem(new PiqiSimpleAttribute(code.system() != null ? code.system() : BIRTH_SEX_URL));
+        coding.setDisplay(new PiqiSimpleAttribute(code.display()));
+        coding.setCode(new PiqiSimpleAttribute(code.code()));
+        codeableConcept.getCodings().add(coding);
+        return codeableConcept;
+    }
+
+    /**
+     * Yes or No for a deceased flag, No for a Patient without one, and nothing for a date of death.
+     */
+    private static PiqiCodeableConcept deceased(List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter) {
+        IBase value = firstNonEmpty(values);
+        boolean deceased;
+        if (value == null) {
+            deceased = false;
+        } else if ("boolean".equals(value.fhirType())) {
+            deceased = value instanceof IPrimitiveType<?> primitive && Boolean.TRUE.equals(primitive.getValue());
+        } else {
+            return null;
+        }
+        return adapter.codeableConcept(deceased ? "Yes" : "No", YES_NO_SYSTEM, deceased ? "Y" : "N",
+                deceased ? "Yes" : "No");
+    }
+
+    private static PiqiSimpleAttribute deathDate(List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter) {
+        IBase value = firstNonEmpty(values);
+        return value != null && "dateTime".equals(value.fhirType()) ? adapter.date(value) : null;
+    }
+
+    /**
+     * The text and OMB category codings of a US Core race or ethnicity extension.
+     */
+    private static PiqiCodeableConcept categories(List<IBase> values, PiqiCompiledPath path,
+                                                  PiqiValueAdapter adapter) {
+        if (!(first(values) instanceof IBaseExtension<?, ?> extension) || !hasNonEmpty(extension.getExtension())) {
+            return null;
+        }
+        PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
+        for (Object child : extension.getExtension()) {
+            IBaseExtension<?, ?> category = (IBaseExtension<?, ?>) child;
+            if ("text".equals(category.getUrl())) {
+                codeableConcept.setText(new PiqiSimpleAttribute(adapter.text(category.getValue())));
+            } else if ("ombCategory".equals(category.getUrl())) {
+                IBase value = extensionValue(category);
+                PiqiCoding coding = value == null ? null : adapter.coding(value);
+                if (coding != null) {
+                    codeableConcept.getCodings().add(coding);
+                }
+            }
+        }
+        return codeableConcept;
+    }
+
+    /**
+     * The language of the first preferred communication, or of the last one if none is preferred.
+     */
+    private static PiqiCodeableConcept primaryLanguage(List<IBase> values, PiqiCompiledPath path,
+                                                       PiqiValueAdapter adapter) {
+        if (!hasNonEmpty(values)) {
+            return null;
+        }
+        PiqiCodeableConcept language = null;
+        for (IBase communication : values) {
+            language = adapter.codeableConcept(path.child(communication, "language"));
+            if (path.child(communication, "preferred") instanceof IPrimitiveType<?> preferred
+                    && Boolean.TRUE.equals(preferred.getValue())) {
+                break;
+            }
+        }
+        return language;
+    }
+
+    /**
+     * Whether any of the elements has content, as HAPI's {@code has} methods of repeating elements test.
+     */
+    private static boolean hasNonEmpty(List<?> elements) {
+        for (Object element : elements) {
+            if (element instanceof IBase value && !value.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static IBase extensionValue(IBase extension) {
+        if (!(extension instanceof IBaseExtension<?, ?> fhirExtension)) {
+            return null;
+        }
+        IBase value = fhirExtension.getValue();
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
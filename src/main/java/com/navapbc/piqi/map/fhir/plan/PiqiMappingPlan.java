@@ -0,0 +1,141 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import org.hl7.fhir.instance.model.api.IBase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A declarative mapping of one FHIR resource type to a PIQI class: a list of field mappings, each reading the values
+ * at a FHIR element path, or the extension with a url, and setting a PIQI attribute from them.
+ * <p>
+ * A plan names elements and extensions, not model classes, so another FHIR version should need only its own
+ * {@link PiqiValueAdapter}; this library depends on, and provides an adapter for, R4 only.
+ * {@link #compile(FhirContext)} resolves the paths against the model of the context's version once, and the
+ * compiled plan maps each resource in a single pass over its extensions followed by direct field reads, with a
+ * {@link PiqiValueAdapter} for the version's data types:
+ * <pre>
+ * PiqiMappingPlan&lt;PiqiDemographics&gt; plan =
+ *         new PiqiMappingPlan&lt;PiqiDemographics&gt;("Patient", PiqiDemographics::new)
+ *         .element("birthDate", (values, path, adapter) -&gt; adapter.date(first(values)),
+ *                 PiqiDemographics::setBirthDate);
+ * PiqiCompiledPlan&lt;PiqiDemographics&gt; compiled = plan.compile(fhirContext);
+ * PiqiDemographics demographics = compiled.map(patient, new FhirR4ValueAdapter(codingCache, translator));
+ * </pre>
+ * Field mappings run in the order they were added.  Define a plan once, e.g. in a static field, and compile it once
+ * per FHIR version; a plan is not thread-safe while mappings are added, compiled plans are.
+ *
+ * @param <T> the PIQI class
+ */
+public class PiqiMappingPlan<T> {
+
+    private final String resourceType;
+    private final Supplier<T> factory;
+    private final List<FieldMapping<T>> fieldMappings = new ArrayList<>();
+
+    /**
+     * @param resourceType the FHIR resource type mapped, e.g. {@code Patient}
+     * @param factory      creates the PIQI object each resource is mapped to
+     */
+    public PiqiMappingPlan(String resourceType, Supplier<T> factory) {
+        this.resourceType = resourceType;
+        this.factory = factory;
+    }
+
+    /**
+     * Adds a mapping from the values at a path of element names, relative to the resource, e.g.
+     * {@code communication} or {@code deceased[x]}.
+     */
+    public <V> PiqiMappingPlan<T> element(String path, PiqiValueReader<V> reader,
+                                          BiConsumer<? super T, ? super V> setter) {
+        fieldMappings.add(new FieldMapping<>(path, null, binding(reader, setter)));
+        return this;
+    }
+
+    /**
+     * Adds a mapping from the first extension of the resource with the url.  The extensions of a resource are
+     * scanned once for all the extension mappings of a plan.
+     */
+    public <V> PiqiMappingPlan<T> extension(String url, PiqiValueReader<V> reader,
+                                            BiConsumer<? super T, ? super V> setter) {
+        fieldMappings.add(new FieldMapping<>(null, url, binding(reader, setter)));
+        return this;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * The element paths and extension urls of the field mappings, in order.
+     */
+    public List<String> getSources() {
+        List<String> sources = new ArrayList<>(fieldMappings.size());
+        for (FieldMapping<T> fieldMapping : fieldMappings) {
+            sources.add(fieldMapping.path() != null ? fieldMapping.path() : "extension('" + fieldMapping.url() + "')");
+        }
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Resolves the plan against the model of the context's FHIR version.
+     *
+     * @throws IllegalArgumentException if the version has no such resource type, or a path names an element the
+     *                                  resource does not have
+     */
+    public PiqiCompiledPlan<T> compile(FhirContext fhirContext) {
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resourceType);
+        Map<String, Integer> extensionSlots = new LinkedHashMap<>();
+        PiqiCompiledPath extensionPath = null;
+        List<PiqiCompiledPlan.CompiledMapping<T>> compiled = new ArrayList<>(fieldMappings.size());
+        for (FieldMapping<T> fieldMapping : fieldMappings) {
+            if (fieldMapping.path() != null) {
+                compiled.add(new PiqiCompiledPlan.CompiledMapping<>(PiqiCompiledPath.compile(definition,
+                        fieldMapping.path()), -1, fieldMapping.binding()));
+            } else {
+                if (extensionPath == null) {
+                    extensionPath = PiqiCompiledPath.compile(definition, "extension");
+                }
+                Integer slot = extensionSlots.computeIfAbsent(fieldMapping.url(), url -> extensionSlots.size());
+                compiled.add(new PiqiCompiledPlan.CompiledMapping<>(extensionPath, slot, fieldMapping.binding()));
+            }
+        }
+        return new PiqiCompiledPlan<>(resourceType, fhirContext.getVersion().getVersion(), factory, compiled,
+                extensionSlots, extensionPath);
+    }
+
+    private static <T, V> PiqiCompiledPlan.Binding<T> binding(PiqiValueReader<V> reader,
+                                                              BiConsumer<? super T, ? super V> setter) {
+        return (target, values, path, adapter) -> {
+            V value = reader.read(values, path, adapter);
+            if (value != null) {
+                setter.accept(target, value);
+            }
+        };
+    }
+
+    /**
+     * Returns the first value, or null if there is none.
+     */
+    public static IBase first(List<IBase> values) {
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Returns the first value if it is not empty, or null.
+     */
+    public static IBase firstNonEmpty(List<IBase> values) {
+        IBase value = first(values);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private record FieldMapping<T>(String path, String url, PiqiCompiledPlan.Binding<T> binding) {
+    }
+}
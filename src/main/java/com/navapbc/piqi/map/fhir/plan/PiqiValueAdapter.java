@@ -0,0 +1,59 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.instance.model.api.IBase;
+
+/**
+ * Converts the values of one FHIR version's model classes to PIQI values for the readers of a
+ * {@link PiqiMappingPlan}.  The plans and their readers only see {@link IBase}, so mapping a new FHIR version needs an
+ * adapter for its data types, not a copy of every mapper.
+ *
+ * @see FhirR4ValueAdapter
+ */
+public interface PiqiValueAdapter {
+
+    /**
+     * Maps a CodeableConcept.  A null concept maps as an empty one.
+     */
+    PiqiCodeableConcept codeableConcept(IBase codeableConcept);
+
+    /**
+     * Builds a concept with the text and a single coding.
+     */
+    PiqiCodeableConcept codeableConcept(String text, String system, String code, String display);
+
+    /**
+     * Maps a coded enumeration, such as {@code Patient.gender}, to a concept with its system, code, display and
+     * definition, or returns null if the value is not an enumeration or has no value.
+     */
+    PiqiCodeableConcept enumeration(IBase enumeration);
+
+    /**
+     * Formats a date or dateTime as a date.  A null value gives an attribute without a value.
+     */
+    PiqiSimpleAttribute date(IBase dateTime);
+
+    /**
+     * Maps a Coding, translated and through the cache like the codings of concepts, or returns null if the value is
+     * not a Coding.
+     */
+    PiqiCoding coding(IBase coding);
+
+    /**
+     * Returns the system, code and display of a {@code code} value, or null if the value is not a code.
+     */
+    Code code(IBase value);
+
+    /**
+     * The text of a value, as the R4 mappers have always written it.
+     */
+    String text(IBase value);
+
+    /**
+     * A {@code code} value with the system and display its type knows of.
+     */
+    record Code(String system, String code, String display) {
+    }
+}
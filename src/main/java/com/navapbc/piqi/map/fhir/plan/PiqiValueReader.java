@@ -0,0 +1,24 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import org.hl7.fhir.instance.model.api.IBase;
+
+import java.util.List;
+
+/**
+ * Reads the PIQI value of one field mapping of a {@link PiqiMappingPlan} from the FHIR values at its path.
+ *
+ * @param <V> the type of the PIQI value
+ */
+@FunctionalInterface
+public interface PiqiValueReader<V> {
+
+    /**
+     * Returns the value to set, or null to leave the PIQI attribute unset.
+     *
+     * @param values  the values at the path, empty if the resource has none; for an extension mapping the first
+     *                extension with the url, or none
+     * @param path    the compiled path, which reads the children of the values by name
+     * @param adapter converts the values of the resource's FHIR version
+     */
+    V read(List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter);
+}
@@ -0,0 +1,1200 @@
+package com.navapbc.piqi.map.fhir.stream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.PiqiBundleMappingResult;
+import com.navapbc.piqi.map.fhir.PiqiCodingCache;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiMappingMetrics;
+import com.navapbc.piqi.map.fhir.PiqiTerminologyTranslator;
+import com.navapbc.piqi.map.fhir.jfr.BundleIndexingEvent;
+import com.navapbc.piqi.map.fhir.jfr.MapDemographicsEvent;
+import com.navapbc.piqi.map.fhir.jfr.MapDiagnosticReportEvent;
+import com.navapbc.piqi.map.fhir.jfr.MapObservationEvent;
+import com.navapbc.piqi.map.fhir.jfr.SerializationEvent;
+import com.navapbc.piqi.map.fhir.plan.FhirR4ValueAdapter;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import com.navapbc.piqi.model.PiqiObservationValue;
+import com.navapbc.piqi.model.PiqiRangeValue;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps a FHIR R4 JSON bundle to PIQI demographics and lab results without building the HAPI object model.
+ * <p>
+ * The bundle is read with a Jackson streaming parser.  Only the elements {@link PiqiDemographicsR4Mapper} and
+ * {@link PiqiLabResultsR4Mapper} map are read, and every other element is skipped without being materialized.  The
+ * result is the same as parsing the bundle with HAPI and mapping it with those mappers, which the differential tests
+ * check: the coded values that are read are mapped with the coding cache and terminology translator of the mappers
+ * this mapper is created with, metrics are recorded to their metrics, and the same JFR events are emitted.  Dates
+ * and coded enumerations go through the same HAPI primitive types and helpers so that they are formatted
+ * identically.
+ * <p>
+ * Observations, reports and the resources they reference may appear in any order in the bundle, so what was read
+ * of them is held until the end of the bundle and the lab results are assembled then, one per Observation id as the
+ * lab results mapper maps them.  Resources are expected to start with {@code resourceType}, as HAPI and most servers
+ * write them; a resource that does not is buffered before it is read.
+ * <p>
+ * Instances are thread-safe and may be shared.
+ */
+public class PiqiR4StreamingMapper {
+
+    private static final Logger log = LoggerFactory.getLogger(PiqiR4StreamingMapper.class);
+
+    private static final String BIRTH_SEX_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-birthsex";
+    private static final String ETHNICITY_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+    private static final String RACE_SYSTEM = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+    private static final String YES_NO_SYSTEM = "http://terminology.hl7.org/CodeSystem/v2-0136";
+    private static final String OUTPUT_FORMAT = "piqi-json";
+
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+    private final PiqiLabResultsR4Mapper labResultsMapper;
+    private final PiqiDemographicsR4Mapper demographicsMapper;
+    private final Set<String> labResourceTypes = new HashSet<>();
+
+    public PiqiR4StreamingMapper() {
+        this(new ObjectMapper());
+    }
+
+    /**
+     * Creates a mapper that writes its output with the object mapper, which should be configured as it is where the
+     * PIQI model is serialized today.
+     */
+    public PiqiR4StreamingMapper(ObjectMapper objectMapper) {
+        this(objectMapper, new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper());
+    }
+
+    /**
+     * Creates a mapper that maps bundles as the given mappers do, with their coding cache, terminology translator
+     * and metrics as they are configured when a bundle starts to be mapped.
+     */
+    public PiqiR4StreamingMapper(ObjectMapper objectMapper, PiqiLabResultsR4Mapper labResultsMapper,
+                                 PiqiDemographicsR4Mapper demographicsMapper) {
+        this.objectMapper = objectMapper;
+        this.jsonFactory = objectMapper.getFactory();
+        this.labResultsMapper = labResultsMapper;
+        this.demographicsMapper = demographicsMapper;
+        for (ResourceType resourceType : labResultsMapper.getResourceTypes()) {
+            labResourceTypes.add(resourceType.name());
+        }
+    }
+
+    /**
+     * Maps the bundle read from the stream, which is not closed.
+     */
+    public PiqiBundleMappingResult map(InputStream bundleJson) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(bundleJson)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            return map(parser);
+        }
+    }
+
+    public PiqiBundleMappingResult map(JsonParser parser) throws IOException {
+        BundleState state = new BundleState();
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object but found " + parser.currentToken());
+        }
+        BundleIndexingEvent event = new BundleIndexingEvent();
+        event.begin();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    state.entryCount++;
+                    readEntry(parser, state);
+                }
+            } else if ("id".equals(field)) {
+                state.id = textOrNull(parser);
+            } else if ("identifier".equals(field)) {
+                state.identifier = readIdentifierValue(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        // The id of the bundle may follow its entries, so the events are only committed once it has been read.
+        event.end();
+        if (event.shouldCommit()) {
+            event.bundleId = state.bundleId();
+            event.resourceCount = state.entryCount;
+            event.observationCount = state.observations.size();
+            event.diagnosticReportCount = state.reports.size();
+            event.commit();
+        }
+        PiqiBundleMappingResult result = new PiqiBundleMappingResult();
+        result.put(PiqiDemographics.class, state.demographics());
+        result.put(PiqiLabResult.class, state.mapLabResults());
+        return result;
+    }
+
+    /**
+     * Maps the bundle read from the stream and writes the PIQI JSON, an object holding {@code demographics} and
+     * {@code labResults}, to the output.  Neither stream is closed.
+     */
+    public void write(InputStream bundleJson, OutputStream piqiJson) throws IOException {
+        PiqiBundleMappingResult result = map(bundleJson);
+        SerializationEvent event = new SerializationEvent();
+        event.begin();
+        CountingOutputStream output = new CountingOutputStream(piqiJson);
+        try (JsonGenerator generator = jsonFactory.createGenerator(output)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setCodec(objectMapper);
+            generator.writeStartObject();
+            generator.writeFieldName("demographics");
+            generator.writeObject(result.getDemographics());
+            generator.writeFieldName("labResults");
+            generator.writeObject(result.getLabResults());
+            generator.writeEndObject();
+        }
+        if (event.shouldCommit()) {
+            event.format = OUTPUT_FORMAT;
+            event.resultCount = result.getLabResults() == null ? 0 : result.getLabResults().size();
+            event.bytes = output.count;
+            event.commit();
+        }
+    }
+
+    private void readEntry(JsonParser parser, BundleState state) throws IOException {
+        String fullUrl = null;
+        ResourceEntry resource = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("fullUrl".equals(field) && token == JsonToken.VALUE_STRING) {
+                fullUrl = parser.getText();
+            } else if ("resource".equals(field) && token == JsonToken.START_OBJECT) {
+                resource = readResource(parser, state);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (resource != null) {
+            state.add(fullUrl, resource);
+        }
+    }
+
+    /**
+     * Reads a resource, the parser being on its start, and returns what was read of it or null if it is not needed.
+     */
+    private ResourceEntry readResource(JsonParser parser, BundleState state) throws IOException {
+        if (parser.nextToken() == JsonToken.FIELD_NAME && "resourceType".equals(parser.currentName())) {
+            parser.nextToken();
+            return readResource(parser.getText(), parser, state);
+        }
+        // resourceType is not the first element, buffer the resource to find it.
+        TokenBuffer buffer = new TokenBuffer(parser);
+        buffer.writeStartObject();
+        String resourceType = null;
+        while (parser.currentToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("resourceType".equals(field) && token == JsonToken.VALUE_STRING) {
+                resourceType = parser.getText();
+            } else {
+                buffer.writeFieldName(field);
+                buffer.copyCurrentStructure(parser);
+            }
+            parser.nextToken();
+        }
+        buffer.writeEndObject();
+        if (resourceType == null) {
+            return null;
+        }
+        try (JsonParser bufferParser = buffer.asParser()) {
+            bufferParser.nextToken();
+            return readResource(resourceType, bufferParser, state);
+        }
+    }
+
+    /**
+     * Reads the elements of a resource of the type, the parser being before its first element not yet read.
+     */
+    private ResourceEntry readResource(String resourceType, JsonParser parser, BundleState state) throws IOException {
+        if (labResourceTypes.contains(resourceType)) {
+            state.metrics.recordResource(resourceType);
+        }
+        switch (resourceType) {
+            case "Observation":
+                return readObservation(parser);
+            case "DiagnosticReport":
+                return readDiagnosticReport(parser);
+            case "Specimen":
+                return readSpecimen(parser);
+            case "ServiceRequest":
+                return readServiceRequest(parser);
+            case "Encounter":
+                // Only resolved, to count the references that are not.
+                ResourceEntry encounter = new ResourceEntry(resourceType);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    if ("id".equals(field)) {
+                        encounter.id = textOrNull(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return encounter;
+            case "Patient":
+                if (state.patient == null) {
+                    state.patient = new ResourceEntry(resourceType);
+                    state.demographicsMetrics.recordResource(resourceType);
+                    readPatient(parser, state);
+                    return state.patient;
+                }
+                skipResource(parser);
+                return null;
+            default:
+                skipResource(parser);
+                return null;
+        }
+    }
+
+    private ObservationEntry readObservation(JsonParser parser) throws IOException {
+        ObservationEntry observation = new ObservationEntry();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "id" -> observation.id = textOrNull(parser);
+                case "category" -> observation.lab = readCategoryMatch(parser, "laboratory");
+                case "code" -> observation.code = readCodeableConcept(parser);
+                case "valueQuantity" -> readQuantity(parser, observation);
+                case "valueCodeableConcept" -> {
+                    parser.skipChildren();
+                    observation.value = new PiqiObservationValue();
+                }
+                case "valueString" -> {
+                    observation.value = new PiqiObservationValue();
+                    observation.value.setText(new PiqiSimpleAttribute(textOrNull(parser)));
+                }
+                case "interpretation" -> observation.interpretation = readFirst(parser, this::readCodeableConcept);
+                case "referenceRange" -> observation.referenceRange = readFirst(parser, this::readReferenceRange);
+                case "specimen" -> observation.specimen = readReference(parser);
+                case "encounter" -> observation.encounter = readReference(parser);
+                case "component" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            observation.componentCount++;
+                            parser.skipChildren();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> {
+                    if (field.startsWith("value") && token != JsonToken.VALUE_NULL) {
+                        observation.unmappedValueType = fhirType(field.substring("value".length()));
+                    }
+                    parser.skipChildren();
+                }
+            }
+        }
+        return observation;
+    }
+
+    private void readQuantity(JsonParser parser, ObservationEntry observation) throws IOException {
+        QuantityValue quantity = new QuantityValue();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "value" -> quantity.number = decimalOrNull(parser);
+                case "unit" -> quantity.unit = textOrNull(parser);
+                case "system" -> quantity.system = textOrNull(parser);
+                case "code" -> quantity.code = textOrNull(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        observation.value = new PiqiObservationValue();
+        observation.value.setNumber(new PiqiSimpleAttribute(quantity.number));
+        observation.quantity = quantity;
+    }
+
+    private PiqiRangeValue readReferenceRange(JsonParser parser) throws IOException {
+        PiqiRangeValue piqiRangeValue = new PiqiRangeValue();
+        String text = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "low" -> {
+                    String low = readQuantityValue(parser);
+                    if (low != null) {
+                        piqiRangeValue.setLowValue(new PiqiSimpleAttribute(low));
+                    }
+                }
+                case "high" -> {
+                    String high = readQuantityValue(parser);
+                    if (high != null) {
+                        piqiRangeValue.setHighValue(new PiqiSimpleAttribute(high));
+                    }
+                }
+                case "text" -> text = textOrNull(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        piqiRangeValue.setText(new PiqiSimpleAttribute(text));
+        return piqiRangeValue;
+    }
+
+    private String readQuantityValue(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String number = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("value".equals(field)) {
+                number = decimalOrNull(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return number;
+    }
+
+    private ReportEntry readDiagnosticReport(JsonParser parser) throws IOException {
+        ReportEntry report = new ReportEntry();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "id" -> report.id = textOrNull(parser);
+                case "status" -> report.status = statusOrNull(textOrNull(parser));
+                case "code" -> report.code = readCodeableConcept(parser);
+                case "issued" -> report.issued = textOrNull(parser);
+                case "performer" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            ReferenceValue performer = readReference(parser);
+                            if (performer.reference() != null && !performer.reference().isEmpty()) {
+                                report.performerDisplay = performer.display();
+                                report.hasPerformerReference = true;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                case "basedOn" -> {
+                    ReferenceValue basedOn = readFirst(parser, this::readReference);
+                    if (basedOn != null) {
+                        report.hasBasedOn = true;
+                        report.basedOnReference = basedOn.reference();
+                    }
+                }
+                case "result" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            report.resultCount++;
+                            String result = readReference(parser).reference();
+                            if (result != null) {
+                                report.results.add(result);
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        return report;
+    }
+
+    private SpecimenEntry readSpecimen(JsonParser parser) throws IOException {
+        SpecimenEntry specimen = new SpecimenEntry();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> specimen.id = textOrNull(parser);
+                case "type" -> specimen.type = readCodeableConcept(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return specimen;
+    }
+
+    private ServiceRequestEntry readServiceRequest(JsonParser parser) throws IOException {
+        ServiceRequestEntry serviceRequest = new ServiceRequestEntry();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "id" -> serviceRequest.id = textOrNull(parser);
+                case "code" -> serviceRequest.code = readCodeableConcept(parser);
+                case "orderDetail" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        boolean first = true;
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            CodeableConcept orderDetail = readCodeableConcept(parser);
+                            if (first) {
+                                serviceRequest.orderDetail = orderDetail;
+                                first = false;
+                            }
+                            // As HAPI's hasOrderDetail, any non-empty detail counts, though the first is mapped.
+                            serviceRequest.hasOrderDetail |= orderDetail != null && !orderDetail.isEmpty();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                case "authoredOn" -> serviceRequest.authoredOn = textOrNull(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return serviceRequest;
+    }
+
+    /**
+     * Reads the first Patient of the bundle and maps its demographics as the plan of
+     * {@link PiqiDemographicsR4Mapper} does, through the value adapter of the bundle.
+     */
+    private void readPatient(JsonParser parser, BundleState state) throws IOException {
+        MapDemographicsEvent event = state.demographicsEvent;
+        event.begin();
+        long started = state.demographicsMetrics.isEnabled() ? System.nanoTime() : 0L;
+        FhirR4ValueAdapter adapter = state.demographicsAdapter;
+        PiqiDemographics demographics = new PiqiDemographics();
+        String birthDate = null;
+        boolean hasDeceased = false;
+        boolean hasCommunication = false;
+        CodeableConcept primaryLanguage = null;
+        boolean languagePreferred = false;
+        CodeableConcept maritalStatus = null;
+        List<ExtensionValue> extensions = List.of();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "id" -> state.patient.id = textOrNull(parser);
+                case "birthDate" -> birthDate = textOrNull(parser);
+                case "gender" -> {
+                    String code = textOrNull(parser);
+                    if (code != null) {
+                        Enumerations.AdministrativeGender gender = Enumerations.AdministrativeGender.fromCode(code);
+                        demographics.setGenderIdentity(adapter.codeableConcept(gender.getDefinition(),
+                                gender.getSystem(), gender.toCode(), gender.getDisplay()));
+                    }
+                }
+                case "deceasedBoolean" -> {
+                    if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+                        hasDeceased = true;
+                        demographics.setDeceased(mapDeceased(adapter, token == JsonToken.VALUE_TRUE));
+                    }
+                }
+                case "deceasedDateTime" -> {
+                    String deathDate = textOrNull(parser);
+                    if (deathDate != null) {
+                        hasDeceased = true;
+                        demographics.setDeathDate(
+                                FhirR4MappingHelper.simpleAttributeFromDateAsDate(new DateTimeType(deathDate)));
+                    }
+                }
+                case "communication" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            CodeableConcept language = null;
+                            boolean preferred = false;
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String communicationField = parser.currentName();
+                                JsonToken communicationToken = parser.nextToken();
+                                if ("language".equals(communicationField)) {
+                                    language = readCodeableConcept(parser);
+                                } else if ("preferred".equals(communicationField)) {
+                                    preferred = communicationToken == JsonToken.VALUE_TRUE;
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                            // The first preferred language, else the last one.
+                            if (!languagePreferred) {
+                                hasCommunication = true;
+                                primaryLanguage = language;
+                                languagePreferred = preferred;
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                case "maritalStatus" -> maritalStatus = readCodeableConcept(parser);
+                case "extension" -> extensions = readExtensions(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        demographics.setBirthDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                birthDate != null ? new DateType(birthDate) : null));
+        if (!hasDeceased) {
+            demographics.setDeceased(mapDeceased(adapter, false));
+        }
+        if (hasCommunication) {
+            // A communication without a language maps as an empty concept.
+            demographics.setPrimaryLanguage(adapter.codeableConcept(primaryLanguage));
+        }
+        demographics.setMaritalStatus(adapter.codeableConcept(maritalStatus));
+        mapExtensions(demographics, extensions, adapter);
+        state.demographics = demographics;
+        if (state.demographicsMetrics.isEnabled()) {
+            state.demographicsMetrics.recordMappingTime(PiqiDemographics.class, System.nanoTime() - started);
+        }
+        event.end();
+        event.resourceId = state.patient.id;
+        event.extensionCount = extensions.size();
+    }
+
+    private static PiqiCodeableConcept mapDeceased(FhirR4ValueAdapter adapter, boolean deceased) {
+        return adapter.codeableConcept(deceased ? "Yes" : "No", YES_NO_SYSTEM, deceased ? "Y" : "N",
+                deceased ? "Yes" : "No");
+    }
+
+    private static void mapExtensions(PiqiDemographics demographics, List<ExtensionValue> extensions,
+                                      FhirR4ValueAdapter adapter) {
+        ExtensionValue birthSex = firstExtension(extensions, BIRTH_SEX_SYSTEM);
+        if (birthSex != null && birthSex.code() != null) {
+            // A HAPI CodeType has no display, and no system unless one is set in code.  The plan builds this concept
+            // itself rather than through the adapter, so it is never cached or translated.
+            PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
+            codeableConcept.setText(new PiqiSimpleAttribute(null));
+            codeableConcept.getCodings().add(FhirR4MappingHelper.mapCoding(BIRTH_SEX_SYSTEM, birthSex.code(), null, null));
+            demographics.setBirthSex(codeableConcept);
+        }
+        ExtensionValue ethnicity = firstExtension(extensions, ETHNICITY_SYSTEM);
+        if (ethnicity != null && !ethnicity.extensions().isEmpty()) {
+            demographics.setEthnicity(mapCategories(ethnicity, adapter));
+        }
+        ExtensionValue race = firstExtension(extensions, RACE_SYSTEM);
+        if (race != null && !race.extensions().isEmpty()) {
+            demographics.setRace(mapCategories(race, adapter));
+        }
+    }
+
+    private static PiqiCodeableConcept mapCategories(ExtensionValue extension, FhirR4ValueAdapter adapter) {
+        PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
+        for (ExtensionValue extensionValue : extension.extensions()) {
+            if ("text".equals(extensionValue.url()) && extensionValue.text() != null) {
+                codeableConcept.setText(new PiqiSimpleAttribute(extensionValue.text()));
+            } else if ("ombCategory".equals(extensionValue.url()) && extensionValue.coding() != null) {
+                codeableConcept.getCodings().add(adapter.coding(extensionValue.coding()));
+            }
+        }
+        return codeableConcept;
+    }
+
+    private static ExtensionValue firstExtension(List<ExtensionValue> extensions, String url) {
+        for (ExtensionValue extension : extensions) {
+            if (url.equals(extension.url())) {
+                return extension;
+            }
+        }
+        return null;
+    }
+
+    private List<ExtensionValue> readExtensions(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return List.of();
+        }
+        List<ExtensionValue> extensions = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String url = null;
+            String code = null;
+            String text = null;
+            Coding coding = null;
+            List<ExtensionValue> nested = List.of();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if ("url".equals(field)) {
+                    url = textOrNull(parser);
+                } else if ("extension".equals(field)) {
+                    nested = readExtensions(parser);
+                } else if ("valueCoding".equals(field)) {
+                    coding = readCoding(parser);
+                } else if (field.startsWith("value") && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                    text = parser.getText();
+                    if ("valueCode".equals(field)) {
+                        code = text;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            extensions.add(new ExtensionValue(url, code, text, coding, nested));
+        }
+        return extensions;
+    }
+
+    /**
+     * Reads a codeable concept into the HAPI datatype, so that it is mapped by the same helpers, through the same
+     * cache and translator, as the object model mappers map it.
+     */
+    private CodeableConcept readCodeableConcept(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        CodeableConcept fhirConcept = new CodeableConcept();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if ("text".equals(field)) {
+                fhirConcept.setText(textOrNull(parser));
+            } else if ("coding".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    fhirConcept.addCoding(readCoding(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return fhirConcept;
+    }
+
+    private Coding readCoding(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String system = null;
+        String code = null;
+        String display = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "system" -> system = textOrNull(parser);
+                case "code" -> code = textOrNull(parser);
+                case "display" -> display = textOrNull(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return new Coding(system, code, display);
+    }
+
+    private boolean readCategoryMatch(JsonParser parser, String categoryCode) throws IOException {
+        boolean isMatch = false;
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            CodeableConcept category = readCodeableConcept(parser);
+            for (Coding coding : category.getCoding()) {
+                if (categoryCode.equals(coding.getCode())) {
+                    isMatch = true;
+                }
+            }
+        }
+        return isMatch;
+    }
+
+    private ReferenceValue readReference(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return new ReferenceValue(null, null);
+        }
+        String reference = null;
+        String display = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "reference" -> reference = textOrNull(parser);
+                case "display" -> display = textOrNull(parser);
+                default -> parser.skipChildren();
+            }
+        }
+        return new ReferenceValue(reference, display);
+    }
+
+    private String readIdentifierValue(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if ("value".equals(field)) {
+                value = textOrNull(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads the first element of an array with the reader and skips the others.
+     */
+    private <T> T readFirst(JsonParser parser, ElementReader<T> reader) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        T first = null;
+        boolean read = false;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (!read) {
+                first = reader.read(parser);
+                read = true;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return first;
+    }
+
+    private static void skipResource(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    private static String textOrNull(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == null || token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getText();
+    }
+
+    private static String decimalOrNull(JsonParser parser) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getDecimalValue().toPlainString();
+    }
+
+    private static DiagnosticReport.DiagnosticReportStatus statusOrNull(String code) {
+        if (code == null) {
+            return null;
+        }
+        try {
+            return DiagnosticReport.DiagnosticReportStatus.fromCode(code);
+        } catch (Exception e) {
+            log.warn("Unknown DiagnosticReport status=[{}]", code);
+            return null;
+        }
+    }
+
+    /**
+     * The FHIR type of a choice element suffix, e.g. {@code Ratio} or {@code dateTime}.
+     */
+    private static String fhirType(String suffix) {
+        return switch (suffix) {
+            case "Boolean", "Integer", "DateTime", "Time", "Instant", "Uri", "Date", "Decimal", "Code" ->
+                    Character.toLowerCase(suffix.charAt(0)) + suffix.substring(1);
+            default -> suffix;
+        };
+    }
+
+    /**
+     * The keys a reference to the resource may use: its fullUrl, {@code Type/id} and, for {@code urn:uuid:}
+     * fullUrls, the bare uuid as {@code Type/uuid}.
+     */
+    private static void addKeys(Map<String, ResourceEntry> resourcesByKey, String fullUrl, ResourceEntry resource) {
+        if (fullUrl != null && !fullUrl.isEmpty()) {
+            resourcesByKey.putIfAbsent(fullUrl, resource);
+            String relative = relativeKey(fullUrl);
+            if (relative != null) {
+                resourcesByKey.putIfAbsent(relative, resource);
+            }
+        }
+        if (resource.id != null && !resource.id.isEmpty()) {
+            String id = resource.id.startsWith("urn:uuid:") ? resource.id.substring("urn:uuid:".length()) : resource.id;
+            resourcesByKey.putIfAbsent(resource.resourceType + "/" + id, resource);
+        }
+    }
+
+    /**
+     * The {@code Type/id} form of a relative, absolute or versioned reference, or null if it has none.
+     */
+    private static String relativeKey(String reference) {
+        String value = reference;
+        int history = value.indexOf("/_history/");
+        if (history >= 0) {
+            value = value.substring(0, history);
+        }
+        int idStart = value.lastIndexOf('/');
+        if (idStart <= 0) {
+            return null;
+        }
+        int typeStart = value.lastIndexOf('/', idStart - 1) + 1;
+        String type = value.substring(typeStart, idStart);
+        if (type.isEmpty() || !Character.isUpperCase(type.charAt(0))) {
+            return null;
+        }
+        return value.substring(typeStart);
+    }
+
+    /**
+     * The id part HAPI gives a resource in a bundle: that of the entry's fullUrl when it has one, since the parser
+     * overrides resource ids with fullUrls, else the resource's own id.
+     */
+    private static String idPart(String fullUrl, ResourceEntry resource) {
+        if (fullUrl != null && !fullUrl.isEmpty()) {
+            IdType fullUrlId = new IdType(fullUrl);
+            if (fullUrlId.hasIdPart()) {
+                return fullUrlId.getIdPart();
+            }
+        }
+        return resource.id;
+    }
+
+    private static ResourceEntry resolve(Map<String, ResourceEntry> resourcesByKey, String reference) {
+        if (reference == null || reference.isEmpty()) {
+            return null;
+        }
+        ResourceEntry resource = resourcesByKey.get(reference);
+        if (resource == null) {
+            String relative = relativeKey(reference);
+            if (relative != null) {
+                resource = resourcesByKey.get(relative);
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * What has been read of one bundle, and the configuration of the mappers it is mapped with, taken once when the
+     * bundle starts to be read so that a mapper reconfigured meanwhile does not change it halfway.
+     */
+    private final class BundleState {
+
+        private final PiqiCodingCache codingCache = labResultsMapper.getCodingCache();
+        private final PiqiTerminologyTranslator translator = labResultsMapper.getTerminologyTranslator();
+        private final PiqiMappingMetrics metrics = labResultsMapper.getMetrics();
+        private final long started = metrics.isEnabled() ? System.nanoTime() : 0L;
+        private final FhirR4ValueAdapter demographicsAdapter = new FhirR4ValueAdapter(
+                demographicsMapper.getCodingCache(), demographicsMapper.getTerminologyTranslator());
+        private final PiqiMappingMetrics demographicsMetrics = demographicsMapper.getMetrics();
+        private final MapDemographicsEvent demographicsEvent = new MapDemographicsEvent();
+
+        private String id;
+        private String identifier;
+        private int entryCount;
+        private ResourceEntry patient;
+        private PiqiDemographics demographics;
+        // As the lab results mapper, a later Observation with the same id replaces an earlier one in its place.
+        private final Map<String, ObservationEntry> observations = new LinkedHashMap<>();
+        private final List<ReportEntry> reports = new ArrayList<>();
+        private final Map<String, ResourceEntry> resourcesByKey = new HashMap<>();
+
+        void add(String fullUrl, ResourceEntry resource) {
+            addKeys(resourcesByKey, fullUrl, resource);
+            if (resource instanceof ObservationEntry observation) {
+                observation.idPart = idPart(fullUrl, observation);
+                observations.put(observation.idPart, observation);
+            } else if (resource instanceof ReportEntry report) {
+                reports.add(report);
+            }
+        }
+
+        /**
+         * The id the events identify the bundle by, as {@code PiqiMappingEvent.bundleId} finds it.
+         */
+        String bundleId() {
+            if (id != null && !id.isEmpty()) {
+                return new IdType(id).getIdPart();
+            }
+            return identifier;
+        }
+
+        PiqiDemographics demographics() {
+            if (demographics != null && demographicsEvent.shouldCommit()) {
+                demographicsEvent.bundleId = bundleId();
+                demographicsEvent.commit();
+            }
+            return demographics;
+        }
+
+        List<PiqiLabResult> mapLabResults() {
+            // Each observation belongs to the first report, in bundle order, that lists it as a result.
+            for (ReportEntry report : reports) {
+                for (String result : report.results) {
+                    if (resolve(resourcesByKey, result) instanceof ObservationEntry listed) {
+                        // A reference resolves to the first Observation with its id, which a later one replaced.
+                        ObservationEntry observation = observations.get(listed.idPart);
+                        if (observation != null && observation.report == null) {
+                            observation.report = report;
+                        }
+                    }
+                }
+            }
+            List<PiqiLabResult> piqiLabResults = new ArrayList<>();
+            for (ObservationEntry observation : observations.values()) {
+                if (!observation.lab) {
+                    continue;
+                }
+                PiqiLabResult piqiLabResult = new PiqiLabResult();
+                mapObservation(observation, piqiLabResult);
+                if (observation.report != null) {
+                    mapReport(observation.report, piqiLabResult);
+                }
+                piqiLabResults.add(piqiLabResult);
+            }
+            if (metrics.isEnabled()) {
+                metrics.recordMappingTime(PiqiLabResult.class, System.nanoTime() - started);
+                metrics.recordLabResults(piqiLabResults.size());
+            }
+            return piqiLabResults;
+        }
+
+        private void mapObservation(ObservationEntry observation, PiqiLabResult piqiLabResult) {
+            MapObservationEvent event = new MapObservationEvent();
+            event.begin();
+            // HAPI creates an empty code when there is none, which maps to a concept without text or codings.
+            piqiLabResult.setTest(mapCodeableConcept(observation.code));
+            if (observation.value != null) {
+                piqiLabResult.setResultValue(observation.value);
+            }
+            QuantityValue quantity = observation.quantity;
+            if (quantity != null) {
+                // The display of a HAPI Quantity is its unit.
+                piqiLabResult.setResultUnit(FhirR4MappingHelper.mapCodeableConcept(quantity.number, quantity.system,
+                        quantity.code, quantity.unit, codingCache, translator));
+            }
+            if (observation.unmappedValueType != null) {
+                log.warn("fhir type not mapped = [{}]", observation.unmappedValueType);
+                metrics.recordUnmappedValue(observation.unmappedValueType);
+            }
+            if (observation.interpretation != null) {
+                piqiLabResult.setInterpretation(mapCodeableConcept(observation.interpretation));
+            }
+            if (observation.referenceRange != null) {
+                piqiLabResult.setReferenceRange(observation.referenceRange);
+            }
+            if (resolve(resourcesByKey, observation.specimen.reference()) instanceof SpecimenEntry specimen) {
+                if (specimen.type != null && !specimen.type.isEmpty()) {
+                    piqiLabResult.setSpecimenType(mapCodeableConcept(specimen.type));
+                }
+            } else if (observation.specimen.isPresent()) {
+                metrics.recordUnresolvedReference("Specimen");
+            }
+            if (observation.encounter.isPresent()) {
+                ResourceEntry encounter = resolve(resourcesByKey, observation.encounter.reference());
+                if (encounter == null || !"Encounter".equals(encounter.resourceType)) {
+                    metrics.recordUnresolvedReference("Encounter");
+                }
+            }
+            if (event.shouldCommit()) {
+                event.bundleId = bundleId();
+                event.resourceId = observation.idPart;
+                event.componentCount = observation.componentCount;
+                event.commit();
+            }
+        }
+
+        private void mapReport(ReportEntry report, PiqiLabResult piqiLabResult) {
+            MapDiagnosticReportEvent event = new MapDiagnosticReportEvent();
+            event.begin();
+            DiagnosticReport.DiagnosticReportStatus status = report.status;
+            piqiLabResult.setResultStatus(status == null ? new PiqiCodeableConcept()
+                    : FhirR4MappingHelper.mapCodeableConcept(status.toString(), status.getSystem(), status.toCode(),
+                    status.getDisplay(), codingCache, translator));
+            InstantType issued = report.issued != null ? new InstantType(report.issued) : null;
+            if (issued != null) {
+                piqiLabResult.setPerformedDateTime(FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(issued));
+            }
+            if (report.hasPerformerReference) {
+                PiqiCodeableConcept performingSite = new PiqiCodeableConcept();
+                performingSite.setText(new PiqiSimpleAttribute(report.performerDisplay));
+                piqiLabResult.setPerformingSite(performingSite);
+            }
+            if (report.hasBasedOn) {
+                if (resolve(resourcesByKey, report.basedOnReference) instanceof ServiceRequestEntry serviceRequest) {
+                    if (serviceRequest.hasOrderDetail) {
+                        piqiLabResult.setOrder(mapCodeableConcept(serviceRequest.orderDetail));
+                    } else if (serviceRequest.code != null && !serviceRequest.code.isEmpty()) {
+                        piqiLabResult.setOrder(mapCodeableConcept(serviceRequest.code));
+                    }
+                    if (serviceRequest.authoredOn != null) {
+                        piqiLabResult.setOrderDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                                new DateTimeType(serviceRequest.authoredOn)));
+                    }
+                } else {
+                    metrics.recordUnresolvedReference("ServiceRequest");
+                }
+            } else {
+                piqiLabResult.setOrder(mapCodeableConcept(report.code));
+                piqiLabResult.setOrderDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(issued));
+            }
+            if (event.shouldCommit()) {
+                event.bundleId = bundleId();
+                event.resourceId = report.id;
+                event.resultCount = report.resultCount;
+                event.commit();
+            }
+        }
+
+        /**
+         * Maps a concept read from the bundle, or the empty concept HAPI creates for a missing one.  Every result
+         * gets a new concept, or the unmodifiable instance the cache shares, never one another result was given.
+         */
+        private PiqiCodeableConcept mapCodeableConcept(CodeableConcept fhirConcept) {
+            return FhirR4MappingHelper.mapCodeableConcept(fhirConcept != null ? fhirConcept : new CodeableConcept(),
+                    codingCache, translator);
+        }
+    }
+
+    private static class ResourceEntry {
+
+        private final String resourceType;
+        String id;
+
+        ResourceEntry(String resourceType) {
+            this.resourceType = resourceType;
+        }
+    }
+
+    private static final class ObservationEntry extends ResourceEntry {
+
+        private String idPart;
+        private boolean lab;
+        private CodeableConcept code;
+        private PiqiObservationValue value;
+        private QuantityValue quantity;
+        private String unmappedValueType;
+        private CodeableConcept interpretation;
+        private PiqiRangeValue referenceRange;
+        private ReferenceValue specimen = new ReferenceValue(null, null);
+        private ReferenceValue encounter = new ReferenceValue(null, null);
+        private int componentCount;
+        private ReportEntry report;
+
+        ObservationEntry() {
+            super("Observation");
+        }
+    }
+
+    private static final class QuantityValue {
+
+        private String number;
+        private String unit;
+        private String system;
+        private String code;
+    }
+
+    private static final class ReportEntry extends ResourceEntry {
+
+        private DiagnosticReport.DiagnosticReportStatus status;
+        private CodeableConcept code;
+        private String issued;
+        private boolean hasPerformerReference;
+        private String performerDisplay;
+        private boolean hasBasedOn;
+        private String basedOnReference;
+        private int resultCount;
+        private final List<String> results = new ArrayList<>();
+
+        ReportEntry() {
+            super("DiagnosticReport");
+        }
+    }
+
+    private static final class SpecimenEntry extends ResourceEntry {
+
+        private CodeableConcept type;
+
+        SpecimenEntry() {
+            super("Specimen");
+        }
+    }
+
+    private static final class ServiceRequestEntry extends ResourceEntry {
+
+        private CodeableConcept code;
+        private CodeableConcept orderDetail;
+        private boolean hasOrderDetail;
+        private String authoredOn;
+
+        ServiceRequestEntry() {
+            super("ServiceRequest");
+        }
+    }
+
+    private record ReferenceValue(String reference, String display) {
+
+        /**
+         * Whether the element is there, as HAPI's {@code has} methods test a reference, by its reference or display.
+         */
+        boolean isPresent() {
+            return (reference != null && !reference.isEmpty()) || (display != null && !display.isEmpty());
+        }
+    }
+
+    private record ExtensionValue(String url, String code, String text, Coding coding,
+                                  List<ExtensionValue> extensions) {
+    }
+
+    @FunctionalInterface
+    private interface ElementReader<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FhirR4MappingHelperTest {
+
+    @Test
+    public void testDateUsesRecordedZone() {
+        DateTimeType dateTime = new DateTimeType("2019-02-01T23:30:00-05:00");
+        assertEquals("2019-02-01", FhirR4MappingHelper.simpleAttributeFromDateAsDate(dateTime).getValue());
+        assertEquals("2019-02-01 23:30:00", FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(dateTime).getValue());
+
+        InstantType instant = new InstantType("2019-02-01T23:30:00.123Z");
+        assertEquals("2019-02-01 23:30:00", FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(instant).getValue());
+    }
+
+    @Test
+    public void testDateWithoutZone() {
+        assertEquals("1970-04-23", FhirR4MappingHelper.simpleAttributeFromDateAsDate(new DateType("1970-04-23")).getValue());
+    }
+
+    @Test
+    public void testEmptyDate() {
+        assertNull(FhirR4MappingHelper.simpleAttributeFromDateAsDate((DateType) null).getValue());
+        assertNull(FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(new DateTimeType()).getValue());
+        assertNull(FhirR4MappingHelper.simpleAttributeFromDateAsDate((Date) null, ZoneOffset.UTC).getValue());
+    }
+
+    @Test
+    public void testDateWithZoneId() {
+        Date date = new DateTimeType("2019-02-01T23:30:00Z").getValue();
+        assertEquals("2019-02-01 23:30:00",
+                FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(date, ZoneOffset.UTC).getValue());
+        assertEquals("2019-02-02",
+                FhirR4MappingHelper.simpleAttributeFromDateAsDate(date, ZoneId.of("Asia/Tokyo")).getValue());
+    }
+
+    @Test
+    public void testConcurrentFormatting() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                String value = String.format("20%02d-%02d-%02dT%02d:15:30Z", i % 100, i % 12 + 1, i % 28 + 1, i % 24);
+                String expected = String.format("20%02d-%02d-%02d %02d:15:30", i % 100, i % 12 + 1, i % 28 + 1, i % 24);
+                futures.add(executorService.submit(() -> {
+                    PiqiSimpleAttribute attribute =
+                            FhirR4MappingHelper.simpleAttributeFromDateAsDateTime(new DateTimeType(value));
+                    return expected.equals(attribute.getValue()) ? null : attribute.getValue() + " != " + expected;
+                }));
+            }
+            for (Future<String> future : futures) {
+                assertNull(future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+}
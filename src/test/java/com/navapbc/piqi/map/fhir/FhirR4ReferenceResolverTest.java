@@ -0,0 +1,104 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FhirR4ReferenceResolverTest {
+
+    private static final String SPECIMEN_UUID = "4a1e8d52-4e8d-4b0e-9a43-1d2c1b6f0a01";
+
+    @Test
+    public void testResolveByFullUrlAndRelativeReference() {
+        Specimen specimen = new Specimen();
+        specimen.setId("urn:uuid:" + SPECIMEN_UUID);
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/enc-1");
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl("urn:uuid:" + SPECIMEN_UUID).setResource(specimen);
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Encounter/enc-1").setResource(encounter);
+        FhirR4ReferenceResolver resolver = FhirR4ReferenceResolver.forBundle(bundle);
+
+        assertSame(specimen, resolver.resolve(new Reference("urn:uuid:" + SPECIMEN_UUID), Specimen.class, null));
+        assertSame(specimen, resolver.resolve(new Reference("Specimen/" + SPECIMEN_UUID), Specimen.class, null));
+        assertSame(encounter, resolver.resolve(new Reference("Encounter/enc-1"), Encounter.class, null));
+        assertSame(encounter, resolver.resolve(new Reference("http://example.org/fhir/Encounter/enc-1"), Encounter.class, null));
+        assertSame(encounter, resolver.resolve(new Reference("Encounter/enc-1/_history/3"), Encounter.class, null));
+
+        assertNull(resolver.resolve(new Reference("Encounter/enc-1"), Specimen.class, null));
+        assertNull(resolver.resolve(new Reference("Encounter/missing"), Encounter.class, null));
+        assertNull(resolver.resolve(new Reference(), Encounter.class, null));
+        assertNull(resolver.resolve(null, Encounter.class, null));
+    }
+
+    @Test
+    public void testResolvedReferenceAndContainedResource() {
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setId("order-1");
+        DiagnosticReport diagnosticReport = new DiagnosticReport();
+        diagnosticReport.addContained(serviceRequest);
+        FhirR4ReferenceResolver resolver = FhirR4ReferenceResolver.forResources(List.of(diagnosticReport));
+
+        assertSame(serviceRequest, resolver.resolve(new Reference("#order-1"), ServiceRequest.class, diagnosticReport));
+        // Contained resources of a resource the resolver has not seen are found too.
+        assertSame(serviceRequest, new FhirR4ReferenceResolver()
+                .resolve(new Reference("#order-1"), ServiceRequest.class, diagnosticReport));
+        assertNull(resolver.resolve(new Reference("#order-1"), ServiceRequest.class, null));
+
+        Reference resolved = new Reference();
+        resolved.setResource(serviceRequest);
+        assertSame(serviceRequest, new FhirR4ReferenceResolver().resolve(resolved, ServiceRequest.class, null));
+    }
+
+    @Test
+    public void testResourcesAddedAndRemovedAfterResolving() {
+        FhirR4ReferenceResolver resolver = new FhirR4ReferenceResolver();
+        Reference reference = new Reference("Specimen/" + SPECIMEN_UUID);
+        assertNull(resolver.resolve(reference, Specimen.class, null));
+
+        Specimen specimen = new Specimen();
+        specimen.setId(SPECIMEN_UUID);
+        resolver.add(specimen);
+        assertSame(specimen, resolver.resolve(reference, Specimen.class, null));
+
+        Encounter encounter = new Encounter();
+        encounter.setId("enc-1");
+        resolver.add(encounter);
+        resolver.removeAll(List.of(specimen));
+        assertNull(resolver.resolve(reference, Specimen.class, null));
+        assertSame(encounter, resolver.resolve(new Reference("Encounter/enc-1"), Encounter.class, null));
+    }
+
+    @Test
+    public void testMapperFollowsUnresolvedReferences() {
+        Specimen specimen = new Specimen();
+        specimen.setId("urn:uuid:" + SPECIMEN_UUID);
+        specimen.setType(new CodeableConcept(new Coding("http://snomed.info/sct", "119297000", "Blood specimen")));
+        Observation observation = new Observation();
+        observation.setId("urn:uuid:5b2f9e63-5f9e-4c1f-8b54-2e3d2c7a1b02");
+        observation.addCategory(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory")));
+        observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+        observation.setSpecimen(new Reference("urn:uuid:" + SPECIMEN_UUID));
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setFullUrl(observation.getId()).setResource(observation);
+        bundle.addEntry().setFullUrl("urn:uuid:" + SPECIMEN_UUID).setResource(specimen);
+
+        List<PiqiLabResult> piqiLabResults = new PiqiLabResultsR4Mapper().mapLabResults(bundle);
+
+        assertEquals(1, piqiLabResults.size());
+        assertEquals("119297000", piqiLabResults.get(0).getSpecimenType().getCodings().get(0).getCode().getValue());
+    }
+}
@@ -0,0 +1,109 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiLabResult;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiCodingCacheTest {
+
+    private static final String LOINC = "http://loinc.org";
+
+    @Test
+    public void testIdenticalConceptsAreShared() throws Exception {
+        PiqiCodingCache cache = new PiqiCodingCache();
+        PiqiCodeableConcept first = cache.codeableConcept(concept("Glucose", "2345-7"));
+        PiqiCodeableConcept second = cache.codeableConcept(concept("Glucose", "2345-7"));
+        assertSame(first, second);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(FhirR4MappingHelper.mapCodeableConcept(concept("Glucose", "2345-7"))),
+                objectMapper.writeValueAsString(first));
+
+        CodeableConcept otherText = concept("Glucose", "2345-7");
+        otherText.setText("Glucose [Mass/volume] in Serum or Plasma");
+        PiqiCodeableConcept other = cache.codeableConcept(otherText);
+        assertNotSame(first, other);
+        PiqiCoding coding = first.getCodings().get(0);
+        assertSame(coding, other.getCodings().get(0));
+        assertSame(coding.getSystem(), cache.attribute(LOINC));
+        assertSame(coding, cache.coding(LOINC, "2345-7", "Glucose"));
+    }
+
+    @Test
+    public void testCachedValuesCannotBeModified() {
+        PiqiCodingCache cache = new PiqiCodingCache();
+        PiqiCodeableConcept concept = cache.codeableConcept(concept("Glucose", "2345-7"));
+        PiqiCoding coding = concept.getCodings().get(0);
+
+        assertThrows(UnsupportedOperationException.class, () -> concept.getCodings().add(new PiqiCoding()));
+        assertThrows(UnsupportedOperationException.class, () -> concept.getCodings().clear());
+        assertThrows(UnsupportedOperationException.class, () -> concept.setText(new PiqiSimpleAttribute("Sugar")));
+        assertThrows(UnsupportedOperationException.class, () -> coding.setCode(new PiqiSimpleAttribute("2339-0")));
+        assertThrows(UnsupportedOperationException.class, () -> coding.getCode().setValue("2339-0"));
+        assertThrows(UnsupportedOperationException.class, () -> coding.getSystem().setValue("http://snomed.info/sct"));
+        assertEquals("2345-7", cache.coding(LOINC, "2345-7", "Glucose").getCode().getValue());
+        assertEquals(1, cache.codeableConcept(concept("Glucose", "2345-7")).getCodings().size());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        PiqiCodingCache cache = new PiqiCodingCache(64);
+        for (int i = 0; i < 10_000; i++) {
+            cache.coding(LOINC, Integer.toString(i), null);
+        }
+        assertTrue(cache.size() <= 64, "size=" + cache.size());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertThrows(IllegalArgumentException.class, () -> new PiqiCodingCache(1));
+    }
+
+    @Test
+    public void testMeasuredTextIsNotCached() {
+        PiqiCodingCache cache = new PiqiCodingCache();
+        PiqiCoding unit = cache.coding("http://unitsofmeasure.org", "mg/dL", null);
+        for (int i = 0; i < 10_000; i++) {
+            PiqiCodeableConcept resultUnit = FhirR4MappingHelper.mapCodeableConcept(Integer.toString(i),
+                    "http://unitsofmeasure.org", "mg/dL", null, cache);
+            assertEquals(Integer.toString(i), resultUnit.getText().getValue());
+            assertSame(unit, resultUnit.getCodings().get(0));
+        }
+        assertEquals(0, cache.getEvictionCount());
+        assertTrue(cache.size() <= 4, "size=" + cache.size());
+    }
+
+    @Test
+    public void testMappingWithCacheMatchesMappingWithout() throws Exception {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = parser.parseResource(Bundle.class, inputStream);
+
+        List<PiqiLabResult> expected = new PiqiLabResultsR4Mapper().mapLabResults(parsed);
+        PiqiLabResultsR4Mapper cachingMapper = new PiqiLabResultsR4Mapper();
+        cachingMapper.setCodingCache(new PiqiCodingCache());
+        List<PiqiLabResult> results = cachingMapper.mapLabResults(parsed);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(expected), objectMapper.writeValueAsString(results));
+        assertTrue(cachingMapper.getCodingCache().getHitCount() > 0);
+    }
+
+    private static CodeableConcept concept(String text, String code) {
+        CodeableConcept codeableConcept = new CodeableConcept();
+        codeableConcept.setText(text);
+        codeableConcept.addCoding(new Coding(LOINC, code, text));
+        return codeableConcept;
+    }
+}
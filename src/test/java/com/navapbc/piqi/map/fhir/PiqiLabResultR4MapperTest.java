@@ -3,17 +3,30 @@ package com.navapbc.piqi.map.fhir;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.navapbc.piqi.model.PiqiDemographics;
 import com.navapbc.piqi.model.PiqiLabResult;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Specimen;
 import org.junit.jupiter.api.Test;
 
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -75,4 +88,160 @@ public class PiqiLabResultR4MapperTest {
         assertEquals(37, results.size());
     }
 
+    @Test
+    public void testParallelMappingMatchesSequentialMapping() throws Exception {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = parser.parseResource(Bundle.class, inputStream);
+        List<PiqiLabResult> sequential = mapper.mapLabResults(parsed);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<PiqiLabResult> parallel = mapper.mapLabResults(parsed, pool);
+            assertEquals(37, parallel.size());
+            ObjectMapper objectMapper = new ObjectMapper();
+            assertEquals(objectMapper.writeValueAsString(sequential), objectMapper.writeValueAsString(parallel));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelMappingDoesNotWriteToSharedResources() throws Exception {
+        Specimen specimen = new Specimen();
+        specimen.setId("specimen-1");
+        specimen.setType(new CodeableConcept().setText("Blood"));
+        ServiceRequest serviceRequest = new ServiceRequest();
+        serviceRequest.setId("order-1");
+        serviceRequest.addOrderDetail(new CodeableConcept().setText("Fasting"));
+        Bundle bundle = new Bundle();
+        bundle.addEntry().setResource(specimen);
+        bundle.addEntry().setResource(serviceRequest);
+        for (int i = 0; i < 200; i++) {
+            Observation observation = new Observation();
+            observation.setId("obs-" + i);
+            observation.addCategory(new CodeableConcept(new Coding(
+                    "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory")));
+            observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+            observation.setSpecimen(new Reference("Specimen/specimen-1"));
+            DiagnosticReport diagnosticReport = new DiagnosticReport();
+            diagnosticReport.setId("report-" + i);
+            diagnosticReport.addBasedOn(new Reference("ServiceRequest/order-1"));
+            diagnosticReport.addResult(new Reference("Observation/obs-" + i));
+            bundle.addEntry().setResource(observation);
+            bundle.addEntry().setResource(diagnosticReport);
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<PiqiLabResult> parallel = mapper.mapLabResults(bundle, pool);
+            assertEquals(200, parallel.size());
+            assertEquals("Blood", parallel.get(199).getSpecimenType().getText().getValue());
+            assertEquals("Fasting", parallel.get(199).getOrder().getText().getValue());
+        } finally {
+            pool.shutdown();
+        }
+        // HAPI creates the coding list of a concept on the first getCoding(), which no task may call on them.
+        Field coding = CodeableConcept.class.getDeclaredField("coding");
+        coding.setAccessible(true);
+        assertNull(coding.get(specimen.getType()));
+        assertNull(coding.get(serviceRequest.getOrderDetail().get(0)));
+    }
+
+    @Test
+    public void testBundleMappingMatchesReportScan() throws Exception {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = parser.parseResource(Bundle.class, inputStream);
+
+        List<DiagnosticReport> diagnosticReports = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : parsed.getEntry()) {
+            if (entry.getResource() instanceof DiagnosticReport diagnosticReport) {
+                diagnosticReports.add(diagnosticReport);
+            }
+        }
+        // Map each lab observation against the report found by scanning every report's results.
+        List<PiqiLabResult> expected = new ArrayList<>();
+        int withReport = 0;
+        for (Bundle.BundleEntryComponent entry : parsed.getEntry()) {
+            if (entry.getResource() instanceof Observation observation && FhirR4MappingHelper.isLab(observation)) {
+                DiagnosticReport owner = scanForReport(observation, diagnosticReports);
+                Map<String, DiagnosticReport> reports = owner == null ? Collections.emptyMap()
+                        : Map.of(owner.getIdElement().getIdPart(), owner);
+                if (owner != null) {
+                    withReport++;
+                }
+                expected.add(mapper.mapLabResult(observation, reports));
+            }
+        }
+
+        List<PiqiLabResult> results = mapper.mapLabResults(parsed);
+        assertEquals(37, results.size());
+        assertEquals(22, withReport);
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(expected), objectMapper.writeValueAsString(results));
+    }
+
+    @Test
+    public void testReportScanMatchesReportIndex() {
+        Observation observation = new Observation();
+        observation.setId("Observation/obs-1");
+        DiagnosticReport bareId = new DiagnosticReport();
+        bareId.setId("report-1");
+        bareId.addResult(new Reference("obs-1"));
+        DiagnosticReport relative = new DiagnosticReport();
+        relative.setId("report-2");
+        relative.addResult(new Reference("Observation/obs-1"));
+        Map<String, DiagnosticReport> reports = new LinkedHashMap<>();
+        reports.put("report-1", bareId);
+        reports.put("report-2", relative);
+
+        FhirR4ReportIndex reportIndex = FhirR4ReportIndex.of(reports.values());
+        assertSame(relative, reportIndex.getDiagnosticReport(observation));
+        assertSame(relative, FhirR4ReportIndex.findDiagnosticReport(observation, reports.values()));
+        reports.remove("report-2");
+        assertSame(bareId, FhirR4ReportIndex.findDiagnosticReport(observation, reports.values()));
+        assertNull(FhirR4ReportIndex.findDiagnosticReport(new Observation(), reports.values()));
+        assertNotNull(mapper.mapLabResult(observation, reportIndex).getResultStatus());
+    }
+
+    @Test
+    public void testQuantityRangeAndSpecimenMapping() {
+        Specimen specimen = new Specimen();
+        specimen.setType(new CodeableConcept(new Coding("http://snomed.info/sct", "119297000", "Blood specimen")));
+        Observation observation = new Observation();
+        observation.setId("obs-1");
+        observation.addCategory(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory")));
+        observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+        observation.setValue(new Quantity().setValue(new BigDecimal("95.0")).setUnit("mg/dL")
+                .setSystem("http://unitsofmeasure.org").setCode("mg/dL"));
+        observation.addReferenceRange()
+                .setLow(new Quantity().setValue(new BigDecimal("70")))
+                .setHigh(new Quantity().setValue(new BigDecimal("99")));
+        observation.getSpecimen().setReference("Specimen/specimen-1").setResource(specimen);
+
+        PiqiLabResult piqiLabResult = mapper.mapLabResult(observation, (DiagnosticReport) null);
+
+        assertEquals("95.0", piqiLabResult.getResultValue().getNumber().getValue());
+        assertEquals("95.0", piqiLabResult.getResultUnit().getText().getValue());
+        assertEquals("mg/dL", piqiLabResult.getResultUnit().getCodings().get(0).getCode().getValue());
+        assertEquals("http://unitsofmeasure.org", piqiLabResult.getResultUnit().getCodings().get(0).getSystem().getValue());
+        assertEquals("70", piqiLabResult.getReferenceRange().getLowValue().getValue());
+        assertEquals("99", piqiLabResult.getReferenceRange().getHighValue().getValue());
+        assertEquals("119297000", piqiLabResult.getSpecimenType().getCodings().get(0).getCode().getValue());
+    }
+
+    private static DiagnosticReport scanForReport(Observation observation, List<DiagnosticReport> diagnosticReports) {
+        for (DiagnosticReport diagnosticReport : diagnosticReports) {
+            for (Reference result : diagnosticReport.getResult()) {
+                if (result.getResource() == observation
+                        || observation.getId().equals(result.getReferenceElement().getIdPart())) {
+                    return diagnosticReport;
+                }
+            }
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,79 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiMapperRegistryTest {
+
+    @Test
+    public void testDefaultRegistryDiscoversMappers() {
+        PiqiMapperRegistry registry = PiqiMapperRegistry.getDefault();
+        assertSame(registry, PiqiMapperRegistry.getDefault());
+        assertEquals(2, registry.getMappers().size());
+
+        assertInstanceOf(PiqiDemographicsR4Mapper.class,
+                registry.getMapper(FhirVersionEnum.R4, PiqiDemographics.class));
+        PiqiLabResultsR4Mapper labMapper =
+                registry.getMapper(FhirVersionEnum.R4, PiqiLabResult.class, PiqiLabResultsR4Mapper.class);
+        assertNotNull(labMapper);
+        assertSame(labMapper, registry.getMapper(FhirVersionEnum.R4, PiqiLabResult.class));
+
+        assertNull(registry.getMapper(FhirVersionEnum.R5, PiqiLabResult.class));
+        assertNull(registry.getMapper(FhirVersionEnum.R4, String.class));
+        assertNull(registry.getMapper(null, PiqiLabResult.class));
+    }
+
+    @Test
+    public void testDefaultRegistryMappersCannotBeConfigured() {
+        PiqiLabResultsR4Mapper sharedMapper = PiqiMapperRegistry.getDefault()
+                .getMapper(FhirVersionEnum.R4, PiqiLabResult.class, PiqiLabResultsR4Mapper.class);
+        assertThrows(IllegalStateException.class, () -> sharedMapper.setCodingCache(new PiqiCodingCache()));
+        assertThrows(IllegalStateException.class, () -> sharedMapper.setTerminologyTranslator(
+                new PiqiTerminologyTranslator()));
+        assertThrows(IllegalStateException.class, () -> sharedMapper.setMetrics(PiqiMappingMetrics.NOOP));
+        assertNull(sharedMapper.getCodingCache());
+
+        PiqiMapperRegistry registry = PiqiMapperRegistry.load(getClass().getClassLoader());
+        PiqiLabResultsR4Mapper ownMapper =
+                registry.getMapper(FhirVersionEnum.R4, PiqiLabResult.class, PiqiLabResultsR4Mapper.class);
+        assertNotSame(sharedMapper, ownMapper);
+        PiqiCodingCache codingCache = new PiqiCodingCache();
+        ownMapper.setCodingCache(codingCache);
+        assertSame(codingCache, ownMapper.getCodingCache());
+    }
+
+    @Test
+    public void testMappersWithoutIndexKeysAreScanned() {
+        PiqiBaseMapper legacyMapper = new PiqiBaseMapper() {
+            @Override
+            public boolean isFhirVersion(FhirVersionEnum fhirVersion) {
+                return fhirVersion == FhirVersionEnum.R5;
+            }
+
+            @Override
+            public boolean isMappingClassFor(Class<?> clazz) {
+                return clazz.equals(PiqiLabResult.class);
+            }
+        };
+        PiqiMapperRegistry registry = PiqiMapperRegistry.of(List.of(new PiqiLabResultsR4Mapper(), legacyMapper));
+
+        assertSame(legacyMapper, registry.getMapper(FhirVersionEnum.R5, PiqiLabResult.class));
+        assertSame(legacyMapper, registry.getMapper(FhirVersionEnum.R5, PiqiLabResult.class));
+        assertInstanceOf(PiqiLabResultsR4Mapper.class, registry.getMapper(FhirVersionEnum.R4, PiqiLabResult.class));
+        assertNull(registry.getMapper(FhirVersionEnum.R5, PiqiDemographics.class));
+        assertEquals(1, registry.getMappers(FhirVersionEnum.R5).size());
+    }
+
+    @Test
+    public void testFirstRegisteredMapperWins() {
+        PiqiLabResultsR4Mapper first = new PiqiLabResultsR4Mapper();
+        PiqiMapperRegistry registry = PiqiMapperRegistry.of(List.of(first, new PiqiLabResultsR4Mapper()));
+        assertSame(first, registry.getMapper(FhirVersionEnum.R4, PiqiLabResult.class));
+    }
+}
@@ -0,0 +1,126 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiR4BundleMapperTest {
+
+    @Test
+    public void testSinglePassMatchesIndividualMappers() throws Exception {
+        Bundle parsed = parseSyntheaBundle();
+        PiqiR4BundleMapper bundleMapper = PiqiR4BundleMapper.of(PiqiMapperRegistry.getDefault());
+        assertEquals(2, bundleMapper.getMappers().size());
+
+        PiqiBundleMappingResult result = bundleMapper.map(parsed);
+
+        assertEquals(Set.of(PiqiDemographics.class, PiqiLabResult.class), result.getPiqiClasses());
+        assertEquals(37, result.getLabResults().size());
+        assertNotNull(result.getDemographics());
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(parsed)),
+                objectMapper.writeValueAsString(result.getLabResults()));
+        assertEquals(objectMapper.writeValueAsString(new PiqiDemographicsR4Mapper().mapDemographics(parsed)),
+                objectMapper.writeValueAsString(result.getDemographics()));
+    }
+
+    @Test
+    public void testEntriesAreDispatchedByResourceType() {
+        Bundle parsed = parseSyntheaBundle();
+        CountingMapper countingMapper = new CountingMapper();
+        PiqiR4BundleMapper bundleMapper =
+                new PiqiR4BundleMapper(List.of(countingMapper, new PiqiDemographicsR4Mapper()));
+
+        PiqiBundleMappingResult result = bundleMapper.map(parsed);
+
+        long expected = parsed.getEntry().stream()
+                .filter(entry -> entry.getResource().getResourceType() == ResourceType.Observation
+                        || entry.getResource().getResourceType() == ResourceType.DiagnosticReport)
+                .count();
+        assertEquals(expected, result.get(CountingMapper.class));
+        assertNotNull(result.getDemographics());
+        assertNull(result.getLabResults());
+    }
+
+    @Test
+    public void testMapperWithoutCollectorMapsTheEntriesOfItsTypes() throws Exception {
+        Bundle parsed = parseSyntheaBundle();
+        Set<ResourceType> offered = EnumSet.noneOf(ResourceType.class);
+        PiqiBaseR4Mapper withoutCollector = new PiqiBaseR4Mapper() {
+            private final PiqiLabResultsR4Mapper labResultsMapper = new PiqiLabResultsR4Mapper();
+
+            @Override
+            public Class<?> getMappingClass() {
+                return PiqiLabResult.class;
+            }
+
+            @Override
+            public Set<ResourceType> getResourceTypes() {
+                return labResultsMapper.getResourceTypes();
+            }
+
+            @Override
+            public List<PiqiLabResult> mapLabResults(Bundle bundle) {
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    offered.add(entry.getResource().getResourceType());
+                }
+                return labResultsMapper.mapLabResults(bundle);
+            }
+        };
+
+        PiqiBundleMappingResult result =
+                new PiqiR4BundleMapper(List.of(new PiqiDemographicsR4Mapper(), withoutCollector)).map(parsed);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(parsed)),
+                objectMapper.writeValueAsString(result.getLabResults()));
+        assertNotNull(result.getDemographics());
+        assertTrue(withoutCollector.getResourceTypes().containsAll(offered), offered.toString());
+        assertFalse(offered.contains(ResourceType.Patient));
+    }
+
+    private Bundle parseSyntheaBundle() {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        return parser.parseResource(Bundle.class, inputStream);
+    }
+
+    private static class CountingMapper extends PiqiBaseR4Mapper {
+
+        @Override
+        public Set<ResourceType> getResourceTypes() {
+            return EnumSet.of(ResourceType.Observation, ResourceType.DiagnosticReport);
+        }
+
+        @Override
+        public PiqiR4EntryCollector newEntryCollector() {
+            return new PiqiR4EntryCollector() {
+                private long count;
+
+                @Override
+                public void accept(Bundle.BundleEntryComponent entry) {
+                    count++;
+                }
+
+                @Override
+                public void finish(PiqiBundleMappingResult result) {
+                    result.put(CountingMapper.class, count);
+                }
+            };
+        }
+    }
+}
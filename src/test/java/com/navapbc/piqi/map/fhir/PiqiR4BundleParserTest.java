@@ -0,0 +1,118 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.model.PiqiDemographics;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiR4BundleParserTest {
+
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    @Test
+    public void testFilteredBundleMapsLikeTheFullBundle() throws Exception {
+        Bundle full = parseSyntheaBundle();
+        PiqiR4BundleMapper bundleMapper = PiqiR4BundleMapper.of(PiqiMapperRegistry.getDefault());
+        PiqiR4BundleParser bundleParser = PiqiR4BundleParser.of(CTX, bundleMapper);
+
+        Bundle filtered;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            filtered = bundleParser.parse(inputStream);
+        }
+
+        assertTrue(filtered.getEntry().size() < full.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : filtered.getEntry()) {
+            assertTrue(bundleParser.getResourceTypes().contains(entry.getResource().fhirType()),
+                    entry.getResource().fhirType());
+            if (entry.getResource() instanceof Observation observation) {
+                assertTrue(FhirR4MappingHelper.isLab(observation));
+            }
+        }
+        ObjectMapper objectMapper = new ObjectMapper();
+        PiqiBundleMappingResult expected = bundleMapper.map(full);
+        PiqiBundleMappingResult result = bundleMapper.map(filtered);
+        assertEquals(37, result.getLabResults().size());
+        assertEquals(objectMapper.writeValueAsString(expected.getLabResults()),
+                objectMapper.writeValueAsString(result.getLabResults()));
+        assertEquals(objectMapper.writeValueAsString(expected.getDemographics()),
+                objectMapper.writeValueAsString(result.getDemographics()));
+    }
+
+    @Test
+    public void testOnlyTheSelectedClassesAreRead() throws Exception {
+        PiqiR4BundleParser bundleParser = PiqiR4BundleParser.of(CTX, PiqiMapperRegistry.getDefault(),
+                List.of(PiqiDemographics.class));
+
+        Bundle filtered;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            filtered = bundleParser.parse(inputStream);
+        }
+
+        assertEquals(Set.of("Patient"), bundleParser.getResourceTypes());
+        assertEquals(1, filtered.getEntry().size());
+        assertInstanceOf(Patient.class, filtered.getEntryFirstRep().getResource());
+        assertThrows(IllegalArgumentException.class,
+                () -> PiqiR4BundleParser.of(CTX, PiqiMapperRegistry.getDefault(), List.of(String.class)));
+    }
+
+    @Test
+    public void testResourceTypeAfterOtherElements() {
+        String json = """
+                {"resourceType": "Bundle", "type": "collection", "entry": [
+                  {"resource": {"id": "obs-1", "category": [{"coding": [{"code": "laboratory"}]}],
+                                "resourceType": "Observation", "status": "final"},
+                   "fullUrl": "http://example.org/fhir/Observation/obs-1"},
+                  {"resource": {"id": "obs-2", "category": [{"coding": [{"code": "vital-signs"}]}],
+                                "resourceType": "Observation", "status": "final"}},
+                  {"resource": {"resourceType": "Observation", "id": "obs-3", "status": "final",
+                                "category": [{"coding": [{"code": "vital-signs"}]}, {"coding": [{"code": "laboratory"}]}]}},
+                  {"resource": {"resourceType": "Claim", "id": "claim-1"}}
+                ]}
+                """;
+        PiqiR4BundleParser bundleParser = new PiqiR4BundleParser(CTX, List.of(new PiqiLabResultsR4Mapper()));
+
+        Bundle filtered = bundleParser.parse(new StringReader(json));
+
+        assertEquals(Bundle.BundleType.COLLECTION, filtered.getType());
+        assertEquals(2, filtered.getEntry().size());
+        assertEquals("obs-1", filtered.getEntry().get(0).getResource().getIdElement().getIdPart());
+        assertEquals("http://example.org/fhir/Observation/obs-1", filtered.getEntry().get(0).getFullUrl());
+        assertEquals("obs-3", filtered.getEntry().get(1).getResource().getIdElement().getIdPart());
+    }
+
+    @Test
+    public void testMapperReadingEveryObservationDisablesTheCategoryFilter() {
+        String json = """
+                {"resourceType": "Bundle", "entry": [
+                  {"resource": {"resourceType": "Observation", "id": "obs-1",
+                                "category": [{"coding": [{"code": "vital-signs"}]}]}}
+                ]}
+                """;
+        PiqiBaseR4Mapper everyObservation = new PiqiBaseR4Mapper() {
+            @Override
+            public Set<ResourceType> getResourceTypes() {
+                return Set.of(ResourceType.Observation);
+            }
+        };
+        PiqiR4BundleParser bundleParser =
+                new PiqiR4BundleParser(CTX, List.of(new PiqiLabResultsR4Mapper(), everyObservation));
+
+        assertEquals(1, bundleParser.parse(new StringReader(json)).getEntry().size());
+    }
+
+    private Bundle parseSyntheaBundle() {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        return CTX.newJsonParser().parseResource(Bundle.class, inputStream);
+    }
+}
@@ -0,0 +1,89 @@
+package com.navapbc.piqi.map.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiR4EngineTest {
+
+    @Test
+    public void testContextIsCreatedOnceAndWarmedUp() {
+        PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.getDefault());
+
+        assertSame(engine, engine.warmUp());
+        assertSame(engine.getFhirContext(), engine.getFhirContext());
+        assertEquals(FhirVersionEnum.R4, engine.getFhirContext().getVersion().getVersion());
+        assertTrue(engine.getWarmUpResourceTypes().containsAll(
+                List.of(ResourceType.Bundle, ResourceType.Patient, ResourceType.Observation)));
+        assertSame(PiqiR4Engine.getDefault(), PiqiR4Engine.getDefault());
+    }
+
+    @Test
+    public void testParsersAreReused() {
+        PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.getDefault());
+        IParser parser = engine.borrowParser();
+        engine.releaseParser(parser);
+        assertSame(parser, engine.borrowParser());
+
+        engine.setMaxIdleParsers(0);
+        engine.releaseParser(parser);
+        assertNotSame(parser, engine.borrowParser());
+        assertThrows(IllegalArgumentException.class, () -> engine.setMaxIdleParsers(-1));
+    }
+
+    @Test
+    public void testParseBundleMatchesHapiParse() throws Exception {
+        Bundle expected;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            expected = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, inputStream);
+        }
+        Bundle parsed;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            parsed = PiqiR4Engine.getDefault().parseBundle(inputStream);
+        }
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(expected)),
+                objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(parsed)));
+        assertEquals(objectMapper.writeValueAsString(new PiqiDemographicsR4Mapper().mapDemographics(expected)),
+                objectMapper.writeValueAsString(new PiqiDemographicsR4Mapper().mapDemographics(parsed)));
+    }
+
+    @Test
+    public void testConcurrentMapping() throws Exception {
+        PiqiR4Engine engine = PiqiR4Engine.getDefault();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<PiqiBundleMappingResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                boolean filtered = i % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    try (InputStream inputStream =
+                                 getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+                        return filtered ? engine.map(inputStream)
+                                : engine.getBundleMapper().map(engine.parseBundle(inputStream));
+                    }
+                }));
+            }
+            for (Future<PiqiBundleMappingResult> future : futures) {
+                PiqiBundleMappingResult result = future.get();
+                assertEquals(37, result.getLabResults().size());
+                assertNotNull(result.getDemographics());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
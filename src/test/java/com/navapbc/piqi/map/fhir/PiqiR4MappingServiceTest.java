@@ -0,0 +1,222 @@
+package com.navapbc.piqi.map.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiR4MappingServiceTest {
+
+    @Test
+    public void testMapManyPayloads() throws Exception {
+        byte[] json = readSynthea();
+        try (PiqiR4MappingService service = new PiqiR4MappingService(PiqiR4Engine.getDefault(), 2, null)) {
+            List<CompletableFuture<PiqiBundleMappingResult>> futures =
+                    service.mapAll(Collections.nCopies(10, json));
+
+            assertEquals(10, futures.size());
+            for (CompletableFuture<PiqiBundleMappingResult> future : futures) {
+                assertEquals(37, future.get(1, TimeUnit.MINUTES).getLabResults().size());
+            }
+            assertEquals(Runtime.version().feature() >= 21, service.isVirtualThreads());
+        }
+    }
+
+    @Test
+    public void testConcurrencyIsCapped() throws Exception {
+        SlowMapper slowMapper = new SlowMapper(20);
+        PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.of(List.of(slowMapper)));
+        try (PiqiR4MappingService service = new PiqiR4MappingService(engine, 3, null)) {
+            List<CompletableFuture<PiqiBundleMappingResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                futures.add(service.map(new Bundle()));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+        }
+        assertTrue(slowMapper.maxActive.get() <= 3, "maxActive=" + slowMapper.maxActive.get());
+        assertEquals(12, slowMapper.finished.get());
+    }
+
+    @Test
+    public void testSlowRequestTimesOut() throws Exception {
+        PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.of(List.of(new SlowMapper(10_000))));
+        try (PiqiR4MappingService service = new PiqiR4MappingService(engine, 1, Duration.ofMillis(100))) {
+            CompletableFuture<PiqiBundleMappingResult> slow = service.map(new Bundle());
+            CompletableFuture<PiqiBundleMappingResult> queued = service.map(new Bundle());
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> slow.get(1, TimeUnit.MINUTES));
+            assertInstanceOf(TimeoutException.class, e.getCause());
+            e = assertThrows(ExecutionException.class, () -> queued.get(1, TimeUnit.MINUTES));
+            assertInstanceOf(TimeoutException.class, e.getCause());
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> new PiqiR4MappingService(PiqiR4Engine.getDefault(), 0, null));
+    }
+
+    @Test
+    public void testTimedOutRequestHandsBackItsPermit() throws Exception {
+        // The first mapping ignores interrupts, as HAPI parsing and mapping do, and outlives its timeout.
+        SlowMapper slowMapper = new SlowMapper(3_000, 1, false);
+        PiqiR4Engine engine = new PiqiR4Engine(PiqiMapperRegistry.of(List.of(slowMapper)));
+        try (PiqiR4MappingService service = new PiqiR4MappingService(engine, 1, Duration.ofMillis(500))) {
+            CompletableFuture<PiqiBundleMappingResult> slow = service.map(new Bundle());
+            ExecutionException e = assertThrows(ExecutionException.class, () -> slow.get(1, TimeUnit.MINUTES));
+            assertInstanceOf(TimeoutException.class, e.getCause());
+
+            assertNotNull(service.map(new Bundle()).get(1, TimeUnit.MINUTES));
+            assertEquals(1, slowMapper.finished.get());
+            assertEquals(1, service.getOverrunningRequests());
+
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+            while (service.getOverrunningRequests() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, service.getOverrunningRequests());
+            assertEquals(2, slowMapper.finished.get());
+        }
+    }
+
+    @Test
+    public void testPublisherEmitsEveryOutcome() throws Exception {
+        byte[] json = readSynthea();
+        List<byte[]> payloads = List.of(json, "not json".getBytes(StandardCharsets.UTF_8), json);
+        List<PiqiR4MappingService.MappingOutcome> outcomes = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(1);
+        try (PiqiR4MappingService service = new PiqiR4MappingService()) {
+            service.publish(payloads).subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(PiqiR4MappingService.MappingOutcome outcome) {
+                    outcomes.add(outcome);
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    completed.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+            assertTrue(completed.await(1, TimeUnit.MINUTES));
+        }
+        assertEquals(3, outcomes.size());
+        for (PiqiR4MappingService.MappingOutcome outcome : outcomes) {
+            if (outcome.index() == 1) {
+                assertFalse(outcome.isSuccess());
+                assertNull(outcome.result());
+            } else {
+                assertTrue(outcome.isSuccess());
+                assertEquals(37, outcome.result().getLabResults().size());
+            }
+        }
+    }
+
+    private byte[] readSynthea() throws Exception {
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    /**
+     * Takes the given time to map the first {@code slowCalls} bundles and records how many mappings ran at once.
+     */
+    private static class SlowMapper extends PiqiBaseR4Mapper {
+
+        private final long millis;
+        private final int slowCalls;
+        private final boolean interruptible;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private final AtomicInteger finished = new AtomicInteger();
+
+        SlowMapper(long millis) {
+            this(millis, Integer.MAX_VALUE, true);
+        }
+
+        SlowMapper(long millis, int slowCalls, boolean interruptible) {
+            this.millis = millis;
+            this.slowCalls = slowCalls;
+            this.interruptible = interruptible;
+        }
+
+        @Override
+        public Set<ResourceType> getResourceTypes() {
+            return EnumSet.of(ResourceType.Patient);
+        }
+
+        @Override
+        public Class<?> getMappingClass() {
+            return SlowMapper.class;
+        }
+
+        @Override
+        public PiqiR4EntryCollector newEntryCollector() {
+            return new PiqiR4EntryCollector() {
+                @Override
+                public void accept(Bundle.BundleEntryComponent entry) {
+                }
+
+                @Override
+                public void finish(PiqiBundleMappingResult result) {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    try {
+                        if (calls.incrementAndGet() <= slowCalls) {
+                            sleep();
+                        }
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                    finished.incrementAndGet();
+                }
+            };
+        }
+
+        private void sleep() {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            boolean interrupted = false;
+            for (long remaining = millis; remaining > 0;
+                 remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) {
+                try {
+                    Thread.sleep(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (interruptible) {
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.navapbc.piqi.map.fhir;
+
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ConceptMap;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiTerminologyTranslatorTest {
+
+    private static final String LOCAL_LAB = "urn:example:local-lab";
+    private static final String LOINC = "http://loinc.org";
+    private static final String UCUM = "http://unitsofmeasure.org";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLabMapperTranslatesTestCodeAndUnit() throws Exception {
+        Path csv = tempDir.resolve("translations.csv");
+        Files.writeString(csv, String.join("\n",
+                "source_system,source_code,target_system,target_code,target_display",
+                "# local glucose test",
+                LOCAL_LAB + ",GLU,http://loinc.org,2345-7,\"Glucose [Mass/volume] in Serum or Plasma\"",
+                UCUM + ",mg/dl," + UCUM + ",mg/dL,"));
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+        translator.loadCsv(csv);
+        PiqiLabResultsR4Mapper mapper = new PiqiLabResultsR4Mapper();
+        mapper.setTerminologyTranslator(translator);
+
+        PiqiLabResult piqiLabResult = mapper.mapLabResult(observation("GLU", "mg/dl"), null);
+
+        PiqiCoding test = piqiLabResult.getTest().getCodings().get(0);
+        assertEquals(LOINC, test.getSystem().getValue());
+        assertEquals("2345-7", test.getCode().getValue());
+        assertEquals("Glucose [Mass/volume] in Serum or Plasma", test.getDisplay().getValue());
+        PiqiCoding unit = piqiLabResult.getResultUnit().getCodings().get(0);
+        assertEquals("mg/dL", unit.getCode().getValue());
+        assertEquals(2, translator.size());
+        assertEquals(2, translator.getTranslatedCount());
+
+        PiqiLabResult untranslated = mapper.mapLabResult(observation("NA", "mmol/L"), null);
+        assertEquals("NA", untranslated.getTest().getCodings().get(0).getCode().getValue());
+        assertEquals(2, translator.getUntranslatedCount());
+    }
+
+    @Test
+    public void testHotCodesAreCached() {
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator(8);
+        translator.add(LOCAL_LAB, "GLU", LOINC, "2345-7", null);
+
+        assertEquals("2345-7", translator.lookup(LOCAL_LAB, "GLU").code());
+        assertEquals("2345-7", translator.lookup(LOCAL_LAB, "GLU").code());
+        assertNull(translator.lookup(LOCAL_LAB, "NA"));
+        assertNull(translator.lookup(LOCAL_LAB, "NA"));
+        assertEquals(2, translator.getCacheHitCount());
+        assertEquals(2, translator.getCacheMissCount());
+
+        // A later translation replaces the earlier one, and one for a missed code is seen at once.
+        translator.add(LOCAL_LAB, "GLU", LOINC, "2339-0", null);
+        translator.add(LOCAL_LAB, "NA", LOINC, "2951-2", null);
+        assertEquals("2339-0", translator.lookup(LOCAL_LAB, "GLU").code());
+        assertEquals("2951-2", translator.lookup(LOCAL_LAB, "NA").code());
+        assertEquals(2, translator.size());
+        assertThrows(IllegalArgumentException.class, () -> new PiqiTerminologyTranslator(0));
+    }
+
+    @Test
+    public void testLookupsDuringALoadDoNotCacheStaleMisses() throws Exception {
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                translator.lookup(LOCAL_LAB, "CODE-" + (i++ % 100));
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 100; i++) {
+                translator.add(LOCAL_LAB, "CODE-" + i, LOINC, "L-" + i, null);
+                PiqiTerminologyTranslator.Translation translation = translator.lookup(LOCAL_LAB, "CODE-" + i);
+                assertNotNull(translation, "CODE-" + i);
+                assertEquals("L-" + i, translation.code());
+            }
+        } finally {
+            running.set(false);
+            reader.join();
+        }
+    }
+
+    @Test
+    public void testConceptMapSkipsUnmatchedTargets() {
+        ConceptMap conceptMap = new ConceptMap();
+        ConceptMap.ConceptMapGroupComponent group = conceptMap.addGroup();
+        group.setSource(LOCAL_LAB);
+        group.setTarget(LOINC);
+        group.addElement().setCode("GLU").addTarget().setCode("2345-7")
+                .setEquivalence(Enumerations.ConceptMapEquivalence.EQUIVALENT);
+        group.addElement().setCode("XYZ").addTarget().setCode("0000-0")
+                .setEquivalence(Enumerations.ConceptMapEquivalence.UNMATCHED);
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+
+        translator.loadConceptMap(conceptMap);
+
+        assertEquals(new PiqiTerminologyTranslator.Translation(LOINC, "2345-7", null),
+                translator.lookup(LOCAL_LAB, "GLU"));
+        assertNull(translator.lookup(LOCAL_LAB, "XYZ"));
+        PiqiCoding coding = translator.translate(LOCAL_LAB, "GLU", "Glucose", null);
+        assertEquals("Glucose", coding.getDisplay().getValue());
+    }
+
+    @Test
+    public void testCsvLineParsing() {
+        assertEquals(List.of("a", "b,c", "say \"hi\"", ""),
+                PiqiTerminologyTranslator.parseCsvLine("a,\"b,c\",\"say \"\"hi\"\"\","));
+    }
+
+    private static Observation observation(String code, String unit) {
+        Observation observation = new Observation();
+        observation.setCode(new CodeableConcept(new Coding(LOCAL_LAB, code, null)));
+        observation.setValue(new Quantity().setValue(new BigDecimal("95")).setSystem(UCUM).setCode(unit)
+                .setUnit(unit));
+        return observation;
+    }
+}
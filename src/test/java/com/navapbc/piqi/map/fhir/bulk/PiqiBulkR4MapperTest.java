@@ -0,0 +1,196 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiBulkR4MapperTest {
+
+    private static final FhirContext ctx = FhirContext.forR4();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testBulkMappingMatchesBundleMapping() throws Exception {
+        List<Path> files = SyntheaNdjson.write(tempDir);
+        Path workDirectory = Files.createDirectory(tempDir.resolve("work"));
+        PiqiBulkR4Mapper bulkMapper = new PiqiBulkR4Mapper(ctx);
+        bulkMapper.setPartitionCount(4);
+        bulkMapper.setWorkDirectory(workDirectory);
+        CollectingSink sink = new CollectingSink();
+
+        PiqiBulkMappingSummary summary = bulkMapper.map(files, sink);
+
+        assertEquals(37, summary.getLabResultsMapped());
+        assertEquals(1, summary.getDemographicsMapped());
+        assertEquals(37, sink.labResults.size());
+        assertEquals(1, sink.demographics.size());
+        assertEquals(List.of("01d6ee97-ee40-4430-a9c3-e1afb54afb31"), sink.patientKeys.stream().distinct().toList());
+        try (Stream<Path> remaining = Files.list(workDirectory)) {
+            assertEquals(0, remaining.count());
+        }
+
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = ctx.newJsonParser().parseResource(Bundle.class, inputStream);
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertEquals(sortedJson(objectMapper, new PiqiLabResultsR4Mapper().mapLabResults(parsed)),
+                sortedJson(objectMapper, sink.labResults));
+        assertEquals(objectMapper.writeValueAsString(new PiqiDemographicsR4Mapper().mapDemographics(parsed)),
+                objectMapper.writeValueAsString(sink.demographics.get(0)));
+    }
+
+    @Test
+    public void testParallelMappingMatchesSequentialMapping() throws Exception {
+        List<Path> files = SyntheaNdjson.write(tempDir);
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        PiqiBulkR4Mapper sequentialMapper = new PiqiBulkR4Mapper(ctx);
+        sequentialMapper.setPartitionCount(4);
+        CollectingSink sequential = new CollectingSink();
+        sequentialMapper.map(files, sequential);
+
+        PiqiBulkR4Mapper parallelMapper = new PiqiBulkR4Mapper(ctx);
+        parallelMapper.setPartitionCount(4);
+        parallelMapper.setParallelism(4);
+        // Small chunks so that every file is split across several workers.
+        parallelMapper.setChunkSize(8 * 1024);
+        CollectingSink ordered = new CollectingSink();
+        PiqiBulkMappingSummary summary = parallelMapper.map(files, ordered);
+
+        assertEquals(objectMapper.writeValueAsString(sequential.labResults),
+                objectMapper.writeValueAsString(ordered.labResults));
+        assertEquals(files.size(), summary.getFileStats().size());
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += Files.size(file);
+        }
+        assertEquals(bytes, summary.getFileStats().stream().mapToLong(PiqiBulkFileStats::getBytesRead).sum());
+        assertEquals(summary.getResourcesRead(),
+                summary.getFileStats().stream().mapToLong(PiqiBulkFileStats::getResourcesRead).sum());
+
+        parallelMapper.setOrderedOutput(false);
+        CollectingSink unordered = new CollectingSink();
+        parallelMapper.map(files, unordered);
+        assertEquals(sortedJson(objectMapper, sequential.labResults), sortedJson(objectMapper, unordered.labResults));
+        assertEquals(1, unordered.demographics.size());
+    }
+
+    @Test
+    public void testSinkFailureIsThrownAndPartitionsAreDeleted() throws Exception {
+        List<Path> files = SyntheaNdjson.write(tempDir);
+        Path workDirectory = Files.createDirectory(tempDir.resolve("work"));
+        PiqiBulkR4Mapper bulkMapper = new PiqiBulkR4Mapper(ctx);
+        bulkMapper.setPartitionCount(4);
+        bulkMapper.setWorkDirectory(workDirectory);
+        IllegalStateException failure = new IllegalStateException("sink failed");
+        CollectingSink sink = new CollectingSink() {
+            @Override
+            public synchronized void acceptLabResult(String patientKey, PiqiLabResult labResult) {
+                throw failure;
+            }
+        };
+
+        assertSame(failure, assertThrows(IllegalStateException.class, () -> bulkMapper.map(files, sink)));
+        assertEquals(0, failure.getSuppressed().length);
+        try (Stream<Path> remaining = Files.list(workDirectory)) {
+            assertEquals(0, remaining.count());
+        }
+    }
+
+    @Test
+    public void testChunksAreLineAligned() throws Exception {
+        Path file = tempDir.resolve("lines.ndjson");
+        Files.writeString(file, "{\"a\":1}\n{\"b\":22}\r\n\n{\"c\":333}");
+        List<NdjsonChunk> chunks = NdjsonChunk.split(file, 3);
+        List<String> lines = new ArrayList<>();
+        for (NdjsonChunk chunk : chunks) {
+            chunk.forEachLine(lines::add);
+        }
+        assertEquals(List.of("{\"a\":1}", "{\"b\":22}", "{\"c\":333}"), lines);
+        assertEquals(Files.size(file), chunks.get(chunks.size() - 1).end());
+    }
+
+    @Test
+    public void testPartitionOfIsStable() {
+        int partition = PiqiBulkR4Mapper.partitionOf("01d6ee97-ee40-4430-a9c3-e1afb54afb31", 8, 1);
+        assertTrue(partition >= 0 && partition < 8);
+        assertEquals(partition, PiqiBulkR4Mapper.partitionOf(
+                FhirJsonResourceHeader.patientKey("urn:uuid:01d6ee97-ee40-4430-a9c3-e1afb54afb31"), 8, 1));
+        assertEquals(partition, PiqiBulkR4Mapper.partitionOf(
+                FhirJsonResourceHeader.patientKey("Patient/01d6ee97-ee40-4430-a9c3-e1afb54afb31/_history/2"), 8, 1));
+    }
+
+    @Test
+    public void testRoutingKeyOfResourcesWithoutSubject() {
+        assertEquals("p1", PiqiBulkR4Mapper.routingKey(
+                new FhirJsonResourceHeader("Observation", "obs-1", "Patient/p1"), "{}"));
+        assertEquals("Observation/obs-1", PiqiBulkR4Mapper.routingKey(
+                new FhirJsonResourceHeader("Observation", "obs-1", null), "{}"));
+        assertEquals("{\"resourceType\":\"Observation\"}", PiqiBulkR4Mapper.routingKey(
+                new FhirJsonResourceHeader("Observation", null, null), "{\"resourceType\":\"Observation\"}"));
+        for (String type : new String[] {"DiagnosticReport", "Specimen", "Encounter", "ServiceRequest"}) {
+            assertNull(PiqiBulkR4Mapper.routingKey(new FhirJsonResourceHeader(type, "shared", null), "{}"), type);
+        }
+    }
+
+    @Test
+    public void testPartitionsOfAShardAreIndependentOfTheShard() {
+        for (int shardCount : new int[] {2, 4, 64}) {
+            Set<Integer> partitions = new HashSet<>();
+            for (int i = 0; i < 100_000; i++) {
+                String patientKey = UUID.nameUUIDFromBytes(Integer.toString(i).getBytes()).toString();
+                if (PiqiBulkR4Mapper.shardOf(patientKey, shardCount) == 0) {
+                    partitions.add(PiqiBulkR4Mapper.partitionOf(patientKey, 64, shardCount));
+                }
+            }
+            assertEquals(64, partitions.size(), "partitions used by shard 0 of " + shardCount);
+        }
+    }
+
+    static List<String> sortedJson(ObjectMapper objectMapper, List<?> results) throws Exception {
+        List<String> json = new ArrayList<>();
+        for (Object result : results) {
+            json.add(objectMapper.writeValueAsString(result));
+        }
+        json.sort(null);
+        return json;
+    }
+
+    static class CollectingSink implements PiqiBulkResultSink {
+
+        final List<PiqiDemographics> demographics = new ArrayList<>();
+        final List<PiqiLabResult> labResults = new ArrayList<>();
+        final List<String> patientKeys = new ArrayList<>();
+
+        @Override
+        public synchronized void acceptDemographics(String patientKey, PiqiDemographics piqiDemographics) {
+            patientKeys.add(patientKey);
+            demographics.add(piqiDemographics);
+        }
+
+        @Override
+        public synchronized void acceptLabResult(String patientKey, PiqiLabResult labResult) {
+            patientKeys.add(patientKey);
+            labResults.add(labResult);
+        }
+    }
+}
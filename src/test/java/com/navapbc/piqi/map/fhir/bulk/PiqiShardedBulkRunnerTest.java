@@ -0,0 +1,225 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ca.uhn.fhir.parser.IParser;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.map.fhir.synthetic.SyntheticR4Generator;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiShardedBulkRunnerTest {
+
+    private static final FhirContext ctx = PiqiR4Engine.getDefault().getFhirContext();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testShardsSplitPatientsWithoutLosingResults() throws Exception {
+        List<Path> files = writeExport();
+        ObjectMapper objectMapper = new ObjectMapper();
+        PiqiBulkR4MapperTest.CollectingSink unsharded = new PiqiBulkR4MapperTest.CollectingSink();
+        PiqiBulkMappingSummary unshardedSummary = newBulkMapper().map(files, unsharded);
+
+        List<Object> labResults = new ArrayList<>();
+        Set<String> patientKeys = new HashSet<>();
+        List<PiqiBulkMappingSummary> summaries = new ArrayList<>();
+        for (int shardIndex = 0; shardIndex < 3; shardIndex++) {
+            PiqiBulkR4Mapper bulkMapper = newBulkMapper();
+            bulkMapper.setShard(shardIndex, 3);
+            PiqiBulkR4MapperTest.CollectingSink sink = new PiqiBulkR4MapperTest.CollectingSink();
+            summaries.add(bulkMapper.map(files, sink));
+            labResults.addAll(sink.labResults);
+            for (String patientKey : new HashSet<>(sink.patientKeys)) {
+                assertTrue(patientKeys.add(patientKey), "patient in two shards: " + patientKey);
+            }
+        }
+
+        assertEquals(PiqiBulkR4MapperTest.sortedJson(objectMapper, unsharded.labResults),
+                PiqiBulkR4MapperTest.sortedJson(objectMapper, labResults));
+        assertEquals(new HashSet<>(unsharded.patientKeys), patientKeys);
+        PiqiBulkMappingSummary merged = PiqiBulkShards.mergeSummaries(summaries);
+        assertEquals(unshardedSummary.getLabResultsMapped(), merged.getLabResultsMapped());
+        assertEquals(unshardedSummary.getDemographicsMapped(), merged.getDemographicsMapped());
+        assertEquals(2 * unshardedSummary.getResourcesRead(), merged.getResourcesInOtherShards());
+        assertThrows(IllegalArgumentException.class, () -> newBulkMapper().setShard(3, 3));
+    }
+
+    @Test
+    public void testShardSpreadsOverPartitions() throws Exception {
+        SyntheticR4Generator generator = new SyntheticR4Generator(ctx);
+        generator.setPatients(40);
+        generator.setReportsPerPatient(1);
+        generator.setObservationsPerReport(2);
+        List<Path> files = generator.writeNdjson(tempDir.resolve("export"));
+        // As many shards as partitions, where a shared hash would put each shard's patients in one partition.
+        PiqiBulkR4Mapper bulkMapper = newBulkMapper();
+        bulkMapper.setShard(1, 4);
+
+        PiqiBulkMappingSummary summary = bulkMapper.map(files, new PiqiBulkR4MapperTest.CollectingSink());
+
+        assertTrue(summary.getLabResultsMapped() > 0);
+        assertTrue(summary.getPartitionsMapped() > 1, "partitions mapped: " + summary.getPartitionsMapped());
+    }
+
+    @Test
+    public void testShardsRunInSeparateProcesses() throws Exception {
+        List<Path> files = writeExport();
+        PiqiBulkR4MapperTest.CollectingSink unsharded = new PiqiBulkR4MapperTest.CollectingSink();
+        newBulkMapper().map(files, unsharded);
+        PiqiShardedBulkRunner runner = new PiqiShardedBulkRunner();
+        runner.setShardCount(2);
+        runner.setPartitionCount(4);
+        runner.setJvmOptions(List.of("-Xmx256m"));
+        Path outputDirectory = tempDir.resolve("shards");
+        Path merged = tempDir.resolve("merged.ndjson");
+
+        PiqiBulkMappingSummary summary = runner.run(files, outputDirectory, merged);
+
+        assertEquals(unsharded.labResults.size(), summary.getLabResultsMapped());
+        assertEquals(unsharded.demographics.size(), summary.getDemographicsMapped());
+        assertEquals(2 * files.size(), summary.getFileStats().size());
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<String> lines = Files.readAllLines(merged);
+        assertEquals(unsharded.labResults.size() + unsharded.demographics.size(), lines.size());
+        List<String> labResults = new ArrayList<>();
+        for (String line : lines) {
+            JsonNode node = objectMapper.readTree(line);
+            assertTrue(node.hasNonNull("patientKey"));
+            if (node.has("labResult")) {
+                labResults.add(objectMapper.writeValueAsString(node.get("labResult")));
+            }
+        }
+        labResults.sort(null);
+        List<String> expected = new ArrayList<>();
+        for (String json : PiqiBulkR4MapperTest.sortedJson(objectMapper, unsharded.labResults)) {
+            expected.add(objectMapper.writeValueAsString(objectMapper.readTree(json)));
+        }
+        expected.sort(null);
+        assertEquals(expected, labResults);
+    }
+
+    @Test
+    public void testResourcesWithoutSubjectAreNotRoutedToOneShard() throws Exception {
+        Path file = tempDir.resolve("export.ndjson");
+        IParser parser = ctx.newJsonParser();
+        List<String> lines = new ArrayList<>();
+        Specimen specimen = new Specimen();
+        specimen.setId("shared-specimen");
+        specimen.setType(new CodeableConcept().setText("Blood"));
+        lines.add(parser.encodeResourceToString(specimen));
+        DiagnosticReport orphanReport = labReport("orphan-report", null);
+        for (int i = 0; i < 8; i++) {
+            String subject = "Patient/p" + i;
+            Observation observation = labObservation("obs-" + i, subject);
+            observation.setSpecimen(new Reference("Specimen/shared-specimen"));
+            lines.add(parser.encodeResourceToString(observation));
+            lines.add(parser.encodeResourceToString(labReport("report-" + i, subject).addResult(
+                    new Reference("Observation/obs-" + i))));
+            lines.add(parser.encodeResourceToString(labObservation("orphan-" + i, null)));
+            orphanReport.addResult(new Reference("Observation/orphan-" + i));
+        }
+        lines.add(parser.encodeResourceToString(orphanReport));
+        Files.write(file, lines);
+        ObjectMapper objectMapper = new ObjectMapper();
+        PiqiBulkR4MapperTest.CollectingSink unsharded = new PiqiBulkR4MapperTest.CollectingSink();
+        newBulkMapper().map(List.of(file), unsharded);
+
+        List<Object> labResults = new ArrayList<>();
+        int shardsWithOrphans = 0;
+        for (int shardIndex = 0; shardIndex < 3; shardIndex++) {
+            PiqiBulkR4Mapper bulkMapper = newBulkMapper();
+            bulkMapper.setShard(shardIndex, 3);
+            PiqiBulkR4MapperTest.CollectingSink sink = new PiqiBulkR4MapperTest.CollectingSink();
+            bulkMapper.map(List.of(file), sink);
+            labResults.addAll(sink.labResults);
+            if (sink.patientKeys.contains(null)) {
+                shardsWithOrphans++;
+            }
+        }
+
+        // The shared Specimen reaches every patient's partition, and the Observations without a subject are mapped
+        // once each, with their report, by whichever shard their ids hash to.
+        assertEquals(16, unsharded.labResults.size());
+        assertEquals(8, unsharded.labResults.stream().filter(result -> result.getSpecimenType() != null).count());
+        assertEquals(PiqiBulkR4MapperTest.sortedJson(objectMapper, unsharded.labResults),
+                PiqiBulkR4MapperTest.sortedJson(objectMapper, labResults));
+        assertEquals(3, shardsWithOrphans);
+    }
+
+    @Test
+    public void testSummaryRoundTrip() throws Exception {
+        PiqiBulkMappingSummary summary = new PiqiBulkMappingSummary();
+        summary.addResourcesRead(10);
+        summary.addResourcesInOtherShards(4);
+        summary.addLabResultsMapped(3);
+        summary.addPartitionsMapped(2);
+        summary.addPartitionsSpilled(1);
+        summary.addFileStats(new PiqiBulkFileStats(Path.of("Observation.ndjson"), 1024, 10, 5_000));
+        Path path = tempDir.resolve("summary.properties");
+
+        PiqiBulkShards.writeSummary(summary, path);
+
+        assertEquals(summary.toString(), PiqiBulkShards.readSummary(path).toString());
+        assertEquals(1024, PiqiBulkShards.readSummary(path).getFileStats().get(0).getBytesRead());
+    }
+
+    private List<Path> writeExport() throws Exception {
+        SyntheticR4Generator generator = new SyntheticR4Generator(ctx);
+        generator.setPatients(12);
+        generator.setReportsPerPatient(2);
+        generator.setObservationsPerReport(3);
+        generator.setSpecimens(true);
+        return generator.writeNdjson(tempDir.resolve("export"));
+    }
+
+    private static Observation labObservation(String id, String subject) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.addCategory(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory")));
+        observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+        observation.setValue(new Quantity(5.4));
+        if (subject != null) {
+            observation.setSubject(new Reference(subject));
+        }
+        return observation;
+    }
+
+    private static DiagnosticReport labReport(String id, String subject) {
+        DiagnosticReport report = new DiagnosticReport();
+        report.setId(id);
+        report.addCategory(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/v2-0074", "LAB",
+                "Laboratory")));
+        report.setCode(new CodeableConcept(new Coding("http://loinc.org", "24323-8", "Metabolic panel")));
+        if (subject != null) {
+            report.setSubject(new Reference(subject));
+        }
+        return report;
+    }
+
+    private static PiqiBulkR4Mapper newBulkMapper() {
+        PiqiBulkR4Mapper bulkMapper = new PiqiBulkR4Mapper(ctx);
+        bulkMapper.setPartitionCount(4);
+        return bulkMapper;
+    }
+}
@@ -0,0 +1,135 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.FhirR4ReferenceResolver;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.map.fhir.synthetic.SyntheticR4Generator;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpilledPartitionIndexTest {
+
+    private static final FhirContext ctx = PiqiR4Engine.getDefault().getFhirContext();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSpilledPartitionsMapLikePartitionsOnTheHeap() throws Exception {
+        SyntheticR4Generator generator = new SyntheticR4Generator(ctx);
+        generator.setPatients(8);
+        generator.setReportsPerPatient(3);
+        generator.setObservationsPerReport(4);
+        generator.setSpecimens(true);
+        List<Path> files = generator.writeNdjson(tempDir.resolve("export"));
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        PiqiBulkR4Mapper heapMapper = new PiqiBulkR4Mapper(ctx);
+        heapMapper.setPartitionCount(4);
+        PiqiBulkR4MapperTest.CollectingSink onHeap = new PiqiBulkR4MapperTest.CollectingSink();
+        PiqiBulkMappingSummary heapSummary = heapMapper.map(files, onHeap);
+
+        PiqiBulkR4Mapper spillingMapper = new PiqiBulkR4Mapper(ctx);
+        spillingMapper.setPartitionCount(4);
+        spillingMapper.setSpillThreshold(0);
+        PiqiBulkR4MapperTest.CollectingSink spilled = new PiqiBulkR4MapperTest.CollectingSink();
+        PiqiBulkMappingSummary spilledSummary = spillingMapper.map(files, spilled);
+
+        assertEquals(0, heapSummary.getPartitionsSpilled());
+        assertEquals(spilledSummary.getPartitionsMapped(), spilledSummary.getPartitionsSpilled());
+        assertEquals(heapSummary.getLabResultsMapped(), spilledSummary.getLabResultsMapped());
+        assertEquals(onHeap.patientKeys, spilled.patientKeys);
+        assertEquals(objectMapper.writeValueAsString(onHeap.labResults),
+                objectMapper.writeValueAsString(spilled.labResults));
+        assertThrows(IllegalArgumentException.class, () -> spillingMapper.setSpillThreshold(-1));
+    }
+
+    @Test
+    public void testSyntheaSpilledMatchesOnHeap() throws Exception {
+        List<Path> files = SyntheaNdjson.write(tempDir);
+        ObjectMapper objectMapper = new ObjectMapper();
+        PiqiBulkR4MapperTest.CollectingSink onHeap = new PiqiBulkR4MapperTest.CollectingSink();
+        new PiqiBulkR4Mapper(ctx).map(files, onHeap);
+        PiqiBulkR4Mapper spillingMapper = new PiqiBulkR4Mapper(ctx);
+        spillingMapper.setSpillThreshold(0);
+        PiqiBulkR4MapperTest.CollectingSink spilled = new PiqiBulkR4MapperTest.CollectingSink();
+
+        spillingMapper.map(files, spilled);
+
+        assertEquals(37, spilled.labResults.size());
+        assertEquals(objectMapper.writeValueAsString(onHeap.labResults),
+                objectMapper.writeValueAsString(spilled.labResults));
+    }
+
+    @Test
+    public void testIndexJoinsLikeTheHeapIndexes() throws Exception {
+        Path partition = tempDir.resolve("partition-0.ndjson");
+        Files.writeString(partition, String.join("\n",
+                observation("o1", "first"),
+                "{\"resourceType\":\"Specimen\",\"id\":\"s1\",\"type\":{\"text\":\"Blood\"}}\r",
+                observation("o2", "second"),
+                report("r1", "Observation/o1"),
+                report("r2", "Observation/o1\"},{\"reference\":\"urn:uuid:o2"),
+                observation("o1", "replaced"),
+                "") + "{\"resourceType\":\"Observation\",\"status\":\"final\"}");
+
+        SpilledPartitionIndex index = SpilledPartitionIndex.open(partition, ctx.newJsonParser(), new JsonFactory());
+
+        assertEquals(7, index.getResourceCount());
+        assertEquals(3, index.getObservationCount());
+        Observation first = index.getObservation(0);
+        assertEquals("replaced", first.getCode().getText());
+        assertEquals("second", index.getObservation(1).getCode().getText());
+        assertFalse(index.getObservation(2).hasCode());
+        DiagnosticReport report = index.getDiagnosticReport(first);
+        assertEquals("r1", report.getIdElement().getIdPart());
+        assertSame(report, index.getDiagnosticReport(index.getObservation(0)));
+        assertEquals("r2", index.getDiagnosticReport(index.getObservation(1)).getIdElement().getIdPart());
+        assertNull(index.getDiagnosticReport(index.getObservation(2)));
+
+        FhirR4ReferenceResolver resolver = index.getResolver();
+        Specimen specimen = resolver.resolve(new Reference("Specimen/s1"), Specimen.class, first);
+        assertEquals("Blood", specimen.getType().getText());
+        assertSame(specimen, resolver.resolve(new Reference("http://example.org/fhir/Specimen/s1/_history/2"),
+                Specimen.class, first));
+        assertNull(resolver.resolve(new Reference("Specimen/s1"), Observation.class, first));
+        assertNull(resolver.resolve(new Reference("Specimen/missing"), Specimen.class, first));
+    }
+
+    @Test
+    public void testCompactKeyTableKeepsFirstValue() {
+        CompactKeyTable table = new CompactKeyTable();
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(CompactKeyTable.ABSENT, table.putIfAbsent("Observation/" + i, i));
+        }
+        assertEquals(10_000, table.size());
+        assertEquals(42, table.putIfAbsent("Observation/42", 7));
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, table.get("Observation/" + i));
+        }
+        assertEquals(CompactKeyTable.ABSENT, table.get("Observation/10000"));
+        assertEquals(CompactKeyTable.ABSENT, table.get("Observation/"));
+    }
+
+    private static String observation(String id, String text) {
+        return "{\"resourceType\":\"Observation\",\"id\":\"" + id + "\",\"status\":\"final\",\"code\":{\"text\":\""
+                + text + "\"}}";
+    }
+
+    private static String report(String id, String result) {
+        return "{\"resourceType\":\"DiagnosticReport\",\"id\":\"" + id + "\",\"status\":\"final\","
+                + "\"code\":{\"text\":\"Panel\"},\"result\":[{\"reference\":\"" + result + "\"}]}";
+    }
+}
@@ -0,0 +1,54 @@
+package com.navapbc.piqi.map.fhir.bulk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the resources of {@code synthea.fhir.json} as bulk export style NDJSON, one file per resource type.
+ */
+final class SyntheaNdjson {
+
+    private SyntheaNdjson() {
+    }
+
+    static List<Path> write(Path directory) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode bundle;
+        try (InputStream inputStream = SyntheaNdjson.class.getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            bundle = objectMapper.readTree(inputStream);
+        }
+        Map<String, BufferedWriter> writers = new LinkedHashMap<>();
+        List<Path> files = new ArrayList<>();
+        try {
+            for (JsonNode entry : bundle.get("entry")) {
+                JsonNode resource = entry.get("resource");
+                String resourceType = resource.get("resourceType").asText();
+                BufferedWriter writer = writers.get(resourceType);
+                if (writer == null) {
+                    Path file = directory.resolve(resourceType + ".ndjson");
+                    files.add(file);
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                    writers.put(resourceType, writer);
+                }
+                writer.write(objectMapper.writeValueAsString(resource));
+                writer.newLine();
+            }
+        } finally {
+            for (BufferedWriter writer : writers.values()) {
+                writer.close();
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,121 @@
+package com.navapbc.piqi.map.fhir.columnar;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiLabResult;
+import com.navapbc.piqi.model.PiqiObservationValue;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiLabResultColumnsTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRoundTripThroughMappedFile() throws Exception {
+        List<PiqiLabResult> piqiLabResults = new PiqiLabResultsR4Mapper().mapLabResults(parseSyntheaBundle());
+        PiqiLabResultColumnWriter writer = new PiqiLabResultColumnWriter();
+        writer.addAll(piqiLabResults);
+        Path path = tempDir.resolve("labResults.piqc");
+
+        long bytes = writer.write(path);
+
+        assertEquals(Files.size(path), bytes);
+        assertTrue(bytes < objectMapper.writeValueAsBytes(piqiLabResults).length / 2, "bytes=" + bytes);
+        PiqiLabResultColumns columns = PiqiLabResultColumns.map(path);
+        assertEquals(37, columns.getRowCount());
+        assertEquals(writer.getDictionarySize(), columns.getDictionarySize());
+        assertEquals(objectMapper.writeValueAsString(piqiLabResults),
+                objectMapper.writeValueAsString(columns.getLabResults()));
+    }
+
+    @Test
+    public void testScanComparesDictionaryIndexes() throws Exception {
+        List<PiqiLabResult> piqiLabResults = new PiqiLabResultsR4Mapper().mapLabResults(parseSyntheaBundle());
+        String loinc = piqiLabResults.get(0).getTest().getCodings().get(0).getCode().getValue();
+        long expected = piqiLabResults.stream()
+                .filter(piqiLabResult -> piqiLabResult.getTest().getCodings().stream()
+                        .anyMatch(coding -> loinc.equals(coding.getCode().getValue())))
+                .count();
+        PiqiLabResultColumns columns = writeAndWrap(piqiLabResults);
+
+        int code = columns.indexOf(loinc);
+        long matches = 0;
+        for (int row = 0; row < columns.getRowCount(); row++) {
+            for (int i = 0; i < columns.getCodingCount(LabResultConceptColumn.TEST, row); i++) {
+                if (columns.getCode(LabResultConceptColumn.TEST, row, i) == code) {
+                    matches++;
+                    break;
+                }
+            }
+        }
+        assertEquals(expected, matches);
+        assertEquals(PiqiLabResultColumns.NULL, columns.indexOf("not a code"));
+    }
+
+    @Test
+    public void testNullsAreKeptApart() throws Exception {
+        PiqiLabResult piqiLabResult = new PiqiLabResult();
+        PiqiCodeableConcept test = new PiqiCodeableConcept();
+        test.setText(new PiqiSimpleAttribute());
+        piqiLabResult.setTest(test);
+        PiqiObservationValue resultValue = new PiqiObservationValue();
+        resultValue.setText(new PiqiSimpleAttribute("positive"));
+        piqiLabResult.setResultValue(resultValue);
+        PiqiLabResultColumns columns = writeAndWrap(List.of(piqiLabResult, new PiqiLabResult()));
+
+        assertEquals(PiqiLabResultColumns.NULL_VALUE, columns.getText(LabResultConceptColumn.TEST, 0));
+        assertEquals(0, columns.getCodingCount(LabResultConceptColumn.TEST, 0));
+        assertEquals(PiqiLabResultColumns.ABSENT, columns.getText(LabResultConceptColumn.TEST, 1));
+        assertEquals(PiqiLabResultColumns.NULL, columns.getAttribute(LabResultAttributeColumn.RESULT_VALUE_NUMBER, 0));
+        assertEquals(PiqiLabResultColumns.ABSENT,
+                columns.getAttribute(LabResultAttributeColumn.RESULT_VALUE_NUMBER, 1));
+        assertEquals(objectMapper.writeValueAsString(List.of(piqiLabResult, new PiqiLabResult())),
+                objectMapper.writeValueAsString(columns.getLabResults()));
+    }
+
+    @Test
+    public void testRejectsOtherFiles() {
+        assertThrows(IllegalArgumentException.class,
+                () -> PiqiLabResultColumns.wrap(ByteBuffer.wrap("{\"labResults\":[]}".getBytes())));
+    }
+
+    @Test
+    public void testColumnStartOfADictionaryPast2GbDoesNotWrap() {
+        long blobLength = Integer.MAX_VALUE - 16L;
+        long columnStart = PiqiLabResultColumnWriter.columnStart(4, 1_000_000, blobLength);
+        assertTrue(columnStart > Integer.MAX_VALUE, "columnStart=" + columnStart);
+        assertEquals(0, columnStart % 4);
+        long unaligned = PiqiLabResultColumns.HEADER_BYTES + 4 * 8 + 1_000_001L * 4 + blobLength;
+        assertTrue(columnStart >= unaligned && columnStart < unaligned + 4, "columnStart=" + columnStart);
+    }
+
+    private PiqiLabResultColumns writeAndWrap(List<PiqiLabResult> piqiLabResults) throws Exception {
+        PiqiLabResultColumnWriter writer = new PiqiLabResultColumnWriter();
+        writer.addAll(piqiLabResults);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writer.writeTo(outputStream);
+        return PiqiLabResultColumns.wrap(ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    private Bundle parseSyntheaBundle() {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        return PiqiR4Engine.getDefault().parseBundle(inputStream);
+    }
+}
@@ -0,0 +1,211 @@
+package com.navapbc.piqi.map.fhir.flow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Specimen;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiLabResultProcessorTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testStreamMatchesBundleMapping() throws Exception {
+        Bundle bundle = parseSyntheaBundle();
+        List<String> expected = toSortedJson(new PiqiLabResultsR4Mapper().mapLabResults(bundle));
+        List<Resource> resources = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            resources.add(entry.getResource());
+        }
+
+        assertEquals(expected, toSortedJson(stream(resources)));
+        // Reports first, then the Observations they list.
+        Collections.reverse(resources);
+        assertEquals(expected, toSortedJson(stream(resources)));
+    }
+
+    @Test
+    public void testObservationIsEmittedWithoutReportOnceTheWindowPasses() throws Exception {
+        AtomicLong now = new AtomicLong();
+        PiqiLabResultProcessor processor = new PiqiLabResultProcessor(new PiqiLabResultsR4Mapper(),
+                Duration.ofSeconds(10), 100, ForkJoinPool.commonPool(), 16, now::get, false);
+        InMemorySubscriber<PiqiLabResult> sink = new InMemorySubscriber<>();
+        processor.subscribe(sink);
+        CapturingSubscription subscription = new CapturingSubscription();
+        processor.onSubscribe(subscription);
+
+        processor.onNext(labObservation("obs-1"));
+        assertEquals(1, processor.getPendingCount());
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        processor.expire();
+        assertEquals(0, processor.getPendingCount());
+
+        DiagnosticReport lateReport = new DiagnosticReport();
+        lateReport.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+        lateReport.addResult(new Reference("Observation/obs-1"));
+        processor.onNext(lateReport);
+        processor.onComplete();
+
+        List<PiqiLabResult> results = sink.await(1, TimeUnit.MINUTES);
+        assertEquals(1, results.size());
+        assertNull(results.get(0).getResultStatus());
+        assertEquals(3, subscription.requested);
+    }
+
+    @Test
+    public void testObservationIsMappedAgainstItsReport() throws Exception {
+        PiqiLabResultProcessor processor = new PiqiLabResultProcessor(new PiqiLabResultsR4Mapper(),
+                Duration.ofMinutes(1), 1, ForkJoinPool.commonPool(), 16);
+        InMemorySubscriber<PiqiLabResult> sink = new InMemorySubscriber<>(1);
+        processor.subscribe(sink);
+        DiagnosticReport report = new DiagnosticReport();
+        report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+        report.addResult(new Reference("Observation/obs-2"));
+
+        // obs-1 is pushed out by obs-2, as only one Observation may be pending.
+        new InMemoryPublisher<Resource>(List.of(labObservation("obs-1"), labObservation("obs-2"), report))
+                .subscribe(processor);
+
+        List<PiqiLabResult> results = sink.await(1, TimeUnit.MINUTES);
+        assertEquals(2, results.size());
+        assertNull(results.get(0).getResultStatus());
+        assertEquals("final", results.get(1).getResultStatus().getCodings().get(0).getCode().getValue());
+    }
+
+    @Test
+    public void testSupportingResourcesAreResolvedWhileTheyAreHeld() throws Exception {
+        AtomicLong now = new AtomicLong();
+        PiqiLabResultProcessor processor = new PiqiLabResultProcessor(new PiqiLabResultsR4Mapper(),
+                Duration.ofSeconds(10), 100, ForkJoinPool.commonPool(), 16, now::get, false);
+        InMemorySubscriber<PiqiLabResult> sink = new InMemorySubscriber<>();
+        processor.subscribe(sink);
+        processor.onSubscribe(new CapturingSubscription());
+        DiagnosticReport report = new DiagnosticReport();
+        report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+        report.addResult(new Reference("Observation/obs-1"));
+        report.addResult(new Reference("Observation/obs-2"));
+        report.addResult(new Reference("Observation/obs-3"));
+        processor.onNext(report);
+
+        // The Specimen arrives after obs-1 failed to resolve it, and is gone once its window has passed.
+        processor.onNext(labObservation("obs-1", "spec-1"));
+        Specimen specimen = new Specimen();
+        specimen.setId("spec-1");
+        specimen.setType(new CodeableConcept(new Coding("http://snomed.info/sct", "119297000", "Blood specimen")));
+        processor.onNext(specimen);
+        processor.onNext(labObservation("obs-2", "spec-1"));
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        processor.expire();
+        processor.onNext(labObservation("obs-3", "spec-1"));
+        processor.onComplete();
+
+        List<PiqiLabResult> results = sink.await(1, TimeUnit.MINUTES);
+        assertEquals(3, results.size());
+        assertNull(results.get(0).getSpecimenType());
+        assertEquals("119297000", results.get(1).getSpecimenType().getCodings().get(0).getCode().getValue());
+        assertNull(results.get(2).getSpecimenType());
+    }
+
+    @Test
+    public void testInMemoryPublisherHonoursDemand() {
+        InMemoryPublisher<Integer> publisher = new InMemoryPublisher<>(List.of(1, 2, 3));
+        List<Integer> received = new ArrayList<>();
+        boolean[] completed = new boolean[1];
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(2);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+
+        assertEquals(List.of(1, 2), received);
+        assertFalse(completed[0]);
+    }
+
+    private List<PiqiLabResult> stream(List<Resource> resources) throws Exception {
+        PiqiLabResultProcessor processor = new PiqiLabResultProcessor(new PiqiLabResultsR4Mapper());
+        InMemorySubscriber<PiqiLabResult> sink = new InMemorySubscriber<>(4);
+        processor.subscribe(sink);
+        new InMemoryPublisher<>(resources).subscribe(processor);
+        return sink.await(1, TimeUnit.MINUTES);
+    }
+
+    private List<String> toSortedJson(List<PiqiLabResult> piqiLabResults) throws Exception {
+        List<String> json = new ArrayList<>();
+        for (PiqiLabResult piqiLabResult : piqiLabResults) {
+            json.add(objectMapper.writeValueAsString(piqiLabResult));
+        }
+        Collections.sort(json);
+        return json;
+    }
+
+    private static Observation labObservation(String id) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.addCategory(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory")));
+        observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+        return observation;
+    }
+
+    private static Observation labObservation(String id, String specimenId) {
+        Observation observation = labObservation(id);
+        observation.setSpecimen(new Reference("Specimen/" + specimenId));
+        return observation;
+    }
+
+    private Bundle parseSyntheaBundle() {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        return PiqiR4Engine.getDefault().parseBundle(inputStream);
+    }
+
+    private static class CapturingSubscription implements Flow.Subscription {
+
+        private long requested;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.navapbc.piqi.map.fhir.incremental;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.PiqiBundleMappingResult;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiIncrementalR4MapperTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testMatchesBundleMappers() throws Exception {
+        Bundle bundle = parseSyntheaBundle();
+        PiqiIncrementalR4Mapper mapper = new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault());
+
+        PiqiBundleMappingResult result = mapper.map(bundle);
+
+        assertEquals(objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(bundle)),
+                objectMapper.writeValueAsString(result.getLabResults()));
+        assertEquals(objectMapper.writeValueAsString(new PiqiDemographicsR4Mapper().mapDemographics(bundle)),
+                objectMapper.writeValueAsString(result.getDemographics()));
+        assertEquals(0, mapper.getHitCount());
+        assertEquals(38, mapper.getMissCount());
+        assertEquals(38, mapper.size());
+    }
+
+    @Test
+    public void testOnlyChangedResourcesAreRemapped() throws Exception {
+        PiqiIncrementalR4Mapper mapper = new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault());
+        mapper.map(parseSyntheaBundle());
+
+        Bundle unchanged = parseSyntheaBundle();
+        PiqiBundleMappingResult result = mapper.map(unchanged);
+        assertEquals(38, mapper.getHitCount());
+        assertEquals(38, mapper.getMissCount());
+
+        Bundle changed = parseSyntheaBundle();
+        Observation observation = firstLabObservationWithQuantity(changed);
+        observation.getValueQuantity().setValue(new BigDecimal("999.5"));
+        List<PiqiLabResult> labResults = mapper.map(changed).getLabResults();
+        assertEquals(38 + 37, mapper.getHitCount());
+        assertEquals(39, mapper.getMissCount());
+        assertEquals(objectMapper.writeValueAsString(new PiqiLabResultsR4Mapper().mapLabResults(changed)),
+                objectMapper.writeValueAsString(labResults));
+        assertNotEquals(objectMapper.writeValueAsString(result.getLabResults()),
+                objectMapper.writeValueAsString(labResults));
+    }
+
+    @Test
+    public void testOnlyMappedElementsAreFingerprinted() {
+        FhirR4Fingerprinter fingerprinter = new FhirR4Fingerprinter(PiqiR4Engine.getDefault());
+        Observation observation = firstLabObservationWithQuantity(parseSyntheaBundle());
+        String fingerprint = fingerprinter.fingerprint(observation);
+        assertEquals(fingerprint, fingerprinter.fingerprint(firstLabObservationWithQuantity(parseSyntheaBundle())));
+
+        // Neither the status nor the issued time of an Observation is mapped.
+        observation.setStatus(Observation.ObservationStatus.AMENDED);
+        observation.setIssued(new Date(0));
+        assertEquals(fingerprint, fingerprinter.fingerprint(observation));
+
+        observation.getValueQuantity().setUnit("other");
+        assertNotEquals(fingerprint, fingerprinter.fingerprint(observation));
+        String unitChanged = fingerprinter.fingerprint(observation);
+        observation.getCode().getCodingFirstRep().setCode("0000-0");
+        assertNotEquals(unitChanged, fingerprinter.fingerprint(observation));
+        assertEquals("-", fingerprinter.fingerprint(null));
+    }
+
+    @Test
+    public void testVersionIdIsTrustedOverContent() {
+        PiqiIncrementalR4Mapper mapper = new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault(),
+                new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper(), 1_000);
+        Bundle bundle = parseSyntheaBundle();
+        Observation observation = firstLabObservationWithQuantity(bundle);
+        observation.getMeta().setVersionId("1");
+        mapper.map(bundle);
+        long misses = mapper.getMissCount();
+
+        // Same version, so the cached result is reused even though the value changed.
+        observation.setValue(new Quantity(1));
+        mapper.map(bundle);
+        assertEquals(misses, mapper.getMissCount());
+
+        observation.getMeta().setVersionId("2");
+        mapper.map(bundle);
+        assertEquals(misses + 1, mapper.getMissCount());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        PiqiIncrementalR4Mapper mapper = new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault(),
+                new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper(), 10);
+        mapper.map(parseSyntheaBundle());
+        assertEquals(10, mapper.size());
+        mapper.clear();
+        assertEquals(0, mapper.size());
+        assertThrows(IllegalArgumentException.class, () -> new PiqiIncrementalR4Mapper(PiqiR4Engine.getDefault(),
+                new PiqiLabResultsR4Mapper(), new PiqiDemographicsR4Mapper(), 0));
+    }
+
+    private static Observation firstLabObservationWithQuantity(Bundle bundle) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Observation observation && FhirR4MappingHelper.isLab(observation)
+                    && observation.hasValueQuantity()) {
+                return observation;
+            }
+        }
+        throw new AssertionError("No lab Observation with a quantity");
+    }
+
+    private Bundle parseSyntheaBundle() {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        return PiqiR4Engine.getDefault().parseBundle(inputStream);
+    }
+}
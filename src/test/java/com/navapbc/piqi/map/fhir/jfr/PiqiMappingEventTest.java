@@ -0,0 +1,68 @@
+package com.navapbc.piqi.map.fhir.jfr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4BundleMapper;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiMappingEventTest {
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = parser.parseResource(Bundle.class, inputStream);
+        parsed.setId("bundle-1");
+        PiqiR4BundleMapper bundleMapper =
+                new PiqiR4BundleMapper(List.of(new PiqiDemographicsR4Mapper(), new PiqiLabResultsR4Mapper()));
+
+        Path file = Files.createTempFile("piqi-mapping", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable(BundleIndexingEvent.class).withoutThreshold();
+                recording.enable(MapObservationEvent.class).withoutThreshold();
+                recording.enable(MapDiagnosticReportEvent.class).withoutThreshold();
+                recording.enable(MapDemographicsEvent.class).withoutThreshold();
+                recording.enable(ReferenceResolutionEvent.class).withoutThreshold();
+                recording.start();
+                bundleMapper.map(parsed);
+                recording.stop();
+                recording.dump(file);
+            }
+
+            Map<String, Integer> counts = new HashMap<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().startsWith("com.navapbc.piqi.")) {
+                    counts.merge(event.getEventType().getName(), 1, Integer::sum);
+                    assertEquals("bundle-1", event.getString("bundleId"));
+                    if (event.getEventType().getName().equals("com.navapbc.piqi.BundleIndexing")) {
+                        assertEquals(parsed.getEntry().size(), event.getInt("resourceCount"));
+                        assertEquals(24, event.getInt("diagnosticReportCount"));
+                    }
+                }
+            }
+            assertEquals(1, counts.get("com.navapbc.piqi.BundleIndexing"));
+            assertEquals(37, counts.get("com.navapbc.piqi.MapObservation"));
+            assertEquals(22, counts.get("com.navapbc.piqi.MapDiagnosticReport"));
+            assertEquals(1, counts.get("com.navapbc.piqi.MapDemographics"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
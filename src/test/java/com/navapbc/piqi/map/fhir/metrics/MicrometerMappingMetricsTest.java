@@ -0,0 +1,82 @@
+package com.navapbc.piqi.map.fhir.metrics;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiMappingMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Ratio;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MicrometerMappingMetricsTest {
+
+    @Test
+    public void testMappingSyntheaBundle() {
+        FhirContext ctx = FhirContext.forR4();
+        IParser parser = ctx.newJsonParser();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle parsed = parser.parseResource(Bundle.class, inputStream);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerMappingMetrics metrics = new MicrometerMappingMetrics(registry);
+        PiqiLabResultsR4Mapper labResultsMapper = new PiqiLabResultsR4Mapper();
+        labResultsMapper.setMetrics(metrics);
+        PiqiDemographicsR4Mapper demographicsMapper = new PiqiDemographicsR4Mapper();
+        demographicsMapper.setMetrics(metrics);
+
+        assertEquals(37, labResultsMapper.mapLabResults(parsed).size());
+        assertNotNull(demographicsMapper.mapDemographics(parsed));
+
+        assertEquals(37.0, registry.get(MicrometerMappingMetrics.LAB_RESULTS).counter().count());
+        assertEquals(1, registry.get(MicrometerMappingMetrics.DURATION).tag("class", "PiqiLabResult").timer().count());
+        assertEquals(1, registry.get(MicrometerMappingMetrics.DURATION).tag("class", "PiqiDemographics").timer().count());
+        assertEquals(24.0, registry.get(MicrometerMappingMetrics.RESOURCES).tag("type", "DiagnosticReport").counter().count());
+        assertTrue(registry.get(MicrometerMappingMetrics.RESOURCES).tag("type", "Observation").counter().count() >= 37);
+        assertEquals(1.0, registry.get(MicrometerMappingMetrics.RESOURCES).tag("type", "Patient").counter().count());
+        assertNull(registry.find(MicrometerMappingMetrics.RESOURCES).tag("type", "Immunization").counter());
+        // The encounters list conditional Location references, but the mappers do not follow them.
+        assertNull(registry.find(MicrometerMappingMetrics.UNRESOLVED_REFERENCES).tag("type", "Location").counter());
+    }
+
+    @Test
+    public void testUnmappedValuesAndUnresolvedReferences() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PiqiLabResultsR4Mapper labResultsMapper = new PiqiLabResultsR4Mapper();
+        labResultsMapper.setMetrics(new MicrometerMappingMetrics(registry));
+        Observation observation = new Observation();
+        observation.setId("obs-1");
+        observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "2345-7", "Glucose")));
+        observation.setValue(new Ratio());
+        observation.setSpecimen(new Reference("Specimen/missing"));
+        observation.setEncounter(new Reference("Encounter/missing"));
+        DiagnosticReport diagnosticReport = new DiagnosticReport();
+        diagnosticReport.addBasedOn(new Reference("ServiceRequest/missing"));
+
+        labResultsMapper.mapLabResult(observation, diagnosticReport);
+
+        assertEquals(1.0, registry.get(MicrometerMappingMetrics.UNMAPPED_VALUES).tag("type", "Ratio").counter().count());
+        for (String type : new String[]{"Specimen", "Encounter", "ServiceRequest"}) {
+            assertEquals(1.0, registry.get(MicrometerMappingMetrics.UNRESOLVED_REFERENCES).tag("type", type)
+                    .counter().count(), type);
+        }
+    }
+
+    @Test
+    public void testMetricsAreDisabledByDefault() {
+        PiqiLabResultsR4Mapper labResultsMapper = new PiqiLabResultsR4Mapper();
+        assertSame(PiqiMappingMetrics.NOOP, labResultsMapper.getMetrics());
+        assertFalse(labResultsMapper.getMetrics().isEnabled());
+        labResultsMapper.setMetrics(null);
+        assertSame(PiqiMappingMetrics.NOOP, labResultsMapper.getMetrics());
+    }
+}
@@ -0,0 +1,143 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import com.navapbc.piqi.map.fhir.PiqiCodingCache;
+import com.navapbc.piqi.map.fhir.PiqiTerminologyTranslator;
+import com.navapbc.piqi.model.PiqiCodeableConcept;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiSimpleAttribute;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * The hand-written R4 demographics mapping that {@link PiqiDemographicsPlan} replaced, kept as the reference the
+ * plan is compared with.
+ */
+final class HandWrittenDemographicsR4Mapper {
+
+    private static final String YES_NO_SYSTEM = "http://terminology.hl7.org/CodeSystem/v2-0136";
+
+    private final PiqiCodingCache codingCache;
+    private final PiqiTerminologyTranslator terminologyTranslator;
+
+    HandWrittenDemographicsR4Mapper(PiqiCodingCache codingCache, PiqiTerminologyTranslator terminologyTranslator) {
+        this.codingCache = codingCache;
+        this.terminologyTranslator = terminologyTranslator;
+    }
+
+    PiqiDemographics mapDemographics(Patient patient) {
+        PiqiDemographics demographics = new PiqiDemographics();
+        demographics.setBirthDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                patient.hasBirthDateElement() ? patient.getBirthDateElement() : null));
+        mapBirthSex(demographics, patient);
+        mapDeathAttributes(demographics, patient);
+        mapEthnicity(demographics, patient);
+        mapGender(demographics, patient);
+        if (patient.hasCommunication()) {
+            for (Patient.PatientCommunicationComponent communicationComponent : patient.getCommunication()) {
+                demographics.setPrimaryLanguage(FhirR4MappingHelper.mapCodeableConcept(
+                        communicationComponent.getLanguage(), codingCache, terminologyTranslator));
+                if (communicationComponent.hasPreferred() && communicationComponent.getPreferred()) {
+                    break;
+                }
+            }
+        }
+        demographics.setMaritalStatus(FhirR4MappingHelper.mapCodeableConcept(patient.getMaritalStatus(),
+                codingCache, terminologyTranslator));
+        mapRace(demographics, patient);
+        return demographics;
+    }
+
+    private void mapBirthSex(PiqiDemographics demographics, Patient patient) {
+        if (patient.hasExtension(PiqiDemographicsPlan.BIRTH_SEX_URL)) {
+            Extension extension = patient.getExtensionByUrl(PiqiDemographicsPlan.BIRTH_SEX_URL);
+            if (extension != null && extension.hasValue() && !extension.getValue().isEmpty()) {
+                if (extension.getValue() instanceof CodeType codeType) {
+                    PiqiCodeableConcept codeableConcept = new PiqiCodeableConcept();
+                    codeableConcept.setText(new PiqiSimpleAttribute(codeType.getDisplay()));
+                    PiqiCoding coding = new PiqiCoding();
+                    if (codeType.getSystem() != null) {
+                        coding.setSystem(new PiqiSimpleAttribute(codeType.getSystem()));
+                    } else {
+                        coding.setSystem(new PiqiSimpleAttribute(PiqiDemographicsPlan.BIRTH_SEX_URL));
+                    }
+                    coding.setDisplay(new PiqiSimpleAttribute(codeType.getDisplay()));
+                    coding.setCode(new PiqiSimpleAttribute(codeType.getCode()));
+                    codeableConcept.getCodings().add(coding);
+                    demographics.setBirthSex(codeableConcept);
+                }
+            }
+        }
+    }
+
+    private void mapDeathAttributes(PiqiDemographics demographics, Patient patient) {
+        if (patient.hasDeceased()) {
+            if (patient.hasDeceasedBooleanType()) {
+                boolean deceased = Boolean.TRUE.equals(patient.getDeceasedBooleanType().getValue());
+                demographics.setDeceased(mapDeceased(deceased));
+            }
+            if (patient.hasDeceasedDateTimeType()) {
+                demographics.setDeathDate(FhirR4MappingHelper.simpleAttributeFromDateAsDate(
+                        patient.getDeceasedDateTimeType()));
+            }
+        } else {
+            demographics.setDeceased(mapDeceased(false));
+        }
+    }
+
+    private PiqiCodeableConcept mapDeceased(boolean deceased) {
+        return FhirR4MappingHelper.mapCodeableConcept(deceased ? "Yes" : "No", YES_NO_SYSTEM, deceased ? "Y" : "N",
+                deceased ? "Yes" : "No", codingCache, terminologyTranslator);
+    }
+
+    private void mapEthnicity(PiqiDemographics demographics, Patient patient) {
+        if (patient.hasExtension(PiqiDemographicsPlan.ETHNICITY_URL)) {
+            Extension extension = patient.getExtensionByUrl(PiqiDemographicsPlan.ETHNICITY_URL);
+            if (extension.hasExtension()) {
+                PiqiCodeableConcept ethnicityCodeableConcept = new PiqiCodeableConcept();
+                mapExtension(ethnicityCodeableConcept, extension);
+                demographics.setEthnicity(ethnicityCodeableConcept);
+            }
+        }
+    }
+
+    private void mapExtension(PiqiCodeableConcept codeableConcept, Extension extension) {
+        for (Extension extensionValue : extension.getExtension()) {
+            if (extensionValue.hasUrl() && extensionValue.getUrl().equals("text")) {
+                codeableConcept.setText(new PiqiSimpleAttribute(extensionValue.getValue().toString()));
+            } else if (extensionValue.hasUrl() && extensionValue.getUrl().equals("ombCategory")
+                    && extensionValue.hasValue()) {
+                if (extensionValue.getValue() instanceof Coding coding) {
+                    PiqiCoding categoryCoding = new PiqiCoding();
+                    categoryCoding.setCode(new PiqiSimpleAttribute(coding.getCode()));
+                    categoryCoding.setSystem(new PiqiSimpleAttribute(coding.getSystem()));
+                    categoryCoding.setDisplay(new PiqiSimpleAttribute(coding.getDisplay()));
+                    codeableConcept.getCodings().add(categoryCoding);
+                }
+            }
+        }
+    }
+
+    private void mapGender(PiqiDemographics demographics, Patient patient) {
+        if (patient.hasGender()) {
+            Enumerations.AdministrativeGender gender = patient.getGender();
+            demographics.setGenderIdentity(FhirR4MappingHelper.mapCodeableConcept(gender.getDefinition(),
+                    gender.getSystem(), gender.toCode(), gender.getDisplay(), codingCache, terminologyTranslator));
+        }
+    }
+
+    private void mapRace(PiqiDemographics demographics, Patient patient) {
+        if (patient.hasExtension(PiqiDemographicsPlan.RACE_URL)) {
+            Extension extension = patient.getExtensionByUrl(PiqiDemographicsPlan.RACE_URL);
+            if (extension != null && extension.hasExtension()) {
+                PiqiCodeableConcept raceCodeableConcept = new PiqiCodeableConcept();
+                mapExtension(raceCodeableConcept, extension);
+                demographics.setRace(raceCodeableConcept);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.navapbc.piqi.map.fhir.PiqiCodingCache;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import com.navapbc.piqi.map.fhir.PiqiTerminologyTranslator;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiDemographics;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the plan compiled for R4 with the hand-written mapping it replaced.
+ */
+public class PiqiDemographicsPlanTest {
+
+    private static final String LANGUAGE_SYSTEM = "urn:ietf:bcp:47";
+    private static final String OMB_SYSTEM = "urn:oid:2.16.840.1.113883.6.238";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testSyntheaPatient() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json");
+        Bundle bundle = PiqiR4Engine.getDefault().parseBundle(inputStream);
+        Patient patient = null;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Patient bundlePatient) {
+                patient = bundlePatient;
+                break;
+            }
+        }
+        assertNotNull(patient);
+        assertSameMapping(patient, null, null);
+    }
+
+    @Test
+    public void testDeceased() throws Exception {
+        Patient alive = patient();
+        alive.setDeceased(new BooleanType(false));
+        assertSameMapping(alive, null, null);
+
+        Patient deceased = patient();
+        deceased.setDeceased(new BooleanType(true));
+        assertSameMapping(deceased, null, null);
+        assertEquals("Y", map(deceased, null, null).getDeceased().getCodings().get(0).getCode().getValue());
+
+        Patient died = patient();
+        died.setDeceased(new DateTimeType("2024-03-05T10:15:00Z"));
+        assertSameMapping(died, null, null);
+        PiqiDemographics demographics = map(died, null, null);
+        assertNull(demographics.getDeceased());
+        assertNotNull(demographics.getDeathDate().getValue());
+    }
+
+    @Test
+    public void testCommunication() throws Exception {
+        Patient preferred = patient();
+        preferred.addCommunication().setLanguage(language("en-US", "English (United States)"));
+        preferred.addCommunication().setLanguage(language("es", "Spanish")).setPreferred(true);
+        preferred.addCommunication().setLanguage(language("fr", "French")).setPreferred(true);
+        assertSameMapping(preferred, null, null);
+        assertEquals("es", map(preferred, null, null).getPrimaryLanguage().getCodings().get(0).getCode().getValue());
+
+        Patient nonePreferred = patient();
+        nonePreferred.addCommunication().setLanguage(language("en-US", "English (United States)"));
+        nonePreferred.addCommunication().setLanguage(language("es", "Spanish")).setPreferred(false);
+        assertSameMapping(nonePreferred, null, null);
+        assertEquals("es",
+                map(nonePreferred, null, null).getPrimaryLanguage().getCodings().get(0).getCode().getValue());
+    }
+
+    @Test
+    public void testExtensions() throws Exception {
+        Patient patient = patient();
+        patient.addExtension(PiqiDemographicsPlan.BIRTH_SEX_URL, new CodeType("F"));
+        Extension race = patient.addExtension().setUrl(PiqiDemographicsPlan.RACE_URL);
+        race.addExtension("ombCategory", new Coding(OMB_SYSTEM, "2106-3", "White"));
+        race.addExtension("ombCategory", new Coding(OMB_SYSTEM, "2054-5", "Black or African American"));
+        race.addExtension("text", new StringType("Mixed"));
+        Extension ethnicity = patient.addExtension().setUrl(PiqiDemographicsPlan.ETHNICITY_URL);
+        ethnicity.addExtension("text", new StringType("Hispanic or Latino"));
+        patient.addExtension("http://example.org/unmapped", new StringType("ignored"));
+        assertSameMapping(patient, null, null);
+
+        PiqiDemographics demographics = map(patient, null, null);
+        assertEquals("F", demographics.getBirthSex().getCodings().get(0).getCode().getValue());
+        assertEquals(2, demographics.getRace().getCodings().size());
+        assertEquals("Mixed", demographics.getRace().getText().getValue());
+        assertTrue(demographics.getEthnicity().getCodings().isEmpty());
+    }
+
+    @Test
+    public void testEmptyPatient() throws Exception {
+        Patient patient = new Patient();
+        patient.addExtension().setUrl(PiqiDemographicsPlan.RACE_URL);
+        patient.addExtension().setUrl(PiqiDemographicsPlan.BIRTH_SEX_URL);
+        assertSameMapping(patient, null, null);
+        assertSameMapping(new Patient(), null, null);
+
+        PiqiDemographics demographics = map(new Patient(), null, null);
+        assertNull(demographics.getBirthDate().getValue());
+        assertNull(demographics.getGenderIdentity());
+        assertNull(demographics.getRace());
+        assertNotNull(demographics.getMaritalStatus());
+    }
+
+    @Test
+    public void testCodingCacheAndTranslator() throws Exception {
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+        translator.add(LANGUAGE_SYSTEM, "en", LANGUAGE_SYSTEM, "en-US", "English (United States)");
+        translator.add("http://hl7.org/fhir/administrative-gender", "female", "http://snomed.info/sct", "248152002",
+                "Female");
+        Patient patient = patient();
+        patient.addCommunication().setLanguage(language("en", "English"));
+        patient.setMaritalStatus(new CodeableConcept(new Coding(
+                "http://terminology.hl7.org/CodeSystem/v3-MaritalStatus", "M", "Married")));
+
+        assertSameMapping(patient, new PiqiCodingCache(), translator);
+        PiqiDemographics demographics = map(patient, new PiqiCodingCache(), translator);
+        assertEquals("en-US", demographics.getPrimaryLanguage().getCodings().get(0).getCode().getValue());
+        assertEquals("248152002", demographics.getGenderIdentity().getCodings().get(0).getCode().getValue());
+    }
+
+    @Test
+    public void testCategoryCodingsAreTranslatedAndCached() {
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+        translator.add("urn:local:race", "W", OMB_SYSTEM, "2106-3", "White");
+        Patient patient = patient();
+        Extension race = patient.addExtension().setUrl(PiqiDemographicsPlan.RACE_URL);
+        race.addExtension("ombCategory", new Coding("urn:local:race", "W", null));
+        Extension ethnicity = patient.addExtension().setUrl(PiqiDemographicsPlan.ETHNICITY_URL);
+        ethnicity.addExtension("ombCategory", new Coding(OMB_SYSTEM, "2186-5", "Not Hispanic or Latino"));
+        PiqiCodingCache codingCache = new PiqiCodingCache();
+
+        PiqiDemographics demographics = map(patient, codingCache, translator);
+
+        PiqiCoding raceCoding = demographics.getRace().getCodings().get(0);
+        assertEquals(OMB_SYSTEM, raceCoding.getSystem().getValue());
+        assertEquals("2106-3", raceCoding.getCode().getValue());
+        assertEquals("White", raceCoding.getDisplay().getValue());
+        assertSame(codingCache.coding(OMB_SYSTEM, "2186-5", "Not Hispanic or Latino"),
+                demographics.getEthnicity().getCodings().get(0));
+    }
+
+    @Test
+    public void testR4MapperUsesPlan() throws Exception {
+        Patient patient = patient();
+        patient.setDeceased(new BooleanType(true));
+        PiqiDemographicsR4Mapper mapper = new PiqiDemographicsR4Mapper();
+        assertEquals(objectMapper.writeValueAsString(new HandWrittenDemographicsR4Mapper(null, null)
+                .mapDemographics(patient)), objectMapper.writeValueAsString(mapper.mapDemographics(patient)));
+    }
+
+    private void assertSameMapping(Patient patient, PiqiCodingCache codingCache,
+                                   PiqiTerminologyTranslator translator) throws Exception {
+        PiqiDemographics expected = new HandWrittenDemographicsR4Mapper(codingCache, translator)
+                .mapDemographics(patient);
+        assertEquals(objectMapper.writeValueAsString(expected),
+                objectMapper.writeValueAsString(map(patient, codingCache, translator)));
+    }
+
+    private static PiqiDemographics map(Patient patient, PiqiCodingCache codingCache,
+                                        PiqiTerminologyTranslator translator) {
+        return PiqiDemographicsPlan.PLAN.compile(PiqiR4Engine.getDefault().getFhirContext())
+                .map(patient, new FhirR4ValueAdapter(codingCache, translator));
+    }
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.setId("patient-1");
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setBirthDateElement(new DateType("1980-07-14"));
+        return patient;
+    }
+
+    private static CodeableConcept language(String code, String display) {
+        CodeableConcept language = new CodeableConcept(new Coding(LANGUAGE_SYSTEM, code, display));
+        language.setText(display);
+        return language;
+    }
+}
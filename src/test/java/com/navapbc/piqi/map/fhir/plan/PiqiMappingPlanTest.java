@@ -0,0 +1,79 @@
+package com.navapbc.piqi.map.fhir.plan;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.navapbc.piqi.map.fhir.PiqiR4Engine;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiqiMappingPlanTest {
+
+    private final FhirContext fhirContext = PiqiR4Engine.getDefault().getFhirContext();
+
+    @Test
+    public void testCompile() {
+        PiqiCompiledPlan<List<String>> compiled = new PiqiMappingPlan<List<String>>("Patient", ArrayList::new)
+                .<String>element("communication.language.text", (values, path, adapter) -> adapter.text(
+                        PiqiMappingPlan.first(values)), List::add)
+                .<String>extension("http://example.org/a", PiqiMappingPlanTest::value, List::add)
+                .compile(fhirContext);
+        assertEquals("Patient", compiled.getResourceType());
+        assertEquals(FhirVersionEnum.R4, compiled.getFhirVersion());
+
+        Patient patient = new Patient();
+        patient.addCommunication().setLanguage(new CodeableConcept().setText("English"));
+        assertEquals(List.of("English"), compiled.map(patient, new FhirR4ValueAdapter(null, null)));
+        assertNull(compiled.map(null, new FhirR4ValueAdapter(null, null)));
+        assertThrows(IllegalArgumentException.class,
+                () -> compiled.map(new Observation(), new FhirR4ValueAdapter(null, null)));
+    }
+
+    @Test
+    public void testUnknownElements() {
+        assertThrows(IllegalArgumentException.class, () -> new PiqiMappingPlan<List<String>>("Patient",
+                ArrayList::new).<String>element("nickname", (values, path, adapter) -> null, List::add)
+                .compile(fhirContext));
+        assertThrows(IllegalArgumentException.class, () -> new PiqiMappingPlan<List<String>>("Patient",
+                ArrayList::new).<String>element("birthDate.year", (values, path, adapter) -> null, List::add)
+                .compile(fhirContext));
+    }
+
+    @Test
+    public void testExtensionsAreScannedOnce() throws Exception {
+        PiqiMappingPlan<List<String>> plan = new PiqiMappingPlan<List<String>>("Patient", ArrayList::new)
+                .<String>extension("http://example.org/a", PiqiMappingPlanTest::value, List::add)
+                .<String>extension("http://example.org/b", PiqiMappingPlanTest::value, List::add)
+                .<String>extension("http://example.org/a", PiqiMappingPlanTest::value, List::add);
+        assertEquals(List.of("extension('http://example.org/a')", "extension('http://example.org/b')",
+                "extension('http://example.org/a')"), plan.getSources());
+
+        Patient patient = new Patient();
+        patient.addExtension("http://example.org/b", new StringType("b"));
+        patient.addExtension("http://example.org/a", new StringType("a1"));
+        patient.addExtension("http://example.org/a", new StringType("a2"));
+        assertEquals(List.of("a1", "b", "a1"),
+                plan.compile(fhirContext).map(patient, new FhirR4ValueAdapter(null, null)));
+
+        Patient withoutExtensions = new Patient();
+        assertEquals(List.of(), plan.compile(fhirContext).map(withoutExtensions, new FhirR4ValueAdapter(null, null)));
+        Field extension = DomainResource.class.getDeclaredField("extension");
+        extension.setAccessible(true);
+        assertNull(extension.get(withoutExtensions), "mapping created the extension list");
+    }
+
+    private static String value(List<IBase> values, PiqiCompiledPath path, PiqiValueAdapter adapter) {
+        return values.isEmpty() ? null : adapter.text(((Extension) values.get(0)).getValue());
+    }
+}
@@ -0,0 +1,228 @@
+package com.navapbc.piqi.map.fhir.stream;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.navapbc.piqi.map.fhir.PiqiBundleMappingResult;
+import com.navapbc.piqi.map.fhir.PiqiDemographicsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.PiqiTerminologyTranslator;
+import com.navapbc.piqi.map.fhir.metrics.MicrometerMappingMetrics;
+import com.navapbc.piqi.map.fhir.synthetic.SyntheticR4Generator;
+import com.navapbc.piqi.model.PiqiCoding;
+import com.navapbc.piqi.model.PiqiLabResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Differential tests: the streaming mapper must produce the same PIQI JSON as parsing with HAPI and mapping with the
+ * object model mappers.
+ */
+public class PiqiR4StreamingMapperTest {
+
+    private static final FhirContext CTX = FhirContext.forR4();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testSyntheaBundleMatchesObjectModelMappers() throws IOException {
+        byte[] json;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            json = inputStream.readAllBytes();
+        }
+        PiqiBundleMappingResult result = assertSameAsObjectModel(json);
+        assertEquals(37, result.getLabResults().size());
+    }
+
+    @Test
+    public void testSyntheticBundleMatchesObjectModelMappers() throws IOException {
+        SyntheticR4Generator generator = new SyntheticR4Generator(CTX);
+        generator.setPatients(2);
+        generator.setComponentsPerObservation(2);
+        generator.setSpecimens(true);
+        byte[] json = CTX.newJsonParser().encodeResourceToString(generator.generateBundle())
+                .getBytes(StandardCharsets.UTF_8);
+
+        PiqiBundleMappingResult result = assertSameAsObjectModel(json);
+        assertFalse(result.getLabResults().isEmpty());
+        assertNotNull(result.getLabResults().get(0).getSpecimenType());
+    }
+
+    @Test
+    public void testResourceTypeAfterOtherElements() throws IOException {
+        String json = """
+                {"entry": [
+                  {"resource": {
+                     "id": "obs-1",
+                     "code": {"coding": [{"system": "http://loinc.org", "code": "2345-7", "display": "Glucose"}]},
+                     "valueQuantity": {"value": 95.50, "unit": "mg/dL", "system": "http://unitsofmeasure.org", "code": "mg/dL"},
+                     "referenceRange": [{"low": {"value": 70}, "high": {"value": 99}}],
+                     "category": [{"coding": [{"code": "laboratory"}]}],
+                     "resourceType": "Observation"},
+                   "fullUrl": "http://example.org/fhir/Observation/obs-1"},
+                  {"fullUrl": "http://example.org/fhir/DiagnosticReport/dr-1",
+                   "resource": {"resourceType": "DiagnosticReport", "id": "dr-1", "status": "final",
+                     "issued": "2020-01-02T03:04:05Z",
+                     "code": {"text": "Panel"},
+                     "result": [{"reference": "Observation/obs-1"}]}},
+                  {"resource": {"resourceType": "Patient", "id": "p-1", "gender": "female", "birthDate": "1970-05-06",
+                     "communication": [{"language": {"text": "English"}}, {"language": {"text": "Spanish"}, "preferred": true},
+                                       {"language": {"text": "French"}}]}}
+                ]}
+                """;
+
+        PiqiBundleMappingResult result = assertSameAsObjectModel(json.getBytes(StandardCharsets.UTF_8));
+
+        List<PiqiLabResult> piqiLabResults = result.getLabResults();
+        assertEquals(1, piqiLabResults.size());
+        assertEquals("95.50", piqiLabResults.get(0).getResultValue().getNumber().getValue());
+        assertEquals("Panel", piqiLabResults.get(0).getOrder().getText().getValue());
+        assertEquals("Spanish", result.getDemographics().getPrimaryLanguage().getText().getValue());
+    }
+
+    @Test
+    public void testTranslatorAndMetricsMatchObjectModelMappers() throws IOException {
+        byte[] json;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            json = inputStream.readAllBytes();
+        }
+        PiqiTerminologyTranslator translator = new PiqiTerminologyTranslator();
+        translator.add("http://loinc.org", "718-7", "http://example.org/lab", "HGB", "Hemoglobin");
+        translator.add("urn:oid:2.16.840.1.113883.6.238", "2106-3", "http://example.org/race", "W", null);
+        SimpleMeterRegistry expectedRegistry = new SimpleMeterRegistry();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+        Bundle bundle = CTX.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(json));
+        JsonNode expectedDemographics = objectMapper.valueToTree(
+                demographicsMapper(translator, expectedRegistry).mapDemographics(bundle));
+        JsonNode expectedLabResults = objectMapper.valueToTree(
+                labResultsMapper(translator, expectedRegistry).mapLabResults(bundle));
+        PiqiBundleMappingResult result = new PiqiR4StreamingMapper(objectMapper,
+                labResultsMapper(translator, registry), demographicsMapper(translator, registry))
+                .map(new ByteArrayInputStream(json));
+
+        assertEquals(expectedDemographics, objectMapper.valueToTree(result.getDemographics()));
+        assertEquals(expectedLabResults, objectMapper.valueToTree(result.getLabResults()));
+        assertTrue(result.getLabResults().stream()
+                .flatMap(piqiLabResult -> piqiLabResult.getTest().getCodings().stream())
+                .map(PiqiCoding::getCode).anyMatch(code -> "HGB".equals(code.getValue())));
+        assertEquals("W", result.getDemographics().getRace().getCodings().get(0).getCode().getValue());
+        assertEquals(counts(expectedRegistry), counts(registry));
+        assertEquals(37.0, registry.get(MicrometerMappingMetrics.LAB_RESULTS).counter().count());
+    }
+
+    @Test
+    public void testRepeatedObservationIdIsMappedOnce() throws IOException {
+        String json = """
+                {"resourceType": "Bundle", "id": "bundle-1", "type": "collection", "entry": [
+                  {"resource": {"resourceType": "Specimen", "id": "sp-1",
+                     "type": {"coding": [{"system": "http://snomed.info/sct", "code": "119297000"}]}}},
+                  {"resource": {"resourceType": "Observation", "id": "obs-1", "status": "final",
+                     "category": [{"coding": [{"code": "laboratory"}]}],
+                     "code": {"coding": [{"system": "http://loinc.org", "code": "2345-7", "display": "Glucose"}]},
+                     "valueQuantity": {"value": 90, "unit": "mg/dL"},
+                     "specimen": {"reference": "Specimen/sp-1"}}},
+                  {"resource": {"resourceType": "Observation", "id": "obs-2", "status": "final",
+                     "category": [{"coding": [{"code": "laboratory"}]}],
+                     "code": {"coding": [{"system": "http://loinc.org", "code": "718-7", "display": "Hemoglobin"}]},
+                     "valueQuantity": {"value": 14.1, "unit": "g/dL"},
+                     "specimen": {"reference": "Specimen/sp-1"}}},
+                  {"resource": {"resourceType": "Observation", "id": "obs-1", "status": "final",
+                     "category": [{"coding": [{"code": "laboratory"}]}],
+                     "code": {"coding": [{"system": "http://loinc.org", "code": "2345-7", "display": "Glucose"}]},
+                     "valueQuantity": {"value": 95, "unit": "mg/dL"},
+                     "specimen": {"reference": "Specimen/sp-1"}}},
+                  {"resource": {"resourceType": "DiagnosticReport", "id": "dr-1", "status": "final",
+                     "issued": "2020-01-02T03:04:05Z", "code": {"text": "Panel"},
+                     "result": [{"reference": "Observation/obs-1"}, {"reference": "Observation/obs-2"}]}}
+                ]}
+                """;
+
+        PiqiBundleMappingResult result = assertSameAsObjectModel(json.getBytes(StandardCharsets.UTF_8));
+
+        // The later obs-1 replaces the earlier one in its place, as the lab results mapper keys Observations by id.
+        List<PiqiLabResult> piqiLabResults = result.getLabResults();
+        assertEquals(2, piqiLabResults.size());
+        assertEquals("95", piqiLabResults.get(0).getResultValue().getNumber().getValue());
+        assertEquals("14.1", piqiLabResults.get(1).getResultValue().getNumber().getValue());
+        // Without a cache each result has its own concepts, though they come from the same Specimen and report.
+        assertNotSame(piqiLabResults.get(0).getSpecimenType(), piqiLabResults.get(1).getSpecimenType());
+        assertNotSame(piqiLabResults.get(0).getOrder(), piqiLabResults.get(1).getOrder());
+    }
+
+    @Test
+    public void testWriteProducesDemographicsAndLabResults() throws IOException {
+        byte[] json;
+        try (InputStream inputStream = getClass().getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            json = inputStream.readAllBytes();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        new PiqiR4StreamingMapper(objectMapper).write(new ByteArrayInputStream(json), output);
+
+        Bundle bundle = CTX.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(json));
+        ObjectNode expected = objectMapper.createObjectNode();
+        expected.set("demographics", objectMapper.valueToTree(new PiqiDemographicsR4Mapper().mapDemographics(bundle)));
+        expected.set("labResults", objectMapper.valueToTree(new PiqiLabResultsR4Mapper().mapLabResults(bundle)));
+        assertEquals(expected, objectMapper.readTree(output.toByteArray()));
+    }
+
+    private PiqiBundleMappingResult assertSameAsObjectModel(byte[] json) throws IOException {
+        Bundle bundle = CTX.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(json));
+        JsonNode expectedDemographics = objectMapper.valueToTree(new PiqiDemographicsR4Mapper().mapDemographics(bundle));
+        JsonNode expectedLabResults = objectMapper.valueToTree(new PiqiLabResultsR4Mapper().mapLabResults(bundle));
+
+        PiqiBundleMappingResult result = new PiqiR4StreamingMapper(objectMapper).map(new ByteArrayInputStream(json));
+
+        assertEquals(expectedDemographics, objectMapper.valueToTree(result.getDemographics()));
+        assertEquals(expectedLabResults, objectMapper.valueToTree(result.getLabResults()));
+        return result;
+    }
+
+    private static PiqiLabResultsR4Mapper labResultsMapper(PiqiTerminologyTranslator translator,
+                                                           SimpleMeterRegistry registry) {
+        PiqiLabResultsR4Mapper labResultsMapper = new PiqiLabResultsR4Mapper();
+        labResultsMapper.setTerminologyTranslator(translator);
+        labResultsMapper.setMetrics(new MicrometerMappingMetrics(registry));
+        return labResultsMapper;
+    }
+
+    private static PiqiDemographicsR4Mapper demographicsMapper(PiqiTerminologyTranslator translator,
+                                                               SimpleMeterRegistry registry) {
+        PiqiDemographicsR4Mapper demographicsMapper = new PiqiDemographicsR4Mapper();
+        demographicsMapper.setTerminologyTranslator(translator);
+        demographicsMapper.setMetrics(new MicrometerMappingMetrics(registry));
+        return demographicsMapper;
+    }
+
+    /**
+     * The count of every counter and timer of the registry, by meter id.
+     */
+    private static Map<String, Double> counts(SimpleMeterRegistry registry) {
+        Map<String, Double> counts = new TreeMap<>();
+        for (Meter meter : registry.getMeters()) {
+            if (meter instanceof Counter counter) {
+                counts.put(meter.getId().toString(), counter.count());
+            } else if (meter instanceof Timer timer) {
+                counts.put(meter.getId().toString(), (double) timer.count());
+            }
+        }
+        return counts;
+    }
+}
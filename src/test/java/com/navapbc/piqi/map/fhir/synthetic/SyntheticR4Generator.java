@@ -0,0 +1,329 @@
+package com.navapbc.piqi.map.fhir.synthetic;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.parser.IParser;
+import com.navapbc.piqi.map.fhir.FhirR4MappingHelper;
+import org.hl7.fhir.r4.model.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Generates deterministic synthetic FHIR R4 data for scale and stress testing, as a bundle or as bulk export style
+ * NDJSON.
+ * <p>
+ * The lab panels, their observation codes and units and the shape of the patients are taken from
+ * {@code synthea.fhir.json}; the ids, values, dates and the choice of panel are drawn from a random generator
+ * seeded per patient, so a given seed and configuration always produces the same data, whatever the number of
+ * patients generated before it.
+ * <p>
+ * It can also be run from the command line, for example
+ * {@code ./gradlew generateSyntheticFhir -Pargs="--patients=10000 --format=ndjson --output=build/synthetic"}.
+ */
+public class SyntheticR4Generator {
+
+    private static final String LOINC_SYSTEM = "http://loinc.org";
+    private static final String SNOMED_SYSTEM = "http://snomed.info/sct";
+    private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("GMT-05:00");
+    // 2024-01-01T00:00:00Z, the latest date generated.
+    private static final long LATEST_MILLIS = 1704067200000L;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final FhirContext fhirContext;
+    private final Patient templatePatient;
+    private final List<PanelTemplate> panels;
+
+    private long seed = 1;
+    private int patients = 1;
+    private int encountersPerPatient = 1;
+    private int reportsPerPatient = 24;
+    private int observationsPerReport = 10;
+    private int componentsPerObservation = 0;
+    private boolean specimens = false;
+
+    public SyntheticR4Generator(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+        Bundle template;
+        try (InputStream inputStream =
+                     SyntheticR4Generator.class.getClassLoader().getResourceAsStream("synthea.fhir.json")) {
+            template = fhirContext.newJsonParser().parseResource(Bundle.class, inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Patient patient = null;
+        List<PanelTemplate> labPanels = new ArrayList<>();
+        for (Bundle.BundleEntryComponent entry : template.getEntry()) {
+            if (patient == null && entry.getResource() instanceof Patient bundlePatient) {
+                patient = bundlePatient;
+            } else if (entry.getResource() instanceof DiagnosticReport report && FhirR4MappingHelper.isLab(report)) {
+                List<Observation> observations = new ArrayList<>();
+                for (Reference result : report.getResult()) {
+                    if (result.getResource() instanceof Observation observation && observation.hasValueQuantity()) {
+                        observations.add(observation);
+                    }
+                }
+                if (!observations.isEmpty()) {
+                    labPanels.add(new PanelTemplate(report.getCode(), observations));
+                }
+            }
+        }
+        this.templatePatient = patient;
+        this.panels = labPanels;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setPatients(int patients) {
+        this.patients = patients;
+    }
+
+    public void setEncountersPerPatient(int encountersPerPatient) {
+        this.encountersPerPatient = Math.max(1, encountersPerPatient);
+    }
+
+    public void setReportsPerPatient(int reportsPerPatient) {
+        this.reportsPerPatient = reportsPerPatient;
+    }
+
+    public void setObservationsPerReport(int observationsPerReport) {
+        this.observationsPerReport = observationsPerReport;
+    }
+
+    public void setComponentsPerObservation(int componentsPerObservation) {
+        this.componentsPerObservation = componentsPerObservation;
+    }
+
+    /**
+     * Sets whether every report gets a Specimen referenced by each of its observations.
+     */
+    public void setSpecimens(boolean specimens) {
+        this.specimens = specimens;
+    }
+
+    /**
+     * The number of resources {@link #generate(boolean, Consumer)} produces with the current configuration.
+     */
+    public long getResourceCount() {
+        long perPatient = 1 + encountersPerPatient
+                + (long) reportsPerPatient * (1 + observationsPerReport + (specimens ? 1 : 0));
+        return perPatient * patients;
+    }
+
+    /**
+     * Generates every resource, patient by patient, and hands each one to the consumer.  With {@code urnReferences},
+     * resources reference each other by {@code urn:uuid:} as in a transaction bundle, otherwise by
+     * {@code Type/id} as in a bulk export.
+     */
+    public void generate(boolean urnReferences, Consumer<Resource> consumer) {
+        for (int patientIndex = 0; patientIndex < patients; patientIndex++) {
+            generatePatient(patientIndex, urnReferences, consumer);
+        }
+    }
+
+    /**
+     * Generates one bundle holding every resource, with {@code urn:uuid:} fullUrls and references.  HAPI only
+     * resolves references between entries when a bundle is parsed, so the bundle is encoded and parsed back.
+     */
+    public Bundle generateBundle() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        generate(true, resource -> bundle.addEntry()
+                .setFullUrl("urn:uuid:" + resource.getIdElement().getIdPart())
+                .setResource(resource));
+        IParser parser = fhirContext.newJsonParser();
+        return parser.parseResource(Bundle.class, parser.encodeResourceToString(bundle));
+    }
+
+    /**
+     * Writes every resource to {@code <ResourceType>.ndjson} files in the directory, streaming patient by patient.
+     */
+    public List<Path> writeNdjson(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        IParser parser = fhirContext.newJsonParser();
+        Map<String, BufferedWriter> writers = new LinkedHashMap<>();
+        List<Path> files = new ArrayList<>();
+        try {
+            generate(false, resource -> {
+                try {
+                    String resourceType = resource.fhirType();
+                    BufferedWriter writer = writers.get(resourceType);
+                    if (writer == null) {
+                        Path file = directory.resolve(resourceType + ".ndjson");
+                        files.add(file);
+                        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                        writers.put(resourceType, writer);
+                    }
+                    writer.write(parser.encodeResourceToString(resource));
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (BufferedWriter writer : writers.values()) {
+                writer.close();
+            }
+        }
+        return files;
+    }
+
+    private void generatePatient(int patientIndex, boolean urnReferences, Consumer<Resource> consumer) {
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + patientIndex);
+        Patient patient = templatePatient.copy();
+        patient.setId(newId(random));
+        patient.setGender(random.nextBoolean() ? Enumerations.AdministrativeGender.MALE
+                : Enumerations.AdministrativeGender.FEMALE);
+        patient.setBirthDateElement(new DateType(1930 + random.nextInt(90), random.nextInt(12),
+                1 + random.nextInt(28)));
+        consumer.accept(patient);
+        Reference subject = reference(patient, urnReferences);
+
+        List<Reference> encounters = new ArrayList<>();
+        for (int i = 0; i < encountersPerPatient; i++) {
+            Encounter encounter = new Encounter();
+            encounter.setId(newId(random));
+            encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+            encounter.setSubject(subject);
+            encounter.getPeriod().setStartElement(dateTime(randomMillis(random)));
+            consumer.accept(encounter);
+            encounters.add(reference(encounter, urnReferences));
+        }
+
+        for (int i = 0; i < reportsPerPatient; i++) {
+            PanelTemplate panel = panels.get(random.nextInt(panels.size()));
+            Reference encounter = encounters.get(random.nextInt(encounters.size()));
+            long millis = randomMillis(random);
+
+            Reference specimen = null;
+            if (specimens) {
+                Specimen bloodSpecimen = new Specimen();
+                bloodSpecimen.setId(newId(random));
+                bloodSpecimen.setSubject(subject);
+                bloodSpecimen.getType().setText("Venous blood specimen")
+                        .addCoding(new Coding(SNOMED_SYSTEM, "122555007", "Venous blood specimen"));
+                consumer.accept(bloodSpecimen);
+                specimen = reference(bloodSpecimen, urnReferences);
+            }
+
+            DiagnosticReport report = new DiagnosticReport();
+            report.setId(newId(random));
+            report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+            report.addCategory().addCoding(
+                    new Coding("http://terminology.hl7.org/CodeSystem/v2-0074", "LAB", "Laboratory"));
+            report.setCode(panel.code().copy());
+            report.setSubject(subject);
+            report.setEncounter(encounter);
+            report.setEffective(dateTime(millis));
+            report.setIssuedElement(new InstantType(new Date(millis), TemporalPrecisionEnum.MILLI, TIME_ZONE));
+            report.addPerformer().setDisplay("SYNTHETIC LABORATORY " + random.nextInt(100));
+
+            for (int j = 0; j < observationsPerReport; j++) {
+                Observation template = panel.observations().get(j % panel.observations().size());
+                Observation observation = new Observation();
+                observation.setId(newId(random));
+                observation.setStatus(Observation.ObservationStatus.FINAL);
+                observation.addCategory().addCoding(new Coding(
+                        "http://terminology.hl7.org/CodeSystem/observation-category", "laboratory", "Laboratory"));
+                observation.setCode(template.getCode().copy());
+                observation.setSubject(subject);
+                observation.setEncounter(encounter);
+                observation.setEffective(dateTime(millis));
+                observation.setIssuedElement(
+                        new InstantType(new Date(millis), TemporalPrecisionEnum.MILLI, TIME_ZONE));
+                observation.setValue(quantity(template.getValueQuantity(), random));
+                if (specimen != null) {
+                    observation.setSpecimen(specimen);
+                }
+                for (int k = 0; k < componentsPerObservation; k++) {
+                    Observation componentTemplate =
+                            panel.observations().get((j + k + 1) % panel.observations().size());
+                    observation.addComponent()
+                            .setCode(componentTemplate.getCode().copy())
+                            .setValue(quantity(componentTemplate.getValueQuantity(), random));
+                }
+                consumer.accept(observation);
+                report.addResult(reference(observation, urnReferences)
+                        .setDisplay(observation.getCode().getText()));
+            }
+            consumer.accept(report);
+        }
+    }
+
+    private static String newId(SplittableRandom random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private static Reference reference(Resource resource, boolean urnReferences) {
+        String id = resource.getIdElement().getIdPart();
+        return new Reference(urnReferences ? "urn:uuid:" + id : resource.fhirType() + "/" + id);
+    }
+
+    private static long randomMillis(SplittableRandom random) {
+        return LATEST_MILLIS - random.nextLong(20 * 365 * DAY_MILLIS);
+    }
+
+    private static DateTimeType dateTime(long millis) {
+        return new DateTimeType(new Date(millis), TemporalPrecisionEnum.SECOND, TIME_ZONE);
+    }
+
+    private static Quantity quantity(Quantity template, SplittableRandom random) {
+        Quantity quantity = template.copy();
+        double value = template.getValue().doubleValue() * (0.8 + 0.4 * random.nextDouble());
+        quantity.setValue(BigDecimal.valueOf(value).setScale(4, RoundingMode.HALF_UP));
+        return quantity;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            int separator = option.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value but found [" + arg + "]");
+            }
+            options.put(option.substring(0, separator), option.substring(separator + 1));
+        }
+        FhirContext fhirContext = FhirContext.forR4();
+        SyntheticR4Generator generator = new SyntheticR4Generator(fhirContext);
+        generator.setSeed(Long.parseLong(options.getOrDefault("seed", "1")));
+        generator.setPatients(Integer.parseInt(options.getOrDefault("patients", "1")));
+        generator.setEncountersPerPatient(Integer.parseInt(options.getOrDefault("encounters-per-patient", "1")));
+        generator.setReportsPerPatient(Integer.parseInt(options.getOrDefault("reports-per-patient", "24")));
+        generator.setObservationsPerReport(Integer.parseInt(options.getOrDefault("observations-per-report", "10")));
+        generator.setComponentsPerObservation(
+                Integer.parseInt(options.getOrDefault("components-per-observation", "0")));
+        generator.setSpecimens(Boolean.parseBoolean(options.getOrDefault("specimens", "false")));
+        Path output = Path.of(options.getOrDefault("output", "build/synthetic"));
+        if ("bundle".equals(options.getOrDefault("format", "ndjson"))) {
+            Files.createDirectories(output.toAbsolutePath().getParent());
+            Files.writeString(output, fhirContext.newJsonParser().encodeResourceToString(generator.generateBundle()));
+        } else {
+            generator.writeNdjson(output);
+        }
+        System.out.println("Generated " + generator.getResourceCount() + " resources to " + output.toAbsolutePath());
+    }
+
+    private record PanelTemplate(CodeableConcept code, List<Observation> observations) {
+    }
+}
@@ -0,0 +1,85 @@
+package com.navapbc.piqi.map.fhir.synthetic;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.navapbc.piqi.map.fhir.PiqiLabResultsR4Mapper;
+import com.navapbc.piqi.map.fhir.bulk.PiqiBulkMappingSummary;
+import com.navapbc.piqi.map.fhir.bulk.PiqiBulkR4Mapper;
+import com.navapbc.piqi.map.fhir.bulk.PiqiBulkResultSink;
+import com.navapbc.piqi.model.PiqiDemographics;
+import com.navapbc.piqi.model.PiqiLabResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SyntheticR4GeneratorTest {
+
+    private static final FhirContext ctx = FhirContext.forR4();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testGenerationIsDeterministic() {
+        SyntheticR4Generator generator = newGenerator(3, 4, 5);
+        String first = ctx.newJsonParser().encodeResourceToString(generator.generateBundle());
+        String second = ctx.newJsonParser().encodeResourceToString(newGenerator(3, 4, 5).generateBundle());
+        assertEquals(first, second);
+
+        generator.setSeed(2);
+        assertNotEquals(first, ctx.newJsonParser().encodeResourceToString(generator.generateBundle()));
+    }
+
+    @Test
+    public void testGeneratedBundleMapsEveryObservation() {
+        SyntheticR4Generator generator = newGenerator(20, 25, 10);
+        generator.setComponentsPerObservation(2);
+        generator.setSpecimens(true);
+        Bundle bundle = generator.generateBundle();
+        assertEquals(generator.getResourceCount(), bundle.getEntry().size());
+
+        List<PiqiLabResult> results = new PiqiLabResultsR4Mapper().mapLabResults(bundle);
+
+        assertEquals(20 * 25 * 10, results.size());
+        for (PiqiLabResult result : results) {
+            assertNotNull(result.getResultStatus());
+            assertNotNull(result.getResultUnit());
+        }
+    }
+
+    @Test
+    public void testGeneratedNdjsonMapsInBulk() throws Exception {
+        SyntheticR4Generator generator = newGenerator(50, 10, 8);
+        List<Path> files = generator.writeNdjson(tempDir.resolve("ndjson"));
+        PiqiBulkR4Mapper bulkMapper = new PiqiBulkR4Mapper(ctx);
+        bulkMapper.setPartitionCount(8);
+        bulkMapper.setParallelism(2);
+        PiqiBulkMappingSummary summary = bulkMapper.map(files, new PiqiBulkResultSink() {
+            @Override
+            public void acceptDemographics(String patientKey, PiqiDemographics demographics) {
+                assertNotNull(demographics.getBirthDate().getValue());
+            }
+
+            @Override
+            public void acceptLabResult(String patientKey, PiqiLabResult labResult) {
+                assertNotNull(labResult.getResultStatus());
+            }
+        });
+
+        assertEquals(generator.getResourceCount(), summary.getResourcesRead());
+        assertEquals(50, summary.getDemographicsMapped());
+        assertEquals(50 * 10 * 8, summary.getLabResultsMapped());
+    }
+
+    private static SyntheticR4Generator newGenerator(int patients, int reportsPerPatient, int observationsPerReport) {
+        SyntheticR4Generator generator = new SyntheticR4Generator(ctx);
+        generator.setPatients(patients);
+        generator.setReportsPerPatient(reportsPerPatient);
+        generator.setObservationsPerReport(observationsPerReport);
+        return generator;
+    }
+}